@@ -0,0 +1,113 @@
+package com.osler.analysers;
+
+import android.content.Context;
+
+import com.osler.analysers.data.Alert;
+import com.osler.analysers.data.AlertEngine;
+import com.osler.analysers.data.DataQueries;
+import com.osler.analysers.data.Metrics;
+import com.osler.analysers.data.ReportWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * AlertReporter receives the alerts of the rows checked by an AlertEngine. New alerts are posted
+ * as a notification, except those of the first load, which are not news, and the sites with
+ * recent alerts are written to a report in the files directory.
+ */
+class AlertReporter implements DataQueries.AlertListener {
+    /**
+     * The name of the report of the sites with recent alerts in the app's files directory.
+     */
+    private static final String ALERT_REPORT_FILE = "site_alerts.txt";
+
+    /**
+     * The number of alerts listed in a notification.
+     */
+    private static final int MAX_NOTIFIED_ALERTS = 5;
+
+    private final Context context;
+    private final Executor reportExecutor;
+
+    /**
+     * Whether the rows of the first load have been checked. Only used on the loader thread.
+     */
+    private boolean alertsChecked;
+
+    /**
+     * Creates a reporter.
+     *
+     * @param context        The context to notify from.
+     * @param reportExecutor The Executor the report is written on.
+     */
+    AlertReporter(Context context, Executor reportExecutor) {
+        this.context = context.getApplicationContext();
+        this.reportExecutor = reportExecutor;
+    }
+
+    @Override
+    public void onAlertsChecked(List<Alert> alerts, AlertEngine engine) {
+        boolean initial = !alertsChecked;
+        alertsChecked = true;
+        if (alerts.isEmpty()) {
+            return;
+        }
+        if (!initial) {
+            notifyAlerts(alerts);
+        }
+        writeAlertReport(engine.getRecentAlerts(), new File(context.getFilesDir(), ALERT_REPORT_FILE));
+    }
+
+    /**
+     * notifyAlerts method posts new alerts as a notification, naming the first site in the title
+     * and listing the first few alerts.
+     *
+     * @param alerts The new alerts, in end date order.
+     */
+    private void notifyAlerts(List<Alert> alerts) {
+        Set<String> sites = new HashSet<>();
+        StringBuilder text = new StringBuilder();
+        for (Alert alert : alerts) {
+            sites.add(alert.getCountry() + " / " + alert.getSite());
+            if (text.length() > 0 && sites.size() > MAX_NOTIFIED_ALERTS) {
+                continue;
+            }
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(alert);
+        }
+        if (sites.size() > MAX_NOTIFIED_ALERTS) {
+            text.append('\n').append(context.getString(R.string.alert_more, sites.size() - MAX_NOTIFIED_ALERTS));
+        }
+        String first = alerts.get(0).getCountry() + " / " + alerts.get(0).getSite();
+        String title = sites.size() == 1 ? context.getString(R.string.alert_title, first)
+                : context.getString(R.string.alert_title_sites, first);
+        new ReportNotifier(context).showAlerts(title, text.toString());
+    }
+
+    /**
+     * writeAlertReport method writes the sites with recent alerts to a report in the background.
+     * The report is only for reading later, so a failure is recorded rather than shown.
+     *
+     * @param alerts The recent alerts. The list is immutable.
+     * @param file   The report file.
+     */
+    private void writeAlertReport(final List<Alert> alerts, final File file) {
+        reportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new ReportWriter(file).writeAlerts(alerts);
+                } catch (IOException e) {
+                    Metrics.get().recordError("Writing " + file.getName(), e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,607 @@
+package com.osler.analysers;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import com.osler.analysers.data.NameTable;
+import com.osler.analysers.data.RollupStore;
+import com.osler.analysers.data.SiteDataStore;
+import com.osler.analysers.data.SnapshotCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AnalysersDatabase keeps the analyser rows in SQLite, with rollup tables of their totals per
+ * country, per site and per site and day, see RollupStore. The rollups are maintained in batches:
+ * the rows of each insert are summed per country, site and day in memory first, and every total
+ * they touch is then updated once, in the same transaction as the rows. The raw rows are indexed
+ * by country, site and end date, so window queries and the latest rows of a site are looked up
+ * site by site rather than scanned, and by source so a source can be replaced or read back. The
+ * range of dates of each source is kept with it.
+ *
+ * <p>There is one instance per process, see {@link #get(Context)}, so all writes go through one
+ * connection.</p>
+ */
+public class AnalysersDatabase extends SQLiteOpenHelper implements RollupStore {
+    private static final String NAME = "analysers.db";
+    private static final int VERSION = 1;
+
+    /**
+     * The number of seconds in a day. Rows are rolled up by the UTC day they start on.
+     */
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE sources (name TEXT PRIMARY KEY, checksum INTEGER NOT NULL,"
+                    + " malformed_rows INTEGER NOT NULL DEFAULT 0, expired_rows INTEGER NOT NULL DEFAULT 0,"
+                    + " diagnostics TEXT NOT NULL DEFAULT '', min_date INTEGER, max_date INTEGER)",
+            "CREATE TABLE rows (source TEXT NOT NULL, country TEXT NOT NULL, site TEXT NOT NULL,"
+                    + " tested INTEGER NOT NULL, positive INTEGER NOT NULL, start_date INTEGER NOT NULL,"
+                    + " end_date INTEGER NOT NULL)",
+            "CREATE INDEX rows_country_site_end ON rows (country, site, end_date)",
+            "CREATE INDEX rows_source ON rows (source)",
+            // The rollups are only looked up by their keys, so they are stored in key order
+            "CREATE TABLE country_totals (country TEXT NOT NULL PRIMARY KEY, tested INTEGER NOT NULL,"
+                    + " positive INTEGER NOT NULL, row_count INTEGER NOT NULL) WITHOUT ROWID",
+            "CREATE TABLE site_totals (country TEXT NOT NULL, site TEXT NOT NULL, tested INTEGER NOT NULL,"
+                    + " positive INTEGER NOT NULL, row_count INTEGER NOT NULL,"
+                    + " PRIMARY KEY (country, site)) WITHOUT ROWID",
+            "CREATE TABLE site_day_totals (country TEXT NOT NULL, site TEXT NOT NULL, day INTEGER NOT NULL,"
+                    + " tested INTEGER NOT NULL, positive INTEGER NOT NULL, row_count INTEGER NOT NULL,"
+                    + " PRIMARY KEY (country, site, day)) WITHOUT ROWID",
+    };
+
+    private static final String INSERT_ROW = "INSERT INTO rows"
+            + " (source, country, site, tested, positive, start_date, end_date) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static AnalysersDatabase instance;
+
+    /**
+     * get method returns the database of the process, opening it on first use.
+     *
+     * @param context Any context of the app.
+     * @return The AnalysersDatabase.
+     */
+    public static synchronized AnalysersDatabase get(Context context) {
+        if (instance == null) {
+            instance = new AnalysersDatabase(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AnalysersDatabase(Context context) {
+        super(context, NAME, null, VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Readers are not blocked while rows are being stored
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        for (String statement : SCHEMA) {
+            db.execSQL(statement);
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The rows are a copy of the data files, so they are stored again rather than migrated
+        for (String table : new String[]{"sources", "rows", "country_totals", "site_totals", "site_day_totals"}) {
+            db.execSQL("DROP TABLE IF EXISTS " + table);
+        }
+        onCreate(db);
+    }
+
+    @Override
+    public long getChecksum(String source) throws IOException {
+        try {
+            Cursor cursor = getReadableDatabase().rawQuery("SELECT checksum FROM sources WHERE name = ?",
+                    new String[]{source});
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read the sources", e);
+        }
+    }
+
+    @Override
+    public void replaceSource(String source, long checksum, SiteDataStore rows, int malformedRows, long expiredRows,
+                              List<String> diagnostics) throws IOException {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                deleteRows(db, source);
+                SQLiteStatement statement = db.compileStatement("INSERT OR REPLACE INTO sources"
+                        + " (name, checksum, malformed_rows, expired_rows, diagnostics) VALUES (?, ?, ?, ?, ?)");
+                try {
+                    statement.bindString(1, source);
+                    statement.bindLong(2, checksum);
+                    statement.bindLong(3, malformedRows);
+                    statement.bindLong(4, expiredRows);
+                    // Diagnostic messages are single lines
+                    statement.bindString(5, joinLines(diagnostics));
+                    statement.executeInsert();
+                } finally {
+                    statement.close();
+                }
+                insertRows(db, source, rows, 0);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not store the rows of " + source, e);
+        }
+    }
+
+    @Override
+    public void appendRows(String source, SiteDataStore rows, int fromRow) throws IOException {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                // Appended rows have no checksum, but the source must be known to be read back
+                db.execSQL("INSERT OR IGNORE INTO sources (name, checksum) VALUES (?, 0)", new Object[]{source});
+                insertRows(db, source, rows, fromRow);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not store the rows of " + source, e);
+        }
+    }
+
+    @Override
+    public void removeSource(String source) throws IOException {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                deleteRows(db, source);
+                db.delete("sources", "name = ?", new String[]{source});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not remove the rows of " + source, e);
+        }
+    }
+
+    @Override
+    public SnapshotCache.Snapshot readCounters(String source) throws IOException {
+        try {
+            return readCounters(getReadableDatabase(), source, new SiteDataStore());
+        } catch (SQLException e) {
+            throw new IOException("Could not read the sources", e);
+        }
+    }
+
+    /**
+     * readCounters method reads the counters of a source into a snapshot of the given rows.
+     *
+     * @return The snapshot, or null if the source is not stored.
+     */
+    private static SnapshotCache.Snapshot readCounters(SQLiteDatabase db, String source, SiteDataStore rows) {
+        Cursor cursor = db.rawQuery("SELECT malformed_rows, expired_rows, diagnostics FROM sources WHERE name = ?",
+                new String[]{source});
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String messages = cursor.getString(2);
+            List<String> diagnostics = messages.isEmpty() ? new ArrayList<String>()
+                    : new ArrayList<>(Arrays.asList(messages.split("\n")));
+            return new SnapshotCache.Snapshot(rows, cursor.getInt(0), cursor.getLong(1), diagnostics);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public SnapshotCache.Snapshot readSource(String source) throws IOException {
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            SiteDataStore rows = new SiteDataStore();
+            SnapshotCache.Snapshot counters = readCounters(db, source, rows);
+            if (counters == null) {
+                return null;
+            }
+            Cursor cursor = db.rawQuery("SELECT country, site, tested, positive, start_date, end_date FROM rows"
+                    + " WHERE source = ? ORDER BY rowid", new String[]{source});
+            try {
+                while (cursor.moveToNext()) {
+                    rows.append(cursor.getString(0), cursor.getString(1), cursor.getInt(2), cursor.getInt(3),
+                            cursor.getLong(4), cursor.getLong(5));
+                }
+            } finally {
+                cursor.close();
+            }
+            rows.trimToSize();
+            return counters;
+        } catch (SQLException e) {
+            throw new IOException("Could not read the rows of " + source, e);
+        }
+    }
+
+    @Override
+    public void readTotals(TotalsHandler handler) throws IOException {
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor cursor = db.rawQuery("SELECT country, tested, positive, row_count FROM country_totals", null);
+            try {
+                while (cursor.moveToNext()) {
+                    handler.onCountryTotals(cursor.getString(0), cursor.getLong(1), cursor.getLong(2),
+                            cursor.getInt(3));
+                }
+            } finally {
+                cursor.close();
+            }
+            cursor = db.rawQuery("SELECT country, site, tested, positive, row_count FROM site_totals", null);
+            try {
+                while (cursor.moveToNext()) {
+                    handler.onSiteTotals(cursor.getString(0), cursor.getString(1), cursor.getLong(2),
+                            cursor.getLong(3), cursor.getInt(4));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read the rollups", e);
+        }
+    }
+
+    @Override
+    public long getLastRowId() throws IOException {
+        try {
+            Cursor cursor = getReadableDatabase().rawQuery("SELECT IFNULL(MAX(rowid), 0) FROM rows", null);
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read the rows", e);
+        }
+    }
+
+    @Override
+    public long[] readDateRange() throws IOException {
+        try {
+            Cursor cursor = getReadableDatabase().rawQuery("SELECT MIN(min_date), MAX(max_date) FROM sources", null);
+            try {
+                return cursor.moveToFirst() && !cursor.isNull(0) ? new long[]{cursor.getLong(0), cursor.getLong(1)}
+                        : null;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read the sources", e);
+        }
+    }
+
+    @Override
+    public void readWindow(long from, long to, long lastRowId, TotalsHandler handler) throws IOException {
+        try {
+            // The sites drive the join, so each site's rows are a range of the index from the window start on
+            Cursor cursor = getReadableDatabase().rawQuery("SELECT s.country, s.site, SUM(r.tested),"
+                    + " SUM(r.positive), COUNT(*) FROM site_totals s CROSS JOIN rows r"
+                    + " ON r.country = s.country AND r.site = s.site AND r.end_date >= ?"
+                    + " WHERE s.row_count > 0 AND r.start_date <= ? AND r.rowid <= ? GROUP BY s.country, s.site",
+                    new String[]{Long.toString(from), Long.toString(to), Long.toString(lastRowId)});
+            try {
+                while (cursor.moveToNext()) {
+                    handler.onSiteTotals(cursor.getString(0), cursor.getString(1), cursor.getLong(2),
+                            cursor.getLong(3), cursor.getInt(4));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read the rows", e);
+        }
+    }
+
+    @Override
+    public void readDayTotals(long lastRowId, DayTotalsHandler handler) throws IOException {
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            // The rollups include the rows stored after lastRowId, which are few, so they are taken out
+            Rollup later = new Rollup();
+            Cursor cursor = db.rawQuery("SELECT country, site, start_date / " + SECONDS_PER_DAY + " AS day,"
+                    + " SUM(tested), SUM(positive), COUNT(*) FROM rows WHERE rowid > ? GROUP BY country, site, day",
+                    new String[]{Long.toString(lastRowId)});
+            try {
+                while (cursor.moveToNext()) {
+                    later.add(cursor.getString(0), cursor.getString(1), cursor.getLong(2), cursor.getLong(3),
+                            cursor.getLong(4), cursor.getLong(5));
+                }
+            } finally {
+                cursor.close();
+            }
+            cursor = db.rawQuery("SELECT country, site, day, tested, positive, row_count FROM site_day_totals"
+                    + " WHERE row_count > 0", null);
+            try {
+                while (cursor.moveToNext()) {
+                    String country = cursor.getString(0);
+                    String site = cursor.getString(1);
+                    long day = cursor.getLong(2);
+                    long[] taken = later.getDay(country, site, day);
+                    if (taken == null) {
+                        handler.onDayTotals(country, site, day, cursor.getLong(3), cursor.getLong(4));
+                    } else if (cursor.getLong(5) > taken[2]) {
+                        handler.onDayTotals(country, site, day, cursor.getLong(3) - taken[0],
+                                cursor.getLong(4) - taken[1]);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read the rollups", e);
+        }
+    }
+
+    @Override
+    public void readLatestRows(int rowsPerSite, long lastRowId, SiteDataStore rows) throws IOException {
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            List<String[]> sites = new ArrayList<>();
+            Cursor cursor = db.rawQuery("SELECT country, site FROM site_totals WHERE row_count > 0", null);
+            try {
+                while (cursor.moveToNext()) {
+                    sites.add(new String[]{cursor.getString(0), cursor.getString(1)});
+                }
+            } finally {
+                cursor.close();
+            }
+            long[] tested = new long[rowsPerSite];
+            long[] positive = new long[rowsPerSite];
+            long[] startDates = new long[rowsPerSite];
+            long[] endDates = new long[rowsPerSite];
+            for (String[] site : sites) {
+                // The last rows of the site's range of the index, newest first
+                cursor = db.rawQuery("SELECT tested, positive, start_date, end_date FROM rows"
+                        + " WHERE country = ? AND site = ? AND rowid <= ? ORDER BY end_date DESC, rowid DESC LIMIT ?",
+                        new String[]{site[0], site[1], Long.toString(lastRowId), Integer.toString(rowsPerSite)});
+                int count = 0;
+                try {
+                    while (cursor.moveToNext()) {
+                        tested[count] = cursor.getLong(0);
+                        positive[count] = cursor.getLong(1);
+                        startDates[count] = cursor.getLong(2);
+                        endDates[count] = cursor.getLong(3);
+                        count++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+                for (int i = count - 1; i >= 0; i--) {
+                    rows.append(site[0], site[1], (int) tested[i], (int) positive[i], startDates[i], endDates[i]);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not read the rows", e);
+        }
+    }
+
+    private static String joinLines(List<String> lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(line);
+        }
+        return text.toString();
+    }
+
+    /**
+     * insertRows method inserts rows with one prepared statement and adds them to the rollups.
+     * It must be called inside a transaction.
+     */
+    private static void insertRows(SQLiteDatabase db, String source, SiteDataStore rows, int fromRow) {
+        NameTable countries = rows.getCountries();
+        NameTable sites = rows.getSites();
+        Rollup rollup = new Rollup();
+        long minDate = Long.MAX_VALUE;
+        long maxDate = Long.MIN_VALUE;
+        SQLiteStatement insert = db.compileStatement(INSERT_ROW);
+        try {
+            insert.bindString(1, source);
+            for (int row = fromRow; row < rows.size(); row++) {
+                String country = countries.getName(rows.getCountryId(row));
+                String site = sites.getName(rows.getSiteId(row));
+                insert.bindString(2, country);
+                insert.bindString(3, site);
+                insert.bindLong(4, rows.getTested(row));
+                insert.bindLong(5, rows.getPositive(row));
+                insert.bindLong(6, rows.getStartDate(row));
+                insert.bindLong(7, rows.getEndDate(row));
+                insert.executeInsert();
+                rollup.add(country, site, rows.getStartDate(row) / SECONDS_PER_DAY, rows.getTested(row),
+                        rows.getPositive(row), 1);
+                minDate = Math.min(minDate, Math.min(rows.getStartDate(row), rows.getEndDate(row)));
+                maxDate = Math.max(maxDate, Math.max(rows.getStartDate(row), rows.getEndDate(row)));
+            }
+        } finally {
+            insert.close();
+        }
+        rollup.applyTo(db);
+        if (fromRow < rows.size()) {
+            db.execSQL("UPDATE sources SET min_date = MIN(IFNULL(min_date, ?1), ?1),"
+                    + " max_date = MAX(IFNULL(max_date, ?2), ?2) WHERE name = ?3",
+                    new Object[]{minDate, maxDate, source});
+        }
+    }
+
+    /**
+     * deleteRows method takes the rows of a source out of the rollups and deletes them. It must be
+     * called inside a transaction.
+     */
+    private static void deleteRows(SQLiteDatabase db, String source) {
+        Rollup rollup = new Rollup();
+        Cursor cursor = db.rawQuery("SELECT country, site, start_date / " + SECONDS_PER_DAY + " AS day,"
+                + " SUM(tested), SUM(positive), COUNT(*) FROM rows WHERE source = ? GROUP BY country, site, day",
+                new String[]{source});
+        try {
+            while (cursor.moveToNext()) {
+                rollup.add(cursor.getString(0), cursor.getString(1), cursor.getLong(2), -cursor.getLong(3),
+                        -cursor.getLong(4), -cursor.getLong(5));
+            }
+        } finally {
+            cursor.close();
+        }
+        rollup.applyTo(db);
+        db.delete("rows", "source = ?", new String[]{source});
+    }
+
+    /**
+     * Rollup sums changes to the totals in memory, so each total is updated once per batch however
+     * many of the batch's rows it covers.
+     */
+    private static class Rollup {
+        private final Map<String, long[]> countryTotals = new HashMap<>();
+        private final Map<String, Map<String, long[]>> siteTotals = new HashMap<>();
+        private final Map<String, Map<String, Map<Long, long[]>>> siteDayTotals = new HashMap<>();
+
+        void add(String country, String site, long day, long tested, long positive, long rows) {
+            Map<String, long[]> sites = siteTotals.get(country);
+            Map<String, Map<Long, long[]>> siteDays = siteDayTotals.get(country);
+            if (sites == null) {
+                sites = new HashMap<>();
+                siteTotals.put(country, sites);
+                siteDays = new HashMap<>();
+                siteDayTotals.put(country, siteDays);
+            }
+            Map<Long, long[]> days = siteDays.get(site);
+            if (days == null) {
+                days = new HashMap<>();
+                siteDays.put(site, days);
+            }
+            add(countryTotals, country, tested, positive, rows);
+            add(sites, site, tested, positive, rows);
+            add(days, day, tested, positive, rows);
+        }
+
+        /**
+         * getDay method returns the summed {tested, positive, rows} of a site on a day, or null.
+         */
+        long[] getDay(String country, String site, long day) {
+            Map<String, Map<Long, long[]>> siteDays = siteDayTotals.get(country);
+            Map<Long, long[]> days = siteDays != null ? siteDays.get(site) : null;
+            return days != null ? days.get(day) : null;
+        }
+
+        private static <K> void add(Map<K, long[]> totals, K key, long tested, long positive, long rows) {
+            long[] total = totals.get(key);
+            if (total == null) {
+                total = new long[3];
+                totals.put(key, total);
+            }
+            total[0] += tested;
+            total[1] += positive;
+            total[2] += rows;
+        }
+
+        /**
+         * applyTo method adds the summed changes to the rollup tables, creating the totals that do
+         * not exist yet.
+         */
+        void applyTo(SQLiteDatabase db) {
+            Upsert country = new Upsert(db, "country_totals", "country");
+            Upsert site = new Upsert(db, "site_totals", "country", "site");
+            Upsert siteDay = new Upsert(db, "site_day_totals", "country", "site", "day");
+            try {
+                for (Map.Entry<String, long[]> countryEntry : countryTotals.entrySet()) {
+                    country.add(countryEntry.getValue(), countryEntry.getKey());
+                }
+                for (Map.Entry<String, Map<String, long[]>> countryEntry : siteTotals.entrySet()) {
+                    for (Map.Entry<String, long[]> siteEntry : countryEntry.getValue().entrySet()) {
+                        site.add(siteEntry.getValue(), countryEntry.getKey(), siteEntry.getKey());
+                    }
+                }
+                for (Map.Entry<String, Map<String, Map<Long, long[]>>> countryEntry : siteDayTotals.entrySet()) {
+                    for (Map.Entry<String, Map<Long, long[]>> siteEntry : countryEntry.getValue().entrySet()) {
+                        for (Map.Entry<Long, long[]> dayEntry : siteEntry.getValue().entrySet()) {
+                            siteDay.add(dayEntry.getValue(), countryEntry.getKey(), siteEntry.getKey(),
+                                    dayEntry.getKey());
+                        }
+                    }
+                }
+            } finally {
+                country.close();
+                site.close();
+                siteDay.close();
+            }
+        }
+    }
+
+    /**
+     * Upsert adds to the totals of a rollup table by key. SQLite only has an upsert clause from
+     * Android 11, so a row of zeros is inserted if the key is missing, and then updated.
+     */
+    private static class Upsert {
+        private final SQLiteStatement insert;
+        private final SQLiteStatement update;
+        private final int keyCount;
+
+        Upsert(SQLiteDatabase db, String table, String... keys) {
+            StringBuilder columns = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            StringBuilder where = new StringBuilder();
+            for (String key : keys) {
+                columns.append(key).append(", ");
+                values.append("?, ");
+                where.append(where.length() == 0 ? "" : " AND ").append(key).append(" = ?");
+            }
+            insert = db.compileStatement("INSERT OR IGNORE INTO " + table + " (" + columns
+                    + "tested, positive, row_count) VALUES (" + values + "0, 0, 0)");
+            update = db.compileStatement("UPDATE " + table + " SET tested = tested + ?, positive = positive + ?,"
+                    + " row_count = row_count + ? WHERE " + where);
+            keyCount = keys.length;
+        }
+
+        void add(long[] total, Object... key) {
+            for (int i = 0; i < keyCount; i++) {
+                bind(insert, i + 1, key[i]);
+                bind(update, i + 4, key[i]);
+            }
+            insert.executeInsert();
+            update.bindLong(1, total[0]);
+            update.bindLong(2, total[1]);
+            update.bindLong(3, total[2]);
+            update.executeUpdateDelete();
+        }
+
+        private static void bind(SQLiteStatement statement, int index, Object value) {
+            if (value instanceof Long) {
+                statement.bindLong(index, (Long) value);
+            } else {
+                statement.bindString(index, (String) value);
+            }
+        }
+
+        void close() {
+            insert.close();
+            update.close();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.osler.analysers;
+
+import android.app.Application;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.pm.PackageInfoCompat;
+import androidx.lifecycle.AndroidViewModel;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.osler.analysers.data.AggregateSnapshot;
+import com.osler.analysers.data.AlertEngine;
+import com.osler.analysers.data.DataLoader;
+import com.osler.analysers.data.DataQueries;
+import com.osler.analysers.data.DataUpdates;
+import com.osler.analysers.data.DataView;
+import com.osler.analysers.data.DataViewHolder;
+import com.osler.analysers.data.Granularity;
+import com.osler.analysers.data.LoadState;
+import com.osler.analysers.data.Metrics;
+import com.osler.analysers.data.NameIndex;
+import com.osler.analysers.data.ReportSummary;
+import com.osler.analysers.data.ReportWriter;
+import com.osler.analysers.data.RowBatch;
+import com.osler.analysers.data.SnapshotCache;
+import com.osler.analysers.data.StreamSource;
+import com.osler.analysers.data.TrendSeries;
+import com.osler.analysers.data.WindowState;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * AnalysersViewModel owns the background loading of the Analysers data. Because it outlives
+ * configuration changes, a rotation re-attaches the new MainActivity to the load already in
+ * progress instead of restarting the parse, and the load is only cancelled once the activity is
+ * finished for good. Cold starts restore the data from a snapshot and the AnalysersDatabase.
+ *
+ * <p>What is shown is published as DataView versions by a DataViewPublisher. Rows added later are
+ * checked for alerts, reported by an AlertReporter, and the files of the incoming directory are
+ * added by IncomingFiles. Management reports are written on a thread of their own, so a report
+ * never waits for a load. The stages of the work are timed in the Metrics and marked as
+ * android.os.Trace sections.</p>
+ */
+public class AnalysersViewModel extends AndroidViewModel {
+    /**
+     * The name of the parsed dataset snapshot in the app's files directory.
+     */
+    private static final String SNAPSHOT_FILE = "dataset.snapshot";
+
+    /**
+     * The single background thread the CSV is parsed on.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * The single background thread management and alert reports are written on.
+     */
+    private final ExecutorService reportExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * The latest LoadState, observed by MainActivity.
+     */
+    private final MutableLiveData<LoadState> loadState = new MutableLiveData<>(LoadState.empty());
+
+    /**
+     * The totals of the last queried time window, observed by MainActivity.
+     */
+    private final MutableLiveData<WindowState> windowState = new MutableLiveData<>();
+
+    /**
+     * The {earliest, latest} date in the rows in epoch seconds, observed by MainActivity to bound
+     * the date range control.
+     */
+    private final MutableLiveData<long[]> dateRange = new MutableLiveData<>();
+
+    /**
+     * The name index and DataView versions shown, built in the background.
+     */
+    private final DataViewPublisher viewPublisher;
+
+    /**
+     * The rules checking new rows for sites whose positive rate spiked. Only used on the loader
+     * thread, except for its recent alerts.
+     */
+    private final AlertEngine alertEngine = AlertEngine.withDefaultRules();
+
+    /**
+     * The AlertListener notifying of new alerts and writing the report of the recent ones.
+     */
+    private final AlertReporter alertReporter;
+
+    /**
+     * Whether a time window has been queried. From then on the totals shown are those of the
+     * window rather than of each LoadState. Only used on the loader thread.
+     */
+    private boolean windowQueried;
+
+    /**
+     * The summary of the last report written, or null once it has been shown.
+     */
+    private final MutableLiveData<ReportSummary> reportSummary = new MutableLiveData<>();
+
+    /**
+     * The load in progress, or null if it has not been started yet.
+     */
+    private Future<?> loadTask;
+
+    /**
+     * The queries and updates of the loaded rows, kept so rows can be added after the load.
+     */
+    private DataQueries dataQueries;
+    private DataUpdates dataUpdates;
+
+    /**
+     * The files of the incoming directory, added to the bundled data.
+     */
+    private IncomingFiles incomingFiles;
+
+    /**
+     * The Listener forwarding every published LoadState to the LiveData.
+     */
+    private final DataLoader.Listener stateListener = new DataLoader.Listener() {
+        @Override
+        public void onStateChanged(final LoadState state) {
+            loadState.postValue(state);
+            viewPublisher.indexNames(state);
+            if (!windowQueried && state.getAggregates() != null) {
+                viewPublisher.display(state.getAggregates());
+            }
+            if (state.isComplete() && state.getError() == null) {
+                viewPublisher.publish(new DataViewHolder.Update() {
+                    @Override
+                    public DataView apply(DataView current) {
+                        return current.withLoaded(state.getAggregates());
+                    }
+                });
+                dataQueries.queryDateRange(dateRangeListener);
+                dataQueries.buildTrends(trendListener);
+                dataQueries.checkAlerts(alertEngine, alertReporter);
+            }
+        }
+    };
+
+    /**
+     * The DateRangeListener forwarding the range of dates in the rows to the LiveData.
+     */
+    private final DataQueries.DateRangeListener dateRangeListener = new DataQueries.DateRangeListener() {
+        @Override
+        public void onDateRange(long minDate, long maxDate) {
+            dateRange.postValue(new long[]{minDate, maxDate});
+        }
+    };
+
+    /**
+     * The TrendListener publishing the trend series of the rows in the next DataView.
+     */
+    private final DataQueries.TrendListener trendListener = new DataQueries.TrendListener() {
+        @Override
+        public void onTrendsBuilt(final TrendSeries trends) {
+            viewPublisher.publish(new DataViewHolder.Update() {
+                @Override
+                public DataView apply(DataView current) {
+                    return current.withTrends(trends);
+                }
+            });
+        }
+    };
+
+    /**
+     * The WindowListener forwarding every window query result to the LiveData.
+     */
+    private final DataQueries.WindowListener windowListener = new DataQueries.WindowListener() {
+        @Override
+        public void onWindowQueried(WindowState state) {
+            windowState.postValue(state);
+            windowQueried = true;
+            viewPublisher.display(state.getAggregates());
+        }
+    };
+
+    public AnalysersViewModel(@NonNull Application application) {
+        super(application);
+        viewPublisher = new DataViewPublisher(application);
+        alertReporter = new AlertReporter(application, reportExecutor);
+        Metrics.get().setTracer(new Metrics.Tracer() {
+            @Override
+            public void beginSection(String name) {
+                Trace.beginSection(name);
+            }
+
+            @Override
+            public void endSection() {
+                Trace.endSection();
+            }
+        });
+    }
+
+    /**
+     * Returns the LiveData publishing partial and final load results.
+     *
+     * @return The observable LoadState.
+     */
+    public LiveData<LoadState> getLoadState() {
+        return loadState;
+    }
+
+    /**
+     * Returns the LiveData publishing the totals of each queried time window.
+     *
+     * @return The observable WindowState, null until the first query completes.
+     */
+    public LiveData<WindowState> getWindowState() {
+        return windowState;
+    }
+
+    /**
+     * Returns the LiveData publishing the range of dates in the rows after every complete load.
+     *
+     * @return The observable {earliest, latest} date in epoch seconds, null until the data is loaded.
+     */
+    public LiveData<long[]> getDateRange() {
+        return dateRange;
+    }
+
+    /**
+     * Returns the LiveData publishing the search index of the country and site names.
+     *
+     * @return The observable NameIndex, null until the first names are indexed.
+     */
+    public LiveData<NameIndex> getNameIndex() {
+        return viewPublisher.getNameIndex();
+    }
+
+    /**
+     * Returns the LiveData publishing each version of what is shown: the totals of each LoadState
+     * until a time window is queried and those of the window after that, with their display
+     * models, and the trend series of every country and site, rebuilt whenever rows are added.
+     * Versions published in quick succession may only be delivered as the latest one.
+     *
+     * @return The observable DataView, empty until the first totals are published.
+     */
+    public LiveData<DataView> getDataView() {
+        return viewPublisher.getDataView();
+    }
+
+    /**
+     * Returns the LiveData publishing the summary of each management report once it is written.
+     *
+     * @return The observable ReportSummary, null when there is nothing new to show.
+     */
+    public LiveData<ReportSummary> getReportSummary() {
+        return reportSummary;
+    }
+
+    /**
+     * load method starts reading the bundled CSV and expiry resources, unless a load has already
+     * been started by a previous instance of the activity. When the incoming directory holds CSV
+     * files, they are added to the bundled data once it is loaded.
+     */
+    public void load() {
+        if (loadTask != null) {
+            return;
+        }
+        Application application = getApplication();
+        Resources resources = application.getResources();
+        long versionCode = getVersionCode(application);
+        SnapshotCache snapshotCache = new SnapshotCache(new File(application.getFilesDir(), SNAPSHOT_FILE));
+        DataLoader dataLoader = new DataLoader(executor, snapshotCache, versionCode,
+                AnalysersDatabase.get(application));
+        dataQueries = new DataQueries(dataLoader);
+        dataUpdates = new DataUpdates(dataLoader);
+
+        // The bundled data is restored from its snapshot, the incoming files are applied on top of it
+        loadTask = dataLoader.load(rawResource(resources, R.raw.data), rawResource(resources, R.raw.expiry),
+                stateListener);
+        incomingFiles = new IncomingFiles(application, versionCode, rawResource(resources, R.raw.expiry));
+        incomingFiles.start(dataUpdates, stateListener);
+    }
+
+
+    /**
+     * appendRows method applies newly uploaded analyser rows on top of the loaded data. Only the
+     * new rows are processed; observers receive the updated totals through getLoadState.
+     *
+     * @param batch The new rows.
+     */
+    public void appendRows(RowBatch batch) {
+        if (dataUpdates == null) {
+            throw new IllegalStateException("load must be called before appendRows");
+        }
+        dataUpdates.append(batch, stateListener);
+    }
+
+    /**
+     * queryWindow method computes the totals of the measurements overlapping [from, to] in the
+     * background, without reading the CSV again. The result is published through getWindowState.
+     *
+     * @param from The start of the window in epoch seconds, inclusive.
+     * @param to   The end of the window in epoch seconds, inclusive.
+     */
+    public void queryWindow(long from, long to) {
+        if (dataQueries != null) {
+            dataQueries.queryWindow(from, to, windowListener);
+        }
+    }
+
+    /**
+     * writeReport method writes the management report for the given totals in the background.
+     * The result is published through getReportSummary, also when the report fails.
+     *
+     * @param aggregates  The totals to report on. Snapshots are immutable, so they can be handed
+     *                    to the background thread as they are.
+     * @param granularity Whether to report countries or sites.
+     * @param limit       The number of entries with the highest positivity to report, or 0 for all.
+     * @param file        The report file.
+     */
+    public void writeReport(final AggregateSnapshot aggregates, final Granularity granularity, final int limit,
+                            final File file) {
+        reportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reportSummary.postValue(new ReportWriter(file).write(aggregates, granularity, limit));
+                } catch (IOException e) {
+                    Metrics.get().recordError("Writing " + file.getName(), e);
+                    reportSummary.postValue(ReportSummary.failed(file, e));
+                }
+            }
+        });
+    }
+
+    /**
+     * reportShown method clears the last report summary, so it is not shown again when the
+     * activity is recreated.
+     */
+    public void reportShown() {
+        reportSummary.setValue(null);
+    }
+
+    /**
+     * onCleared method cancels the load when the activity is finished, not just recreated.
+     */
+    @Override
+    protected void onCleared() {
+        if (incomingFiles != null) {
+            incomingFiles.stop();
+        }
+        if (loadTask != null) {
+            loadTask.cancel(true);
+        }
+        executor.shutdownNow();
+        viewPublisher.shutdown();
+        reportExecutor.shutdown();
+    }
+
+    private static long getVersionCode(Application application) {
+        try {
+            return PackageInfoCompat.getLongVersionCode(
+                    application.getPackageManager().getPackageInfo(application.getPackageName(), 0));
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private static StreamSource rawResource(final Resources resources, final int id) {
+        return new StreamSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return resources.openRawResource(id);
+            }
+        };
+    }
+}
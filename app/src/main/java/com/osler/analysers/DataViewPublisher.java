@@ -0,0 +1,184 @@
+package com.osler.analysers;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.osler.analysers.data.AggregateSnapshot;
+import com.osler.analysers.data.DataView;
+import com.osler.analysers.data.DataViewHolder;
+import com.osler.analysers.data.DisplayModel;
+import com.osler.analysers.data.LoadState;
+import com.osler.analysers.data.Metrics;
+import com.osler.analysers.data.NameIndex;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * DataViewPublisher builds what MainActivity shows from the published totals on a background
+ * thread: the search index of the country and site names, whenever the names change, and the
+ * display models of the latest totals. Totals published while a build is running replace each
+ * other, so only the latest is built. Each DataView version is swapped in with a single atomic
+ * swap and delivered on the main thread, so the activity never shows parts of different versions.
+ */
+class DataViewPublisher {
+    /**
+     * The single background thread the name index and display models are built on.
+     */
+    private final ExecutorService displayExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * The search index of the latest country and site names.
+     */
+    private final MutableLiveData<NameIndex> nameIndex = new MutableLiveData<>();
+
+    /**
+     * The latest totals whose names are waiting to be indexed, or null if no build is pending.
+     */
+    private final AtomicReference<AggregateSnapshot> pendingNames = new AtomicReference<>();
+
+    /**
+     * The number of countries and sites in the last totals sent to be indexed. Only used on the
+     * loader thread.
+     */
+    private int indexedCountries = -1;
+    private int indexedSites = -1;
+
+    /**
+     * The latest totals waiting for their display models, or null if no build is pending.
+     */
+    private final AtomicReference<AggregateSnapshot> pendingTotals = new AtomicReference<>();
+
+    /**
+     * The current version of the totals, display models and trend series shown. Each is published
+     * from its background thread as the next version, with a single atomic swap.
+     */
+    private final DataViewHolder dataView = new DataViewHolder();
+
+    /**
+     * The latest DataView delivered to the observers.
+     */
+    private final MutableLiveData<DataView> dataViewUpdates = new MutableLiveData<>(DataView.empty());
+
+    /**
+     * Delivers the current DataView to the observers, on the main thread.
+     */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable deliverView = new Runnable() {
+        @Override
+        public void run() {
+            DataView view = dataView.get();
+            if (dataViewUpdates.getValue() != view) {
+                dataViewUpdates.setValue(view);
+            }
+        }
+    };
+
+    private final String testedFormat;
+    private final String percentFormat;
+
+    /**
+     * The task building the index of the latest pending names and the display models of the
+     * latest pending totals.
+     */
+    private final Runnable displayTask = new Runnable() {
+        @Override
+        public void run() {
+            AggregateSnapshot names = pendingNames.getAndSet(null);
+            if (names != null) {
+                long start = Metrics.get().begin(Metrics.Stage.INDEX_BUILD);
+                try {
+                    nameIndex.postValue(new NameIndex(names));
+                } finally {
+                    Metrics.get().end(Metrics.Stage.INDEX_BUILD, start);
+                }
+            }
+            AggregateSnapshot totals = pendingTotals.getAndSet(null);
+            if (totals != null) {
+                long start = Metrics.get().begin(Metrics.Stage.DISPLAY_BUILD);
+                try {
+                    final DisplayModel model = new DisplayModel(totals, testedFormat, percentFormat);
+                    publish(new DataViewHolder.Update() {
+                        @Override
+                        public DataView apply(DataView current) {
+                            return current.withTotals(model);
+                        }
+                    });
+                } finally {
+                    Metrics.get().end(Metrics.Stage.DISPLAY_BUILD, start);
+                }
+            }
+        }
+    };
+
+    DataViewPublisher(Context context) {
+        testedFormat = context.getString(R.string.country_tested_info);
+        percentFormat = context.getString(R.string.country_info_data);
+    }
+
+    LiveData<NameIndex> getNameIndex() {
+        return nameIndex;
+    }
+
+    LiveData<DataView> getDataView() {
+        return dataViewUpdates;
+    }
+
+    /**
+     * indexNames method rebuilds the name index in the background when a state adds countries or
+     * sites, and on every complete state, since rows may have been taken out of the data.
+     *
+     * @param state The LoadState just published.
+     */
+    void indexNames(LoadState state) {
+        AggregateSnapshot aggregates = state.getAggregates();
+        if (aggregates == null || state.getError() != null) {
+            return;
+        }
+        if (!state.isComplete() && aggregates.getCountryCount() == indexedCountries
+                && aggregates.getSiteCount() == indexedSites) {
+            return;
+        }
+        indexedCountries = aggregates.getCountryCount();
+        indexedSites = aggregates.getSiteCount();
+        if (pendingNames.getAndSet(aggregates) == null) {
+            displayExecutor.execute(displayTask);
+        }
+    }
+
+    /**
+     * display method builds the display models of new totals in the background.
+     *
+     * @param aggregates The totals to be shown.
+     */
+    void display(AggregateSnapshot aggregates) {
+        if (pendingTotals.getAndSet(aggregates) == null) {
+            displayExecutor.execute(displayTask);
+        }
+    }
+
+    /**
+     * publish method swaps in the next DataView and has the latest one delivered to the observers.
+     * The view is only read on the main thread, so a version published by another thread in the
+     * meantime is never overtaken by an older one.
+     *
+     * @param update The Update building the next version.
+     */
+    void publish(DataViewHolder.Update update) {
+        dataView.publish(update);
+        mainHandler.post(deliverView);
+    }
+
+    /**
+     * shutdown method stops the builds and the deliveries still pending.
+     */
+    void shutdown() {
+        displayExecutor.shutdownNow();
+        mainHandler.removeCallbacks(deliverView);
+    }
+}
@@ -0,0 +1,129 @@
+package com.osler.analysers;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.osler.analysers.data.AggregateSnapshot;
+import com.osler.analysers.data.NameIndex;
+
+/**
+ * EntityPickerAdapter backs the country Spinner with the countries and sites of a NameIndex,
+ * filtered by the text typed in the search field. The first item is always the "Select" prompt.
+ * Filtering runs a prefix search of the index into a reused array and the labels are built with
+ * the index, so a keystroke does not allocate per item and item views are recycled.
+ */
+public class EntityPickerAdapter extends BaseAdapter {
+    /**
+     * The number of items at the top of the drop-down shown with the highlight background.
+     */
+    private static final int HIGHLIGHTED_ITEMS = 4;
+
+    private final LayoutInflater inflater;
+    private final String prompt;
+    private final int highlightColor;
+    private final int defaultColor;
+
+    private NameIndex index = new NameIndex(AggregateSnapshot.empty());
+
+    /**
+     * The entries matching the current query, in display order, and how many there are.
+     */
+    private int[] results = new int[0];
+    private int resultCount;
+    private CharSequence query = "";
+
+    public EntityPickerAdapter(Context context, String prompt) {
+        this.inflater = LayoutInflater.from(context);
+        this.prompt = prompt;
+        this.highlightColor = context.getResources().getColor(R.color.spinner_dropdown_highlight);
+        this.defaultColor = context.getResources().getColor(android.R.color.white);
+    }
+
+    /**
+     * setIndex method replaces the listed countries and sites and applies the current query to
+     * them. The positions of the items may change.
+     *
+     * @param index The index of the latest names.
+     */
+    public void setIndex(NameIndex index) {
+        this.index = index;
+        results = new int[index.size()];
+        filter(query);
+    }
+
+    /**
+     * filter method shows the countries and sites with a word starting with the query.
+     *
+     * @param query The text typed in the search field.
+     */
+    public void filter(CharSequence query) {
+        this.query = query.toString();
+        resultCount = index.search(query, results);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * getEntry method returns the index entry shown at a position.
+     *
+     * @param position The position in the Spinner.
+     * @return The NameIndex entry, or -1 for the prompt.
+     */
+    public int getEntry(int position) {
+        return position > 0 && position <= resultCount ? results[position - 1] : -1;
+    }
+
+    /**
+     * findPosition method returns the position a country or site is shown at.
+     *
+     * @param site Whether id is a site id rather than a country id.
+     * @param id   The country or site id.
+     * @return The position, or -1 if it is not shown.
+     */
+    public int findPosition(boolean site, int id) {
+        for (int i = 0; i < resultCount; i++) {
+            if (index.isSite(results[i]) == site && index.getId(results[i]) == id) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    public NameIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public int getCount() {
+        return resultCount + 1;
+    }
+
+    @Override
+    public String getItem(int position) {
+        return position == 0 ? prompt : index.getLabel(results[position - 1]);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = convertView != null ? (TextView) convertView
+                : (TextView) inflater.inflate(R.layout.custom_spinner_item, parent, false);
+        view.setText(getItem(position));
+        return view;
+    }
+
+    @Override
+    public View getDropDownView(int position, View convertView, ViewGroup parent) {
+        View view = getView(position, convertView, parent);
+        // Show the first items with a custom background color
+        view.setBackgroundColor(position < HIGHLIGHTED_ITEMS ? highlightColor : defaultColor);
+        return view;
+    }
+}
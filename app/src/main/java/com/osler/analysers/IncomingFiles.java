@@ -0,0 +1,172 @@
+package com.osler.analysers;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.osler.analysers.data.DataLoader;
+import com.osler.analysers.data.DataUpdates;
+import com.osler.analysers.data.DirectoryIngest;
+import com.osler.analysers.data.Metrics;
+import com.osler.analysers.data.StreamSource;
+import com.osler.analysers.data.SyncClient;
+import com.osler.analysers.data.SyncScheduler;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IncomingFiles adds the CSV or binary row files dropped into the "incoming" directory of the
+ * app's files, e.g. one per lab per day, to the loaded data. The directory is watched until
+ * stopped, and only files that are new or changed are parsed on each change. When a sync
+ * endpoint is configured, new rows are pulled from it in the background and saved to the same
+ * directory, see SyncClient.
+ */
+class IncomingFiles {
+    private static final String TAG = IncomingFiles.class.getSimpleName();
+
+    /**
+     * The directory in the app's files directory that extra CSV files are read from.
+     */
+    private static final String INCOMING_DIR = "incoming";
+
+    /**
+     * The directory in the app's cache directory that the manifest of the incoming directory is
+     * saved to, with the rows of every file.
+     */
+    private static final String INCOMING_CACHE_DIR = "incoming";
+
+    /**
+     * The name of the sync cursor and ETag file in the app's files directory.
+     */
+    private static final String SYNC_STATE_FILE = "sync.properties";
+
+    /**
+     * The time between two syncs with the server.
+     */
+    private static final long SYNC_INTERVAL_MS = TimeUnit.MINUTES.toMillis(15);
+
+    private final Context context;
+    private final File incoming;
+    private final DirectoryIngest directoryIngest;
+
+    /**
+     * The single background thread rows are pulled from the sync server on.
+     */
+    private final ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * The observer refreshing the data when a file in the incoming directory changes.
+     */
+    private FileObserver incomingObserver;
+
+    /**
+     * The scheduler pulling new rows from the sync server, or null if syncing is off.
+     */
+    private SyncScheduler syncScheduler;
+
+    /**
+     * Creates the incoming files of the app.
+     *
+     * @param context      The context whose files directory holds the incoming directory.
+     * @param versionCode  The app version code, so an app update parses the files again.
+     * @param expirySource The calibration expiry file the rows of the files are checked against.
+     */
+    IncomingFiles(Context context, long versionCode, StreamSource expirySource) {
+        this.context = context.getApplicationContext();
+        incoming = new File(context.getFilesDir(), INCOMING_DIR);
+        directoryIngest = new DirectoryIngest(incoming, new File(context.getCacheDir(), INCOMING_CACHE_DIR),
+                versionCode);
+        directoryIngest.setExpirySource(expirySource);
+    }
+
+    /**
+     * start method adds the files already in the directory to the loaded data, then watches the
+     * directory and starts syncing.
+     *
+     * @param updates  The DataUpdates of the loaded data.
+     * @param listener The Listener to publish the updated totals to.
+     */
+    void start(DataUpdates updates, DataLoader.Listener listener) {
+        if (directoryIngest.hasFiles()) {
+            updates.loadDirectory(directoryIngest, listener);
+        }
+        watch(updates, listener);
+        startSync();
+    }
+
+    /**
+     * stop method stops watching the directory and syncing.
+     */
+    void stop() {
+        if (incomingObserver != null) {
+            incomingObserver.stopWatching();
+        }
+        if (syncScheduler != null) {
+            syncScheduler.stop();
+        }
+        syncExecutor.shutdownNow();
+    }
+
+    /**
+     * watch method refreshes the data whenever a file is written to, moved into or removed from
+     * the incoming directory. Each refresh only parses the files that changed, and when files
+     * were only added, e.g. by a sync, only their rows are applied to the totals.
+     */
+    @SuppressWarnings("deprecation")
+    private void watch(final DataUpdates updates, final DataLoader.Listener listener) {
+        if (!incoming.isDirectory() && !incoming.mkdirs()) {
+            return;
+        }
+        // FileObserver(File, int) needs API 29, the path variant works on every supported version
+        incomingObserver = new FileObserver(incoming.getPath(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE) {
+            @Override
+            public void onEvent(int event, String path) {
+                // Partial files, e.g. synced pages being written, are only read once renamed
+                if (path != null && !path.endsWith(".tmp")) {
+                    updates.loadDirectory(directoryIngest, listener);
+                }
+            }
+        };
+        incomingObserver.startWatching();
+    }
+
+    /**
+     * startSync method starts pulling new rows from the configured sync server into the incoming
+     * directory. The rows reach the totals through the directory's observer, like any other file
+     * added to it.
+     */
+    private void startSync() {
+        String endpoint = context.getString(R.string.sync_endpoint);
+        if (endpoint.isEmpty()) {
+            return;
+        }
+        URL url;
+        try {
+            url = new URL(endpoint);
+        } catch (MalformedURLException e) {
+            Metrics.get().recordError("Sync endpoint", e);
+            return;
+        }
+        SyncClient client = new SyncClient(url, incoming, new File(context.getFilesDir(), SYNC_STATE_FILE));
+        syncScheduler = new SyncScheduler(syncExecutor, client, SYNC_INTERVAL_MS, new SyncScheduler.Listener() {
+            @Override
+            public void onSynced(SyncClient.Result result) {
+                if (result.getPages() > 0) {
+                    Log.i(TAG, "Synced " + result.getRows() + " rows in " + result.getBytes() + " bytes");
+                }
+            }
+
+            @Override
+            public void onSyncFailed(Exception error, long retryDelayMs) {
+                Log.w(TAG, "Sync failed, retrying in " + retryDelayMs / 1000 + " s", error);
+            }
+        });
+        syncScheduler.start();
+    }
+}
@@ -1,48 +1,93 @@
 package com.osler.analysers;
 
+import android.Manifest;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.content.res.ColorStateList;
-import android.graphics.Color;
+import android.os.Build;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.Observer;
+import androidx.lifecycle.ViewModelProvider;
+
+import com.google.android.material.slider.LabelFormatter;
+import com.google.android.material.slider.RangeSlider;
+
+import com.osler.analysers.data.AggregateSnapshot;
+import com.osler.analysers.data.DataView;
+import com.osler.analysers.data.DisplayModel;
+import com.osler.analysers.data.EntityDisplay;
+import com.osler.analysers.data.Granularity;
+import com.osler.analysers.data.LoadState;
+import com.osler.analysers.data.Metrics;
+import com.osler.analysers.data.NameIndex;
+import com.osler.analysers.data.ReportSummary;
+import com.osler.analysers.data.SampleEstimate;
+import com.osler.analysers.data.TrendSeries;
+import com.osler.analysers.data.WindowState;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.TimeZone;
 
 /**
  * MainActivity class represents the main activity of the application that displays Analysers
- * data for different countries. It provides a Spinner to select a country, and a TextView and
- * SeekBar to display the Analysers data for the selected country. It also includes a button to
- * generate and display a management report in a Toast and writing it in file as well.
+ * data for different countries. It provides a Spinner to select a country or site, filtered by a
+ * search field, and a TextView and SeekBar to display the Analysers data for the selection. It
+ * also includes a button to write a management report to a file in the background, and shows its
+ * summary in a notification. In debuggable builds, long-pressing the button opens the
+ * MetricsActivity. The time spent showing new data is recorded as the RENDER stage of the Metrics.
  */
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = MainActivity.class.getSimpleName();
+
+    /**
+     * The name of the management report in the app's files directory.
+     */
+    private static final String REPORT_FILE = "mgmt_report.txt";
+
+    /**
+     * The request code of the notification permission request.
+     */
+    private static final int REQUEST_NOTIFICATIONS = 1;
+
+    /**
+     * The number of seconds in a day. The date range control moves in whole days.
+     */
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
     /**
-     * The Spinner to select a country from the list.
+     * The Spinner to select a country or site from the list.
      */
     private Spinner countrySpinner;
 
+    /**
+     * The search field filtering the countries and sites in the countrySpinner.
+     */
+    private EditText searchField;
+
     /**
      * The TextView to display the number of tested cases for the selected country.
      */
@@ -59,14 +104,74 @@ public class MainActivity extends AppCompatActivity {
     private ProgressBar progressBar;
 
     /**
-     * The list of country names loaded from the CSV file.
+     * The chart of the positive rate over time of the selection, or of all countries.
+     */
+    private SparklineView trendChart;
+
+    /**
+     * The TextView showing the loading state while the CSV is read in the background.
+     */
+    private TextView loadingStatus;
+
+    /**
+     * The button that generates the management report, enabled once all data is loaded.
+     */
+    private Button fullReportButton;
+
+    /**
+     * The TextView showing the selected date range.
      */
-    private List<String> countryList;
+    private TextView dateRangeLabel;
 
     /**
-     * A mapping of country names to their respective Analyser data.
+     * The RangeSlider selecting the date range the totals are shown for, in days since the epoch.
      */
-    private Map<String, CountryData> countryDataMap;
+    private RangeSlider dateRangeSlider;
+
+    /**
+     * Formats the days of the date range control.
+     */
+    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
+
+    /**
+     * The selected date range in epoch seconds. The whole dataset until a range is selected.
+     */
+    private long windowFrom = Long.MIN_VALUE;
+    private long windowTo = Long.MAX_VALUE;
+
+    /**
+     * The adapter backing the countrySpinner, refreshed as partial results arrive.
+     */
+    private EntityPickerAdapter spinnerAdapter;
+
+    /**
+     * The ViewModel owning the background loading and report writing.
+     */
+    private AnalysersViewModel viewModel;
+
+    /**
+     * Shows the summary of each written report.
+     */
+    private ReportNotifier reportNotifier;
+
+    /**
+     * A mapping of country names to Analyser data set through setCountryDataMap, shown for the
+     * countries the DataView does not have. It is an unmodifiable copy, replaced as a whole.
+     */
+    private volatile Map<String, CountryData> countryDataMap = Collections.emptyMap();
+
+    /**
+     * The version of the totals, display models and trend series shown. It is only replaced as a
+     * whole, so everything read from it belongs to the same data.
+     */
+    private DataView view = DataView.empty();
+
+    /**
+     * The progress bar tints for low and high positive percentages and for no selection.
+     */
+    private ColorStateList lowTint;
+    private ColorStateList highTint;
+    private ColorStateList defaultTint;
 
     /**
      * A boolean variable to keep track of whether a country is selected in the Spinner or not.
@@ -74,9 +179,9 @@ public class MainActivity extends AppCompatActivity {
     private boolean isItemSelected = false;
 
     /**
-     * The position of the previously selected item in the Spinner.
+     * Whether the initial load has completed, so its warnings are only shown once.
      */
-    private final int selectedPosition = 0;
+    private boolean dataLoaded = false;
 
     /**
      * onCreate method is called when the activity is starting. It initializes the views and data,
@@ -91,31 +196,132 @@ public class MainActivity extends AppCompatActivity {
 
         // Initialize views
         countrySpinner = findViewById(R.id.country_spinner);
+        searchField = findViewById(R.id.country_search);
         mTested = findViewById(R.id.tested);
         mPositive = findViewById(R.id.positive);
         progressBar = findViewById(R.id.progress_bar);
+        trendChart = findViewById(R.id.trend_chart);
+        loadingStatus = findViewById(R.id.loading_status);
+        dateRangeLabel = findViewById(R.id.date_range_label);
+        dateRangeSlider = findViewById(R.id.date_range_slider);
 
         // Set the initial progress of the SeekBar to zero
         progressBar.setProgress(0);
+        lowTint = ColorStateList.valueOf(getResources().getColor(R.color.green));
+        highTint = ColorStateList.valueOf(getResources().getColor(R.color.colorRed));
+        defaultTint = ColorStateList.valueOf(getResources().getColor(R.color.default_color));
 
         // Find the Full Report button and set its click listener
-        Button fullReportButton = findViewById(R.id.full_report_button);
+        fullReportButton = findViewById(R.id.full_report_button);
         fullReportButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 generateManagementReport();
             }
         });
-
-        // Load data from CSV and update UI
-        try {
-            readDataFromCSV();
-            updateUI();
-        } catch (Exception e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Error reading data from CSV", Toast.LENGTH_SHORT).show();
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            fullReportButton.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View v) {
+                    startActivity(new Intent(MainActivity.this, MetricsActivity.class));
+                    return true;
+                }
+            });
         }
 
+        // Render the empty spinner right away and load the CSV in the background. The ViewModel
+        // survives rotation, so a recreated activity picks up the load already in progress.
+        populateSpinner();
+        fullReportButton.setEnabled(false);
+
+        reportNotifier = new ReportNotifier(this);
+        viewModel = new ViewModelProvider(this).get(AnalysersViewModel.class);
+        viewModel.getLoadState().observe(this, new Observer<LoadState>() {
+            @Override
+            public void onChanged(LoadState state) {
+                long start = Metrics.get().begin(Metrics.Stage.RENDER);
+                try {
+                    onLoadStateChanged(state);
+                } finally {
+                    Metrics.get().end(Metrics.Stage.RENDER, start);
+                }
+            }
+        });
+        viewModel.getWindowState().observe(this, new Observer<WindowState>() {
+            @Override
+            public void onChanged(WindowState state) {
+                if (state != null) {
+                    long start = Metrics.get().begin(Metrics.Stage.RENDER);
+                    try {
+                        onWindowChanged(state);
+                    } finally {
+                        Metrics.get().end(Metrics.Stage.RENDER, start);
+                    }
+                }
+            }
+        });
+        viewModel.getDateRange().observe(this, new Observer<long[]>() {
+            @Override
+            public void onChanged(long[] range) {
+                if (range != null) {
+                    showDateRange(range[0], range[1]);
+                }
+            }
+        });
+        viewModel.getNameIndex().observe(this, new Observer<NameIndex>() {
+            @Override
+            public void onChanged(NameIndex index) {
+                if (index != null) {
+                    long start = Metrics.get().begin(Metrics.Stage.RENDER);
+                    try {
+                        updatePicker(index);
+                    } finally {
+                        Metrics.get().end(Metrics.Stage.RENDER, start);
+                    }
+                }
+            }
+        });
+        viewModel.getDataView().observe(this, new Observer<DataView>() {
+            @Override
+            public void onChanged(DataView next) {
+                long start = Metrics.get().begin(Metrics.Stage.RENDER);
+                try {
+                    onViewChanged(next);
+                } finally {
+                    Metrics.get().end(Metrics.Stage.RENDER, start);
+                }
+            }
+        });
+        viewModel.getReportSummary().observe(this, new Observer<ReportSummary>() {
+            @Override
+            public void onChanged(ReportSummary summary) {
+                if (summary != null) {
+                    onReportWritten(summary);
+                }
+            }
+        });
+        viewModel.load();
+
+        // Re-query the totals as the date range is dragged; the CSV is not read again
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        dateRangeSlider.setLabelFormatter(new LabelFormatter() {
+            @Override
+            public String getFormattedValue(float value) {
+                return dateFormat.format((long) value * SECONDS_PER_DAY * 1000);
+            }
+        });
+        dateRangeSlider.addOnChangeListener(new RangeSlider.OnChangeListener() {
+            @Override
+            public void onValueChange(RangeSlider slider, float value, boolean fromUser) {
+                if (fromUser) {
+                    List<Float> values = slider.getValues();
+                    windowFrom = values.get(0).longValue() * SECONDS_PER_DAY;
+                    windowTo = (values.get(1).longValue() + 1) * SECONDS_PER_DAY - 1;
+                    viewModel.queryWindow(windowFrom, windowTo);
+                }
+            }
+        });
+
         // Disable SeekBar touch interactions
         progressBar.setOnTouchListener(new View.OnTouchListener() {
             @Override
@@ -128,33 +334,20 @@ public class MainActivity extends AppCompatActivity {
         countrySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                // Check if the user selected a valid country (not "Select")
-                if (position > 0) {
-                    String selectedCountry = countryList.get(position);
-                    updateCountryInfo(selectedCountry);
-
-                    // Update SeekBar progress and color based on the selected country's positive percentage
-                    CountryData countryData = countryDataMap.get(selectedCountry);
-                    if (countryData != null) {
-                        int positivePercentage = (countryData.getTested() == 0) ? 0 : (int) (((double) countryData.getPositive() / countryData.getTested()) * 100);
-                        progressBar.setProgress(positivePercentage);
-
-                        // Change the color of the SeekBar progress dynamically
-                        if (positivePercentage > 50) {
-                            progressBar.setProgressTintList(ColorStateList.valueOf(Color.RED));
-                        } else {
-                            progressBar.setProgressTintList(ColorStateList.valueOf(Color.GREEN));
-                        }
+                // Check if the user selected a valid country or site (not "Select")
+                if (spinnerAdapter.getEntry(position) >= 0) {
+                    EntityDisplay display = findDisplay(position);
+                    if (display != null) {
+                        bind(display);
                     }
                 } else {
                     // Clear the country info and reset SeekBar progress and color if "Select" is chosen
-                    String defaultTestedInfo = getString(R.string.tested);
-                    String defaultPositiveInfo = getString(R.string.positive);
-                    mTested.setText(defaultTestedInfo);
-                    mPositive.setText(defaultPositiveInfo);
+                    mTested.setText(R.string.tested);
+                    mPositive.setText(R.string.positive);
                     progressBar.setProgress(0);
-                    progressBar.setProgressTintList(ColorStateList.valueOf(getResources().getColor(R.color.default_color))); // Set default color to your defined default_color
+                    progressBar.setProgressTintList(defaultTint);
                 }
+                showTrend(position);
             }
 
             @Override
@@ -190,223 +383,275 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * updateUI method calculates the percentage of positive cases for all countries and updates
-     * the SeekBar accordingly.
+     * updateUI method shows the percentage of positive cases over all countries in the SeekBar.
+     * The global totals are kept up to date by the aggregate engine, so nothing is re-summed here.
      */
     private void updateUI() {
         // Calculate the percentage of positive cases
-        List<CountryData> countryDataList = new ArrayList<>(countryDataMap.values());
-        int totalPositive = 0;
-        int totalTested = 0;
+        AggregateSnapshot aggregates = view.getAggregates();
+        long totalPositive = aggregates.getGlobalPositive();
+        long totalTested = aggregates.getGlobalTested();
 
-        for (CountryData countryData : countryDataList) {
-            totalPositive += countryData.getPositive();
-            totalTested += countryData.getTested();
-        }
-
-        int percentagePositive = (totalTested == 0) ? 0 : (totalPositive * 100) / totalTested;
+        // Divide in floating point, since totalPositive * 100 is not bounded by the int range
+        int percentagePositive = (totalTested == 0) ? 0 : (int) ((totalPositive * 100.0) / totalTested);
 
         // Update the SeekBar
         progressBar.setProgress(percentagePositive);
     }
 
     /**
-     * generateManagementReport method generates a management report based on the Analyser data
-     * for all countries and displays it in a Toast message.
+     * generateManagementReport method writes a management report based on the Analyser data for
+     * all countries to "mgmt_report.txt" in the internal storage. The report covers every row, not
+     * only those of the date range shown, like the one the command line writes, from the DataView
+     * shown. It is written in the background and replaces the previous one only once it is
+     * complete. On Android 13 and later, the notification permission is requested so the summary
+     * can be shown as a notification.
      */
     private void generateManagementReport() {
-        List<CountryData> countryDataList = new ArrayList<>(countryDataMap.values());
-
-        // Sort the country data based on the percentage of positive tests in descending order
-        Collections.sort(countryDataList, new Comparator<CountryData>() {
-            @Override
-            public int compare(CountryData c1, CountryData c2) {
-                double percentage1 = (c1.getTested() == 0) ? 0 : ((double) c1.getPositive() / c1.getTested()) * 100;
-                double percentage2 = (c2.getTested() == 0) ? 0 : ((double) c2.getPositive() / c2.getTested()) * 100;
-                return Double.compare(percentage2, percentage1);
-            }
-        });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.POST_NOTIFICATIONS},
+                    REQUEST_NOTIFICATIONS);
+        }
+        viewModel.writeReport(view.getLoadedAggregates(), Granularity.COUNTRY, 0,
+                new File(getFilesDir(), REPORT_FILE));
+    }
 
-        // Generate the management report
-        StringBuilder managementReport = new StringBuilder();
-        for (CountryData countryData : countryDataList) {
-            double percentagePositive = (countryData.getTested() == 0) ? 0 : ((double) countryData.getPositive() / countryData.getTested()) * 100;
-            String line = String.format("%s, Tested = %d, Positive = %.2f%% (%d/%d)\n",
-                    countryData.getCountry(), countryData.getTested(), percentagePositive, countryData.getPositive(), countryData.getTested());
-            managementReport.append(line);
+    /**
+     * onReportWritten method shows the summary of a written report as a notification, or in a
+     * Toast if notifications are not allowed.
+     *
+     * @param summary The summary of the report.
+     */
+    private void onReportWritten(ReportSummary summary) {
+        viewModel.reportShown();
+        if (summary.getError() != null) {
+            Log.e(TAG, "Error writing management report", summary.getError());
+            Toast.makeText(this, R.string.report_error, Toast.LENGTH_SHORT).show();
+            return;
         }
 
-        // Write the report to mgmt_report.txt
-        // and show the report in a Toast
-        writeReportToFile(managementReport.toString());
-        Toast.makeText(this, managementReport.toString(), Toast.LENGTH_LONG).show();
+        String title = getString(R.string.report_saved_title, summary.getFile().getName());
+        String text = summary.getTopName() == null ? getString(R.string.report_summary_empty)
+                : getString(R.string.report_summary, summary.getLineCount(), summary.getTopName(),
+                summary.getTopPercentHundredths() / 100.0);
+        if (!reportNotifier.show(title, text)) {
+            Toast.makeText(this, title + "\n" + text, Toast.LENGTH_LONG).show();
+        }
     }
 
     /**
-     * writeReportToFile method writes the management report to a file named "mgmt_report.txt" in
-     * the internal storage. If the file already exists, it rewrites the whole file with the new report.
-     * If the file does not exist, it creates a new file and writes the report to it.
+     * onLoadStateChanged method applies a partial or final LoadState published by the background
+     * loader. Countries are added to the spinner as their aggregates finish, and the overall
+     * progress bar is updated once the whole CSV has been read.
      *
-     * @param report The management report to be written to the file.
-     */
-    private void writeReportToFile(String report) {
-        File file = new File(getFilesDir(), "mgmt_report.txt");
-        BufferedWriter writer = null;
-
-        try {
-            writer = new BufferedWriter(new FileWriter(file));
-            writer.write(report);
-            writer.flush();
-            Toast.makeText(this, "Management report saved to mgmt_report.txt", Toast.LENGTH_SHORT).show();
-        } catch (IOException e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Error writing management report to file", Toast.LENGTH_SHORT).show();
-        } finally {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+     * @param state The latest LoadState.
+     */
+    private void onLoadStateChanged(LoadState state) {
+        if (state.getError() != null) {
+            Log.e(TAG, "Error reading data from CSV", state.getError());
+            Toast.makeText(this, "Error reading data from CSV", Toast.LENGTH_SHORT).show();
+            loadingStatus.setVisibility(View.GONE);
+            return;
+        }
+
+        if (state.isComplete()) {
+            loadingStatus.setVisibility(View.GONE);
+            updateUI();
+            if (isWindowSelected()) {
+                // Apply the selected date range to the new totals; the result is cached until rows change
+                viewModel.queryWindow(windowFrom, windowTo);
+            }
+            if (dataLoaded) {
+                return;
+            }
+            dataLoaded = true;
+            Log.i(TAG, "Skipped " + state.getExpiredRows() + " rows from sites with expired calibration");
+            if (state.getMalformedRows() > 0) {
+                for (String message : state.getDiagnostics()) {
+                    Log.w(TAG, "Error parsing line " + message);
                 }
+                Toast.makeText(this, getString(R.string.malformed_rows, state.getMalformedRows()),
+                        Toast.LENGTH_SHORT).show();
+            }
+        } else {
+            int progress = state.getProgressPercent();
+            String status = progress < 0 ? getString(R.string.loading)
+                    : getString(R.string.loading_progress, progress);
+            SampleEstimate estimate = state.getEstimate();
+            if (estimate != null) {
+                // A large CSV was sampled, show the provisional rate until the exact one is known
+                SampleEstimate.Proportion global = estimate.getGlobal();
+                status += "\n" + getString(R.string.loading_estimate, global.getPercent(), global.getLowerPercent(),
+                        global.getUpperPercent(), global.getRows(), estimate.getEstimatedRows());
             }
+            loadingStatus.setVisibility(View.VISIBLE);
+            loadingStatus.setText(status);
         }
     }
 
     /**
-     * readDataFromCSV method reads Analysers data from the CSV file and populates the countryList
-     * and countryDataMap.
-     */
-    private void readDataFromCSV() {
-        InputStream inputStream = getResources().openRawResource(R.raw.data);
-        Scanner scanner = new Scanner(inputStream);
-        countryList = new ArrayList<>();
-        countryDataMap = new HashMap<>();
-
-        // Step 1: Read expiry.txt and store calibration expiry information in a Map
-        Map<String, Long> siteCalibrationExpiryMap = new HashMap<>();
-        try {
-            InputStream expiryInputStream = getResources().openRawResource(R.raw.expiry);
-            Scanner expiryScanner = new Scanner(expiryInputStream);
-
-            while (expiryScanner.hasNextLine()) {
-                String line = expiryScanner.nextLine();
-                String[] data = line.split(",");
-                if (data.length == 2) {
-                    String siteName = data[0].trim();
-                    long expiryDate = Long.parseLong(data[1].trim());
-                    siteCalibrationExpiryMap.put(siteName, expiryDate);
-                }
-            }
+     * isWindowSelected method tells whether the user has selected a date range. Until then the
+     * totals shown are those of every row, and no window is queried.
+     *
+     * @return Whether a date range is selected.
+     */
+    private boolean isWindowSelected() {
+        return windowFrom != Long.MIN_VALUE || windowTo != Long.MAX_VALUE;
+    }
 
-            expiryScanner.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            // Handle the exception if there's an issue reading expiry.txt
-        }
+    /**
+     * onWindowChanged method shows the totals of the selected date range, and bounds the date
+     * range control by the dates in the data.
+     *
+     * @param state The totals of the queried window.
+     */
+    private void onWindowChanged(WindowState state) {
+        // The state may come from before a rotation, so the selection is restored from it
+        windowFrom = state.getFrom();
+        windowTo = state.getTo();
+        showDateRange(state.getMinDate(), state.getMaxDate());
+    }
 
-        // Step 2: Read data from the CSV file
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            String[] nextLine = line.split(",");
+    /**
+     * showDateRange method bounds the date range control by the dates in the data, and shows the
+     * selected date range in it, or the whole range until one is selected.
+     *
+     * @param minDate The earliest date in the data, in epoch seconds.
+     * @param maxDate The latest date in the data, in epoch seconds.
+     */
+    private void showDateRange(long minDate, long maxDate) {
+        float firstDay = Math.floorDiv(minDate, SECONDS_PER_DAY);
+        float lastDay = Math.max(firstDay + 1, Math.floorDiv(maxDate, SECONDS_PER_DAY));
+        float from = Math.max(firstDay, Math.min(lastDay, Math.floorDiv(windowFrom, SECONDS_PER_DAY)));
+        float to = Math.max(from, Math.min(lastDay, Math.floorDiv(windowTo, SECONDS_PER_DAY)));
+        if (dateRangeSlider.getValueFrom() != firstDay || dateRangeSlider.getValueTo() != lastDay) {
+            dateRangeSlider.setValueFrom(firstDay);
+            dateRangeSlider.setValueTo(lastDay);
+        }
+        List<Float> values = dateRangeSlider.getValues();
+        if (values.size() != 2 || values.get(0) != from || values.get(1) != to) {
+            dateRangeSlider.setValues(from, to);
+        }
+        dateRangeSlider.setVisibility(View.VISIBLE);
+        dateRangeLabel.setVisibility(View.VISIBLE);
+        dateRangeLabel.setText(getString(R.string.date_range,
+                dateFormat.format((long) from * SECONDS_PER_DAY * 1000),
+                dateFormat.format((long) to * SECONDS_PER_DAY * 1000)));
+    }
 
-            if (nextLine.length >= 6) {
-                String country = nextLine[0].trim();
-                try {
-                    int tested = Integer.parseInt(nextLine[2].trim());
-                    int positive = Integer.parseInt(nextLine[3].trim());
-
-                    // Step 3: Check if the site's calibration has expired
-                    if (siteCalibrationExpiryMap.containsKey(country)) {
-                        long expiryDate = siteCalibrationExpiryMap.get(country);
-                        long currentDate = System.currentTimeMillis();
-                        if (currentDate > expiryDate) {
-                            // Calibration has expired, skip adding data for this site
-                            continue;
-                        }
-                    }
+    /**
+     * onViewChanged method shows a new version of the totals, display models and trend series.
+     * The totals of the selected date range arrive this way too, once their display models are
+     * built.
+     *
+     * @param next The DataView to show.
+     */
+    private void onViewChanged(DataView next) {
+        DataView previous = view;
+        view = next;
+        if (dataLoaded) {
+            updateUI();
+        }
+        refreshSelection();
+        if (next.getLoadedAggregates() != previous.getLoadedAggregates()) {
+            // The report is written from the totals of the view shown
+            fullReportButton.setEnabled(true);
+        }
+        if (next.getTrends() != previous.getTrends()) {
+            showTrend(countrySpinner.getSelectedItemPosition());
+        }
+    }
 
-                    CountryData countryData = countryDataMap.get(country);
-                    if (countryData == null) {
-                        countryData = new CountryData();
-                        countryData.setTested(tested);
-                        countryData.setPositive(positive);
-                        countryData.setCountry(country);
-                        countryDataMap.put(country, countryData);
-                        countryList.add(country);
-                    } else {
-                        countryData.setTested(countryData.getTested() + tested);
-                        countryData.setPositive(countryData.getPositive() + positive);
-                    }
-                } catch (NumberFormatException e) {
-                    e.printStackTrace();
-                    Toast.makeText(this, "Error parsing data from CSV", Toast.LENGTH_SHORT).show();
-                    Log.e(TAG, "Error parsing line: " + line);
-                }
-            }
+    /**
+     * updatePicker method lists the countries and sites of a new name index, keeping the selected
+     * country or site selected if it is still listed.
+     *
+     * @param index The index of the latest names, built in the background.
+     */
+    private void updatePicker(NameIndex index) {
+        int entry = spinnerAdapter.getEntry(countrySpinner.getSelectedItemPosition());
+        boolean site = entry >= 0 && spinnerAdapter.getIndex().isSite(entry);
+        int id = entry >= 0 ? spinnerAdapter.getIndex().getId(entry) : -1;
+        spinnerAdapter.setIndex(index);
+        if (entry >= 0) {
+            countrySpinner.setSelection(Math.max(0, spinnerAdapter.findPosition(site, id)));
         }
-        scanner.close();
-        // Populate the spinner with country names
-        populateSpinner();
     }
 
     /**
-     * populateSpinner method populates the countrySpinner with country names using a custom ArrayAdapter.
+     * refreshSelection method shows the latest totals of the selected country or site.
      */
-    private void populateSpinner() {
-        // Add "Select" as the first item in the countryList
-        countryList.add(0, "Select");
+    private void refreshSelection() {
+        EntityDisplay display = findDisplay(countrySpinner.getSelectedItemPosition());
+        if (display != null) {
+            bind(display);
+        }
+    }
 
-        // Create the custom ArrayAdapter
-        ArrayAdapter<String> adapter = new ArrayAdapter<String>(this,
-                R.layout.custom_spinner_item, countryList) {
-            @Override
-            public View getView(int position, View convertView, ViewGroup parent) {
-                View view = super.getView(position, convertView, parent);
-                return view;
-            }
+    /**
+     * findDisplay method returns the display model of the country or site at a Spinner position.
+     *
+     * @param position The position in the Spinner.
+     * @return The display model, or null for the prompt or if the totals are not built yet.
+     */
+    private EntityDisplay findDisplay(int position) {
+        int entry = spinnerAdapter.getEntry(position);
+        DisplayModel displayModel = view.getDisplayModel();
+        if (entry < 0 || displayModel == null) {
+            return null;
+        }
+        NameIndex index = spinnerAdapter.getIndex();
+        return index.isSite(entry) ? displayModel.getSite(index.getId(entry))
+                : displayModel.getCountry(index.getId(entry));
+    }
 
-            @Override
-            public View getDropDownView(int position, View convertView, ViewGroup parent) {
-                View view = super.getDropDownView(position, convertView, parent);
-                if (position >= 0 && position < 4) {
-                    // Show the first 4 items with a custom background color
-                    view.setBackgroundColor(getResources().getColor(R.color.spinner_dropdown_highlight));
-                } else {
-                    // For items beyond the first 4, set the default background color
-                    view.setBackgroundColor(getResources().getColor(android.R.color.white));
-                }
-                return view;
-            }
-        };
+    /**
+     * showTrend method shows the trend of the country or site at a Spinner position, or of all
+     * countries for the prompt.
+     *
+     * @param position The position in the Spinner.
+     */
+    private void showTrend(int position) {
+        TrendSeries trendSeries = view.getTrends();
+        if (trendSeries == null) {
+            return;
+        }
+        int entry = spinnerAdapter.getEntry(position);
+        NameIndex index = spinnerAdapter.getIndex();
+        if (entry < 0) {
+            trendChart.setTrend(trendSeries, false, -1);
+        } else {
+            trendChart.setTrend(trendSeries, index.isSite(entry), index.getId(entry));
+        }
+    }
 
-        adapter.setDropDownViewResource(R.layout.custom_spinner_item);
-        countrySpinner.setAdapter(adapter);
+    /**
+     * populateSpinner method populates the countrySpinner with the countries and sites, filtered by
+     * the text typed in the search field.
+     */
+    private void populateSpinner() {
+        spinnerAdapter = new EntityPickerAdapter(this, getString(R.string.select));
+        countrySpinner.setAdapter(spinnerAdapter);
 
         // Set a default selection to "Select"
         countrySpinner.setSelection(0);
 
-        // Add a listener to the spinner to handle item selection
-        countrySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+        // Filter the list on every keystroke and select the best match
+        searchField.addTextChangedListener(new TextWatcher() {
             @Override
-            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                // Check if the user selected a valid country (not "Select")
-                if (position > 0) {
-                    String selectedCountry = countryList.get(position);
-                    updateCountryInfo(selectedCountry);
-                } else {
-                    // Clear the country info and progress bar if "Select" is chosen
-                    mTested.setText("");
-                    mPositive.setText("");
-                    progressBar.setProgress(0);
-                }
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
             }
 
             @Override
-            public void onNothingSelected(AdapterView<?> parent) {
-                if (isItemSelected) {
-                    String selectedCountry = countryList.get(selectedPosition);
-                    updateCountryInfo(selectedCountry);
-                }
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                spinnerAdapter.filter(s);
+                countrySpinner.setSelection(s.length() > 0 && spinnerAdapter.getCount() > 1 ? 1 : 0);
             }
         });
     }
@@ -417,23 +662,30 @@ public class MainActivity extends AppCompatActivity {
      * @param selectedCountry The name of the country selected in the Spinner.
      */
     void updateCountryInfo(String selectedCountry) {
-        CountryData countryData = countryDataMap.get(selectedCountry);
-        if (countryData != null) {
-            String testedInfo = getString(R.string.country_tested_info, countryData.getTested());
-            String positiveInfo = getString(R.string.country_info_data, (int) (((double) countryData.getPositive() / countryData.getTested()) * 100),
-                    countryData.getPositive(), countryData.getTested());
-            mTested.setText(testedInfo);
-            mPositive.setText(positiveInfo);
-
-            // Set the SeekBar progress and color based on positive percentage
-            int positivePercentage = (int) ((countryData.getPositive() * 100.0) / countryData.getTested());
-            progressBar.setProgress(positivePercentage);
-            if (positivePercentage < 50) {
-                progressBar.setProgressTintList(ColorStateList.valueOf(getResources().getColor(R.color.green)));
-            } else {
-                progressBar.setProgressTintList(ColorStateList.valueOf(getResources().getColor(R.color.colorRed)));
+        DisplayModel displayModel = view.getDisplayModel();
+        EntityDisplay display = displayModel == null ? null : displayModel.findCountry(selectedCountry);
+        if (display == null) {
+            // Data set through setCountryDataMap has no display model yet
+            CountryData countryData = countryDataMap.get(selectedCountry);
+            if (countryData == null) {
+                return;
             }
+            display = new EntityDisplay(selectedCountry, countryData.getTested(), countryData.getPositive(),
+                    getString(R.string.country_tested_info), getString(R.string.country_info_data));
         }
+        bind(display);
+    }
+
+    /**
+     * bind method shows the totals of a country or site in the TextViews and SeekBar.
+     *
+     * @param display The display model of the selection.
+     */
+    private void bind(EntityDisplay display) {
+        mTested.setText(display.getTestedText());
+        mPositive.setText(display.getPositiveText());
+        progressBar.setProgress(display.getPercent());
+        progressBar.setProgressTintList(display.isHigh() ? highTint : lowTint);
     }
 
     /**
@@ -487,13 +739,23 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Sets the countryDataMap with the provided HashMap containing CountryData objects.
-     * This method allows injecting the countryDataMap into the MainActivity for testing purposes.
+     * Sets the countryDataMap with a copy of the provided HashMap containing CountryData objects.
+     * This method allows injecting the countryDataMap into the MainActivity for testing purposes,
+     * from any thread.
      *
      * @param countryDataMap The HashMap containing CountryData objects, where the keys are the
      *                       country names and the values are the corresponding CountryData objects.
      */
     public void setCountryDataMap(HashMap<String, CountryData> countryDataMap) {
-        this.countryDataMap = countryDataMap;
+        // Later changes by the caller must not show half-applied, so the data is copied first
+        Map<String, CountryData> copy = new HashMap<>();
+        for (Map.Entry<String, CountryData> entry : countryDataMap.entrySet()) {
+            CountryData countryData = new CountryData();
+            countryData.setCountry(entry.getValue().getCountry());
+            countryData.setTested(entry.getValue().getTested());
+            countryData.setPositive(entry.getValue().getPositive());
+            copy.put(entry.getKey(), countryData);
+        }
+        this.countryDataMap = Collections.unmodifiableMap(copy);
     }
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package com.osler.analysers;
+
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.osler.analysers.data.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * MetricsActivity is the debug screen showing how long loading, aggregating, rendering and
+ * report writing took, the rows and bytes processed and the recent errors, see Metrics. It is
+ * opened by long-pressing the Full Report button in debuggable builds. The metrics can be saved to
+ * "metrics.txt" in the app's external files directory, to be pulled from a device with adb.
+ */
+public class MetricsActivity extends AppCompatActivity {
+    private static final String TAG = MetricsActivity.class.getSimpleName();
+
+    /**
+     * The name of the metrics dump in the app's external files directory.
+     */
+    private static final String DUMP_FILE = "metrics.txt";
+
+    /**
+     * The TextView showing the metrics.
+     */
+    private TextView metricsText;
+
+    /**
+     * onCreate method shows the current metrics and sets up the refresh and save buttons.
+     *
+     * @param savedInstanceState A Bundle containing the activity's previously saved state.
+     */
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+        metricsText = findViewById(R.id.metrics_text);
+
+        findViewById(R.id.metrics_refresh).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                refresh();
+            }
+        });
+        findViewById(R.id.metrics_dump).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                dump();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    /**
+     * refresh method shows the metrics as they are now.
+     */
+    private void refresh() {
+        metricsText.setText(Metrics.get().describe());
+    }
+
+    /**
+     * dump method saves the metrics to a file. The dump is small, so it is written on the main
+     * thread. The internal files directory is used if external storage is not available.
+     */
+    private void dump() {
+        File directory = getExternalFilesDir(null);
+        File file = new File(directory != null ? directory : getFilesDir(), DUMP_FILE);
+        try {
+            Metrics.get().writeTo(file);
+            Toast.makeText(this, getString(R.string.metrics_dumped, file.getPath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving metrics", e);
+            Toast.makeText(this, R.string.metrics_dump_error, Toast.LENGTH_SHORT).show();
+        }
+        refresh();
+    }
+}
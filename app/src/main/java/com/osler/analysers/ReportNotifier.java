@@ -0,0 +1,103 @@
+package com.osler.analysers;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+
+/**
+ * ReportNotifier shows the summary of a written management report as a notification, so the
+ * report itself no longer has to fit into a Toast. Alerts of sites whose positive rate spiked are
+ * shown on a channel of their own, so they can be silenced separately from the reports.
+ */
+class ReportNotifier {
+    /**
+     * The id of the notification channel for management reports.
+     */
+    private static final String CHANNEL_ID = "management_reports";
+
+    /**
+     * The id of the report notification. A new report replaces the previous notification.
+     */
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * The id of the notification channel for site alerts.
+     */
+    private static final String ALERT_CHANNEL_ID = "site_alerts";
+
+    /**
+     * The id of the alert notification. New alerts replace the previous notification.
+     */
+    private static final int ALERT_NOTIFICATION_ID = 2;
+
+    private final Context context;
+
+    ReportNotifier(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * canNotify method checks whether notifications may be posted. From Android 13 this needs
+     * the POST_NOTIFICATIONS runtime permission.
+     *
+     * @return true if show will post a notification.
+     */
+    boolean canNotify() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && ContextCompat.checkSelfPermission(context, Manifest.permission.POST_NOTIFICATIONS)
+                != PackageManager.PERMISSION_GRANTED) {
+            return false;
+        }
+        return NotificationManagerCompat.from(context).areNotificationsEnabled();
+    }
+
+    /**
+     * show method posts the report summary as a notification.
+     *
+     * @param title The notification title.
+     * @param text  The summary text.
+     * @return false if notifications are not allowed, so the caller can fall back to a Toast.
+     */
+    boolean show(String title, String text) {
+        return post(CHANNEL_ID, R.string.report_channel_name, NOTIFICATION_ID, title, text);
+    }
+
+    /**
+     * showAlerts method posts new site alerts as a notification.
+     *
+     * @param title The notification title.
+     * @param text  The alerts, one per line.
+     * @return false if notifications are not allowed.
+     */
+    boolean showAlerts(String title, String text) {
+        return post(ALERT_CHANNEL_ID, R.string.alert_channel_name, ALERT_NOTIFICATION_ID, title, text);
+    }
+
+    @SuppressLint("MissingPermission") // Checked by canNotify
+    private boolean post(String channelId, int channelName, int notificationId, String title, String text) {
+        if (!canNotify()) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(channelId,
+                    context.getString(channelName), NotificationManager.IMPORTANCE_DEFAULT);
+            context.getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, channelId)
+                .setSmallIcon(R.drawable.ic_report)
+                .setContentTitle(title)
+                .setContentText(text)
+                .setStyle(new NotificationCompat.BigTextStyle().bigText(text))
+                .setAutoCancel(true);
+        NotificationManagerCompat.from(context).notify(notificationId, builder.build());
+        return true;
+    }
+}
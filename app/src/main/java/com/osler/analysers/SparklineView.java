@@ -0,0 +1,132 @@
+package com.osler.analysers;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.DashPathEffect;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.core.content.ContextCompat;
+
+import com.osler.analysers.data.EntityDisplay;
+import com.osler.analysers.data.TrendSeries;
+
+/**
+ * SparklineView draws the positive rate over time of a country, a site or all countries as a
+ * line, scaled between its lowest and highest rate. The series is downsampled to one point per
+ * few pixels whenever the trend or the size changes, and drawn from a prebuilt Path, so drawing
+ * never depends on the number of rows or days. A dashed line marks the high percentage, when it
+ * is in range.
+ */
+public class SparklineView extends View {
+    /**
+     * The horizontal space per point, in dp.
+     */
+    private static final float POINT_SPACING_DP = 3;
+
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint highPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Path line = new Path();
+    private final float pointSpacing;
+
+    /*
+     * The trend shown, and the y of the high percentage line, or NaN if it is out of range.
+     */
+    private TrendSeries trends;
+    private boolean site;
+    private int id = -1;
+    private float highY = Float.NaN;
+
+    public SparklineView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        pointSpacing = POINT_SPACING_DP * density;
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(2 * density);
+        linePaint.setStrokeJoin(Paint.Join.ROUND);
+        // Round caps also show a series of a single bucket as a dot
+        linePaint.setStrokeCap(Paint.Cap.ROUND);
+        linePaint.setColor(ContextCompat.getColor(context, R.color.text_color));
+        highPaint.setStyle(Paint.Style.STROKE);
+        highPaint.setStrokeWidth(density);
+        highPaint.setColor(ContextCompat.getColor(context, R.color.colorRed));
+        highPaint.setPathEffect(new DashPathEffect(new float[]{4 * density, 4 * density}, 0));
+    }
+
+    /**
+     * setTrend method shows the trend of a country, a site or all countries.
+     *
+     * @param trends The trend series of the data.
+     * @param site   true for a site, false for a country.
+     * @param id     The site or country id, or -1 for all countries.
+     */
+    public void setTrend(TrendSeries trends, boolean site, int id) {
+        this.trends = trends;
+        this.site = site;
+        this.id = id;
+        updateLine();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateLine();
+    }
+
+    /**
+     * updateLine method downsamples the trend to the width of the view and builds its Path.
+     */
+    private void updateLine() {
+        line.rewind();
+        highY = Float.NaN;
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (trends != null && width > 0 && height > 0) {
+            TrendSeries.Series series = trends.getSparkline(site, id, Math.max(3, (int) (width / pointSpacing)));
+            int size = series.size();
+            if (size > 0) {
+                double low = Double.MAX_VALUE;
+                double high = -Double.MAX_VALUE;
+                for (int i = 0; i < size; i++) {
+                    low = Math.min(low, series.getPercent(i));
+                    high = Math.max(high, series.getPercent(i));
+                }
+                // A flat trend is drawn through the middle
+                double range = high > low ? high - low : 1;
+                double first = series.getStart(0);
+                double span = Math.max(1, series.getStart(size - 1) - first);
+                float left = getPaddingLeft();
+                float bottom = getPaddingTop() + height;
+                for (int i = 0; i < size; i++) {
+                    float x = size == 1 ? left + width / 2
+                            : left + (float) ((series.getStart(i) - first) / span) * width;
+                    float y = high > low ? bottom - (float) ((series.getPercent(i) - low) / range) * height
+                            : bottom - height / 2;
+                    if (i == 0) {
+                        line.moveTo(x, y);
+                    } else {
+                        line.lineTo(x, y);
+                    }
+                }
+                if (size == 1) {
+                    line.rLineTo(0, 0);
+                }
+                if (EntityDisplay.HIGH_PERCENT >= low && EntityDisplay.HIGH_PERCENT <= high && high > low) {
+                    highY = bottom - (float) ((EntityDisplay.HIGH_PERCENT - low) / range) * height;
+                }
+            }
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (!Float.isNaN(highY)) {
+            canvas.drawLine(getPaddingLeft(), highY, getWidth() - getPaddingRight(), highY, highPaint);
+        }
+        canvas.drawPath(line, linePaint);
+    }
+}
@@ -0,0 +1,69 @@
+package com.osler.analysers.benchmark;
+
+import com.osler.analysers.data.AggregateEngine;
+import com.osler.analysers.data.AggregateSnapshot;
+import com.osler.analysers.data.ParallelAggregator;
+import com.osler.analysers.data.SiteDataStore;
+import com.osler.analysers.data.TimeWindowIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AggregateBenchmark measures building the per-site, per-country and global totals over a
+ * loaded store, row by row and with the parallel reduction, and answering time window queries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AggregateBenchmark {
+    @Param({"390", "100000", "1000000", "10000000"})
+    public int rows;
+
+    private SiteDataStore store;
+    private ParallelAggregator aggregator;
+    private TimeWindowIndex windowIndex;
+    private long windowFrom;
+    private long windowTo;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = SyntheticDataset.store(rows);
+        aggregator = new ParallelAggregator(ForkJoinPool.commonPool());
+        windowIndex = TimeWindowIndex.build(store);
+        // A window over the middle third of the data
+        long span = SyntheticDataset.lastEnd() - SyntheticDataset.firstStart();
+        windowFrom = SyntheticDataset.firstStart() + span / 3;
+        windowTo = windowFrom + span / 3;
+    }
+
+    @Benchmark
+    public AggregateSnapshot sequential() {
+        return new AggregateEngine(store).snapshot();
+    }
+
+    @Benchmark
+    public AggregateSnapshot parallel() {
+        return aggregator.reduce(store);
+    }
+
+    @Benchmark
+    public TimeWindowIndex buildWindowIndex() {
+        return TimeWindowIndex.build(store);
+    }
+
+    @Benchmark
+    public AggregateSnapshot queryWindow() {
+        return windowIndex.query(windowFrom, windowTo);
+    }
+}
@@ -0,0 +1,95 @@
+package com.osler.analysers.benchmark;
+
+import com.osler.analysers.data.AnalysisPipeline;
+import com.osler.analysers.data.BinaryRowFormat;
+import com.osler.analysers.data.CsvParser;
+import com.osler.analysers.data.LoadState;
+import com.osler.analysers.data.ParseDiagnostics;
+import com.osler.analysers.data.SiteDataStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ParseBenchmark measures reading the CSV into a SiteDataStore, as DataLoader does on a cold
+ * start: tokenizing, interning the names and appending the rows. parseChunked reads the same
+ * file through AnalysisPipeline, memory-mapped and split across all cores, including the merge
+ * of the per-chunk stores and the totals. parseBinary reads the same rows converted to the
+ * BinaryRowFormat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParseBenchmark {
+    @Param({"390", "100000", "1000000", "10000000"})
+    public int rows;
+
+    private File file;
+    private File binaryFile;
+    private ExecutorService executor;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = SyntheticDataset.csvFile(rows);
+        binaryFile = SyntheticDataset.binaryFile(rows);
+        int threads = Runtime.getRuntime().availableProcessors();
+        executor = Executors.newFixedThreadPool(threads);
+        pool = new ForkJoinPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public SiteDataStore parse() throws IOException {
+        SiteDataStore store = new SiteDataStore();
+        CsvParser parser = new CsvParser(store.getCountries(), store.getSites(), new ParseDiagnostics());
+        InputStream in = new FileInputStream(file);
+        try {
+            parser.parse(in, "data.csv", store);
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    @Benchmark
+    public SiteDataStore parseBinary() throws IOException {
+        SiteDataStore store = new SiteDataStore();
+        InputStream in = new FileInputStream(binaryFile);
+        try {
+            BinaryRowFormat.read(in, "data.anrb", store.getCountries(), store.getSites(), store);
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    @Benchmark
+    public LoadState parseChunked() throws IOException {
+        AnalysisPipeline pipeline = new AnalysisPipeline(executor, pool);
+        pipeline.addInput(file);
+        return pipeline.run();
+    }
+}
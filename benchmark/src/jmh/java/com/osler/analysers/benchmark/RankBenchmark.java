@@ -0,0 +1,52 @@
+package com.osler.analysers.benchmark;
+
+import com.osler.analysers.data.AggregateSnapshot;
+import com.osler.analysers.data.Granularity;
+import com.osler.analysers.data.ParallelAggregator;
+import com.osler.analysers.data.Ranking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RankBenchmark measures ranking the sites by positivity, for a top 10 and for a full ranking.
+ * The cost depends on the number of sites rather than rows, so the datasets only differ in how
+ * many of the generated sites have rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RankBenchmark {
+    @Param({"390", "100000"})
+    public int rows;
+
+    @Param({"COUNTRY", "SITE"})
+    public Granularity granularity;
+
+    private AggregateSnapshot aggregates;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        aggregates = new ParallelAggregator(ForkJoinPool.commonPool()).reduce(SyntheticDataset.store(rows));
+    }
+
+    @Benchmark
+    public int[] top10() {
+        return Ranking.of(aggregates, granularity).top(10);
+    }
+
+    @Benchmark
+    public int[] sorted() {
+        return Ranking.of(aggregates, granularity).sorted();
+    }
+}
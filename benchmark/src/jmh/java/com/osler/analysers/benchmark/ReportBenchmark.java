@@ -0,0 +1,54 @@
+package com.osler.analysers.benchmark;
+
+import com.osler.analysers.data.AggregateSnapshot;
+import com.osler.analysers.data.Granularity;
+import com.osler.analysers.data.ParallelAggregator;
+import com.osler.analysers.data.ReportSummary;
+import com.osler.analysers.data.ReportWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReportBenchmark measures writing the management report, including the ranking, the formatting
+ * and the synced write to disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReportBenchmark {
+    @Param({"COUNTRY", "SITE"})
+    public Granularity granularity;
+
+    private AggregateSnapshot aggregates;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        aggregates = new ParallelAggregator(ForkJoinPool.commonPool()).reduce(SyntheticDataset.store(100000));
+        file = File.createTempFile("mgmt_report", ".txt");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public ReportSummary write() throws IOException {
+        return new ReportWriter(file).write(aggregates, granularity, 0);
+    }
+}
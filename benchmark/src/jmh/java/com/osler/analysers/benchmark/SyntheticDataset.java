@@ -0,0 +1,179 @@
+package com.osler.analysers.benchmark;
+
+import com.osler.analysers.data.BinaryRowFormat;
+import com.osler.analysers.data.ParseDiagnostics;
+import com.osler.analysers.data.SiteDataStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * SyntheticDataset generates Analysers data shaped like the bundled data.csv at any size, from
+ * its ~390 rows up to tens of millions. Rows are spread over a fixed set of countries and sites,
+ * with tested counts, positivity and measurement windows in the same ranges as the real data.
+ * The same row count always produces the same data.
+ */
+final class SyntheticDataset {
+    static final int COUNTRIES = 40;
+    static final int SITES_PER_COUNTRY = 50;
+
+    /**
+     * The measurement windows of the bundled data start between these epoch seconds.
+     */
+    private static final long FIRST_START = 1591848718L;
+    private static final long LAST_START = 1627665600L;
+    private static final int MAX_WINDOW_SECONDS = 35000000;
+
+    private static final String HEADER = "Country,Site,Tested,Positive,StartDate,EndDate\r\n";
+
+    private SyntheticDataset() {
+    }
+
+    /**
+     * csvFile method returns a CSV file with the given number of rows, generating it the first
+     * time it is asked for. Files are kept in the temporary directory between benchmark runs,
+     * since writing the larger ones takes longer than the benchmarks themselves.
+     *
+     * @param rows The number of data rows.
+     * @return The CSV file.
+     * @throws IOException If the file cannot be written.
+     */
+    static File csvFile(int rows) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "analysers-benchmark");
+        File file = new File(dir, "data-" + rows + ".csv");
+        if (file.isFile()) {
+            return file;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File tempFile = new File(dir, file.getName() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16);
+        try {
+            writeCsv(rows, out);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Could not move " + tempFile + " into place");
+        }
+        return file;
+    }
+
+    /**
+     * binaryFile method returns the rows of csvFile(rows) converted to the BinaryRowFormat,
+     * converting them the first time they are asked for.
+     *
+     * @param rows The number of data rows.
+     * @return The binary file.
+     * @throws IOException If the file cannot be written.
+     */
+    static File binaryFile(int rows) throws IOException {
+        File csv = csvFile(rows);
+        File file = new File(csv.getParentFile(), "data-" + rows + ".anrb");
+        if (file.isFile()) {
+            return file;
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        InputStream in = new BufferedInputStream(new FileInputStream(csv), 1 << 16);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16);
+            try {
+                BinaryRowFormat.convert(in, csv.getName(), out, new ParseDiagnostics());
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Could not move " + tempFile + " into place");
+        }
+        return file;
+    }
+
+    /**
+     * writeCsv method writes the header and the given number of rows in the CSV format.
+     */
+    static void writeCsv(int rows, OutputStream out) throws IOException {
+        out.write(HEADER.getBytes(StandardCharsets.US_ASCII));
+        Random random = new Random(rows);
+        StringBuilder line = new StringBuilder(96);
+        for (int row = 0; row < rows; row++) {
+            int country = row % COUNTRIES;
+            int site = random.nextInt(SITES_PER_COUNTRY);
+            int tested = 100 + random.nextInt(100);
+            int positive = tested * (5 + random.nextInt(25)) / 100;
+            long start = FIRST_START + (long) (random.nextDouble() * (LAST_START - FIRST_START));
+            long end = start + random.nextInt(MAX_WINDOW_SECONDS);
+
+            line.setLength(0);
+            line.append(countryName(country)).append(',').append(siteName(country, site)).append(',')
+                    .append(tested).append(',').append(positive).append(',')
+                    .append(start).append(',').append(end).append("\r\n");
+            for (int i = 0; i < line.length(); i++) {
+                out.write(line.charAt(i));
+            }
+        }
+    }
+
+    /**
+     * store method builds a store holding the same rows as csvFile(rows), without parsing.
+     *
+     * @param rows The number of rows.
+     * @return The filled store.
+     */
+    static SiteDataStore store(int rows) {
+        SiteDataStore store = new SiteDataStore();
+        Random random = new Random(rows);
+        String[] countries = new String[COUNTRIES];
+        String[][] sites = new String[COUNTRIES][SITES_PER_COUNTRY];
+        for (int country = 0; country < COUNTRIES; country++) {
+            countries[country] = countryName(country);
+            for (int site = 0; site < SITES_PER_COUNTRY; site++) {
+                sites[country][site] = siteName(country, site);
+            }
+        }
+        for (int row = 0; row < rows; row++) {
+            int country = row % COUNTRIES;
+            int site = random.nextInt(SITES_PER_COUNTRY);
+            int tested = 100 + random.nextInt(100);
+            int positive = tested * (5 + random.nextInt(25)) / 100;
+            long start = FIRST_START + (long) (random.nextDouble() * (LAST_START - FIRST_START));
+            long end = start + random.nextInt(MAX_WINDOW_SECONDS);
+            store.append(countries[country], sites[country][site], tested, positive, start, end);
+        }
+        store.trimToSize();
+        return store;
+    }
+
+    /**
+     * Returns the first epoch second a generated measurement can start at.
+     */
+    static long firstStart() {
+        return FIRST_START;
+    }
+
+    /**
+     * Returns the last epoch second a generated measurement can end at.
+     */
+    static long lastEnd() {
+        return LAST_START + MAX_WINDOW_SECONDS;
+    }
+
+    private static String countryName(int country) {
+        return "Country " + country;
+    }
+
+    private static String siteName(int country, int site) {
+        return "Site " + country + "-" + site;
+    }
+}
@@ -0,0 +1,403 @@
+package com.osler.analysers.cli;
+
+import com.osler.analysers.data.Alert;
+import com.osler.analysers.data.AlertEngine;
+import com.osler.analysers.data.AnalysisPipeline;
+import com.osler.analysers.data.BinaryRowFormat;
+import com.osler.analysers.data.CalibrationIndex;
+import com.osler.analysers.data.DirectoryIngest;
+import com.osler.analysers.data.Granularity;
+import com.osler.analysers.data.LoadState;
+import com.osler.analysers.data.ParseDiagnostics;
+import com.osler.analysers.data.ReportFormat;
+import com.osler.analysers.data.ReportFormats;
+import com.osler.analysers.data.ReportSink;
+import com.osler.analysers.data.ReportSummary;
+import com.osler.analysers.data.ReportWriter;
+import com.osler.analysers.data.SampleEstimate;
+import com.osler.analysers.data.StratifiedSampler;
+import com.osler.analysers.data.StreamSource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Main runs the Analysers analysis from the command line and writes the same management report
+ * as the app.
+ *
+ * <pre>
+ * analysers [--expiry expiry.txt] [--threads N] [--estimate] [REPORT OPTIONS] data.csv...
+ * analysers [--expiry expiry.txt] [REPORT OPTIONS] --dir incoming [--watch] [--alerts FILE] [data.csv...]
+ * analysers --convert data.anrb data.csv
+ *
+ * REPORT OPTIONS: [--out FILE] [--format text|csv|json|binary] [--gzip]
+ *                 [--by country|site|day|week|month] [--top N]
+ * </pre>
+ *
+ * <p>The CSV files are memory-mapped and parsed in parallel chunks on a pool of N threads,
+ * defaulting to one per core. With --dir, every CSV file in the
+ * directory is read as well, and with --watch the report is rewritten whenever a file in the
+ * directory changes, parsing only the files that changed. With --alerts, the rows are also checked
+ * for sites whose positive rate spiked, see AlertEngine, the new alerts are printed, and the sites
+ * with recent alerts are written to FILE as a site report. Files converted to the BinaryRowFormat
+ * with --convert can be given wherever a CSV can. A summary is printed to standard output and the
+ * diagnostics for malformed lines to standard error.</p>
+ *
+ * <p>With --estimate, the positive rates are first estimated from a sample of each CSV file and
+ * printed with their confidence intervals, before the files are parsed in full.</p>
+ *
+ * <p>The report is the app's mgmt_report.txt by default. --format, --by and --gzip choose another
+ * ReportFormat, granularity and compression, and --top limits a country or site report to the
+ * entries with the highest positive rate. Without --out, the report is written to mgmt_report
+ * with the format's extension.</p>
+ */
+public class Main {
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_IO_ERROR = 1;
+    private static final int EXIT_USAGE = 2;
+
+    private static final String USAGE =
+            "usage: analysers [--expiry expiry.txt] [--threads N] [--estimate] [REPORT OPTIONS] data.csv...\n"
+                    + "       analysers [--expiry expiry.txt] [REPORT OPTIONS] --dir DIR [--watch] [--alerts FILE]"
+                    + " [data.csv...]\n"
+                    + "       analysers --convert data.anrb data.csv\n"
+                    + "report options: [--out FILE] [--format text|csv|json|binary] [--gzip]\n"
+                    + "                [--by country|site|day|week|month] [--top N]";
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * run method parses the arguments, runs the pipeline and returns the process exit code.
+     */
+    static int run(String[] args) {
+        // Step 1: Parse the arguments
+        File expiryFile = null;
+        File directory = null;
+        File convertFile = null;
+        File alertFile = null;
+        boolean watch = false;
+        boolean estimate = false;
+        File reportFile = null;
+        ReportFormat format = ReportFormats.TEXT;
+        Granularity granularity = Granularity.COUNTRY;
+        boolean gzip = false;
+        int top = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> inputFiles = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--expiry")) {
+                    expiryFile = new File(value(args, ++i));
+                } else if (arg.equals("--out")) {
+                    reportFile = new File(value(args, ++i));
+                } else if (arg.equals("--dir")) {
+                    directory = new File(value(args, ++i));
+                } else if (arg.equals("--alerts")) {
+                    alertFile = new File(value(args, ++i));
+                } else if (arg.equals("--convert")) {
+                    convertFile = new File(value(args, ++i));
+                } else if (arg.equals("--format")) {
+                    format = ReportFormats.forName(value(args, ++i));
+                } else if (arg.equals("--by")) {
+                    granularity = granularity(value(args, ++i));
+                } else if (arg.equals("--gzip")) {
+                    gzip = true;
+                } else if (arg.equals("--top")) {
+                    top = Integer.parseInt(value(args, ++i));
+                    if (top < 0) {
+                        throw new IllegalArgumentException("--top must not be negative");
+                    }
+                } else if (arg.equals("--estimate")) {
+                    estimate = true;
+                } else if (arg.equals("--watch")) {
+                    watch = true;
+                } else if (arg.equals("--threads")) {
+                    threads = Integer.parseInt(value(args, ++i));
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("--threads must be at least 1");
+                    }
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                } else {
+                    inputFiles.add(new File(arg));
+                }
+            }
+            if (inputFiles.isEmpty() && directory == null) {
+                throw new IllegalArgumentException("no input files");
+            }
+            if (watch && directory == null) {
+                throw new IllegalArgumentException("--watch needs --dir");
+            }
+            if (alertFile != null && directory == null) {
+                throw new IllegalArgumentException("--alerts needs --dir");
+            }
+            if (estimate && directory != null) {
+                throw new IllegalArgumentException("--estimate cannot be used with --dir");
+            }
+            if (convertFile != null && (inputFiles.size() != 1 || directory != null)) {
+                throw new IllegalArgumentException("--convert takes exactly one CSV file");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("analysers: " + e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        if (convertFile != null) {
+            return convert(inputFiles.get(0), convertFile);
+        }
+        if (reportFile == null) {
+            reportFile = new File("mgmt_report." + format.getExtension() + (gzip ? ".gz" : ""));
+        }
+        ReportSink reportSink = new ReportSink(reportFile, granularity, top, format, gzip);
+        if (directory != null) {
+            return runDirectory(directory, inputFiles, expiryFile, reportSink, granularity, watch, alertFile);
+        }
+
+        // Step 2: Print the estimates from a sample first if asked to, they take milliseconds
+        if (estimate) {
+            try {
+                printEstimates(inputFiles, expiryFile);
+            } catch (IOException e) {
+                System.err.println("analysers: " + e.getMessage());
+                return EXIT_IO_ERROR;
+            }
+        }
+
+        // Step 3: Run the pipeline with the report as its sink
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ForkJoinPool aggregationPool = new ForkJoinPool(threads);
+        try {
+            AnalysisPipeline pipeline = new AnalysisPipeline(executor, aggregationPool);
+            for (File inputFile : inputFiles) {
+                pipeline.addInput(inputFile);
+            }
+            if (expiryFile != null) {
+                pipeline.setExpirySource(fileSource(expiryFile));
+            }
+            pipeline.addSink(reportSink);
+            LoadState result = pipeline.run();
+            printSummary(result, reportSink.getSummary());
+            return EXIT_OK;
+        } catch (IOException e) {
+            System.err.println("analysers: " + e.getMessage());
+            return EXIT_IO_ERROR;
+        } finally {
+            executor.shutdownNow();
+            aggregationPool.shutdownNow();
+        }
+    }
+
+    /**
+     * runDirectory method reads the CSV files of a directory into a DirectoryIngest and writes the
+     * report, then keeps refreshing it on every change of the directory when watching. The alerts
+     * are checked after every refresh if an alert report is asked for.
+     */
+    private static int runDirectory(File directory, List<File> inputFiles, File expiryFile, ReportSink reportSink,
+                                    Granularity granularity, boolean watch, File alertFile) {
+        DirectoryIngest ingest = new DirectoryIngest(directory);
+        for (File inputFile : inputFiles) {
+            ingest.addSource(inputFile.getName(), fileSource(inputFile));
+        }
+        if (expiryFile != null) {
+            ingest.setExpirySource(fileSource(expiryFile));
+        }
+        // The rows of every file are only concatenated when time buckets are reported or alerts checked
+        boolean needsRows = granularity.isTimeBucket();
+        AlertEngine alertEngine = alertFile != null ? AlertEngine.withDefaultRules() : null;
+        try {
+            ingest.refresh();
+            LoadState state = ingest.getState();
+            reportSink.write(state.getAggregates(), needsRows ? ingest.getStore() : null);
+            printSummary(state, reportSink.getSummary());
+            checkAlerts(alertEngine, ingest, alertFile);
+            if (!watch) {
+                return EXIT_OK;
+            }
+
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            try {
+                directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                while (true) {
+                    WatchKey key = watchService.take();
+                    key.pollEvents();
+                    if (!key.reset()) {
+                        throw new IOException(directory + " is no longer accessible");
+                    }
+                    int changes = ingest.refresh();
+                    if (changes > 0) {
+                        state = ingest.getState();
+                        reportSink.write(state.getAggregates(), needsRows ? ingest.getStore() : null);
+                        System.out.println("Files changed: " + changes);
+                        printSummary(state, reportSink.getSummary());
+                        checkAlerts(alertEngine, ingest, alertFile);
+                    }
+                }
+            } finally {
+                watchService.close();
+            }
+        } catch (InterruptedException e) {
+            return EXIT_OK;
+        } catch (IOException e) {
+            System.err.println("analysers: " + e.getMessage());
+            return EXIT_IO_ERROR;
+        }
+    }
+
+    /**
+     * checkAlerts method runs the alert rules over the rows added since the last check, prints the
+     * new alerts and writes the sites with recent alerts to the alert report.
+     */
+    private static void checkAlerts(AlertEngine alertEngine, DirectoryIngest ingest, File alertFile)
+            throws IOException {
+        if (alertEngine == null) {
+            return;
+        }
+        List<Alert> alerts = alertEngine.evaluate(ingest.getStore());
+        for (Alert alert : alerts) {
+            System.out.println("Alert: " + alert);
+        }
+        ReportSummary summary = new ReportWriter(alertFile).writeAlerts(alertEngine.getRecentAlerts());
+        System.out.println("Alerts: " + alerts.size() + " new, " + summary.getLineCount() + " sites in "
+                + alertFile.getPath());
+    }
+
+    /**
+     * convert method writes the rows of a CSV file in the BinaryRowFormat.
+     */
+    private static int convert(File csvFile, File binaryFile) {
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        try {
+            long rows;
+            InputStream in = new BufferedInputStream(new FileInputStream(csvFile));
+            try {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(binaryFile));
+                try {
+                    rows = BinaryRowFormat.convert(in, csvFile.getName(), out, diagnostics);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            for (String diagnostic : diagnostics.getMessages()) {
+                System.err.println(diagnostic);
+            }
+            System.out.println("Rows: " + rows + ", malformed lines: " + diagnostics.getMalformedCount()
+                    + ", " + csvFile.length() + " bytes to " + binaryFile.length() + " bytes");
+            return EXIT_OK;
+        } catch (IOException e) {
+            System.err.println("analysers: " + e.getMessage());
+            return EXIT_IO_ERROR;
+        }
+    }
+
+    /**
+     * printEstimates method samples each CSV file and prints the estimated positive rate of all
+     * countries and of each sampled country with its 95% confidence interval, and the spread of
+     * the rates of the sampled sites.
+     */
+    private static void printEstimates(List<File> inputFiles, File expiryFile) throws IOException {
+        CalibrationIndex calibrationIndex = new CalibrationIndex();
+        if (expiryFile != null) {
+            InputStream in = new FileInputStream(expiryFile);
+            try {
+                calibrationIndex = CalibrationIndex.parse(in, expiryFile.getName(), new ParseDiagnostics());
+            } finally {
+                in.close();
+            }
+        }
+        StratifiedSampler sampler = new StratifiedSampler(calibrationIndex);
+        for (File inputFile : inputFiles) {
+            long start = System.nanoTime();
+            SampleEstimate estimate = sampler.sample(fileSource(inputFile), inputFile.length());
+            long millis = (System.nanoTime() - start) / 1000000;
+            if (estimate == null) {
+                System.out.println("Estimate: " + inputFile.getName() + " is binary and cannot be sampled");
+                continue;
+            }
+            System.out.println(String.format(Locale.US,
+                    "Estimate of %s from %d of ~%d rows (%.1f%% of the file) in %d ms", inputFile.getName(),
+                    estimate.getGlobal().getRows(), estimate.getEstimatedRows(), estimate.getSampledFraction() * 100,
+                    millis));
+            printEstimate("All countries", estimate.getGlobal());
+            for (int i = 0; i < estimate.getCountryCount(); i++) {
+                printEstimate(estimate.getCountryName(i), estimate.getCountry(i));
+            }
+            System.out.println(String.format(Locale.US,
+                    "  Sites: %d sampled, positive rate p10 %.1f%%, median %.1f%%, p90 %.1f%%",
+                    estimate.getSampledSiteCount(), estimate.getSitePercentile(0.1), estimate.getSitePercentile(0.5),
+                    estimate.getSitePercentile(0.9)));
+        }
+    }
+
+    private static void printEstimate(String name, SampleEstimate.Proportion proportion) {
+        System.out.println(String.format(Locale.US, "  %s: %.2f%% (95%% CI %.2f-%.2f%%) from %d rows", name,
+                proportion.getPercent(), proportion.getLowerPercent(), proportion.getUpperPercent(),
+                proportion.getRows()));
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        }
+        return args[i];
+    }
+
+    private static Granularity granularity(String name) {
+        try {
+            return Granularity.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown granularity " + name);
+        }
+    }
+
+    private static StreamSource fileSource(final File file) {
+        return new StreamSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return new BufferedInputStream(new FileInputStream(file));
+            }
+        };
+    }
+
+    /**
+     * printSummary method prints the row counts and the report's highest entry, and the
+     * diagnostics for malformed lines to standard error.
+     */
+    private static void printSummary(LoadState result, ReportSummary report) {
+        for (String diagnostic : result.getDiagnostics()) {
+            System.err.println(diagnostic);
+        }
+        System.out.println("Rows: " + result.getAggregates().getRowCount()
+                + ", countries: " + result.getCountryList().size()
+                + ", malformed lines: " + result.getMalformedRows()
+                + ", expired rows: " + result.getExpiredRows());
+        System.out.print("Report: " + report.getFile().getPath() + " (" + report.getLineCount() + " lines)");
+        if (report.getTopName() != null) {
+            System.out.print(String.format(Locale.US, ", highest positive rate: %s (%.2f%%)",
+                    report.getTopName(), report.getTopPercentHundredths() / 100.0));
+        }
+        System.out.println();
+    }
+}
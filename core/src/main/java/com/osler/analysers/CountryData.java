@@ -2,8 +2,8 @@ package com.osler.analysers;
 
 public class CountryData {
     private String country;
-    private int tested;
-    private int positive;
+    private long tested;
+    private long positive;
 
     // Constructor
     public CountryData() {
@@ -20,19 +20,19 @@ public class CountryData {
         this.country = country;
     }
 
-    public int getTested() {
+    public long getTested() {
         return tested;
     }
 
-    public void setTested(int tested) {
+    public void setTested(long tested) {
         this.tested = tested;
     }
 
-    public int getPositive() {
+    public long getPositive() {
         return positive;
     }
 
-    public void setPositive(int positive) {
+    public void setPositive(long positive) {
         this.positive = positive;
     }
 }
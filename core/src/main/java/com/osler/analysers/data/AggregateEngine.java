@@ -0,0 +1,279 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * AggregateEngine keeps running per-site, per-country and global totals over a SiteDataStore.
+ * New rows are appended to the store and applied to the totals as deltas, so the cost of an
+ * update is proportional to the number of new rows, not to the size of the dataset. Rows are
+ * taken back out the same way, as negative deltas. Readers get immutable AggregateSnapshots,
+ * which never rescan the rows.
+ *
+ * <p>The totals may also cover rows the store does not hold: those whose totals were read from
+ * the rollups of a RollupStore, and those released from the store once they were kept in one.</p>
+ *
+ * <p>Like the store, the engine has a single writer. Snapshots may be read from any thread.</p>
+ */
+public class AggregateEngine implements CsvParser.RowHandler {
+    private final SiteDataStore store;
+
+    private long[] countryTested = new long[16];
+    private long[] countryPositive = new long[16];
+    private int[] countryRows = new int[16];
+
+    private long[] siteTested = new long[64];
+    private long[] sitePositive = new long[64];
+    private int[] siteRows = new int[64];
+
+    private long globalTested;
+    private long globalPositive;
+    private long version;
+
+    /**
+     * The number of rows in the totals that the store does not hold.
+     */
+    private int storedRows;
+
+    /**
+     * Creates an engine over the given store, taking in the rows it already holds.
+     *
+     * @param store The store new rows are appended to.
+     */
+    public AggregateEngine(SiteDataStore store) {
+        this.store = store;
+        for (int row = 0; row < store.size(); row++) {
+            add(store.getCountryId(row), store.getSiteId(row), store.getTested(row), store.getPositive(row));
+        }
+    }
+
+    /**
+     * Creates an engine over the given store, summing the rows it already holds in parallel.
+     * This is the faster way to start from a large store, e.g. one restored from a snapshot.
+     *
+     * @param store      The store new rows are appended to.
+     * @param aggregator The aggregator to sum the existing rows with.
+     */
+    public AggregateEngine(SiteDataStore store, ParallelAggregator aggregator) {
+        this.store = store;
+        AggregateSnapshot initial = aggregator.reduce(store);
+        int countryCount = initial.getCountryCount();
+        int siteCount = initial.getSiteCount();
+        countryTested = new long[Math.max(countryCount, 16)];
+        countryPositive = new long[countryTested.length];
+        countryRows = new int[countryTested.length];
+        for (int id = 0; id < countryCount; id++) {
+            countryTested[id] = initial.getCountryTested(id);
+            countryPositive[id] = initial.getCountryPositive(id);
+            countryRows[id] = initial.getCountryRowCount(id);
+        }
+        siteTested = new long[Math.max(siteCount, 64)];
+        sitePositive = new long[siteTested.length];
+        siteRows = new int[siteTested.length];
+        for (int id = 0; id < siteCount; id++) {
+            siteTested[id] = initial.getSiteTested(id);
+            sitePositive[id] = initial.getSitePositive(id);
+            siteRows[id] = initial.getSiteRowCount(id);
+        }
+        globalTested = initial.getGlobalTested();
+        globalPositive = initial.getGlobalPositive();
+    }
+
+    /**
+     * Creates an engine over an empty store whose totals start from the rollups of the rows kept in
+     * a RollupStore, which stay there. It costs time proportional to the number of countries and
+     * sites, however many rows are stored. The names of the rollups are interned into the store's
+     * dictionaries, except those whose rows were all removed.
+     *
+     * @param store   The store new rows are appended to. It must be empty.
+     * @param rollups The rollups of the rows.
+     * @throws IOException If the rollups cannot be read.
+     */
+    public AggregateEngine(SiteDataStore store, RollupStore rollups) throws IOException {
+        if (store.size() > 0) {
+            throw new IllegalArgumentException("The rollups cannot be added to " + store.size() + " rows");
+        }
+        this.store = store;
+        final NameTable countries = store.getCountries();
+        final NameTable sites = store.getSites();
+        rollups.readTotals(new RollupStore.TotalsHandler() {
+            @Override
+            public void onCountryTotals(String country, long tested, long positive, int rows) {
+                if (rows > 0) {
+                    int countryId = countries.intern(NameTable.NO_SCOPE, country);
+                    ensureCapacity(countryId, 0);
+                    countryTested[countryId] = tested;
+                    countryPositive[countryId] = positive;
+                    countryRows[countryId] = rows;
+                    globalTested += tested;
+                    globalPositive += positive;
+                    storedRows += rows;
+                }
+            }
+
+            @Override
+            public void onSiteTotals(String country, String site, long tested, long positive, int rows) {
+                if (rows > 0) {
+                    int siteId = sites.intern(countries.intern(NameTable.NO_SCOPE, country), site);
+                    ensureCapacity(0, siteId);
+                    siteTested[siteId] = tested;
+                    sitePositive[siteId] = positive;
+                    siteRows[siteId] = rows;
+                }
+            }
+        });
+    }
+
+    public SiteDataStore getStore() {
+        return store;
+    }
+
+    /**
+     * Appends a row whose names have already been interned in the store's dictionaries and
+     * applies it to the totals.
+     */
+    @Override
+    public void onRow(int countryId, int siteId, int tested, int positive, long startDate, long endDate) {
+        store.onRow(countryId, siteId, tested, positive, startDate, endDate);
+        add(countryId, siteId, tested, positive);
+        version++;
+    }
+
+    /**
+     * append method appends a row by name and applies it to the totals.
+     */
+    public void append(String country, String site, int tested, int positive, long startDate, long endDate) {
+        int countryId = store.getCountries().intern(NameTable.NO_SCOPE, country);
+        int siteId = store.getSites().intern(countryId, site);
+        onRow(countryId, siteId, tested, positive, startDate, endDate);
+    }
+
+    /**
+     * addAll method appends the rows fromRow to toRow of another store and applies them to the
+     * totals, interning their names into the store's dictionaries unless both share them.
+     *
+     * @param other   The store to copy the rows from. It is not modified.
+     * @param fromRow The first row to copy.
+     * @param toRow   The row after the last row to copy.
+     */
+    public void addAll(SiteDataStore other, int fromRow, int toRow) {
+        int firstRow = store.size();
+        store.addAll(other, fromRow, toRow);
+        for (int row = firstRow; row < store.size(); row++) {
+            add(store.getCountryId(row), store.getSiteId(row), store.getTested(row), store.getPositive(row));
+        }
+        version++;
+    }
+
+    /**
+     * apply method appends every row of a batch and applies them to the totals.
+     *
+     * @param batch The new rows.
+     */
+    public void apply(RowBatch batch) {
+        for (int row = 0; row < batch.size(); row++) {
+            append(batch.getCountry(row), batch.getSite(row), batch.getTested(row), batch.getPositive(row),
+                    batch.getStartDate(row), batch.getEndDate(row));
+        }
+    }
+
+    /**
+     * removeRows method takes the rows fromRow to toRow of the store back out of the totals, then
+     * removes them from the store. It costs time proportional to the rows removed plus a copy of
+     * the rows after them; the other rows are not summed again.
+     *
+     * @param fromRow The first row to remove.
+     * @param toRow   The row after the last row to remove.
+     */
+    public void removeRows(int fromRow, int toRow) {
+        if (fromRow < 0 || fromRow > toRow || toRow > store.size()) {
+            throw new IndexOutOfBoundsException("Cannot remove rows " + fromRow + " to " + toRow + " of "
+                    + store.size());
+        }
+        for (int row = fromRow; row < toRow; row++) {
+            add(store.getCountryId(row), store.getSiteId(row), -store.getTested(row), -store.getPositive(row), -1);
+        }
+        store.removeRows(fromRow, toRow);
+        version++;
+    }
+
+    /**
+     * releaseRows method removes every row from the store but keeps them in the totals, once they
+     * are kept elsewhere, e.g. in a RollupStore. Rows appended later are held as before.
+     */
+    public void releaseRows() {
+        storedRows += store.size();
+        store.removeRows(0, store.size());
+    }
+
+    /**
+     * Returns the number of rows in the totals that the store does not hold.
+     *
+     * @return The rows read from rollups or released.
+     */
+    public int getStoredRows() {
+        return storedRows;
+    }
+
+    private void add(int countryId, int siteId, int tested, int positive) {
+        add(countryId, siteId, tested, positive, 1);
+    }
+
+    private void add(int countryId, int siteId, int tested, int positive, int rows) {
+        ensureCapacity(countryId, siteId);
+        countryTested[countryId] += tested;
+        countryPositive[countryId] += positive;
+        countryRows[countryId] += rows;
+        siteTested[siteId] += tested;
+        sitePositive[siteId] += positive;
+        siteRows[siteId] += rows;
+        globalTested += tested;
+        globalPositive += positive;
+    }
+
+    private void ensureCapacity(int countryId, int siteId) {
+        if (countryId >= countryTested.length) {
+            int capacity = Math.max(countryId + 1, countryTested.length * 2);
+            countryTested = Arrays.copyOf(countryTested, capacity);
+            countryPositive = Arrays.copyOf(countryPositive, capacity);
+            countryRows = Arrays.copyOf(countryRows, capacity);
+        }
+        if (siteId >= siteTested.length) {
+            int capacity = Math.max(siteId + 1, siteTested.length * 2);
+            siteTested = Arrays.copyOf(siteTested, capacity);
+            sitePositive = Arrays.copyOf(sitePositive, capacity);
+            siteRows = Arrays.copyOf(siteRows, capacity);
+        }
+    }
+
+    /**
+     * snapshot method copies the current totals into an immutable AggregateSnapshot. It costs
+     * one copy per country and site, however many rows have been applied.
+     *
+     * @return The snapshot.
+     */
+    public AggregateSnapshot snapshot() {
+        NameTable countries = store.getCountries();
+        NameTable sites = store.getSites();
+        int countryCount = countries.size();
+        int siteCount = sites.size();
+
+        String[] countryNames = new String[countryCount];
+        for (int id = 0; id < countryCount; id++) {
+            countryNames[id] = countries.getName(id);
+        }
+        String[] siteNames = new String[siteCount];
+        int[] siteCountries = new int[siteCount];
+        for (int id = 0; id < siteCount; id++) {
+            siteNames[id] = sites.getName(id);
+            siteCountries[id] = sites.getScope(id);
+        }
+
+        // Names may have been interned by rows that were never applied, e.g. expired ones
+        return new AggregateSnapshot(version, storedRows + store.size(), countryNames,
+                Arrays.copyOf(countryTested, countryCount), Arrays.copyOf(countryPositive, countryCount),
+                Arrays.copyOf(countryRows, countryCount), siteNames, siteCountries,
+                Arrays.copyOf(siteTested, siteCount), Arrays.copyOf(sitePositive, siteCount),
+                Arrays.copyOf(siteRows, siteCount), globalTested, globalPositive);
+    }
+}
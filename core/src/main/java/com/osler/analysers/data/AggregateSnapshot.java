@@ -0,0 +1,170 @@
+package com.osler.analysers.data;
+
+import com.osler.analysers.CountryData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AggregateSnapshot is an immutable copy of the totals kept by an AggregateEngine: per site, per
+ * country and global. It is safe to read from any thread, and reading it never scans the rows.
+ */
+public class AggregateSnapshot {
+    private final long version;
+    private final long rowCount;
+
+    private final String[] countryNames;
+    private final long[] countryTested;
+    private final long[] countryPositive;
+    private final int[] countryRows;
+    private final Map<String, Integer> countryIds;
+
+    private final String[] siteNames;
+    private final int[] siteCountries;
+    private final long[] siteTested;
+    private final long[] sitePositive;
+    private final int[] siteRows;
+
+    private final long globalTested;
+    private final long globalPositive;
+
+    AggregateSnapshot(long version, long rowCount, String[] countryNames, long[] countryTested,
+                      long[] countryPositive, int[] countryRows, String[] siteNames, int[] siteCountries,
+                      long[] siteTested, long[] sitePositive, int[] siteRows, long globalTested, long globalPositive) {
+        this.version = version;
+        this.rowCount = rowCount;
+        this.countryNames = countryNames;
+        this.countryTested = countryTested;
+        this.countryPositive = countryPositive;
+        this.countryRows = countryRows;
+        this.siteNames = siteNames;
+        this.siteCountries = siteCountries;
+        this.siteTested = siteTested;
+        this.sitePositive = sitePositive;
+        this.siteRows = siteRows;
+        this.globalTested = globalTested;
+        this.globalPositive = globalPositive;
+        this.countryIds = new HashMap<>();
+        for (int id = 0; id < countryNames.length; id++) {
+            countryIds.put(countryNames[id], id);
+        }
+    }
+
+    /**
+     * Creates a snapshot with no data.
+     *
+     * @return An empty AggregateSnapshot.
+     */
+    public static AggregateSnapshot empty() {
+        return new AggregateSnapshot(0, 0, new String[0], new long[0], new long[0], new int[0], new String[0],
+                new int[0], new long[0], new long[0], new int[0], 0, 0);
+    }
+
+    /**
+     * Returns the version of the engine state this snapshot was taken from. Every applied row or
+     * batch increases the version.
+     *
+     * @return The snapshot version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long getGlobalTested() {
+        return globalTested;
+    }
+
+    public long getGlobalPositive() {
+        return globalPositive;
+    }
+
+    public int getCountryCount() {
+        return countryNames.length;
+    }
+
+    public String getCountryName(int countryId) {
+        return countryNames[countryId];
+    }
+
+    public long getCountryTested(int countryId) {
+        return countryTested[countryId];
+    }
+
+    public long getCountryPositive(int countryId) {
+        return countryPositive[countryId];
+    }
+
+    public int getCountryRowCount(int countryId) {
+        return countryRows[countryId];
+    }
+
+    /**
+     * findCountry method looks up a country id by name.
+     *
+     * @param country The country name.
+     * @return The country id, or -1 if the country is not known.
+     */
+    public int findCountry(String country) {
+        Integer id = countryIds.get(country);
+        return id == null ? -1 : id;
+    }
+
+    public int getSiteCount() {
+        return siteNames.length;
+    }
+
+    public String getSiteName(int siteId) {
+        return siteNames[siteId];
+    }
+
+    public int getSiteCountry(int siteId) {
+        return siteCountries[siteId];
+    }
+
+    public long getSiteTested(int siteId) {
+        return siteTested[siteId];
+    }
+
+    public long getSitePositive(int siteId) {
+        return sitePositive[siteId];
+    }
+
+    public int getSiteRowCount(int siteId) {
+        return siteRows[siteId];
+    }
+
+    /**
+     * getCountryData method returns the totals of one country as a CountryData.
+     *
+     * @param countryId The country id.
+     * @return A new CountryData holding the country's totals.
+     */
+    public CountryData getCountryData(int countryId) {
+        CountryData countryData = new CountryData();
+        countryData.setCountry(countryNames[countryId]);
+        countryData.setTested(countryTested[countryId]);
+        countryData.setPositive(countryPositive[countryId]);
+        return countryData;
+    }
+
+    /**
+     * getCountryDataList method returns the totals of every country that has at least one row.
+     *
+     * @return A new list of CountryData in country id order.
+     */
+    public List<CountryData> getCountryDataList() {
+        List<CountryData> countryDataList = new ArrayList<>(countryNames.length);
+        for (int countryId = 0; countryId < countryNames.length; countryId++) {
+            if (countryRows[countryId] > 0) {
+                countryDataList.add(getCountryData(countryId));
+            }
+        }
+        return countryDataList;
+    }
+}
@@ -0,0 +1,109 @@
+package com.osler.analysers.data;
+
+import java.util.Locale;
+
+/**
+ * Alert is a row of a site that an AlertRule picked out, e.g. because its positive percentage
+ * spiked. Alerts are immutable, so they can be handed to any thread.
+ */
+public final class Alert {
+    private final String rule;
+    private final String country;
+    private final String site;
+    private final int siteId;
+    private final long endDate;
+    private final int tested;
+    private final int positive;
+    private final double baseline;
+    private final double score;
+
+    /**
+     * Creates an alert.
+     *
+     * @param rule     The name of the rule.
+     * @param country  The name of the site's country.
+     * @param site     The site name.
+     * @param siteId   The site id in the store the row is in.
+     * @param endDate  The end of the row's measurement, in epoch seconds.
+     * @param tested   The number of tests of the row.
+     * @param positive The number of positive tests of the row.
+     * @param baseline The percentage the rule expected, or NaN.
+     * @param score    The score the rule gave the row.
+     */
+    public Alert(String rule, String country, String site, int siteId, long endDate, int tested, int positive,
+                 double baseline, double score) {
+        this.rule = rule;
+        this.country = country;
+        this.site = site;
+        this.siteId = siteId;
+        this.endDate = endDate;
+        this.tested = tested;
+        this.positive = positive;
+        this.baseline = baseline;
+        this.score = score;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public String getCountry() {
+        return country;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public int getSiteId() {
+        return siteId;
+    }
+
+    public long getEndDate() {
+        return endDate;
+    }
+
+    public int getTested() {
+        return tested;
+    }
+
+    public int getPositive() {
+        return positive;
+    }
+
+    /**
+     * Returns the positive percentage of the row.
+     *
+     * @return The percentage.
+     */
+    public double getPercent() {
+        return tested > 0 ? positive * 100.0 / tested : 0;
+    }
+
+    /**
+     * Returns the percentage the rule expected of the row, e.g. the site's recent mean.
+     *
+     * @return The percentage, or NaN if the rule had no expectation.
+     */
+    public double getBaseline() {
+        return baseline;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Returns the alert as one line, e.g.
+     * "Kenya / Kisumu 2023-02-01: 62.0% (62/100), usually 12.3%, z-score 4.10".
+     */
+    @Override
+    public String toString() {
+        String text = String.format(Locale.US, "%s / %s %s: %.1f%% (%d/%d)", country, site,
+                ReportOutput.formatDate(endDate), getPercent(), positive, tested);
+        if (!Double.isNaN(baseline)) {
+            text += String.format(Locale.US, ", usually %.1f%%", baseline);
+        }
+        return text + String.format(Locale.US, ", %s %.2f", rule, score);
+    }
+}
@@ -0,0 +1,240 @@
+package com.osler.analysers.data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * AlertEngine runs a set of AlertRules over the rows of a SiteDataStore as rows are added, so
+ * sites whose positive rate spikes are picked out without anyone browsing through thousands of
+ * sites. Each call to {@link #evaluate(SiteDataStore)} only evaluates the rows added since the
+ * previous call, in constant time per row and rule, and gives the rules the rows of a site in end
+ * date order, whatever their order in the store.
+ *
+ * <p>The rules keep their state by site name rather than by the site ids of a store, so a store
+ * that is replaced, or has rows removed, e.g. by DirectoryIngest after a file changed, does not
+ * reset them: its rows are scanned again, and only those that end after every row of their site
+ * evaluated before, or on the same day as the latest of them without having been evaluated, are
+ * given to the rules. Rebuilding therefore neither raises the same alerts again nor adds rows to
+ * the baselines twice. Rows that arrive late, i.e. end before a row of their site evaluated
+ * before, are skipped the same way, as adding them would put the baselines out of date order.</p>
+ *
+ * <p>Like the store, the engine has a single writer. The recent alerts may be read from any
+ * thread.</p>
+ */
+public class AlertEngine {
+    /**
+     * The number of recent alerts kept for reports.
+     */
+    static final int MAX_RECENT_ALERTS = 200;
+
+    /**
+     * The number of tests a row needs to be considered by the default rules.
+     */
+    static final int DEFAULT_MIN_TESTED = 20;
+
+    private final AlertRule[] rules;
+    private SiteDataStore store;
+    private long removedRows;
+    private int evaluatedRows;
+
+    /**
+     * The names of the sites evaluated so far. Their ids are the site ids the rules are given.
+     */
+    private NameTable countries = new NameTable();
+    private NameTable sites = new NameTable();
+
+    /**
+     * The site ids of the rules by site id of the current store, or -1 where not known yet.
+     */
+    private int[] siteIds = new int[0];
+
+    /**
+     * The latest end date of the rows of every site evaluated so far, by site id of the rules.
+     */
+    private long[] latestEndDates = new long[0];
+
+    /**
+     * The number of rows evaluated so far that end on the latest end date of their site, by site
+     * id of the rules. A scan of the rows again skips that many of them.
+     */
+    private int[] latestEndDateRows = new int[0];
+
+    private final ArrayDeque<Alert> recent = new ArrayDeque<>();
+    private volatile List<Alert> recentAlerts = Collections.emptyList();
+
+    /**
+     * Creates an engine running the given rules.
+     *
+     * @param rules The rules, in the order their alerts of the same row are listed.
+     */
+    public AlertEngine(AlertRule... rules) {
+        this.rules = rules.clone();
+    }
+
+    /**
+     * withDefaultRules method creates an engine with the rules the app uses: rows above
+     * EntityDisplay.HIGH_PERCENT, rows at least 3 standard deviations above the recent rows of
+     * their site, and a CUSUM of the z-scores for a smaller rise that lasts. The baselines weigh
+     * the newest row by 0.1, i.e. they mostly follow the last 10 to 20 rows of a site, and a site
+     * needs 10 rows before its baseline is used.
+     *
+     * @return The engine.
+     */
+    public static AlertEngine withDefaultRules() {
+        return new AlertEngine(new ThresholdRule(EntityDisplay.HIGH_PERCENT, DEFAULT_MIN_TESTED),
+                new ZScoreRule(0.1, 3, 10, DEFAULT_MIN_TESTED),
+                new CusumRule(0.1, 0.5, 5, 10, DEFAULT_MIN_TESTED));
+    }
+
+    /**
+     * evaluate method runs the rules over the rows added to the store since the last call, or over
+     * all the rows of a store that is not the store of the last call or had rows removed since,
+     * skipping the rows that end before a row of their site evaluated before, and those evaluated
+     * before that end on the same day as the latest of them.
+     *
+     * @param store The rows.
+     * @return The new alerts, in end date order.
+     */
+    public List<Alert> evaluate(SiteDataStore store) {
+        int[] seenLatestRows = null;
+        if (store != this.store || store.getRemovedRows() != removedRows || store.size() < evaluatedRows) {
+            // The rows are scanned again, the rules keep the state of every site
+            if (this.store == null || store.getSites() != this.store.getSites()) {
+                siteIds = new int[0];
+            }
+            this.store = store;
+            removedRows = store.getRemovedRows();
+            evaluatedRows = 0;
+            seenLatestRows = latestEndDateRows.clone();
+        }
+        int[] storeSiteIds = store.siteIdColumn();
+        int[] tested = store.testedColumn();
+        int[] positive = store.positiveColumn();
+        long[] endDates = store.endDateColumn();
+        int rows = store.size();
+
+        // Step 1: Pick the rows not ending before a row of their site evaluated before, and not evaluated yet
+        int[] newRows = new int[rows - evaluatedRows];
+        int count = 0;
+        boolean ordered = true;
+        for (int row = evaluatedRows; row < rows; row++) {
+            int siteId = siteId(store, storeSiteIds[row]);
+            if (endDates[row] < latestEndDates[siteId]) {
+                continue;
+            }
+            if (endDates[row] == latestEndDates[siteId] && seenLatestRows != null
+                    && siteId < seenLatestRows.length && seenLatestRows[siteId] > 0) {
+                // Evaluated before this scan
+                seenLatestRows[siteId]--;
+                continue;
+            }
+            ordered &= count == 0 || endDates[newRows[count - 1]] <= endDates[row];
+            newRows[count++] = row;
+        }
+        evaluatedRows = rows;
+
+        // Step 2: Order them by end date, keeping the store order of rows ending together
+        if (!ordered) {
+            TimeWindowIndex.sortRows(newRows, 0, count, endDates, new int[newRows.length]);
+        }
+
+        // Step 3: Run the rules over them
+        List<Alert> alerts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int row = newRows[i];
+            int storeSiteId = storeSiteIds[row];
+            int siteId = siteIds[storeSiteId];
+            if (endDates[row] == latestEndDates[siteId]) {
+                latestEndDateRows[siteId]++;
+            } else {
+                latestEndDates[siteId] = endDates[row];
+                latestEndDateRows[siteId] = 1;
+            }
+            for (AlertRule rule : rules) {
+                double baseline = rule.getBaseline(siteId);
+                double score = rule.evaluate(siteId, tested[row], positive[row]);
+                if (!Double.isNaN(score)) {
+                    alerts.add(new Alert(rule.getName(), store.getCountries().getName(store.getCountryId(row)),
+                            store.getSites().getName(storeSiteId), storeSiteId, endDates[row], tested[row],
+                            positive[row], baseline, score));
+                }
+            }
+        }
+
+        if (!alerts.isEmpty()) {
+            for (Alert alert : alerts) {
+                if (recent.size() == MAX_RECENT_ALERTS) {
+                    recent.removeFirst();
+                }
+                recent.addLast(alert);
+            }
+            recentAlerts = Collections.unmodifiableList(new ArrayList<>(recent));
+        }
+        return alerts;
+    }
+
+    /**
+     * Returns the number of rows of the last store evaluated.
+     *
+     * @return The number of rows.
+     */
+    public int getRowCount() {
+        return evaluatedRows;
+    }
+
+    /**
+     * Returns the most recent alerts, up to MAX_RECENT_ALERTS, oldest first.
+     *
+     * @return An unmodifiable list of alerts.
+     */
+    public List<Alert> getRecentAlerts() {
+        return recentAlerts;
+    }
+
+    /**
+     * reset method clears the state of every site, so the rows of the next store are all
+     * evaluated as if the engine were new. The recent alerts are kept.
+     */
+    public void reset() {
+        for (AlertRule rule : rules) {
+            rule.reset();
+        }
+        countries = new NameTable();
+        sites = new NameTable();
+        store = null;
+        evaluatedRows = 0;
+        siteIds = new int[0];
+        latestEndDates = new long[0];
+        latestEndDateRows = new int[0];
+    }
+
+    /**
+     * siteId method returns the site id of the rules for a site id of the store, matching the
+     * site by its name and the name of its country the first time it is seen.
+     */
+    private int siteId(SiteDataStore store, int storeSiteId) {
+        if (storeSiteId >= siteIds.length) {
+            int previous = siteIds.length;
+            siteIds = Arrays.copyOf(siteIds, Math.max(64, Math.max(previous * 2, storeSiteId + 1)));
+            Arrays.fill(siteIds, previous, siteIds.length, -1);
+        }
+        int siteId = siteIds[storeSiteId];
+        if (siteId < 0) {
+            NameTable storeSites = store.getSites();
+            int countryId = countries.intern(NameTable.NO_SCOPE,
+                    store.getCountries().getName(storeSites.getScope(storeSiteId)));
+            siteId = sites.intern(countryId, storeSites.getName(storeSiteId));
+            siteIds[storeSiteId] = siteId;
+            if (siteId >= latestEndDates.length) {
+                int previous = latestEndDates.length;
+                latestEndDates = Arrays.copyOf(latestEndDates, Math.max(64, Math.max(previous * 2, siteId + 1)));
+                Arrays.fill(latestEndDates, previous, latestEndDates.length, Long.MIN_VALUE);
+                latestEndDateRows = Arrays.copyOf(latestEndDateRows, latestEndDates.length);
+            }
+        }
+        return siteId;
+    }
+}
@@ -0,0 +1,44 @@
+package com.osler.analysers.data;
+
+/**
+ * AlertRule decides whether a row of a site is an alert. Rules are given the rows of every site in
+ * end date order, and keep whatever they need to know about the earlier rows of a site as running
+ * state indexed by site id, so evaluating a row takes constant time however many rows and sites
+ * came before it. AlertEngine runs the rules over the rows as they are added.
+ *
+ * <p>Like the stores they watch, rules have a single writer.</p>
+ */
+public interface AlertRule {
+
+    /**
+     * Returns the name of the rule, as shown in alerts.
+     *
+     * @return The name, e.g. "z-score".
+     */
+    String getName();
+
+    /**
+     * Returns the positive percentage the rule expects of the next row of a site.
+     *
+     * @param siteId The site id.
+     * @return The expected percentage, or NaN if the rule has not seen enough rows of the site.
+     */
+    double getBaseline(int siteId);
+
+    /**
+     * Called with the next row of a site, after getBaseline. The row is added to the running
+     * state of the site whether or not it is an alert.
+     *
+     * @param siteId   The site id.
+     * @param tested   The number of tests of the row.
+     * @param positive The number of positive tests of the row.
+     * @return The score of the row if it is an alert, or NaN if it is not.
+     */
+    double evaluate(int siteId, int tested, int positive);
+
+    /**
+     * Called by {@link AlertEngine#reset()} before the rows are given again from the first one.
+     * The running state of every site is cleared.
+     */
+    void reset();
+}
@@ -0,0 +1,321 @@
+package com.osler.analysers.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+/**
+ * AnalysisPipeline runs the whole analysis outside the app: it parses one or more CSV inputs,
+ * drops the rows of sites whose calibration had expired, totals what is left and hands the result
+ * to its ResultSinks. Inputs can be StreamSources, so they can be resources or any other byte
+ * stream, or files.
+ *
+ * <p>Every StreamSource is parsed on the Executor into a store of its own, so several inputs are
+ * read in parallel. Files are memory-mapped and split into a few chunks per thread of the
+ * aggregation pool with MappedCsvFile, so a single large file is parsed in parallel too. The
+ * stores are then merged in the order of the inputs and chunks, so the rows, ids and diagnostics
+ * come out exactly as a sequential parse would produce them, whichever task finished first.</p>
+ */
+public class AnalysisPipeline {
+    /**
+     * The Executor the inputs are parsed on.
+     */
+    private final Executor executor;
+
+    /**
+     * The pool the totals are summed on once the inputs are merged.
+     */
+    private final ForkJoinPool aggregationPool;
+
+    /**
+     * The number of chunks per thread a file is split into, so threads that finish early can take
+     * over the remaining chunks.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final List<String> inputNames = new ArrayList<>();
+    private final List<StreamSource> inputs = new ArrayList<>();
+    private final List<File> inputFiles = new ArrayList<>();
+    private final List<ResultSink> sinks = new ArrayList<>();
+    private StreamSource expirySource;
+
+    /**
+     * Creates a pipeline with no inputs or sinks.
+     *
+     * @param executor        The Executor to parse the inputs on. It may run them concurrently.
+     * @param aggregationPool The pool to sum the merged rows on.
+     */
+    public AnalysisPipeline(Executor executor, ForkJoinPool aggregationPool) {
+        this.executor = executor;
+        this.aggregationPool = aggregationPool;
+    }
+
+    /**
+     * addInput method adds a CSV in the Analysers format to the inputs.
+     *
+     * @param name   The name diagnostics refer to the input by, e.g. its file name.
+     * @param source The source of the CSV.
+     */
+    public void addInput(String name, StreamSource source) {
+        inputNames.add(name);
+        inputs.add(source);
+        inputFiles.add(null);
+    }
+
+    /**
+     * addInput method adds a CSV file in the Analysers format to the inputs, to be parsed in
+     * parallel chunks. The file must not hold line breaks inside quoted fields. Files in the
+     * BinaryRowFormat are read whole instead.
+     *
+     * @param file The CSV file. Diagnostics refer to it by its name.
+     */
+    public void addInput(File file) {
+        inputNames.add(file.getName());
+        inputs.add(null);
+        inputFiles.add(file);
+    }
+
+    /**
+     * setExpirySource method sets the calibration expiry file the rows are checked against.
+     * Without one, no site expires.
+     *
+     * @param expirySource The source of the calibration expiry information, or null.
+     */
+    public void setExpirySource(StreamSource expirySource) {
+        this.expirySource = expirySource;
+    }
+
+    /**
+     * addSink method adds a ResultSink to call with the result of each run.
+     *
+     * @param sink The sink.
+     */
+    public void addSink(ResultSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * run method parses every input, totals the rows and passes the complete result to each sink.
+     *
+     * @return The complete LoadState, including the merged store.
+     * @throws IOException If an input cannot be read or a sink fails.
+     */
+    public LoadState run() throws IOException {
+        // Step 1: Read the expiry file, shared read-only by all the parsing tasks
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        final CalibrationIndex calibrationIndex = expirySource != null
+                ? DataLoader.readExpiry(expirySource, diagnostics) : new CalibrationIndex();
+
+        // Step 2: Parse every input, or every chunk of an input file, into a store of its own
+        long parseStart = Metrics.get().begin(Metrics.Stage.PARSE);
+        List<FutureTask<Partial>> tasks = new ArrayList<>();
+        List<Boolean> startsInput = new ArrayList<>();
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                final String name = inputNames.get(i);
+                final StreamSource source = inputs.get(i);
+                if (source != null) {
+                    startsInput.add(true);
+                    submit(tasks, new Callable<Partial>() {
+                        @Override
+                        public Partial call() throws IOException {
+                            return parse(name, source, calibrationIndex);
+                        }
+                    });
+                    continue;
+                }
+                final File inputFile = inputFiles.get(i);
+                if (BinaryRowFormat.isBinary(inputFile)) {
+                    // Binary files decode faster than they could be split, read them whole
+                    startsInput.add(true);
+                    submit(tasks, new Callable<Partial>() {
+                        @Override
+                        public Partial call() throws IOException {
+                            return parse(name, fileSource(inputFile), calibrationIndex);
+                        }
+                    });
+                    continue;
+                }
+                final MappedCsvFile file = MappedCsvFile.split(inputFile,
+                        aggregationPool.getParallelism() * CHUNKS_PER_THREAD);
+                for (int chunk = 0; chunk < file.getChunkCount(); chunk++) {
+                    final int index = chunk;
+                    startsInput.add(chunk == 0);
+                    submit(tasks, new Callable<Partial>() {
+                        @Override
+                        public Partial call() throws IOException {
+                            return parseChunk(name, file, index, calibrationIndex);
+                        }
+                    });
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            cancel(tasks);
+            Metrics.get().end(Metrics.Stage.PARSE, parseStart);
+            throw e;
+        }
+
+        // Step 3: Merge the stores in input and chunk order
+        SiteDataStore store = null;
+        long bytesRead = 0;
+        long expiredRows = 0;
+        long lineOffset = 0;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                Partial partial = await(tasks.get(i));
+                if (store == null) {
+                    store = partial.store;
+                } else {
+                    store.addAll(partial.store);
+                }
+                if (startsInput.get(i)) {
+                    lineOffset = 0;
+                }
+                diagnostics.addAll(partial.diagnostics, lineOffset);
+                lineOffset += partial.lineBreaks;
+                bytesRead += partial.bytesRead;
+                expiredRows += partial.expiredRows;
+            }
+        } finally {
+            cancel(tasks);
+            Metrics.get().end(Metrics.Stage.PARSE, parseStart);
+        }
+        if (store == null) {
+            store = new SiteDataStore();
+        }
+        store.trimToSize();
+        DataLoader.countRows(store.size(), expiredRows, diagnostics.getMalformedCount(), bytesRead);
+
+        // Step 4: Sum the totals and hand the result to the sinks
+        AggregateEngine engine = new AggregateEngine(store, new ParallelAggregator(aggregationPool));
+        AggregateSnapshot aggregates;
+        long aggregateStart = Metrics.get().begin(Metrics.Stage.AGGREGATE);
+        try {
+            aggregates = engine.snapshot();
+        } finally {
+            Metrics.get().end(Metrics.Stage.AGGREGATE, aggregateStart);
+        }
+        LoadState result = LoadState.of(aggregates, bytesRead, bytesRead, diagnostics.getMalformedCount(),
+                diagnostics.getMessages(), expiredRows, true, store);
+        for (ResultSink sink : sinks) {
+            sink.accept(result);
+        }
+        return result;
+    }
+
+    private void submit(List<FutureTask<Partial>> tasks, Callable<Partial> callable) {
+        FutureTask<Partial> task = new FutureTask<>(callable);
+        tasks.add(task);
+        executor.execute(task);
+    }
+
+    private static StreamSource fileSource(final File file) {
+        return new StreamSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    private static void cancel(List<FutureTask<Partial>> tasks) {
+        for (FutureTask<Partial> task : tasks) {
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * parse method reads one input into a new store, skipping expired rows.
+     */
+    private static Partial parse(String name, StreamSource source, CalibrationIndex calibrationIndex)
+            throws IOException {
+        SiteDataStore store = new SiteDataStore();
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        ExpiryFilter expiryFilter = new ExpiryFilter(calibrationIndex, store.getSites(), store);
+        DataLoader.CountingInputStream inputStream = new DataLoader.CountingInputStream(source.open());
+        try {
+            BinaryRowFormat.parse(inputStream, name, store.getCountries(), store.getSites(), diagnostics, expiryFilter);
+        } finally {
+            inputStream.close();
+        }
+        // A whole input, so no later chunk needs its line count
+        return new Partial(store, diagnostics, expiryFilter.getExpiredRows(), inputStream.getCount(), 0);
+    }
+
+    /**
+     * parseChunk method reads one chunk of a file into a new store, skipping expired rows. Only
+     * the first chunk may start with the header.
+     */
+    private static Partial parseChunk(String name, MappedCsvFile file, int chunk, CalibrationIndex calibrationIndex)
+            throws IOException {
+        SiteDataStore store = new SiteDataStore();
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        ExpiryFilter expiryFilter = new ExpiryFilter(calibrationIndex, store.getSites(), store);
+        CsvParser parser = new CsvParser(store.getCountries(), store.getSites(), diagnostics);
+        InputStream inputStream = file.open(chunk);
+        try {
+            if (chunk == 0) {
+                parser.parse(inputStream, name, expiryFilter);
+            } else {
+                parser.parseChunk(file.getFirstLine(), inputStream, name, expiryFilter);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return new Partial(store, diagnostics, expiryFilter.getExpiredRows(),
+                file.getChunkEnd(chunk) - file.getChunkStart(chunk), parser.getLineBreaks());
+    }
+
+    /**
+     * await method waits for a parsing task, rethrowing what made it fail.
+     */
+    private static Partial await(FutureTask<Partial> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Partial is the result of parsing one input.
+     */
+    private static class Partial {
+        final SiteDataStore store;
+        final ParseDiagnostics diagnostics;
+        final long expiredRows;
+        final long bytesRead;
+        final long lineBreaks;
+
+        Partial(SiteDataStore store, ParseDiagnostics diagnostics, long expiredRows, long bytesRead,
+                long lineBreaks) {
+            this.store = store;
+            this.diagnostics = diagnostics;
+            this.expiredRows = expiredRows;
+            this.bytesRead = bytesRead;
+            this.lineBreaks = lineBreaks;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+
+/**
+ * BinaryReportFormat writes a report in a compact binary form for tools that load it in bulk.
+ * Numbers are unsigned LEB128 varints and names are a varint UTF-8 byte length followed by the
+ * bytes:
+ *
+ * <pre>
+ * header:  "ANRR" version granularity        (granularity is the Granularity ordinal)
+ * entry:   1 country [site] tested positive  (site only for SITE)
+ *          1 start length tested positive    (time buckets; start is zigzag encoded)
+ * trailer: 0 entryCount
+ * </pre>
+ *
+ * <p>A reader must check that the trailer is present and matches the entries read, so a
+ * truncated report is not mistaken for a complete one.</p>
+ */
+public class BinaryReportFormat implements ReportFormat {
+    private static final byte[] MAGIC = ReportOutput.ascii("ANRR");
+    private static final int VERSION = 1;
+    private static final int ENTRY = 1;
+    private static final int TRAILER = 0;
+
+    @Override
+    public String getExtension() {
+        return "anrr";
+    }
+
+    @Override
+    public void begin(ReportOutput out, Granularity granularity) throws IOException {
+        out.putBytes(MAGIC);
+        out.putByte(VERSION);
+        out.putByte(granularity.ordinal());
+    }
+
+    @Override
+    public void writeCountry(ReportOutput out, String country, long tested, long positive) throws IOException {
+        out.putByte(ENTRY);
+        putName(out, country);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void writeSite(ReportOutput out, String country, String site, long tested, long positive)
+            throws IOException {
+        out.putByte(ENTRY);
+        putName(out, country);
+        putName(out, site);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void writeBucket(ReportOutput out, long start, long end, long tested, long positive) throws IOException {
+        out.putByte(ENTRY);
+        out.putVarLong((start << 1) ^ (start >> 63));
+        out.putVarLong(end - start + 1);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void end(ReportOutput out, int entryCount) throws IOException {
+        out.putByte(TRAILER);
+        out.putVarLong(entryCount);
+    }
+
+    private static void writeTotals(ReportOutput out, long tested, long positive) throws IOException {
+        out.putVarLong(tested);
+        out.putVarLong(positive);
+    }
+
+    private static void putName(ReportOutput out, String name) throws IOException {
+        out.putVarLong(ReportOutput.utf8Length(name));
+        out.putString(name);
+    }
+}
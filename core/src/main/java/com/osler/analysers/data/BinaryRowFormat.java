@@ -0,0 +1,509 @@
+package com.osler.analysers.data;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * BinaryRowFormat reads and writes the Analysers rows in a compact binary form, which loads many
+ * times faster than the CSV and takes a fraction of its size. Upstream systems can ship files
+ * converted with {@link #convert(InputStream, String, OutputStream, ParseDiagnostics)}, and
+ * {@link #parse(InputStream, String, NameTable, NameTable, ParseDiagnostics, CsvParser.RowHandler)}
+ * reads either format, so the loaders accept both.
+ *
+ * <p>Layout, version 1. A varint is an unsigned LEB128 number: 7 bits per byte, least significant
+ * group first, with the high bit set on every byte but the last. A zigzag varint maps a signed
+ * number n to (n &lt;&lt; 1) ^ (n &gt;&gt; 63) first, so small negative numbers stay short.</p>
+ *
+ * <pre>
+ * file      := magic "ANRB" (4 bytes), version (1 byte), block*
+ * block     := type (1 byte), payload length (varint), payload
+ * COUNTRIES := type 1: count (varint), then per name: length (varint), UTF-8 bytes
+ * SITES     := type 2: count (varint), then per name: country id (varint), length (varint), UTF-8 bytes
+ * ROWS      := type 3: count (varint), then per row: country id, site id, tested, positive (varints),
+ *              start date minus the previous row's start date (zigzag varint, the first row of a
+ *              block is relative to 0), end date minus start date (zigzag varint)
+ * END       := type 0: total row count (varint), and nothing may follow
+ * </pre>
+ *
+ * <p>Names are dictionary-encoded: each COUNTRIES or SITES block gives the next ids, in order,
+ * starting from 0, and a block only refers to ids given before it. Readers skip blocks of unknown
+ * types, so later versions can add blocks without breaking older readers. A file without an END
+ * block, or whose row count does not match it, is truncated and rejected.</p>
+ */
+public class BinaryRowFormat {
+    /**
+     * The first bytes of every file, "ANRB".
+     */
+    private static final byte[] MAGIC = {'A', 'N', 'R', 'B'};
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int END = 0;
+    private static final int COUNTRIES = 1;
+    private static final int SITES = 2;
+    private static final int ROWS = 3;
+
+    /**
+     * The payload size after which the writer closes a block of rows.
+     */
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The largest block a reader accepts, so a corrupt length cannot exhaust memory.
+     */
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    private BinaryRowFormat() {
+    }
+
+    /**
+     * isBinary method checks whether a file starts with the binary format's magic.
+     *
+     * @param file The file to check.
+     * @return true if the file is in the binary format.
+     * @throws IOException If the file cannot be read.
+     */
+    public static boolean isBinary(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            return readFully(in, magic, MAGIC.length) == MAGIC.length && Arrays.equals(magic, MAGIC);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * startsWithMagic method checks whether the first bytes of a stream are the binary format's
+     * magic.
+     *
+     * @param bytes The first bytes read from the stream.
+     * @return true if the stream is in the binary format.
+     */
+    public static boolean startsWithMagic(byte[] bytes) {
+        return bytes.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC);
+    }
+
+    /**
+     * parse method reads the rows of a stream in either format: the binary format when the stream
+     * starts with its magic, the CSV otherwise. The stream is not closed.
+     *
+     * @param in          The stream.
+     * @param sourceName  The name of the source, used in diagnostics and errors.
+     * @param countries   The NameTable to intern country names into.
+     * @param sites       The NameTable to intern site names into.
+     * @param diagnostics Where malformed CSV rows are reported.
+     * @param handler     The RowHandler receiving the rows.
+     * @return The number of rows passed to the handler.
+     * @throws IOException If the stream cannot be read, or a binary file is corrupt or truncated.
+     */
+    public static long parse(InputStream in, String sourceName, NameTable countries, NameTable sites,
+                             ParseDiagnostics diagnostics, CsvParser.RowHandler handler) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int n = readFully(pushback, magic, MAGIC.length);
+        if (n > 0) {
+            pushback.unread(magic, 0, n);
+        }
+        if (n == MAGIC.length && Arrays.equals(magic, MAGIC)) {
+            return read(pushback, sourceName, countries, sites, handler);
+        }
+        return new CsvParser(countries, sites, diagnostics).parse(pushback, sourceName, handler);
+    }
+
+    /**
+     * read method reads a file in the binary format, interning its names into the given tables
+     * and passing every row to the handler. The stream is not closed.
+     *
+     * @param in         The stream, positioned at the magic.
+     * @param sourceName The name of the source, used in errors.
+     * @param countries  The NameTable to intern country names into.
+     * @param sites      The NameTable to intern site names into.
+     * @param handler    The RowHandler receiving the rows.
+     * @return The number of rows passed to the handler.
+     * @throws IOException If the stream cannot be read, or the file is corrupt or truncated.
+     */
+    public static long read(InputStream in, String sourceName, NameTable countries, NameTable sites,
+                            CsvParser.RowHandler handler) throws IOException {
+        // Step 1: Check the magic and version
+        byte[] header = new byte[MAGIC.length + 1];
+        if (readFully(in, header, header.length) != header.length
+                || !Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+            throw new IOException(sourceName + ": not in the binary row format");
+        }
+        if (header[MAGIC.length] != FORMAT_VERSION) {
+            throw new IOException(sourceName + ": unsupported binary format version " + header[MAGIC.length]);
+        }
+
+        // Step 2: Read the blocks, mapping the file's name ids to ids in the tables
+        int[] countryIds = new int[64];
+        int countryCount = 0;
+        int[] siteIds = new int[256];
+        int siteCount = 0;
+        byte[] payload = new byte[BLOCK_SIZE];
+        long rows = 0;
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Binary read cancelled");
+            }
+            int type = in.read();
+            if (type < 0) {
+                throw new EOFException(sourceName + ": truncated, no end block");
+            }
+            long length = readVarint(in, sourceName);
+            if (length < 0 || length > MAX_BLOCK_SIZE) {
+                throw new IOException(sourceName + ": block of " + length + " bytes is too large");
+            }
+            if (payload.length < length) {
+                payload = new byte[(int) length];
+            }
+            if (readFully(in, payload, (int) length) != length) {
+                throw new EOFException(sourceName + ": truncated block");
+            }
+            Decoder decoder = new Decoder(payload, (int) length, sourceName);
+
+            switch (type) {
+                case END:
+                    if (decoder.varint() != rows) {
+                        throw new IOException(sourceName + ": row count does not match the end block");
+                    }
+                    return rows;
+                case COUNTRIES: {
+                    int count = decoder.count();
+                    for (int i = 0; i < count; i++) {
+                        if (countryCount == countryIds.length) {
+                            countryIds = Arrays.copyOf(countryIds, countryCount * 2);
+                        }
+                        countryIds[countryCount++] = decoder.intern(countries, NameTable.NO_SCOPE);
+                    }
+                    break;
+                }
+                case SITES: {
+                    int count = decoder.count();
+                    for (int i = 0; i < count; i++) {
+                        int countryId = decoder.id(countryCount);
+                        if (siteCount == siteIds.length) {
+                            siteIds = Arrays.copyOf(siteIds, siteCount * 2);
+                        }
+                        siteIds[siteCount++] = decoder.intern(sites, countryIds[countryId]);
+                    }
+                    break;
+                }
+                case ROWS: {
+                    int count = decoder.count();
+                    long startDate = 0;
+                    for (int i = 0; i < count; i++) {
+                        int countryId = decoder.id(countryCount);
+                        int siteId = decoder.id(siteCount);
+                        int tested = decoder.intValue();
+                        int positive = decoder.intValue();
+                        startDate += decoder.zigzag();
+                        long endDate = startDate + decoder.zigzag();
+                        handler.onRow(countryIds[countryId], siteIds[siteId], tested, positive, startDate, endDate);
+                    }
+                    rows += count;
+                    break;
+                }
+                default:
+                    // A block from a later version, skipped
+                    break;
+            }
+        }
+    }
+
+    /**
+     * convert method reads a CSV and writes its well-formed rows in the binary format. Malformed
+     * rows are reported to the diagnostics and left out.
+     *
+     * @param csv         The CSV stream. It is not closed.
+     * @param sourceName  The name of the CSV, used in diagnostics.
+     * @param out         The stream to write the binary file to. It is flushed, not closed.
+     * @param diagnostics Where malformed rows are reported.
+     * @return The number of rows written.
+     * @throws IOException If the CSV cannot be read or the output cannot be written.
+     */
+    public static long convert(InputStream csv, String sourceName, OutputStream out, ParseDiagnostics diagnostics)
+            throws IOException {
+        NameTable countries = new NameTable();
+        NameTable sites = new NameTable();
+        Writer writer = new Writer(out, countries, sites);
+        new CsvParser(countries, sites, diagnostics).parse(csv, sourceName, writer);
+        writer.close();
+        return writer.getRowCount();
+    }
+
+    /**
+     * Writer writes rows in the binary format as a RowHandler, so it can be fed by a CsvParser or
+     * from a SiteDataStore. Names are written from the given tables the first time a row needs
+     * them. Closing the writer writes the end block and flushes the stream without closing it.
+     */
+    public static class Writer implements CsvParser.RowHandler, Closeable {
+        private final OutputStream out;
+        private final NameTable countries;
+        private final NameTable sites;
+
+        private final Encoder rows = new Encoder();
+        private final Encoder block = new Encoder();
+        private int blockRows;
+        private long previousStart;
+        private int writtenCountries;
+        private int writtenSites;
+        private long rowCount;
+        private IOException error;
+
+        /**
+         * Creates a writer and writes the file header.
+         *
+         * @param out       The stream to write to.
+         * @param countries The NameTable the rows' country ids refer to.
+         * @param sites     The NameTable the rows' site ids refer to.
+         * @throws IOException If the header cannot be written.
+         */
+        public Writer(OutputStream out, NameTable countries, NameTable sites) throws IOException {
+            this.out = out;
+            this.countries = countries;
+            this.sites = sites;
+            out.write(MAGIC);
+            out.write(FORMAT_VERSION);
+        }
+
+        @Override
+        public void onRow(int countryId, int siteId, int tested, int positive, long startDate, long endDate) {
+            rows.putVarint(countryId);
+            rows.putVarint(siteId);
+            rows.putVarint(tested);
+            rows.putVarint(positive);
+            rows.putZigzag(startDate - previousStart);
+            rows.putZigzag(endDate - startDate);
+            previousStart = startDate;
+            blockRows++;
+            rowCount++;
+            if (rows.length >= BLOCK_SIZE) {
+                try {
+                    flushRows();
+                } catch (IOException e) {
+                    // RowHandler cannot throw, the error is rethrown by close
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * flushRows method writes the names interned since the last block, then the pending rows.
+         */
+        private void flushRows() throws IOException {
+            if (error != null) {
+                return;
+            }
+            if (writtenCountries < countries.size()) {
+                block.length = 0;
+                block.putVarint(countries.size() - writtenCountries);
+                for (int id = writtenCountries; id < countries.size(); id++) {
+                    block.putString(countries.getName(id));
+                }
+                writeBlock(COUNTRIES, block);
+                writtenCountries = countries.size();
+            }
+            if (writtenSites < sites.size()) {
+                block.length = 0;
+                block.putVarint(sites.size() - writtenSites);
+                for (int id = writtenSites; id < sites.size(); id++) {
+                    block.putVarint(sites.getScope(id));
+                    block.putString(sites.getName(id));
+                }
+                writeBlock(SITES, block);
+                writtenSites = sites.size();
+            }
+            if (blockRows > 0) {
+                block.length = 0;
+                block.putVarint(blockRows);
+                block.putBytes(rows.data, 0, rows.length);
+                writeBlock(ROWS, block);
+                rows.length = 0;
+                blockRows = 0;
+                previousStart = 0;
+            }
+        }
+
+        private void writeBlock(int type, Encoder payload) throws IOException {
+            out.write(type);
+            int length = payload.length;
+            while ((length & ~0x7f) != 0) {
+                out.write((length & 0x7f) | 0x80);
+                length >>>= 7;
+            }
+            out.write(length);
+            out.write(payload.data, 0, payload.length);
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushRows();
+            if (error != null) {
+                throw error;
+            }
+            block.length = 0;
+            block.putVarint(rowCount);
+            writeBlock(END, block);
+            out.flush();
+        }
+    }
+
+    /**
+     * Encoder is a growable byte buffer with the varint encodings of the format.
+     */
+    private static class Encoder {
+        byte[] data = new byte[BLOCK_SIZE + 64];
+        int length;
+
+        void putVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                data[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        void putZigzag(long value) {
+            putVarint((value << 1) ^ (value >> 63));
+        }
+
+        void putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarint(bytes.length);
+            putBytes(bytes, 0, bytes.length);
+        }
+
+        void putBytes(byte[] bytes, int offset, int count) {
+            ensure(count);
+            System.arraycopy(bytes, offset, data, length, count);
+            length += count;
+        }
+
+        private void ensure(int count) {
+            if (length + count > data.length) {
+                data = Arrays.copyOf(data, Math.max(length + count, data.length * 2));
+            }
+        }
+    }
+
+    /**
+     * Decoder reads the varint encodings of the format from a block payload, rejecting values
+     * that run past the end of the block or out of range.
+     */
+    private static class Decoder {
+        private final byte[] data;
+        private final int length;
+        private final String sourceName;
+        private int position;
+
+        Decoder(byte[] data, int length, String sourceName) {
+            this.data = data;
+            this.length = length;
+            this.sourceName = sourceName;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position == length) {
+                    throw new IOException(sourceName + ": varint runs past the end of its block");
+                }
+                byte b = data[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException(sourceName + ": varint is too long");
+        }
+
+        long zigzag() throws IOException {
+            long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int intValue() throws IOException {
+            long value = varint();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IOException(sourceName + ": value out of range");
+            }
+            return (int) value;
+        }
+
+        int count() throws IOException {
+            // Every entry takes at least one byte
+            int count = intValue();
+            if (count > length - position) {
+                throw new IOException(sourceName + ": count does not fit its block");
+            }
+            return count;
+        }
+
+        int id(int limit) throws IOException {
+            long id = varint();
+            if (id < 0 || id >= limit) {
+                throw new IOException(sourceName + ": id " + id + " was not defined");
+            }
+            return (int) id;
+        }
+
+        int intern(NameTable table, int scope) throws IOException {
+            int nameLength = intValue();
+            if (nameLength > length - position) {
+                throw new IOException(sourceName + ": name runs past the end of its block");
+            }
+            int id = table.intern(scope, data, position, nameLength);
+            position += nameLength;
+            return id;
+        }
+    }
+
+    private static long readVarint(InputStream in, String sourceName) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException(sourceName + ": truncated block header");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException(sourceName + ": varint is too long");
+    }
+
+    /**
+     * readFully method reads up to count bytes, stopping early only at the end of the stream.
+     *
+     * @return The number of bytes read.
+     */
+    private static int readFully(InputStream in, byte[] buffer, int count) throws IOException {
+        int total = 0;
+        while (total < count) {
+            int n = in.read(buffer, total, count - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,235 @@
+package com.osler.analysers.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * CalibrationIndex holds the calibration expiry of each site, read from expiry.txt. Every line of
+ * the file holds a site name and an ISO-8601 instant separated by a tab, e.g.
+ * {@code Koudougou<TAB>2021-10-05T16:00:00.000Z}. Site names are matched case-insensitively and
+ * ignoring surrounding whitespace. The instants are parsed once into a primitive long table;
+ * lines that cannot be parsed are reported to ParseDiagnostics and ignored.
+ *
+ * <p>A measurement is only valid if its window ended before the calibration of its site expired.
+ * Sites that are not listed never expire.</p>
+ */
+public class CalibrationIndex {
+    /**
+     * The expiry returned for sites that are not in the index.
+     */
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    /**
+     * Maps a normalized site name to its slot in expiryMillis.
+     */
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    /**
+     * The calibration expiry of each slot, in epoch milliseconds.
+     */
+    private long[] expiryMillis = new long[16];
+
+    /**
+     * Creates an empty index, in which no site ever expires.
+     */
+    public CalibrationIndex() {
+        //
+    }
+
+    /**
+     * parse method reads an expiry file into a new CalibrationIndex. If a site is listed more than
+     * once, its latest expiry is kept.
+     *
+     * @param in          The expiry file stream. It is not closed.
+     * @param sourceName  The name of the file, used in diagnostics.
+     * @param diagnostics Where invalid lines are reported.
+     * @return The parsed index.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static CalibrationIndex parse(InputStream in, String sourceName, ParseDiagnostics diagnostics)
+            throws IOException {
+        CalibrationIndex index = new CalibrationIndex();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        long lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            int separator = line.indexOf('\t');
+            if (separator < 0) {
+                diagnostics.report(sourceName, lineNumber, "expected a site name and a tab-separated expiry date");
+                continue;
+            }
+            String site = normalize(line.substring(0, separator));
+            if (site.isEmpty()) {
+                diagnostics.report(sourceName, lineNumber, "missing site name");
+                continue;
+            }
+            long expiry = parseIsoInstant(line.substring(separator + 1).trim());
+            if (expiry == NO_EXPIRY) {
+                diagnostics.report(sourceName, lineNumber, "invalid ISO-8601 expiry date");
+                continue;
+            }
+            index.put(site, expiry);
+        }
+        return index;
+    }
+
+    /**
+     * getExpiry method returns the calibration expiry of a site.
+     *
+     * @param siteName The site name as it appears in the CSV.
+     * @return The expiry in epoch milliseconds, or NO_EXPIRY if the site is not listed.
+     */
+    public long getExpiry(String siteName) {
+        Integer slot = slots.get(normalize(siteName));
+        return slot == null ? NO_EXPIRY : expiryMillis[slot];
+    }
+
+    /**
+     * isExpired method checks whether a measurement window ended after its site's calibration
+     * expired.
+     *
+     * @param expiry  The site's expiry from getExpiry, in epoch milliseconds.
+     * @param endDate The end of the measurement window in epoch seconds.
+     * @return true if the measurement must not be counted.
+     */
+    public static boolean isExpired(long expiry, long endDate) {
+        return expiry != NO_EXPIRY && endDate > expiry / 1000;
+    }
+
+    /**
+     * Returns the number of distinct sites in the index.
+     *
+     * @return The site count.
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    private void put(String site, long expiry) {
+        Integer slot = slots.get(site);
+        if (slot != null) {
+            expiryMillis[slot] = Math.max(expiryMillis[slot], expiry);
+            return;
+        }
+        int newSlot = slots.size();
+        if (newSlot == expiryMillis.length) {
+            expiryMillis = Arrays.copyOf(expiryMillis, newSlot * 2);
+        }
+        expiryMillis[newSlot] = expiry;
+        slots.put(site, newSlot);
+    }
+
+    /**
+     * normalize method turns a site name into the key used for matching.
+     *
+     * @param siteName The site name.
+     * @return The trimmed, lower-case name.
+     */
+    public static String normalize(String siteName) {
+        return siteName.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * parseIsoInstant method parses an ISO-8601 instant such as 2021-10-05T16:00:00.000Z or
+     * 2021-10-05T18:00:00+02:00. Fractional seconds are optional, and the offset may be Z or
+     * +hh:mm / -hh:mm. java.time is not available on all supported API levels, so the fields are
+     * read directly.
+     *
+     * @param text The text to parse.
+     * @return The instant in epoch milliseconds, or NO_EXPIRY if the text is not a valid instant.
+     */
+    static long parseIsoInstant(String text) {
+        if (text.length() < 20 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T'
+                || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            return NO_EXPIRY;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 7);
+        int day = digits(text, 8, 10);
+        int hour = digits(text, 11, 13);
+        int minute = digits(text, 14, 16);
+        int second = digits(text, 17, 19);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return NO_EXPIRY;
+        }
+
+        int pos = 19;
+        long millis = 0;
+        if (text.charAt(pos) == '.') {
+            int start = ++pos;
+            while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                pos++;
+            }
+            if (pos == start) {
+                return NO_EXPIRY;
+            }
+            // Keep millisecond precision
+            String fraction = (text.substring(start, pos) + "00").substring(0, 3);
+            millis = Integer.parseInt(fraction);
+        }
+
+        long offsetSeconds;
+        if (pos == text.length() - 1 && text.charAt(pos) == 'Z') {
+            offsetSeconds = 0;
+        } else if (pos == text.length() - 6 && (text.charAt(pos) == '+' || text.charAt(pos) == '-')
+                && text.charAt(pos + 3) == ':') {
+            int offsetHours = digits(text, pos + 1, pos + 3);
+            int offsetMinutes = digits(text, pos + 4, pos + 6);
+            if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return NO_EXPIRY;
+            }
+            offsetSeconds = (offsetHours * 3600L + offsetMinutes * 60L) * (text.charAt(pos) == '-' ? -1 : 1);
+        } else {
+            return NO_EXPIRY;
+        }
+
+        long epochSeconds = daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second
+                - offsetSeconds;
+        return epochSeconds * 1000 + millis;
+    }
+
+    private static int digits(String text, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    /**
+     * daysFromCivil method returns the number of days between 1970-01-01 and the given date in the
+     * proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
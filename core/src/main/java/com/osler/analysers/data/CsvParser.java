@@ -0,0 +1,400 @@
+package com.osler.analysers.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * CsvParser is a streaming, byte-level parser for the Analysers CSV
+ * (Country,Site,Tested,Positive,StartDate,EndDate). It reads the InputStream through one fixed
+ * buffer, parses the numbers straight from the bytes and interns country and site names through
+ * NameTables, so a row does not allocate anything once its names have been seen.
+ *
+ * <p>Fields may be quoted, with "" standing for a literal quote inside a quoted field. If the
+ * first line is a header, the columns are located by name, so the column order may change.
+ * Malformed rows are skipped and reported to ParseDiagnostics with their line number.</p>
+ */
+public class CsvParser {
+    /**
+     * RowHandler receives every well-formed row.
+     */
+    public interface RowHandler {
+        /**
+         * Called for each well-formed row, in file order.
+         *
+         * @param countryId The id of the country in the countries NameTable.
+         * @param siteId    The id of the site in the sites NameTable, scoped by countryId.
+         * @param tested    The number of tested cases.
+         * @param positive  The number of positive cases.
+         * @param startDate The start of the measurement window in epoch seconds.
+         * @param endDate   The end of the measurement window in epoch seconds.
+         */
+        void onRow(int countryId, int siteId, int tested, int positive, long startDate, long endDate);
+    }
+
+    /**
+     * The size of the read buffer.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of fields kept per row. Extra fields are ignored.
+     */
+    private static final int MAX_FIELDS = 16;
+
+    /**
+     * Returned by parseNumber when a field does not hold a valid non-negative number.
+     */
+    private static final long INVALID = -1;
+
+    private static final int COUNTRY = 0;
+    private static final int SITE = 1;
+    private static final int TESTED = 2;
+    private static final int POSITIVE = 3;
+    private static final int START_DATE = 4;
+    private static final int END_DATE = 5;
+
+    /**
+     * The header names of the columns, indexed by the column constants above.
+     */
+    private static final String[] COLUMN_NAMES = {"Country", "Site", "Tested", "Positive", "StartDate", "EndDate"};
+
+    private final NameTable countries;
+    private final NameTable sites;
+    private final ParseDiagnostics diagnostics;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * The bytes of the fields of the current row, and where each field starts and ends.
+     */
+    private byte[] row = new byte[256];
+    private int rowLength;
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount;
+
+    /**
+     * For each column, the index of the field holding it.
+     */
+    private final int[] columnFields = new int[COLUMN_NAMES.length];
+    private int requiredFields;
+    private boolean firstRow;
+
+    /**
+     * Whether only the header is being read, so rows are neither validated nor handled.
+     */
+    private boolean headerOnly;
+
+    /**
+     * The number of line breaks read by the last parse.
+     */
+    private long lineBreaks;
+
+    /**
+     * Creates a CsvParser that interns names into the given tables.
+     *
+     * @param countries   The NameTable for country names.
+     * @param sites       The NameTable for site names, scoped by country id.
+     * @param diagnostics Where malformed rows are reported.
+     */
+    public CsvParser(NameTable countries, NameTable sites, ParseDiagnostics diagnostics) {
+        this.countries = countries;
+        this.sites = sites;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * parse method reads the whole stream and passes every well-formed row to the handler. The
+     * stream is not closed.
+     *
+     * @param in         The CSV stream.
+     * @param sourceName The name of the source, used in diagnostics.
+     * @param handler    The RowHandler receiving the rows.
+     * @return The number of rows passed to the handler.
+     * @throws IOException If the stream cannot be read, or the header lacks a required column.
+     */
+    public long parse(InputStream in, String sourceName, RowHandler handler) throws IOException {
+        resetColumns();
+        firstRow = true;
+        return parseRows(in, sourceName, handler);
+    }
+
+    /**
+     * parseChunk method parses part of a CSV that was split at a line break, e.g. by
+     * MappedCsvFile. The columns are located from the first line of the whole file, which only
+     * contributes rows when parsed as part of the first chunk. Line numbers in diagnostics are
+     * counted from the start of the chunk. The stream is not closed.
+     *
+     * @param firstLine  The first line of the file, which may be a header.
+     * @param in         The stream over the chunk, starting at the beginning of a line.
+     * @param sourceName The name of the source, used in diagnostics.
+     * @param handler    The RowHandler receiving the rows.
+     * @return The number of rows passed to the handler.
+     * @throws IOException If the stream cannot be read, or the header lacks a required column.
+     */
+    public long parseChunk(byte[] firstLine, InputStream in, String sourceName, RowHandler handler)
+            throws IOException {
+        resetColumns();
+        firstRow = true;
+        headerOnly = true;
+        try {
+            parseRows(new ByteArrayInputStream(firstLine), sourceName, handler);
+        } finally {
+            headerOnly = false;
+        }
+        firstRow = false;
+        return parseRows(in, sourceName, handler);
+    }
+
+    /**
+     * Returns the number of line breaks read by the last call to parse or parseChunk, which is
+     * the line offset of whatever follows in the same file.
+     *
+     * @return The line break count.
+     */
+    public long getLineBreaks() {
+        return lineBreaks;
+    }
+
+    private void resetColumns() {
+        for (int i = 0; i < columnFields.length; i++) {
+            columnFields[i] = i;
+        }
+        requiredFields = columnFields.length;
+    }
+
+    private long parseRows(InputStream in, String sourceName, RowHandler handler) throws IOException {
+        rowLength = 0;
+        fieldCount = 0;
+
+        long rows = 0;
+        long line = 1;
+        long rowLine = 1;
+        boolean inQuotes = false;
+        boolean quoteClosed = false;
+        int fieldBegin = 0;
+
+        int n;
+        while ((n = in.read(buffer, 0, BUFFER_SIZE)) != -1) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("CSV parse cancelled");
+            }
+            for (int i = 0; i < n; i++) {
+                byte b = buffer[i];
+                if (inQuotes) {
+                    if (b == '"') {
+                        inQuotes = false;
+                        quoteClosed = true;
+                        continue;
+                    }
+                    if (b == '\n') {
+                        line++;
+                    }
+                    append(b);
+                    continue;
+                }
+                if (b == ',') {
+                    endField(fieldBegin);
+                    fieldBegin = rowLength;
+                } else if (b == '\n') {
+                    endField(fieldBegin);
+                    if (endRow(sourceName, rowLine, handler)) {
+                        rows++;
+                    }
+                    fieldBegin = 0;
+                    line++;
+                    rowLine = line;
+                } else if (b == '\r') {
+                    // Ignore the carriage return of CRLF line endings
+                } else if (b == '"') {
+                    if (quoteClosed) {
+                        // "" inside a quoted field is a literal quote
+                        append(b);
+                        inQuotes = true;
+                    } else if (isBlank(fieldBegin, rowLength)) {
+                        rowLength = fieldBegin;
+                        inQuotes = true;
+                    } else {
+                        append(b);
+                    }
+                } else {
+                    append(b);
+                }
+                quoteClosed = false;
+            }
+        }
+
+        if (inQuotes) {
+            diagnostics.report(sourceName, rowLine, "unterminated quoted field");
+        } else if (rowLength > 0 || fieldCount > 0) {
+            endField(fieldBegin);
+            if (endRow(sourceName, rowLine, handler)) {
+                rows++;
+            }
+        }
+        rowLength = 0;
+        fieldCount = 0;
+        lineBreaks = line - 1;
+        return rows;
+    }
+
+    private void append(byte b) {
+        if (rowLength == row.length) {
+            row = Arrays.copyOf(row, row.length * 2);
+        }
+        row[rowLength++] = b;
+    }
+
+    private void endField(int begin) {
+        if (fieldCount < MAX_FIELDS) {
+            // Trim spaces and tabs around the field
+            int start = begin;
+            int end = rowLength;
+            while (start < end && isSpace(row[start])) {
+                start++;
+            }
+            while (end > start && isSpace(row[end - 1])) {
+                end--;
+            }
+            fieldStart[fieldCount] = start;
+            fieldEnd[fieldCount] = end;
+        }
+        fieldCount++;
+    }
+
+    /**
+     * endRow method validates the fields of the completed row and passes it to the handler.
+     *
+     * @return true if the row was passed to the handler.
+     */
+    private boolean endRow(String sourceName, long lineNumber, RowHandler handler) throws IOException {
+        int fields = fieldCount;
+        rowLength = 0;
+        fieldCount = 0;
+
+        if (fields == 1 && fieldStart[0] == fieldEnd[0]) {
+            // Skip blank lines
+            return false;
+        }
+        if (firstRow) {
+            firstRow = false;
+            if (isHeader(fields)) {
+                mapHeader(fields, sourceName);
+                return false;
+            }
+        }
+        if (headerOnly) {
+            return false;
+        }
+        if (fields < requiredFields) {
+            diagnostics.report(sourceName, lineNumber, "expected " + requiredFields + " fields, found " + fields);
+            return false;
+        }
+
+        int country = columnFields[COUNTRY];
+        int site = columnFields[SITE];
+        // Rows without a site still count towards their country, under an empty site name
+        if (fieldStart[country] == fieldEnd[country]) {
+            diagnostics.report(sourceName, lineNumber, "missing country");
+            return false;
+        }
+        long tested = parseNumber(columnFields[TESTED]);
+        if (tested == INVALID || tested > Integer.MAX_VALUE) {
+            diagnostics.report(sourceName, lineNumber, "invalid Tested value");
+            return false;
+        }
+        long positive = parseNumber(columnFields[POSITIVE]);
+        if (positive == INVALID || positive > Integer.MAX_VALUE) {
+            diagnostics.report(sourceName, lineNumber, "invalid Positive value");
+            return false;
+        }
+        long startDate = parseNumber(columnFields[START_DATE]);
+        if (startDate == INVALID) {
+            diagnostics.report(sourceName, lineNumber, "invalid StartDate value");
+            return false;
+        }
+        long endDate = parseNumber(columnFields[END_DATE]);
+        if (endDate == INVALID) {
+            diagnostics.report(sourceName, lineNumber, "invalid EndDate value");
+            return false;
+        }
+
+        int countryId = countries.intern(NameTable.NO_SCOPE, row, fieldStart[country],
+                fieldEnd[country] - fieldStart[country]);
+        int siteId = sites.intern(countryId, row, fieldStart[site], fieldEnd[site] - fieldStart[site]);
+        handler.onRow(countryId, siteId, (int) tested, (int) positive, startDate, endDate);
+        return true;
+    }
+
+    /**
+     * parseNumber method parses a non-negative decimal number straight from the row bytes.
+     *
+     * @return The number, or INVALID if the field is empty, not numeric or overflows a long.
+     */
+    private long parseNumber(int field) {
+        int start = fieldStart[field];
+        int end = fieldEnd[field];
+        if (start == end) {
+            return INVALID;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = row[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private boolean isHeader(int fields) {
+        for (int i = 0; i < Math.min(fields, MAX_FIELDS); i++) {
+            if (fieldEquals(i, COLUMN_NAMES[COUNTRY])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void mapHeader(int fields, String sourceName) throws IOException {
+        requiredFields = 0;
+        for (int column = 0; column < COLUMN_NAMES.length; column++) {
+            int index = -1;
+            for (int i = 0; i < Math.min(fields, MAX_FIELDS); i++) {
+                if (fieldEquals(i, COLUMN_NAMES[column])) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                throw new IOException(sourceName + ": header is missing the " + COLUMN_NAMES[column] + " column");
+            }
+            columnFields[column] = index;
+            requiredFields = Math.max(requiredFields, index + 1);
+        }
+    }
+
+    private boolean fieldEquals(int field, String name) {
+        int length = fieldEnd[field] - fieldStart[field];
+        return length == name.length()
+                && new String(row, fieldStart[field], length, StandardCharsets.US_ASCII).equalsIgnoreCase(name);
+    }
+
+    private boolean isBlank(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isSpace(row[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
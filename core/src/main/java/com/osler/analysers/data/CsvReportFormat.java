@@ -0,0 +1,95 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+
+/**
+ * CsvReportFormat writes a report as CSV with a header line, in the style of the input data:
+ *
+ * <pre>
+ * Country,Tested,Positive,PositivePercent
+ * Kenya,1615,401,24.83
+ * </pre>
+ *
+ * <p>Sites have a Country and a Site column, and time buckets a Start and an End column holding
+ * the first and last UTC day of the bucket as yyyy-MM-dd. Names holding a comma, quote or line
+ * break are quoted, with quotes doubled.</p>
+ */
+public class CsvReportFormat implements ReportFormat {
+    private static final byte[] COUNTRY_HEADER = ReportOutput.ascii("Country,Tested,Positive,PositivePercent\n");
+    private static final byte[] SITE_HEADER = ReportOutput.ascii("Country,Site,Tested,Positive,PositivePercent\n");
+    private static final byte[] BUCKET_HEADER = ReportOutput.ascii("Start,End,Tested,Positive,PositivePercent\n");
+
+    @Override
+    public String getExtension() {
+        return "csv";
+    }
+
+    @Override
+    public void begin(ReportOutput out, Granularity granularity) throws IOException {
+        out.putBytes(granularity == Granularity.COUNTRY ? COUNTRY_HEADER
+                : granularity == Granularity.SITE ? SITE_HEADER : BUCKET_HEADER);
+    }
+
+    @Override
+    public void writeCountry(ReportOutput out, String country, long tested, long positive) throws IOException {
+        putField(out, country);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void writeSite(ReportOutput out, String country, String site, long tested, long positive)
+            throws IOException {
+        putField(out, country);
+        out.putByte(',');
+        putField(out, site);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void writeBucket(ReportOutput out, long start, long end, long tested, long positive) throws IOException {
+        out.putDate(start);
+        out.putByte(',');
+        out.putDate(end);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void end(ReportOutput out, int entryCount) {
+    }
+
+    private static void writeTotals(ReportOutput out, long tested, long positive) throws IOException {
+        out.putByte(',');
+        out.putLong(tested);
+        out.putByte(',');
+        out.putLong(positive);
+        out.putByte(',');
+        out.putPercent(ReportWriter.percentHundredths(positive, tested));
+        out.putByte('\n');
+    }
+
+    /**
+     * putField method writes a name, quoting it if it holds a character that has a meaning in CSV.
+     */
+    private static void putField(ReportOutput out, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.putString(value);
+            return;
+        }
+        out.putByte('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == '"') {
+                out.putString(value, start, i + 1);
+                out.putByte('"');
+                start = i + 1;
+            }
+        }
+        out.putString(value, start, value.length());
+        out.putByte('"');
+    }
+}
@@ -0,0 +1,84 @@
+package com.osler.analysers.data;
+
+import java.util.Arrays;
+
+/**
+ * CusumRule raises an alert when the rows of a site stay above its baseline for a while, even if
+ * no single row is far enough above it for a ZScoreRule. It keeps the one-sided cumulative sum of
+ * the z-scores of the site's rows, less an allowance per row:
+ *
+ * <pre>
+ * sum = max(0, sum + z - allowance)
+ * </pre>
+ *
+ * <p>The row that takes the sum above the limit is the alert, and the sum starts again from zero.
+ * Like the z-scores, the sum is updated in constant time per row.</p>
+ */
+public class CusumRule implements AlertRule {
+    private final SiteBaseline baseline;
+    private final double allowance;
+    private final double limit;
+    private final int warmupRows;
+    private final int minTested;
+    private double[] sums = new double[64];
+
+    /**
+     * Creates a rule with the given baseline weight, allowance and limit.
+     *
+     * @param alpha      The weight of the newest row in the baseline, between 0 and 1.
+     * @param allowance  The z-score a row may have without adding to the sum, e.g. 0.5.
+     * @param limit      The sum at which a row is an alert, e.g. 5.
+     * @param warmupRows The number of rows of a site before its rows can be alerts.
+     * @param minTested  The number of tests a row needs to be considered.
+     */
+    public CusumRule(double alpha, double allowance, double limit, int warmupRows, int minTested) {
+        this.baseline = new SiteBaseline(alpha);
+        this.allowance = allowance;
+        this.limit = limit;
+        this.warmupRows = warmupRows;
+        this.minTested = minTested;
+    }
+
+    @Override
+    public String getName() {
+        return "cusum";
+    }
+
+    @Override
+    public double getBaseline(int siteId) {
+        return baseline.getMean(siteId);
+    }
+
+    /**
+     * evaluate method adds the row's z-score to the site's sum, then adds the row to the baseline.
+     *
+     * @return The sum if it went above the limit, or NaN.
+     */
+    @Override
+    public double evaluate(int siteId, int tested, int positive) {
+        if (tested < minTested) {
+            return Double.NaN;
+        }
+        if (siteId >= sums.length) {
+            sums = Arrays.copyOf(sums, Math.max(sums.length * 2, siteId + 1));
+        }
+        double percent = positive * 100.0 / tested;
+        double score = Double.NaN;
+        if (baseline.getCount(siteId) >= warmupRows) {
+            double sum = Math.max(0, sums[siteId] + baseline.score(siteId, percent, tested) - allowance);
+            if (sum > limit) {
+                score = sum;
+                sum = 0;
+            }
+            sums[siteId] = sum;
+        }
+        baseline.add(siteId, percent);
+        return score;
+    }
+
+    @Override
+    public void reset() {
+        baseline.reset();
+        Arrays.fill(sums, 0);
+    }
+}
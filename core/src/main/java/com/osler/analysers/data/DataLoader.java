@@ -0,0 +1,499 @@
+package com.osler.analysers.data;
+
+import com.osler.analysers.CountryData;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * DataLoader reads the Analysers CSV and the calibration expiry file on a background Executor.
+ * It publishes partial results to a Listener as country aggregates finish, so the UI can render
+ * immediately and fill in the spinner while the rest of the file is parsed. Malformed rows are
+ * collected as diagnostics rather than failing the load, and data in the BinaryRowFormat is read
+ * as well.
+ *
+ * <p>A CSV of SAMPLE_MIN_BYTES or more is first sampled with a StratifiedSampler. The estimate is
+ * published with the partial results, refined with the exact totals of the rows read so far.</p>
+ *
+ * <p>With a RollupStore, the rows are stored in it and let go once stored, and a later load of
+ * the same inputs starts from its rollups; without one, a snapshot from a SnapshotCache is
+ * restored instead. See DatasetPersistence.</p>
+ *
+ * <p>The loaded rows are added to by DataUpdates and queried by DataQueries, on the same
+ * Executor. It must run tasks one at a time, in order (e.g. a single thread executor), since the
+ * loader's state is only touched from its tasks.</p>
+ */
+public class DataLoader {
+    /**
+     * The minimum time between two partial results, so large files with many countries do not
+     * flood the Listener with copies of the aggregates.
+     */
+    private static final long PUBLISH_INTERVAL_MS = 100;
+
+    /**
+     * The size from which a CSV is sampled before it is parsed. Smaller files are parsed in full
+     * about as fast as they could be sampled.
+     */
+    static final long SAMPLE_MIN_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Listener receives the LoadState published by the loader. It is called on the loader's
+     * background thread, so implementations must hand the state over to the UI thread themselves.
+     */
+    public interface Listener {
+        /**
+         * Called with a partial state while loading, and once with the final state when the load
+         * completes or fails.
+         *
+         * @param state The current LoadState.
+         */
+        void onStateChanged(LoadState state);
+    }
+
+    /**
+     * The Executor the CSV is parsed on.
+     */
+    private final Executor executor;
+
+    /**
+     * The snapshot and rollups of the loaded CSV, kept across starts.
+     */
+    private final DatasetPersistence persistence;
+
+    /**
+     * The window index and trend series of the rows, and the alert checks.
+     */
+    private final DerivedIndexes derivedIndexes = new DerivedIndexes();
+
+    /*
+     * State owned by the executor's tasks, kept between the load and later appends.
+     */
+    private AggregateEngine engine;
+    private StreamSource expirySource;
+    private ExpiryFilter expiryFilter;
+    private long restoredExpiredRows;
+    private int malformedRows;
+    private List<String> diagnostics = Collections.emptyList();
+    private DirectoryIngest directoryIngest;
+    private SampleEstimate estimate;
+
+    /**
+     * Creates a DataLoader that parses on the given Executor and does not cache its results.
+     *
+     * @param executor The Executor to run the load on. It should not be the UI thread.
+     */
+    public DataLoader(Executor executor) {
+        this(executor, null, 0);
+    }
+
+    /**
+     * Creates a DataLoader that restores the data from a snapshot when it matches the current
+     * inputs and app version, and writes a new snapshot after parsing otherwise.
+     *
+     * @param executor      The Executor to run the load on. It should not be the UI thread.
+     * @param snapshotCache The cache to restore from and save to.
+     * @param versionCode   The app version code, so an app update invalidates old snapshots.
+     */
+    public DataLoader(Executor executor, SnapshotCache snapshotCache, long versionCode) {
+        this(executor, snapshotCache, versionCode, null);
+    }
+
+    /**
+     * Creates a DataLoader that keeps the rows in a RollupStore rather than in memory. A load of
+     * the same inputs then starts from their rollups, which are read in time proportional to the
+     * number of countries and sites. The snapshot is only used when the rows cannot be stored.
+     *
+     * @param executor      The Executor to run the load on. It should not be the UI thread.
+     * @param snapshotCache The cache to restore from and save to.
+     * @param versionCode   The app version code, so an app update invalidates old snapshots.
+     * @param rollupStore   The store to keep the rows in. It must only be written by this loader.
+     */
+    public DataLoader(Executor executor, SnapshotCache snapshotCache, long versionCode, RollupStore rollupStore) {
+        this.executor = executor;
+        this.persistence = new DatasetPersistence(snapshotCache, versionCode, rollupStore);
+    }
+
+    /**
+     * load method starts reading the CSV and expiry sources in the background.
+     *
+     * @param dataSource   The source of the Analysers CSV.
+     * @param expirySource The source of the calibration expiry information.
+     * @param listener     The Listener to publish partial and final results to.
+     * @return A Future that can be cancelled to stop the load.
+     */
+    public Future<?> load(final StreamSource dataSource, final StreamSource expirySource,
+                          final Listener listener) {
+        return submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = Metrics.get().begin(Metrics.Stage.LOAD);
+                try {
+                    readDataFromCSV(dataSource, expirySource, listener);
+                } catch (InterruptedIOException e) {
+                    // The load was cancelled, nothing left to publish
+                } catch (Exception e) {
+                    publishError(e, listener);
+                } finally {
+                    Metrics.get().end(Metrics.Stage.LOAD, start);
+                }
+            }
+        });
+    }
+
+    /**
+     * currentStore method returns the rows the totals are over, those of the engine.
+     *
+     * @return The store, or null if nothing has been loaded yet.
+     */
+    SiteDataStore currentStore() {
+        return engine != null ? engine.getStore() : null;
+    }
+
+    /**
+     * Returns the engine of the loaded rows, for DataUpdates. Only to be used from the loader's
+     * tasks.
+     *
+     * @return The engine, or null if nothing has been loaded yet.
+     */
+    AggregateEngine getEngine() {
+        return engine;
+    }
+
+    DatasetPersistence getPersistence() {
+        return persistence;
+    }
+
+    DerivedIndexes getDerivedIndexes() {
+        return derivedIndexes;
+    }
+
+    /**
+     * setDirectoryIngest method adds the diagnostics and expired rows of a DirectoryIngest whose
+     * rows are in the engine to those published, until the next load.
+     *
+     * @param ingest The DirectoryIngest.
+     */
+    void setDirectoryIngest(DirectoryIngest ingest) {
+        directoryIngest = ingest;
+    }
+
+    /**
+     * applyRows method passes the rows of another store from the given row on to a handler of the
+     * engine's rows, interning their names into the engine store's dictionaries.
+     */
+    private void applyRows(SiteDataStore rows, int fromRow, CsvParser.RowHandler handler) {
+        NameTable countries = engine.getStore().getCountries();
+        NameTable sites = engine.getStore().getSites();
+        for (int row = fromRow; row < rows.size(); row++) {
+            int countryId = countries.intern(NameTable.NO_SCOPE, rows.getCountries().getName(rows.getCountryId(row)));
+            int siteId = sites.intern(countryId, rows.getSites().getName(rows.getSiteId(row)));
+            handler.onRow(countryId, siteId, rows.getTested(row), rows.getPositive(row), rows.getStartDate(row),
+                    rows.getEndDate(row));
+        }
+    }
+
+    /**
+     * submit method runs a task on the loader's Executor, after those submitted before.
+     *
+     * @param runnable The task.
+     * @return A Future that can be cancelled before the task runs.
+     */
+    Future<?> submit(Runnable runnable) {
+        FutureTask<Void> task = new FutureTask<>(runnable, null);
+        executor.execute(task);
+        return task;
+    }
+
+    void publishError(Exception e, Listener listener) {
+        Metrics.get().recordError("Loading data", e);
+        if (!Thread.currentThread().isInterrupted()) {
+            listener.onStateChanged(new LoadState(new ArrayList<String>(), new HashMap<String, CountryData>(),
+                    AggregateSnapshot.empty(), 0, -1, 0, new ArrayList<String>(), 0, true, null, e));
+        }
+    }
+
+    /**
+     * readDataFromCSV method reads Analysers data from the CSV source and publishes the country
+     * aggregates as they are built.
+     */
+    private void readDataFromCSV(StreamSource dataSource, StreamSource expirySource, final Listener listener)
+            throws IOException {
+        this.expirySource = expirySource;
+        // The rows of a directory are copied into the new engine by the next directory load
+        directoryIngest = null;
+
+        // Step 0: Skip parsing entirely if the rows of the same inputs are stored, or a snapshot of them exists
+        SnapshotCache.Snapshot snapshot = persistence.restore(dataSource, expirySource);
+        if (snapshot != null) {
+            malformedRows = snapshot.getMalformedRows();
+            diagnostics = snapshot.getDiagnostics();
+            restoredExpiredRows = snapshot.getExpiredRows();
+            expiryFilter = null;
+            SiteDataStore store = snapshot.getStore();
+            int sourceRows = store.size();
+            LoadState state = null;
+            boolean stored = persistence.isStored();
+            boolean appendedStored = true;
+            long aggregateStart = Metrics.get().begin(Metrics.Stage.AGGREGATE);
+            try {
+                engine = persistence.restoreEngine(store);
+                if (engine != null) {
+                    // Stored appended rows were checked against the same expiry file, and are in the rollups
+                    appendedStored = stored || replayAppended(persistence.readAppended());
+                    state = publish(0, -1, true);
+                }
+            } finally {
+                Metrics.get().end(Metrics.Stage.AGGREGATE, aggregateStart);
+            }
+            if (state != null) {
+                listener.onStateChanged(state);
+                stored = stored || persistence.persist(store.head(sourceRows), malformedRows, restoredExpiredRows,
+                        diagnostics);
+                releaseStoredRows(stored && appendedStored);
+                return;
+            }
+            // The rollups could not be read, the CSV is parsed again
+        }
+
+        // Step 1: Read expiry.txt into the calibration index
+        final ParseDiagnostics parseDiagnostics = new ParseDiagnostics();
+        CalibrationIndex calibrationIndex = readExpiry(expirySource, parseDiagnostics);
+
+        // Step 2: Parse the CSV, applying each row that is still calibrated to the aggregates as it is read
+        final SiteDataStore store = new SiteDataStore();
+        engine = new AggregateEngine(store);
+        restoredExpiredRows = 0;
+        expiryFilter = new ExpiryFilter(calibrationIndex, store.getSites(), engine);
+
+        final CountingInputStream inputStream = new CountingInputStream(dataSource.open());
+        final long totalBytes = inputStream.available() > 0 ? inputStream.available() : -1;
+        estimate = null;
+        if (totalBytes >= SAMPLE_MIN_BYTES) {
+            // Show totals estimated from a sample until the exact ones are complete
+            estimate = sample(dataSource, calibrationIndex, totalBytes);
+            if (estimate != null) {
+                listener.onStateChanged(publish(0, totalBytes, false));
+            }
+        }
+        CsvParser.RowHandler handler = new CsvParser.RowHandler() {
+            private int lastCountryId = -1;
+            private long lastPublish;
+
+            @Override
+            public void onRow(int countryId, int siteId, int tested, int positive, long startDate, long endDate) {
+                // The previous country's aggregate is finished once a new one starts
+                if (lastCountryId >= 0 && lastCountryId != countryId) {
+                    long now = System.currentTimeMillis();
+                    if (now - lastPublish >= PUBLISH_INTERVAL_MS) {
+                        malformedRows = parseDiagnostics.getMalformedCount();
+                        diagnostics = parseDiagnostics.getMessages();
+                        listener.onStateChanged(publish(inputStream.getCount(), totalBytes, false));
+                        lastPublish = now;
+                    }
+                }
+                lastCountryId = countryId;
+                expiryFilter.onRow(countryId, siteId, tested, positive, startDate, endDate);
+            }
+        };
+        long start = Metrics.get().begin(Metrics.Stage.PARSE);
+        try {
+            // The data may also be shipped pre-converted to the binary row format
+            BinaryRowFormat.parse(inputStream, "data.csv", store.getCountries(), store.getSites(), parseDiagnostics,
+                    handler);
+        } finally {
+            inputStream.close();
+            Metrics.get().end(Metrics.Stage.PARSE, start);
+        }
+        countRows(store.size(), expiryFilter.getExpiredRows(), parseDiagnostics.getMalformedCount(),
+                inputStream.getCount());
+        long sourceExpiredRows = expiryFilter.getExpiredRows();
+        int sourceRows = store.size();
+
+        // Step 3: Apply the rows appended after earlier loads again
+        boolean appendedStored = replayAppended(persistence.readAppended());
+        store.trimToSize();
+        malformedRows = parseDiagnostics.getMalformedCount();
+        diagnostics = new ArrayList<>(parseDiagnostics.getMessages());
+        listener.onStateChanged(publish(inputStream.getCount(), totalBytes, true));
+
+        // Step 4: Store the rows, and let them go once they are all stored
+        boolean stored = persistence.persist(store.head(sourceRows), malformedRows, sourceExpiredRows, diagnostics);
+        releaseStoredRows(stored && appendedStored);
+    }
+
+    /**
+     * releaseStoredRows method lets the engine's rows go once they are all kept in the RollupStore,
+     * so only the rows added later are held in memory, and has the derived indexes read the
+     * stored rows from it. The rows are kept in memory if any of them could not be stored.
+     */
+    private void releaseStoredRows(boolean stored) {
+        long lastRowId = stored ? persistence.getLastRowId() : -1;
+        if (lastRowId >= 0) {
+            engine.releaseRows();
+            derivedIndexes.setStoredRows(persistence.getRollupStore(), lastRowId);
+        } else {
+            derivedIndexes.setStoredRows(null, 0);
+        }
+    }
+
+    /**
+     * replayAppended method applies the rows appended after earlier loads through the expiry check
+     * again, since the expiry file may have changed since they were checked, and stores the rows
+     * kept in place of those stored before.
+     *
+     * @param appended The appended rows, or null if there are none to apply.
+     * @return Whether the rows kept are stored in the RollupStore.
+     */
+    private boolean replayAppended(SiteDataStore appended) {
+        if (appended == null) {
+            return true;
+        }
+        SiteDataStore store = engine.getStore();
+        int rowsBefore = store.size();
+        applyRows(appended, 0, getExpiryFilter());
+        return persistence.replaceAppended(store, rowsBefore);
+    }
+
+    /**
+     * getExpiryFilter method returns the filter applying rows that are still calibrated to the
+     * engine. After a restore, the expiry file is only read the first time it is needed.
+     */
+    ExpiryFilter getExpiryFilter() {
+        if (expiryFilter == null) {
+            expiryFilter = new ExpiryFilter(readExpiry(expirySource, new ParseDiagnostics()),
+                    engine.getStore().getSites(), engine);
+        }
+        return expiryFilter;
+    }
+
+    /**
+     * getExpiredRows method returns the rows dropped by the expiry check, including those dropped
+     * before a restored snapshot was taken.
+     */
+    private long getExpiredRows() {
+        return restoredExpiredRows + (expiryFilter != null ? expiryFilter.getExpiredRows() : 0);
+    }
+
+    /**
+     * readExpiry method reads the calibration expiry file into a CalibrationIndex. A missing or
+     * unreadable file leaves the index empty, so no site expires.
+     */
+    static CalibrationIndex readExpiry(StreamSource expirySource, ParseDiagnostics diagnostics) {
+        long start = Metrics.get().begin(Metrics.Stage.EXPIRY);
+        try {
+            InputStream expiryInputStream = expirySource.open();
+            try {
+                return CalibrationIndex.parse(expiryInputStream, "expiry.txt", diagnostics);
+            } finally {
+                expiryInputStream.close();
+            }
+        } catch (IOException e) {
+            diagnostics.report("expiry.txt", 0, "could not be read: " + e.getMessage());
+            return new CalibrationIndex();
+        } finally {
+            Metrics.get().end(Metrics.Stage.EXPIRY, start);
+        }
+    }
+
+    /**
+     * sample method estimates the totals of a large CSV from a sample of its rows. The estimate
+     * is only shown until the exact totals are complete, so a CSV that cannot be sampled is simply
+     * not estimated; the full parse reports its errors.
+     */
+    private static SampleEstimate sample(StreamSource dataSource, CalibrationIndex calibrationIndex,
+                                         long totalBytes) throws InterruptedIOException {
+        long start = Metrics.get().begin(Metrics.Stage.SAMPLE);
+        try {
+            return new StratifiedSampler(calibrationIndex).sample(dataSource, totalBytes);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            Metrics.get().end(Metrics.Stage.SAMPLE, start);
+        }
+    }
+
+    /**
+     * countRows method adds the rows and bytes of a parsed file to the Metrics counters.
+     *
+     * @param keptRows      The rows applied to the totals.
+     * @param expiredRows   The rows left out by the expiry check.
+     * @param malformedRows The rows that could not be parsed.
+     * @param bytesRead     The size of the file.
+     */
+    static void countRows(long keptRows, long expiredRows, long malformedRows, long bytesRead) {
+        Metrics metrics = Metrics.get();
+        metrics.add(Metrics.Counter.ROWS_PARSED, keptRows + expiredRows);
+        metrics.add(Metrics.Counter.ROWS_EXPIRED, expiredRows);
+        metrics.add(Metrics.Counter.ROWS_MALFORMED, malformedRows);
+        metrics.add(Metrics.Counter.BYTES_READ, bytesRead);
+    }
+
+    /**
+     * publish method takes a snapshot of the aggregates into an immutable LoadState. It costs one
+     * copy per country and site, not a scan of the rows. Countries with no rows left after the
+     * expiry check are left out. The diagnostics and expired rows of a loaded directory are added
+     * to those of the load. The store is written to by later appends, so it is not handed out; the
+     * rows are read through DataQueries.
+     */
+    LoadState publish(long bytesRead, long totalBytes, boolean complete) {
+        int malformed = malformedRows;
+        List<String> messages = diagnostics;
+        long expired = getExpiredRows();
+        if (directoryIngest != null) {
+            ParseDiagnostics fileDiagnostics = directoryIngest.getFileDiagnostics();
+            malformed += fileDiagnostics.getMalformedCount();
+            messages = new ArrayList<>(diagnostics);
+            messages.addAll(fileDiagnostics.getMessages());
+            expired += directoryIngest.getExpiredRows();
+        }
+        AggregateSnapshot aggregates = engine.snapshot();
+        LoadState state = LoadState.of(aggregates, bytesRead, totalBytes, malformed, messages, expired, complete,
+                null);
+        // The estimate is only shown until the exact totals are complete, and refined with them until then
+        return complete || estimate == null ? state : state.withEstimate(estimate.refine(aggregates, bytesRead));
+    }
+
+    /**
+     * CountingInputStream keeps track of how many bytes have been read, for progress reporting.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
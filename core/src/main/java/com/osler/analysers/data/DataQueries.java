@@ -0,0 +1,159 @@
+package com.osler.analysers.data;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * DataQueries answers questions about the rows a DataLoader loaded besides their totals: the
+ * totals of a time window, the range of their dates, the trend series and the alerts of new rows.
+ * The queries run on the loader's Executor, after the tasks submitted before them, and are
+ * answered from the DerivedIndexes the loader keeps up to date with its rows.
+ */
+public class DataQueries {
+    /**
+     * WindowListener receives the result of a time window query, on the loader's background thread.
+     */
+    public interface WindowListener {
+        /**
+         * Called with the totals of the queried window.
+         *
+         * @param state The WindowState.
+         */
+        void onWindowQueried(WindowState state);
+    }
+
+    /**
+     * DateRangeListener receives the range of dates in the rows, on the loader's background thread.
+     */
+    public interface DateRangeListener {
+        /**
+         * Called with the earliest and the latest date in the rows.
+         *
+         * @param minDate The earliest StartDate or EndDate, in epoch seconds.
+         * @param maxDate The latest StartDate or EndDate, in epoch seconds.
+         */
+        void onDateRange(long minDate, long maxDate);
+    }
+
+    /**
+     * TrendListener receives the trend series of the rows, on the loader's background thread.
+     */
+    public interface TrendListener {
+        /**
+         * Called with the trend series of every country and site.
+         *
+         * @param trends The TrendSeries.
+         */
+        void onTrendsBuilt(TrendSeries trends);
+    }
+
+    /**
+     * AlertListener receives the alerts of the rows added since the last check, on the loader's
+     * background thread.
+     */
+    public interface AlertListener {
+        /**
+         * Called after every check, also when no new alerts were raised.
+         *
+         * @param alerts The new alerts, in end date order.
+         * @param engine The AlertEngine, holding the recent alerts.
+         */
+        void onAlertsChecked(List<Alert> alerts, AlertEngine engine);
+    }
+
+    private final DataLoader loader;
+
+    /**
+     * Creates the queries of the rows of a loader.
+     *
+     * @param loader The DataLoader whose rows are queried.
+     */
+    public DataQueries(DataLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * queryWindow method computes the totals of the measurements overlapping [from, to] once the
+     * data is loaded. The index behind it is only extended with the rows added since the last
+     * query, so moving the window costs a few binary searches per site, and the same window
+     * queried again before rows are added is answered with the previous WindowState.
+     *
+     * @param from     The start of the window in epoch seconds, inclusive.
+     * @param to       The end of the window in epoch seconds, inclusive.
+     * @param listener The WindowListener to publish the result to.
+     * @return A Future that can be cancelled before the query runs.
+     */
+    public Future<?> queryWindow(final long from, final long to, final WindowListener listener) {
+        return loader.submit(new Runnable() {
+            @Override
+            public void run() {
+                SiteDataStore store = loader.currentStore();
+                if (store != null) {
+                    listener.onWindowQueried(loader.getDerivedIndexes().queryWindow(store, from, to));
+                }
+            }
+        });
+    }
+
+    /**
+     * queryDateRange method finds the earliest and the latest date in the rows once the data is
+     * loaded, e.g. to bound a date control before any window is queried. Only the rows added since
+     * the last query are read, and nothing is published if there are no rows.
+     *
+     * @param listener The DateRangeListener to publish the range to.
+     * @return A Future that can be cancelled before the query runs.
+     */
+    public Future<?> queryDateRange(final DateRangeListener listener) {
+        return loader.submit(new Runnable() {
+            @Override
+            public void run() {
+                SiteDataStore store = loader.currentStore();
+                long[] range = store != null ? loader.getDerivedIndexes().getDateRange(store) : null;
+                if (range != null) {
+                    listener.onDateRange(range[0], range[1]);
+                }
+            }
+        });
+    }
+
+    /**
+     * buildTrends method buckets the rows into the daily, weekly and monthly trend series of every
+     * country and site once the data is loaded. The series are only extended with the rows added
+     * since they were last built.
+     *
+     * @param listener The TrendListener to publish the series to.
+     * @return A Future that can be cancelled before the build runs.
+     */
+    public Future<?> buildTrends(final TrendListener listener) {
+        return loader.submit(new Runnable() {
+            @Override
+            public void run() {
+                SiteDataStore store = loader.currentStore();
+                if (store != null) {
+                    listener.onTrendsBuilt(loader.getDerivedIndexes().getTrends(store));
+                }
+            }
+        });
+    }
+
+    /**
+     * checkAlerts method runs the rules of an AlertEngine over the rows added since the last check,
+     * once the data is loaded. The engine is only used on the loader's thread, so it must not be
+     * used anywhere else but for its recent alerts.
+     *
+     * @param alertEngine The AlertEngine to run.
+     * @param listener    The AlertListener to publish the new alerts to.
+     * @return A Future that can be cancelled before the check runs.
+     */
+    public Future<?> checkAlerts(final AlertEngine alertEngine, final AlertListener listener) {
+        return loader.submit(new Runnable() {
+            @Override
+            public void run() {
+                SiteDataStore store = loader.currentStore();
+                if (store != null) {
+                    listener.onAlertsChecked(loader.getDerivedIndexes().checkAlerts(alertEngine, store), alertEngine);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,107 @@
+package com.osler.analysers.data;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Future;
+
+/**
+ * DataUpdates adds rows to those a DataLoader loaded: batches of appended rows, and the files of
+ * a directory, e.g. those saved by a SyncClient. The rows go through the same calibration check
+ * as the loaded ones and are applied to the loader's AggregateEngine as deltas, on the loader's
+ * Executor, and the updated totals are published to a DataLoader.Listener.
+ *
+ * <p>With a RollupStore, appended rows are kept in it and applied again after the CSV on the
+ * next load. The DirectoryIngest keeps the rows of its files in the loader's engine: the rows of
+ * new files are applied like appended rows, and those of changed or deleted files are taken back
+ * out as negative deltas.</p>
+ */
+public class DataUpdates {
+    private final DataLoader loader;
+
+    /**
+     * Creates the updates of the rows of a loader.
+     *
+     * @param loader The DataLoader whose rows are added to.
+     */
+    public DataUpdates(DataLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * append method applies a batch of new rows after the initial load, and publishes the
+     * updated totals. Only the new rows are processed.
+     *
+     * @param batch    The new rows.
+     * @param listener The Listener to publish the updated state to.
+     * @return A Future that can be cancelled before the batch is applied.
+     */
+    public Future<?> append(final RowBatch batch, final DataLoader.Listener listener) {
+        return loader.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = Metrics.get().begin(Metrics.Stage.APPEND);
+                try {
+                    AggregateEngine engine = loader.getEngine();
+                    if (engine == null) {
+                        throw new IllegalStateException("Rows can only be appended after a successful load");
+                    }
+                    NameTable countries = engine.getStore().getCountries();
+                    NameTable sites = engine.getStore().getSites();
+                    ExpiryFilter filter = loader.getExpiryFilter();
+                    long expiredBefore = filter.getExpiredRows();
+                    int rowsBefore = engine.getStore().size();
+                    for (int row = 0; row < batch.size(); row++) {
+                        int countryId = countries.intern(NameTable.NO_SCOPE, batch.getCountry(row));
+                        int siteId = sites.intern(countryId, batch.getSite(row));
+                        filter.onRow(countryId, siteId, batch.getTested(row), batch.getPositive(row),
+                                batch.getStartDate(row), batch.getEndDate(row));
+                    }
+                    Metrics.get().add(Metrics.Counter.ROWS_PARSED, batch.size());
+                    Metrics.get().add(Metrics.Counter.ROWS_EXPIRED, filter.getExpiredRows() - expiredBefore);
+                    loader.getPersistence().persistAppended(engine.getStore(), rowsBefore);
+                    listener.onStateChanged(loader.publish(0, -1, true));
+                } catch (Exception e) {
+                    loader.publishError(e, listener);
+                } finally {
+                    Metrics.get().end(Metrics.Stage.APPEND, start);
+                }
+            }
+        });
+    }
+
+    /**
+     * loadDirectory method brings a DirectoryIngest up to date in the background and adds its rows
+     * to those of the last load, then publishes the totals of both. It can be called again
+     * whenever the directory changes; only new and changed files are parsed, and only the rows of
+     * the files that changed are applied to the engine or taken back out of it. Rows can still be
+     * appended afterwards.
+     *
+     * @param ingest   The DirectoryIngest to refresh. It must only be used through this loader, and
+     *                 without fixed sources, since the loaded CSV is already part of the totals.
+     * @param listener The Listener to publish the updated state to.
+     * @return A Future that can be cancelled before the refresh runs.
+     */
+    public Future<?> loadDirectory(final DirectoryIngest ingest, final DataLoader.Listener listener) {
+        return loader.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = Metrics.get().begin(Metrics.Stage.DIRECTORY_REFRESH);
+                try {
+                    AggregateEngine engine = loader.getEngine();
+                    if (engine == null) {
+                        throw new IllegalStateException("A directory can only be loaded after a successful load");
+                    }
+                    // The ingest keeps the rows of its files in the engine, as deltas
+                    ingest.refresh(engine);
+                    loader.setDirectoryIngest(ingest);
+                    listener.onStateChanged(loader.publish(0, -1, true));
+                } catch (InterruptedIOException e) {
+                    // The refresh was cancelled, nothing left to publish
+                } catch (Exception e) {
+                    loader.publishError(e, listener);
+                } finally {
+                    Metrics.get().end(Metrics.Stage.DIRECTORY_REFRESH, start);
+                }
+            }
+        });
+    }
+}
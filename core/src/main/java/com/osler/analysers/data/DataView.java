@@ -0,0 +1,136 @@
+package com.osler.analysers.data;
+
+import com.osler.analysers.CountryData;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DataView is one immutable version of everything the UI shows: the totals, the country data and
+ * display models built from those same totals, the totals of every loaded row the reports are
+ * written from, and the trend series. Writers build the next version from the current one off the
+ * UI thread and publish it with a single atomic swap, see DataViewHolder, so a reader holding a
+ * DataView never sees the totals of one version next to the display models of another, and needs
+ * no lock.
+ *
+ * <p>The CountryData of a view are copies made for it and must not be modified.</p>
+ */
+public final class DataView {
+    private static final DataView EMPTY = new DataView(0, AggregateSnapshot.empty(),
+            Collections.<String, CountryData>emptyMap(), null, AggregateSnapshot.empty(), null);
+
+    private final long version;
+    private final AggregateSnapshot aggregates;
+    private final Map<String, CountryData> countryDataMap;
+    private final DisplayModel displayModel;
+    private final AggregateSnapshot loadedAggregates;
+    private final TrendSeries trends;
+
+    private DataView(long version, AggregateSnapshot aggregates, Map<String, CountryData> countryDataMap,
+                     DisplayModel displayModel, AggregateSnapshot loadedAggregates, TrendSeries trends) {
+        this.version = version;
+        this.aggregates = aggregates;
+        this.countryDataMap = countryDataMap;
+        this.displayModel = displayModel;
+        this.loadedAggregates = loadedAggregates;
+        this.trends = trends;
+    }
+
+    /**
+     * Returns the view shown before anything has been loaded.
+     *
+     * @return An empty view, version 0.
+     */
+    public static DataView empty() {
+        return EMPTY;
+    }
+
+    /**
+     * withTotals method returns the next version of this view, showing the given totals and their
+     * display models. The country data are taken from the same totals, for every country in them,
+     * so a country without rows in a time window shows zero rather than stale totals.
+     *
+     * @param displayModel The display models of the totals to show.
+     * @return The new view.
+     */
+    public DataView withTotals(DisplayModel displayModel) {
+        AggregateSnapshot totals = displayModel.getSnapshot();
+        Map<String, CountryData> countries = new LinkedHashMap<>();
+        for (int countryId = 0; countryId < totals.getCountryCount(); countryId++) {
+            countries.put(totals.getCountryName(countryId), totals.getCountryData(countryId));
+        }
+        return new DataView(version + 1, totals, Collections.unmodifiableMap(countries), displayModel,
+                loadedAggregates, trends);
+    }
+
+    /**
+     * withLoaded method returns the next version of this view, with the totals of every loaded
+     * row, whatever time window the totals shown are of.
+     *
+     * @param loadedAggregates The totals of a complete load.
+     * @return The new view.
+     */
+    public DataView withLoaded(AggregateSnapshot loadedAggregates) {
+        return new DataView(version + 1, aggregates, countryDataMap, displayModel, loadedAggregates, trends);
+    }
+
+    /**
+     * withTrends method returns the next version of this view, with new trend series.
+     *
+     * @param trends The trend series of the rows.
+     * @return The new view.
+     */
+    public DataView withTrends(TrendSeries trends) {
+        return new DataView(version + 1, aggregates, countryDataMap, displayModel, loadedAggregates, trends);
+    }
+
+    /**
+     * Returns the number of versions published before this one.
+     *
+     * @return The version, 0 for the empty view.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public AggregateSnapshot getAggregates() {
+        return aggregates;
+    }
+
+    /**
+     * Returns the data of every country in the totals, in the order of their ids.
+     *
+     * @return An unmodifiable map of country names to their data.
+     */
+    public Map<String, CountryData> getCountryDataMap() {
+        return countryDataMap;
+    }
+
+    /**
+     * Returns the display models of the totals.
+     *
+     * @return The DisplayModel, or null until the first totals are shown.
+     */
+    public DisplayModel getDisplayModel() {
+        return displayModel;
+    }
+
+    /**
+     * Returns the totals of every loaded row.
+     *
+     * @return The totals of the last complete load, empty until the data is loaded.
+     */
+    public AggregateSnapshot getLoadedAggregates() {
+        return loadedAggregates;
+    }
+
+    /**
+     * Returns the trend series of the rows.
+     *
+     * @return The TrendSeries, or null until the data is loaded.
+     */
+    public TrendSeries getTrends() {
+        return trends;
+    }
+}
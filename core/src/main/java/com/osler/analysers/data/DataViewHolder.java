@@ -0,0 +1,52 @@
+package com.osler.analysers.data;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * DataViewHolder holds the current DataView. Any thread may read it, and any thread may publish
+ * the next version: the update is applied to the current view and swapped in with a compare and
+ * set, and applied again to the newer view if another writer published in between, so no update
+ * is lost and neither readers nor writers take a lock.
+ */
+public class DataViewHolder {
+    /**
+     * Update builds the next version of a view. It may be applied more than once, so it must not
+     * have side effects.
+     */
+    public interface Update {
+        /**
+         * Called with the current view.
+         *
+         * @param current The current view.
+         * @return The next version of the view.
+         */
+        DataView apply(DataView current);
+    }
+
+    private final AtomicReference<DataView> current = new AtomicReference<>(DataView.empty());
+
+    /**
+     * get method returns the current view.
+     *
+     * @return The latest DataView published.
+     */
+    public DataView get() {
+        return current.get();
+    }
+
+    /**
+     * publish method applies an update to the current view and publishes the result.
+     *
+     * @param update The Update building the next version.
+     * @return The view published.
+     */
+    public DataView publish(Update update) {
+        while (true) {
+            DataView view = current.get();
+            DataView next = update.apply(view);
+            if (current.compareAndSet(view, next)) {
+                return next;
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * DatasetPersistence keeps what DataLoader loaded from the CSV across starts: the rows with their
+ * rollups in a RollupStore, where the rows appended after a load are kept as well, or without
+ * one, a SnapshotCache of the parsed store. Both are keyed by the checksum of the CSV and expiry
+ * sources computed by {@link #restore(StreamSource, StreamSource)}, so the later calls refer to
+ * the inputs of the last restore. When the RollupStore holds the rows of the same inputs, only
+ * their counters are read back, and the engine starts from their rollups without reading a row;
+ * otherwise the snapshot is restored if there is one.
+ *
+ * <p>Everything persisted is only a copy of the sources, so write failures are recorded in the
+ * Metrics rather than failing the load. Like the loader's other state, it is only used from the
+ * loader's tasks.</p>
+ */
+class DatasetPersistence {
+    /**
+     * The names the rows of the CSV and the appended rows are kept under in the RollupStore.
+     */
+    static final String DATA_SOURCE = "data.csv";
+    static final String APPENDED_SOURCE = "appended";
+
+    private final SnapshotCache snapshotCache;
+    private final long versionCode;
+    private final RollupStore rollupStore;
+
+    /**
+     * The checksum of the inputs of the last restore, and whether their rows were found in the
+     * RollupStore or their snapshot was restored.
+     */
+    private long checksum;
+    private boolean stored;
+    private boolean snapshotRestored;
+
+    /**
+     * Creates a DatasetPersistence over the given caches, either of which may be null.
+     *
+     * @param snapshotCache The cache the parsed store is saved to and restored from.
+     * @param versionCode   The app version code snapshots are keyed by.
+     * @param rollupStore   The store the rows and their rollups are kept in.
+     */
+    DatasetPersistence(SnapshotCache snapshotCache, long versionCode, RollupStore rollupStore) {
+        this.snapshotCache = snapshotCache;
+        this.versionCode = versionCode;
+        this.rollupStore = rollupStore;
+    }
+
+    RollupStore getRollupStore() {
+        return rollupStore;
+    }
+
+    /**
+     * restore method checksums the inputs and reads back the counters of the rows stored from the
+     * same inputs, with no rows, or else the snapshot taken of them.
+     *
+     * @param dataSource   The source of the Analysers CSV.
+     * @param expirySource The source of the calibration expiry information.
+     * @return The counters or snapshot, or null if neither the stored rows nor the snapshot match
+     * the inputs.
+     * @throws IOException If an input cannot be read.
+     */
+    SnapshotCache.Snapshot restore(StreamSource dataSource, StreamSource expirySource) throws IOException {
+        checksum = 0;
+        stored = false;
+        snapshotRestored = false;
+        if (snapshotCache == null && rollupStore == null) {
+            return null;
+        }
+        long start = Metrics.get().begin(Metrics.Stage.SNAPSHOT_RESTORE);
+        try {
+            checksum = SnapshotCache.checksum(dataSource, expirySource);
+            SnapshotCache.Snapshot counters = readStoredCounters();
+            stored = counters != null;
+            if (stored) {
+                return counters;
+            }
+            SnapshotCache.Snapshot snapshot = snapshotCache != null ? snapshotCache.load(versionCode, checksum) : null;
+            snapshotRestored = snapshot != null;
+            return snapshot;
+        } finally {
+            Metrics.get().end(Metrics.Stage.SNAPSHOT_RESTORE, start);
+        }
+    }
+
+    /**
+     * readStoredCounters method reads back the counters of the CSV's rows from the RollupStore if
+     * they were stored from the same inputs.
+     */
+    private SnapshotCache.Snapshot readStoredCounters() {
+        if (rollupStore == null) {
+            return null;
+        }
+        try {
+            if (rollupStore.getChecksum(DATA_SOURCE) == checksum) {
+                return rollupStore.readCounters(DATA_SOURCE);
+            }
+        } catch (IOException e) {
+            Metrics.get().recordError("Reading rows", e);
+        }
+        return null;
+    }
+
+    /**
+     * isStored method checks whether the last restore found the rows of the CSV in the
+     * RollupStore. The appended rows were then checked against the same expiry file, and are part
+     * of the rollups too.
+     */
+    boolean isStored() {
+        return stored;
+    }
+
+    /**
+     * readAppended method reads back the rows appended after earlier loads.
+     *
+     * @return The rows in the order they were appended, or null if there are none.
+     */
+    SiteDataStore readAppended() {
+        if (rollupStore == null) {
+            return null;
+        }
+        try {
+            SnapshotCache.Snapshot appended = rollupStore.readSource(APPENDED_SOURCE);
+            return appended != null && appended.getStore().size() > 0 ? appended.getStore() : null;
+        } catch (IOException e) {
+            Metrics.get().recordError("Reading rows", e);
+            return null;
+        }
+    }
+
+    /**
+     * restoreEngine method builds the engine over a restored store: from the rollups if the rows
+     * were found in the RollupStore, by summing the rows of the snapshot otherwise.
+     *
+     * @return The engine, or null if the rollups could not be read. The stored rows are then
+     * removed, so they are stored again once the CSV is parsed.
+     */
+    AggregateEngine restoreEngine(SiteDataStore store) {
+        if (!stored) {
+            // Sum the restored rows on all cores rather than row by row on this thread
+            return new AggregateEngine(store, new ParallelAggregator(ForkJoinPool.commonPool()));
+        }
+        try {
+            return new AggregateEngine(store, rollupStore);
+        } catch (IOException e) {
+            Metrics.get().recordError("Reading rollups", e);
+            stored = false;
+            try {
+                rollupStore.removeSource(DATA_SOURCE);
+            } catch (IOException removeError) {
+                Metrics.get().recordError("Storing rows", removeError);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * persist method stores the rows of the loaded CSV in the RollupStore unless they were stored
+     * from the same inputs before. Without a RollupStore, or if storing fails, it writes a
+     * snapshot of them instead, unless they were restored from one. It runs after the totals are
+     * published.
+     *
+     * @param store         The rows of the CSV.
+     * @param malformedRows The number of malformed lines found while loading.
+     * @param expiredRows   The number of rows skipped for expired calibration.
+     * @param diagnostics   The diagnostic messages reported while loading.
+     * @return Whether the rows are kept in the RollupStore.
+     */
+    boolean persist(SiteDataStore store, int malformedRows, long expiredRows, List<String> diagnostics) {
+        long start = Metrics.get().begin(Metrics.Stage.PERSIST);
+        try {
+            if (rollupStore != null) {
+                try {
+                    if (rollupStore.getChecksum(DATA_SOURCE) != checksum) {
+                        rollupStore.replaceSource(DATA_SOURCE, checksum, store, malformedRows, expiredRows,
+                                diagnostics);
+                    }
+                    return true;
+                } catch (IOException e) {
+                    Metrics.get().recordError("Storing rows", e);
+                }
+            }
+            if (snapshotCache != null && !snapshotRestored) {
+                try {
+                    snapshotCache.save(store, malformedRows, expiredRows, diagnostics, versionCode, checksum);
+                } catch (IOException e) {
+                    // The snapshot is only a cache, the next start reads the rows again
+                    snapshotCache.delete();
+                }
+            }
+            return false;
+        } finally {
+            Metrics.get().end(Metrics.Stage.PERSIST, start);
+        }
+    }
+
+    /**
+     * persistAppended method stores the rows an append added to the store, from the given row on.
+     *
+     * @return Whether the rows are kept in the RollupStore.
+     */
+    boolean persistAppended(SiteDataStore store, int fromRow) {
+        if (rollupStore == null) {
+            return false;
+        }
+        if (fromRow == store.size()) {
+            return true;
+        }
+        long start = Metrics.get().begin(Metrics.Stage.PERSIST);
+        try {
+            rollupStore.appendRows(APPENDED_SOURCE, store, fromRow);
+            return true;
+        } catch (IOException e) {
+            Metrics.get().recordError("Storing rows", e);
+            return false;
+        } finally {
+            Metrics.get().end(Metrics.Stage.PERSIST, start);
+        }
+    }
+
+    /**
+     * replaceAppended method stores the rows of the store from the given row on as the appended
+     * rows, in place of those stored before.
+     *
+     * @return Whether the rows are kept in the RollupStore.
+     */
+    boolean replaceAppended(SiteDataStore store, int fromRow) {
+        if (rollupStore == null) {
+            return false;
+        }
+        long start = Metrics.get().begin(Metrics.Stage.PERSIST);
+        try {
+            rollupStore.removeSource(APPENDED_SOURCE);
+            if (fromRow < store.size()) {
+                rollupStore.appendRows(APPENDED_SOURCE, store, fromRow);
+            }
+            return true;
+        } catch (IOException e) {
+            Metrics.get().recordError("Storing rows", e);
+            return false;
+        } finally {
+            Metrics.get().end(Metrics.Stage.PERSIST, start);
+        }
+    }
+
+    /**
+     * getLastRowId method returns the id of the last row stored in the RollupStore.
+     *
+     * @return The id, or -1 if there is no RollupStore or it cannot be read.
+     */
+    long getLastRowId() {
+        if (rollupStore == null) {
+            return -1;
+        }
+        try {
+            return rollupStore.getLastRowId();
+        } catch (IOException e) {
+            Metrics.get().recordError("Reading rows", e);
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * DerivedIndexes keeps what DataLoader derives from the rows besides their totals: the
+ * TimeWindowIndex behind window queries and the TrendSeries, and the checks of an AlertEngine.
+ * When rows were appended to the store they were built from, the index and the series are
+ * extended with those rows only; they are rebuilt when the store was replaced or rows were
+ * removed from it, e.g. those of a file a DirectoryIngest took back out. The last window
+ * queried is kept until the rows change, so the same query again costs nothing. The range of
+ * dates in the rows is kept apart from the index, so it is known without querying a window. The
+ * stages are timed in the Metrics.
+ *
+ * <p>When the loaded rows are kept in a RollupStore rather than in the store, see
+ * {@link #setStoredRows(RollupStore, long)}, the store only holds the rows added since, and the
+ * stored rows are added from the RollupStore: windows by site and end date, the trend series from
+ * the daily rollups, and the alert rules start from the latest ALERT_SEED_ROWS rows of every site.
+ * Reading them is recorded in the Metrics if it fails, and the rows in memory are used alone.</p>
+ *
+ * <p>Like the loader's other state, it is only used from the loader's tasks, and the store must
+ * not be written to while it is read.</p>
+ */
+class DerivedIndexes {
+    /**
+     * The number of stored rows of each site the alert rules start from. The baselines weigh the
+     * newest row by 0.1, so older rows have next to no weight left.
+     */
+    static final int ALERT_SEED_ROWS = 64;
+
+    private RollupStore rollupStore;
+    private long lastRowId;
+    private long[] storedDateRange;
+    private TrendSeries storedTrends;
+    private SiteDataStore alertStore;
+    private SiteDataStore alertSource;
+    private long alertRemovedRows;
+    private int alertSeedRows;
+
+    private TimeWindowIndex windowIndex;
+    private SiteDataStore windowStore;
+    private long windowRemovedRows;
+    private WindowState lastWindow;
+    private SiteDataStore rangeStore;
+    private long rangeRemovedRows;
+    private int rangeRowCount;
+    private long rangeMinDate;
+    private long rangeMaxDate;
+    private TrendSeries trendSeries;
+    private SiteDataStore trendStore;
+    private long trendRemovedRows;
+
+    /**
+     * setStoredRows method adds the rows of a RollupStore up to the given row id to those of the
+     * store, or stops adding stored rows. Everything derived before is dropped.
+     *
+     * @param rollupStore The store the loaded rows are kept in, or null if they are all in memory.
+     * @param lastRowId   The id of the last stored row that is not also held in memory.
+     */
+    void setStoredRows(RollupStore rollupStore, long lastRowId) {
+        this.rollupStore = rollupStore;
+        this.lastRowId = lastRowId;
+        windowIndex = null;
+        windowStore = null;
+        lastWindow = null;
+        rangeStore = null;
+        trendSeries = null;
+        trendStore = null;
+        storedTrends = null;
+        alertStore = null;
+        alertSource = null;
+        storedDateRange = null;
+        if (rollupStore != null) {
+            try {
+                storedDateRange = rollupStore.readDateRange();
+            } catch (IOException e) {
+                Metrics.get().recordError("Reading rows", e);
+            }
+        }
+    }
+
+    /**
+     * queryWindow method computes the totals of the measurements of the store overlapping
+     * [from, to].
+     *
+     * @param store The rows.
+     * @param from  The start of the window in epoch seconds, inclusive.
+     * @param to    The end of the window in epoch seconds, inclusive.
+     * @return The WindowState.
+     */
+    WindowState queryWindow(SiteDataStore store, long from, long to) {
+        long start = Metrics.get().begin(Metrics.Stage.WINDOW_QUERY);
+        try {
+            if (windowIndex == null || windowStore != store || windowRemovedRows != store.getRemovedRows()) {
+                windowIndex = TimeWindowIndex.build(store);
+                windowStore = store;
+                windowRemovedRows = store.getRemovedRows();
+            } else if (windowIndex.getRowCount() != store.size()) {
+                windowIndex = windowIndex.extend(store);
+            } else if (lastWindow != null && lastWindow.getFrom() == from && lastWindow.getTo() == to) {
+                return lastWindow;
+            }
+            AggregateSnapshot totals = windowIndex.query(from, to);
+            long minDate = windowIndex.getMinDate();
+            long maxDate = windowIndex.getMaxDate();
+            if (rollupStore != null) {
+                totals = addStoredWindow(store, totals, from, to);
+                if (storedDateRange != null) {
+                    boolean held = windowIndex.getRowCount() > 0;
+                    minDate = held ? Math.min(minDate, storedDateRange[0]) : storedDateRange[0];
+                    maxDate = held ? Math.max(maxDate, storedDateRange[1]) : storedDateRange[1];
+                }
+            }
+            lastWindow = new WindowState(from, to, minDate, maxDate, totals);
+            return lastWindow;
+        } finally {
+            Metrics.get().end(Metrics.Stage.WINDOW_QUERY, start);
+        }
+    }
+
+    /**
+     * getDateRange method returns the earliest and the latest StartDate or EndDate of the rows of
+     * the store, and of the stored rows. Only the rows appended since the last call are read.
+     *
+     * @param store The rows.
+     * @return The {earliest, latest} date in epoch seconds, or null if there are no rows.
+     */
+    long[] getDateRange(SiteDataStore store) {
+        if (rangeStore != store || rangeRemovedRows != store.getRemovedRows()) {
+            rangeStore = store;
+            rangeRemovedRows = store.getRemovedRows();
+            rangeRowCount = 0;
+            rangeMinDate = storedDateRange != null ? storedDateRange[0] : Long.MAX_VALUE;
+            rangeMaxDate = storedDateRange != null ? storedDateRange[1] : Long.MIN_VALUE;
+        }
+        long[] startDates = store.startDateColumn();
+        long[] endDates = store.endDateColumn();
+        for (int row = rangeRowCount; row < store.size(); row++) {
+            rangeMinDate = Math.min(rangeMinDate, Math.min(startDates[row], endDates[row]));
+            rangeMaxDate = Math.max(rangeMaxDate, Math.max(startDates[row], endDates[row]));
+        }
+        rangeRowCount = store.size();
+        return rangeMinDate <= rangeMaxDate ? new long[]{rangeMinDate, rangeMaxDate} : null;
+    }
+
+    /**
+     * getTrends method returns the trend series of the store.
+     *
+     * @param store The rows.
+     * @return The TrendSeries.
+     */
+    TrendSeries getTrends(SiteDataStore store) {
+        boolean rebuild = trendSeries == null || trendStore != store || trendRemovedRows != store.getRemovedRows();
+        if (rebuild || trendSeries.getRowCount() != store.size()) {
+            long start = Metrics.get().begin(Metrics.Stage.TREND_BUILD);
+            try {
+                TrendSeries stored = rebuild ? getStoredTrends(store) : null;
+                trendSeries = !rebuild ? trendSeries.extend(store)
+                        : stored != null ? stored.extend(store) : TrendSeries.build(store);
+                trendStore = store;
+                trendRemovedRows = store.getRemovedRows();
+            } finally {
+                Metrics.get().end(Metrics.Stage.TREND_BUILD, start);
+            }
+        }
+        return trendSeries;
+    }
+
+    /**
+     * checkAlerts method runs the rules of an AlertEngine over the rows of the store added since
+     * its last check.
+     *
+     * @param alertEngine The AlertEngine to run.
+     * @param store       The rows.
+     * @return The new alerts, in end date order.
+     */
+    List<Alert> checkAlerts(AlertEngine alertEngine, SiteDataStore store) {
+        long start = Metrics.get().begin(Metrics.Stage.ALERT_CHECK);
+        try {
+            List<Alert> alerts = alertEngine.evaluate(getAlertRows(store));
+            Metrics.get().add(Metrics.Counter.ALERTS_RAISED, alerts.size());
+            return alerts;
+        } finally {
+            Metrics.get().end(Metrics.Stage.ALERT_CHECK, start);
+        }
+    }
+
+    /**
+     * addStoredWindow method adds the stored rows overlapping [from, to] to the window totals of
+     * the rows in memory, by site. Their names are those of the store's dictionaries.
+     */
+    private AggregateSnapshot addStoredWindow(SiteDataStore store, AggregateSnapshot held, long from, long to) {
+        final NameTable countries = store.getCountries();
+        final NameTable sites = store.getSites();
+        final long[] siteTested = new long[sites.size()];
+        final long[] sitePositive = new long[siteTested.length];
+        final int[] siteRows = new int[siteTested.length];
+        for (int site = 0; site < held.getSiteCount(); site++) {
+            siteTested[site] = held.getSiteTested(site);
+            sitePositive[site] = held.getSitePositive(site);
+            siteRows[site] = held.getSiteRowCount(site);
+        }
+        try {
+            rollupStore.readWindow(from, to, lastRowId, new RollupStore.TotalsHandler() {
+                @Override
+                public void onCountryTotals(String country, long tested, long positive, int rows) {
+                }
+
+                @Override
+                public void onSiteTotals(String country, String site, long tested, long positive, int rows) {
+                    // The names of the stored rows were interned when the engine started from them
+                    int countryId = countries.find(NameTable.NO_SCOPE, country);
+                    int siteId = countryId < 0 ? -1 : sites.find(countryId, site);
+                    if (siteId >= 0 && siteId < siteTested.length) {
+                        siteTested[siteId] += tested;
+                        sitePositive[siteId] += positive;
+                        siteRows[siteId] += rows;
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Metrics.get().recordError("Reading rows", e);
+        }
+
+        int countryCount = countries.size();
+        String[] countryNames = new String[countryCount];
+        for (int id = 0; id < countryCount; id++) {
+            countryNames[id] = countries.getName(id);
+        }
+        long[] countryTested = new long[countryCount];
+        long[] countryPositive = new long[countryCount];
+        int[] countryRows = new int[countryCount];
+        String[] siteNames = new String[siteTested.length];
+        int[] siteCountries = new int[siteTested.length];
+        long globalTested = 0;
+        long globalPositive = 0;
+        int windowRows = 0;
+        for (int site = 0; site < siteTested.length; site++) {
+            siteNames[site] = sites.getName(site);
+            int country = sites.getScope(site);
+            siteCountries[site] = country;
+            countryTested[country] += siteTested[site];
+            countryPositive[country] += sitePositive[site];
+            countryRows[country] += siteRows[site];
+            globalTested += siteTested[site];
+            globalPositive += sitePositive[site];
+            windowRows += siteRows[site];
+        }
+        return new AggregateSnapshot(held.getVersion(), windowRows, countryNames, countryTested, countryPositive,
+                countryRows, siteNames, siteCountries, siteTested, sitePositive, siteRows, globalTested,
+                globalPositive);
+    }
+
+    /**
+     * getStoredTrends method returns the trend series of the stored rows, read from their daily
+     * rollups the first time, or null if there are none.
+     */
+    private TrendSeries getStoredTrends(SiteDataStore store) {
+        if (rollupStore == null) {
+            return null;
+        }
+        if (storedTrends == null) {
+            final SiteDataStore days = new SiteDataStore(store.getCountries(), store.getSites());
+            try {
+                rollupStore.readDayTotals(lastRowId, new RollupStore.DayTotalsHandler() {
+                    @Override
+                    public void onDayTotals(String country, String site, long day, long tested, long positive) {
+                        // A site tests far fewer than 2^31 samples a day
+                        long start = Granularity.DAY.getBucketStart(day);
+                        days.append(country, site, (int) tested, (int) positive, start, start);
+                    }
+                });
+            } catch (IOException e) {
+                Metrics.get().recordError("Reading rows", e);
+                return null;
+            }
+            storedTrends = TrendSeries.ofDays(days);
+        }
+        return storedTrends;
+    }
+
+    /**
+     * getAlertRows method returns the rows the alert rules run over: the store itself, or with
+     * stored rows, the latest stored rows of every site followed by a copy of the rows of the
+     * store, which is kept up to date with it.
+     */
+    private SiteDataStore getAlertRows(SiteDataStore store) {
+        if (rollupStore == null) {
+            return store;
+        }
+        if (alertStore == null || alertSource != store) {
+            alertStore = new SiteDataStore(store.getCountries(), store.getSites());
+            try {
+                rollupStore.readLatestRows(ALERT_SEED_ROWS, lastRowId, alertStore);
+            } catch (IOException e) {
+                Metrics.get().recordError("Reading rows", e);
+            }
+            alertSeedRows = alertStore.size();
+            alertSource = store;
+            alertRemovedRows = store.getRemovedRows();
+        } else if (alertRemovedRows != store.getRemovedRows()) {
+            // Rows were taken out of the store, so its rows are copied again
+            alertStore.removeRows(alertSeedRows, alertStore.size());
+            alertRemovedRows = store.getRemovedRows();
+        }
+        int copied = alertStore.size() - alertSeedRows;
+        if (copied < store.size()) {
+            alertStore.addAll(store, copied, store.size());
+        }
+        return alertStore;
+    }
+}
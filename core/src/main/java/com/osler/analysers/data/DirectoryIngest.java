@@ -0,0 +1,638 @@
+package com.osler.analysers.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * DirectoryIngest keeps the totals of every CSV file in a directory, e.g. one file per lab per
+ * day, up to date as files are added, replaced or deleted. Files converted to the
+ * BinaryRowFormat (.anrb) are read too. The rows of every file are appended to the store of an
+ * AggregateEngine, which keeps their totals. A manifest records the size, last modified time and
+ * CRC32 of every file it has parsed, together with where the file's rows are in the store, so
+ * {@link #refresh()} only parses files that are new or changed and takes the rows of a changed or
+ * deleted file back out of the engine as negative deltas. A refresh costs a directory listing plus
+ * time proportional to the rows of the files that changed, and a copy of the rows stored after a
+ * file taken out.
+ *
+ * <p>A file whose size and modification time are unchanged is not read. A file that was only
+ * touched is read once to compare its checksum, and keeps its previous contribution. Fixed inputs
+ * such as the bundled CSV can be added with {@link #addSource(String, StreamSource)}; they are
+ * parsed on the first refresh only.</p>
+ *
+ * <p>Given a cache directory, the manifest is saved there after every refresh that changed it,
+ * with the rows of each file as a SnapshotCache file, and read back on the first refresh of the
+ * next start. Files unchanged since are then not parsed again, and the fixed sources are only
+ * checksummed. The saved manifest is keyed by the app version code and the checksum of the expiry
+ * file, since the rows kept depend on both.</p>
+ *
+ * <p>A DataLoader refreshes the ingest into the engine of its own rows instead, so the rows are
+ * only held once; see {@link #refresh(AggregateEngine)}.</p>
+ *
+ * <p>Like SiteDataStore, a DirectoryIngest has a single writer. Its snapshots and states may be
+ * read from any thread.</p>
+ */
+public class DirectoryIngest {
+    /**
+     * The file name suffixes of the CSV and BinaryRowFormat files picked up from the directory.
+     */
+    private static final String CSV_SUFFIX = ".csv";
+    private static final String BINARY_SUFFIX = ".anrb";
+
+    /**
+     * The layout of the saved manifest (big-endian): magic, format version, version code, expiry
+     * checksum, entry count, and the key, size, last modified time and CRC32 of each entry. The
+     * rows of an entry are saved in the file named after its key, keyed by the CRC32.
+     */
+    private static final int MAGIC = 0x414e4d46; // "ANMF"
+    private static final int FORMAT_VERSION = 1;
+    private static final String MANIFEST_FILE = "manifest";
+    private static final String SOURCE_PREFIX = "source.";
+    private static final String FILE_PREFIX = "file.";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private final File directory;
+    private final File cacheDirectory;
+    private final long versionCode;
+    private final List<String> sourceNames = new ArrayList<>();
+    private final List<StreamSource> sources = new ArrayList<>();
+    private StreamSource expirySource;
+
+    /**
+     * The engine the rows of every file are appended to, and taken back out of.
+     */
+    private AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+
+    private CalibrationIndex calibrationIndex;
+    private ParseDiagnostics expiryDiagnostics = new ParseDiagnostics();
+    private final List<FileEntry> sourceEntries = new ArrayList<>();
+
+    /**
+     * The manifest of the files parsed from the directory, by file name, in the order they were
+     * added or last replaced.
+     */
+    private final Map<String, FileEntry> manifest = new LinkedHashMap<>();
+    private boolean manifestChanged;
+    private long expiryChecksum;
+    private long expiredRows;
+
+    /**
+     * Creates an ingest over the CSV files in the given directory. The directory does not have to
+     * exist yet.
+     *
+     * @param directory The directory to read the CSV files from.
+     */
+    public DirectoryIngest(File directory) {
+        this(directory, null, 0);
+    }
+
+    /**
+     * Creates an ingest over the CSV files in the given directory that saves its manifest to a
+     * cache directory, so a later start only parses the files that changed in between.
+     *
+     * @param directory      The directory to read the CSV files from.
+     * @param cacheDirectory The directory to save the manifest to. Neither has to exist yet.
+     * @param versionCode    The app version code, so an app update invalidates the saved manifest.
+     */
+    public DirectoryIngest(File directory, File cacheDirectory, long versionCode) {
+        this.directory = directory;
+        this.cacheDirectory = cacheDirectory;
+        this.versionCode = versionCode;
+    }
+
+    /**
+     * addSource method adds a CSV that is not part of the directory, e.g. the bundled dataset.
+     * Its rows come before those of the directory.
+     *
+     * @param name   The name diagnostics refer to the source by.
+     * @param source The source of the CSV.
+     */
+    public void addSource(String name, StreamSource source) {
+        sourceNames.add(name);
+        sources.add(source);
+    }
+
+    /**
+     * setExpirySource method sets the calibration expiry file the rows are checked against. It is
+     * read on the first refresh. Without one, no site expires.
+     *
+     * @param expirySource The source of the calibration expiry information, or null.
+     */
+    public void setExpirySource(StreamSource expirySource) {
+        this.expirySource = expirySource;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * refresh method brings the totals up to date with the directory: files that were deleted
+     * are taken out, and new or changed files are parsed and added.
+     *
+     * @return The number of files added, replaced or removed.
+     * @throws IOException If a fixed source cannot be read. Unreadable files in the directory are
+     *                     reported as diagnostics instead.
+     */
+    public int refresh() throws IOException {
+        return refresh(engine);
+    }
+
+    /**
+     * refresh method brings the totals up to date like {@link #refresh()}, with the rows of every
+     * file in the given engine. The first time an engine is given, the rows of the files already
+     * counted are copied into it from the previous one; after that, only the rows of the files
+     * that changed are added or taken out. The ingest's snapshots and states then include the
+     * other rows of the engine.
+     *
+     * @param target The engine to keep the rows of the files in. It must only be written to by
+     *               the ingest's writer.
+     * @return The number of files added, replaced or removed.
+     * @throws IOException If a fixed source cannot be read.
+     */
+    int refresh(AggregateEngine target) throws IOException {
+        if (target != engine) {
+            moveRows(target);
+        }
+        int changes = 0;
+
+        // Step 1: Read the expiry file, the saved manifest and the fixed sources the first time
+        if (calibrationIndex == null) {
+            expiryDiagnostics = new ParseDiagnostics();
+            calibrationIndex = expirySource != null
+                    ? DataLoader.readExpiry(expirySource, expiryDiagnostics) : new CalibrationIndex();
+            Map<String, FileEntry> saved = readManifest();
+            int firstRow = engine.getStore().size();
+            try {
+                for (int i = 0; i < sources.size(); i++) {
+                    String key = SOURCE_PREFIX + sourceNames.get(i);
+                    FileEntry entry = saved.get(key);
+                    if (entry == null || entry.crc != SnapshotCache.checksum(sources.get(i)) || !restore(key, entry)) {
+                        entry = parse(sourceNames.get(i), sources.get(i));
+                        manifestChanged = true;
+                    }
+                    sourceEntries.add(entry);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Start over on the next refresh
+                calibrationIndex = null;
+                sourceEntries.clear();
+                expiredRows = 0;
+                engine.removeRows(firstRow, engine.getStore().size());
+                throw e;
+            }
+            changes += sources.size();
+
+            // The files saved are checked against the directory below, like those of an earlier refresh
+            for (Map.Entry<String, FileEntry> entry : saved.entrySet()) {
+                if (entry.getKey().startsWith(FILE_PREFIX) && restore(entry.getKey(), entry.getValue())) {
+                    manifest.put(entry.getKey().substring(FILE_PREFIX.length()), entry.getValue());
+                    changes++;
+                }
+            }
+        }
+
+        // Step 2: Take out the files that are gone
+        File[] files = listCsvFiles();
+        Map<String, File> current = new TreeMap<>();
+        for (File file : files) {
+            current.put(file.getName(), file);
+        }
+        Iterator<Map.Entry<String, FileEntry>> iterator = manifest.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, FileEntry> entry = iterator.next();
+            if (!current.containsKey(entry.getKey())) {
+                takeOut(entry.getValue());
+                iterator.remove();
+                manifestChanged = true;
+                changes++;
+            }
+        }
+
+        // Step 3: Parse the files that are new or whose size or modification time changed
+        for (File file : current.values()) {
+            FileEntry previous = manifest.get(file.getName());
+            long size = file.length();
+            long lastModified = file.lastModified();
+            if (previous != null && previous.size == size && previous.lastModified == lastModified) {
+                continue;
+            }
+            if (previous != null && previous.size == size && previous.crc == checksum(file)) {
+                // Only touched, the rows already counted are still right
+                previous.lastModified = lastModified;
+                manifestChanged = true;
+                continue;
+            }
+            if (previous != null) {
+                takeOut(previous);
+                manifest.remove(file.getName());
+            }
+            manifest.put(file.getName(), parse(file, size, lastModified));
+            manifestChanged = true;
+            changes++;
+        }
+
+        if (manifestChanged && cacheDirectory != null) {
+            saveManifest();
+        }
+        manifestChanged = false;
+        return changes;
+    }
+
+    /**
+     * moveRows method copies the rows of every file counted so far from the current engine into
+     * another one, which the ingest uses from then on.
+     */
+    private void moveRows(AggregateEngine target) {
+        SiteDataStore rows = engine.getStore();
+        List<FileEntry> entries = new ArrayList<>(sourceEntries);
+        entries.addAll(manifest.values());
+        for (FileEntry entry : entries) {
+            int fromRow = target.getStore().size();
+            target.addAll(rows, entry.fromRow, entry.fromRow + entry.rowCount);
+            entry.fromRow = fromRow;
+        }
+        engine = target;
+    }
+
+    /**
+     * takeOut method takes the rows of a file back out of the engine, and moves the rows of the
+     * files stored after them down.
+     */
+    private void takeOut(FileEntry entry) {
+        engine.removeRows(entry.fromRow, entry.fromRow + entry.rowCount);
+        for (FileEntry other : sourceEntries) {
+            if (other.fromRow > entry.fromRow) {
+                other.fromRow -= entry.rowCount;
+            }
+        }
+        for (FileEntry other : manifest.values()) {
+            if (other.fromRow > entry.fromRow) {
+                other.fromRow -= entry.rowCount;
+            }
+        }
+        expiredRows -= entry.expiredRows;
+    }
+
+    /**
+     * readManifest method reads back the manifest saved by an earlier start. The rows of an entry
+     * are only read once it is restored. A manifest saved for another app version or expiry file
+     * is ignored.
+     *
+     * @return The entries by key, in the order they were saved.
+     */
+    private Map<String, FileEntry> readManifest() {
+        Map<String, FileEntry> saved = new LinkedHashMap<>();
+        if (cacheDirectory == null) {
+            return saved;
+        }
+        long start = Metrics.get().begin(Metrics.Stage.SNAPSHOT_RESTORE);
+        try {
+            expiryChecksum = expirySource != null ? SnapshotCache.checksum(expirySource) : 0;
+            File file = new File(cacheDirectory, MANIFEST_FILE);
+            if (!file.isFile()) {
+                return saved;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readLong() != versionCode
+                        || in.readLong() != expiryChecksum) {
+                    return saved;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    long size = in.readLong();
+                    long lastModified = in.readLong();
+                    FileEntry entry = new FileEntry();
+                    entry.size = size;
+                    entry.lastModified = lastModified;
+                    entry.crc = in.readLong();
+                    saved.put(key, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // The files are parsed again
+            Metrics.get().recordError("Reading manifest", e);
+            saved.clear();
+        } finally {
+            Metrics.get().end(Metrics.Stage.SNAPSHOT_RESTORE, start);
+        }
+        return saved;
+    }
+
+    /**
+     * restore method reads back the rows saved for an entry of the manifest and appends them to
+     * the engine, interning their names into its store's dictionaries.
+     *
+     * @return false if the entry's snapshot is missing or does not match its CRC32.
+     */
+    private boolean restore(String key, FileEntry entry) {
+        SnapshotCache.Snapshot snapshot = new SnapshotCache(snapshotFile(key)).load(versionCode, entry.crc);
+        if (snapshot == null) {
+            return false;
+        }
+        entry.fromRow = engine.getStore().size();
+        engine.addAll(snapshot.getStore(), 0, snapshot.getStore().size());
+        entry.rowCount = snapshot.getStore().size();
+        entry.diagnostics.restore(snapshot.getMalformedRows(), snapshot.getDiagnostics());
+        entry.expiredRows = snapshot.getExpiredRows();
+        entry.saved = true;
+        expiredRows += entry.expiredRows;
+        return true;
+    }
+
+    /**
+     * saveManifest method saves the rows of the entries parsed since the last save, then replaces
+     * the manifest and deletes the rows of the entries that are gone. The manifest is only a
+     * cache, so a failure is recorded in the Metrics and the next start parses the files again.
+     */
+    private void saveManifest() {
+        long start = Metrics.get().begin(Metrics.Stage.PERSIST);
+        try {
+            if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+                throw new IOException("Could not create " + cacheDirectory);
+            }
+            Map<String, FileEntry> entries = new LinkedHashMap<>();
+            for (int i = 0; i < sourceEntries.size(); i++) {
+                entries.put(SOURCE_PREFIX + sourceNames.get(i), sourceEntries.get(i));
+            }
+            for (Map.Entry<String, FileEntry> entry : manifest.entrySet()) {
+                entries.put(FILE_PREFIX + entry.getKey(), entry.getValue());
+            }
+
+            // Step 1: Save the rows first, a manifest never refers to rows that are not saved yet
+            SiteDataStore store = engine.getStore();
+            for (Map.Entry<String, FileEntry> entry : entries.entrySet()) {
+                FileEntry fileEntry = entry.getValue();
+                if (!fileEntry.saved) {
+                    SiteDataStore rows = new SiteDataStore(store.getCountries(), store.getSites());
+                    rows.addAll(store, fileEntry.fromRow, fileEntry.fromRow + fileEntry.rowCount);
+                    new SnapshotCache(snapshotFile(entry.getKey())).save(rows,
+                            fileEntry.diagnostics.getMalformedCount(), fileEntry.expiredRows,
+                            fileEntry.diagnostics.getMessages(), versionCode, fileEntry.crc);
+                    fileEntry.saved = true;
+                }
+            }
+
+            // Step 2: Replace the manifest
+            File file = new File(cacheDirectory, MANIFEST_FILE);
+            File tempFile = new File(file.getPath() + ".tmp");
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(versionCode);
+                out.writeLong(expiryChecksum);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, FileEntry> entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().size);
+                    out.writeLong(entry.getValue().lastModified);
+                    out.writeLong(entry.getValue().crc);
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Could not move manifest into place: " + file);
+            }
+
+            // Step 3: Delete the rows of the files that are gone
+            File[] files = cacheDirectory.listFiles();
+            if (files != null) {
+                for (File saved : files) {
+                    String name = saved.getName();
+                    if (name.endsWith(SNAPSHOT_SUFFIX)
+                            && !entries.containsKey(name.substring(0, name.length() - SNAPSHOT_SUFFIX.length()))) {
+                        saved.delete();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Metrics.get().recordError("Saving manifest", e);
+        } finally {
+            Metrics.get().end(Metrics.Stage.PERSIST, start);
+        }
+    }
+
+    private File snapshotFile(String key) {
+        return new File(cacheDirectory, key + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * hasFiles method checks whether the directory holds any file the ingest would read, without
+     * reading them.
+     *
+     * @return true if there is at least one CSV or binary file.
+     */
+    public boolean hasFiles() {
+        return listCsvFiles().length > 0;
+    }
+
+    private File[] listCsvFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> csvFiles = new ArrayList<>(files.length);
+        for (File file : files) {
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            if (file.isFile() && (name.endsWith(CSV_SUFFIX) || name.endsWith(BINARY_SUFFIX))) {
+                csvFiles.add(file);
+            }
+        }
+        return csvFiles.toArray(new File[0]);
+    }
+
+    /**
+     * parse method reads a file of the directory, computing its checksum on the way. A file that
+     * cannot be read contributes no rows and is tried again once it changes.
+     */
+    private FileEntry parse(File file, long size, long lastModified) {
+        FileEntry entry = new FileEntry();
+        CRC32 crc = new CRC32();
+        try {
+            InputStream in = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc);
+            try {
+                parse(entry, file.getName(), in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Take out the rows read before the error
+            engine.removeRows(entry.fromRow, engine.getStore().size());
+            expiredRows -= entry.expiredRows;
+            entry.rowCount = 0;
+            entry.expiredRows = 0;
+            entry.diagnostics = new ParseDiagnostics();
+            entry.diagnostics.report(file.getName(), 0, "could not be read: " + e.getMessage());
+        }
+        entry.size = size;
+        entry.lastModified = lastModified;
+        entry.crc = crc.getValue();
+        return entry;
+    }
+
+    /**
+     * parse method reads a fixed source, computing its checksum on the way.
+     */
+    private FileEntry parse(String name, StreamSource source) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new CheckedInputStream(source.open(), crc);
+        FileEntry entry = new FileEntry();
+        try {
+            parse(entry, name, in);
+        } finally {
+            in.close();
+        }
+        entry.crc = crc.getValue();
+        return entry;
+    }
+
+    /**
+     * parse method appends the rows of a file that are still calibrated to the engine, and records
+     * where they are in its store.
+     */
+    private void parse(FileEntry entry, String name, InputStream in) throws IOException {
+        SiteDataStore store = engine.getStore();
+        ExpiryFilter expiryFilter = new ExpiryFilter(calibrationIndex, store.getSites(), engine);
+        DataLoader.CountingInputStream counting = new DataLoader.CountingInputStream(in);
+        entry.fromRow = store.size();
+        long start = Metrics.get().begin(Metrics.Stage.PARSE);
+        try {
+            BinaryRowFormat.parse(counting, name, store.getCountries(), store.getSites(), entry.diagnostics,
+                    expiryFilter);
+        } finally {
+            entry.rowCount = store.size() - entry.fromRow;
+            entry.expiredRows = expiryFilter.getExpiredRows();
+            expiredRows += entry.expiredRows;
+            Metrics.get().end(Metrics.Stage.PARSE, start);
+        }
+        DataLoader.countRows(entry.rowCount, entry.expiredRows, entry.diagnostics.getMalformedCount(),
+                counting.getCount());
+    }
+
+    /**
+     * checksum method computes the CRC32 of a file without parsing it, or -1 if it cannot be read.
+     */
+    private static long checksum(final File file) {
+        try {
+            return SnapshotCache.checksum(new StreamSource() {
+                @Override
+                public InputStream open() throws IOException {
+                    return new FileInputStream(file);
+                }
+            });
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the number of files from the directory currently counted.
+     *
+     * @return The number of files in the manifest.
+     */
+    public int getFileCount() {
+        return manifest.size();
+    }
+
+    /**
+     * snapshot method copies the current totals of the engine into an immutable AggregateSnapshot.
+     * Countries and sites whose files were all removed are kept with no rows.
+     *
+     * @return The snapshot.
+     */
+    public AggregateSnapshot snapshot() {
+        return engine.snapshot();
+    }
+
+    /**
+     * getState method returns the current totals as a complete LoadState, with the diagnostics of
+     * the expiry file, the fixed sources and every file in the manifest. The store is left out,
+     * since the next refresh writes to it; use getStore when the rows are needed.
+     *
+     * @return The LoadState.
+     */
+    public LoadState getState() {
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        diagnostics.addAll(expiryDiagnostics);
+        diagnostics.addAll(getFileDiagnostics());
+        return LoadState.of(snapshot(), 0, -1, diagnostics.getMalformedCount(), diagnostics.getMessages(),
+                expiredRows, true, null);
+    }
+
+    /**
+     * getFileDiagnostics method returns the diagnostics of the fixed sources and every file in the
+     * manifest, without those of the expiry file.
+     *
+     * @return The combined diagnostics.
+     */
+    public ParseDiagnostics getFileDiagnostics() {
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        for (FileEntry entry : sourceEntries) {
+            diagnostics.addAll(entry.diagnostics);
+        }
+        for (FileEntry entry : manifest.values()) {
+            diagnostics.addAll(entry.diagnostics);
+        }
+        return diagnostics;
+    }
+
+    /**
+     * Returns the number of rows of the current files skipped for expired calibration.
+     *
+     * @return The expired row count.
+     */
+    public long getExpiredRows() {
+        return expiredRows;
+    }
+
+    /**
+     * getStore method returns the store of the engine: the rows of the fixed sources and then of
+     * every file, in the order they were added or last replaced. It must not be modified.
+     *
+     * @return The store.
+     */
+    public SiteDataStore getStore() {
+        return engine.getStore();
+    }
+
+    /**
+     * FileEntry is the manifest record of one file: what identifies its content, where its rows
+     * are in the engine's store so they can be taken out again, and whether they are saved in the
+     * cache.
+     */
+    private static class FileEntry {
+        int fromRow;
+        int rowCount;
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        long expiredRows;
+        long size;
+        long lastModified;
+        long crc;
+        boolean saved;
+    }
+}
@@ -0,0 +1,90 @@
+package com.osler.analysers.data;
+
+/**
+ * DisplayModel holds the EntityDisplay of every country and site in an AggregateSnapshot, by
+ * country and site id. It is built whenever the totals change, e.g. on every drag of the date
+ * range, so the labels of a country or site are only formatted the first time it is shown, and
+ * kept for as long as these totals are. Showing it again is an array lookup.
+ *
+ * <p>The totals never change, so an EntityDisplay built by two threads at once is the same either
+ * way; its fields are final, so either copy is safe to share.</p>
+ */
+public class DisplayModel {
+    private final AggregateSnapshot snapshot;
+    private final String testedFormat;
+    private final String positiveFormat;
+    private final EntityDisplay[] countries;
+    private final EntityDisplay[] sites;
+
+    /**
+     * Builds the display models of the countries and sites in a snapshot.
+     *
+     * @param snapshot       The totals to display.
+     * @param testedFormat   The format of the tested line, see EntityDisplay.
+     * @param positiveFormat The format of the positive line, see EntityDisplay.
+     */
+    public DisplayModel(AggregateSnapshot snapshot, String testedFormat, String positiveFormat) {
+        this.snapshot = snapshot;
+        this.testedFormat = testedFormat;
+        this.positiveFormat = positiveFormat;
+        countries = new EntityDisplay[snapshot.getCountryCount()];
+        sites = new EntityDisplay[snapshot.getSiteCount()];
+    }
+
+    /**
+     * Returns the totals the display models were built from.
+     *
+     * @return The AggregateSnapshot.
+     */
+    public AggregateSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * getCountry method returns the display model of a country.
+     *
+     * @param countryId The country id.
+     * @return The display model, or null if the country is not in the snapshot.
+     */
+    public EntityDisplay getCountry(int countryId) {
+        if (countryId < 0 || countryId >= countries.length) {
+            return null;
+        }
+        EntityDisplay display = countries[countryId];
+        if (display == null) {
+            display = new EntityDisplay(snapshot.getCountryName(countryId), snapshot.getCountryTested(countryId),
+                    snapshot.getCountryPositive(countryId), testedFormat, positiveFormat);
+            countries[countryId] = display;
+        }
+        return display;
+    }
+
+    /**
+     * getSite method returns the display model of a site.
+     *
+     * @param siteId The site id.
+     * @return The display model, or null if the site is not in the snapshot.
+     */
+    public EntityDisplay getSite(int siteId) {
+        if (siteId < 0 || siteId >= sites.length) {
+            return null;
+        }
+        EntityDisplay display = sites[siteId];
+        if (display == null) {
+            display = new EntityDisplay(snapshot.getSiteName(siteId), snapshot.getSiteTested(siteId),
+                    snapshot.getSitePositive(siteId), testedFormat, positiveFormat);
+            sites[siteId] = display;
+        }
+        return display;
+    }
+
+    /**
+     * findCountry method returns the display model of a country by name.
+     *
+     * @param country The country name.
+     * @return The display model, or null if the country is not in the snapshot.
+     */
+    public EntityDisplay findCountry(String country) {
+        return getCountry(snapshot.findCountry(country));
+    }
+}
@@ -0,0 +1,95 @@
+package com.osler.analysers.data;
+
+import java.util.Locale;
+
+/**
+ * EntityDisplay is the immutable display model of one country or site: its totals, the whole
+ * positive percentage shown in the progress bar, the two formatted lines of the info card and
+ * whether the percentage counts as high. A DisplayModel builds it the first time its country or
+ * site is shown, so showing it again is only a matter of binding it to the views.
+ */
+public class EntityDisplay {
+    /**
+     * Percentages above this are shown as high. A country or site at exactly this percentage is
+     * not high.
+     */
+    public static final int HIGH_PERCENT = 50;
+
+    private final String name;
+    private final long tested;
+    private final long positive;
+    private final int percent;
+    private final String testedText;
+    private final String positiveText;
+
+    /**
+     * Creates the display model of one country or site.
+     *
+     * @param name           The country or site name.
+     * @param tested         The number of tests.
+     * @param positive       The number of positive tests.
+     * @param testedFormat   The format of the tested line, taking the number of tests, e.g.
+     *                       "Tested: %1$d".
+     * @param positiveFormat The format of the positive line, taking the percentage, the number of
+     *                       positive tests and the number of tests.
+     */
+    public EntityDisplay(String name, long tested, long positive, String testedFormat, String positiveFormat) {
+        this.name = name;
+        this.tested = tested;
+        this.positive = positive;
+        this.percent = percent(positive, tested);
+        this.testedText = String.format(Locale.getDefault(), testedFormat, tested);
+        this.positiveText = String.format(Locale.getDefault(), positiveFormat, percent, positive, tested);
+    }
+
+    /**
+     * percent method computes positive / tested as a whole percentage, rounded down. Zero tested
+     * counts as 0%.
+     *
+     * @param positive The number of positive tests.
+     * @param tested   The number of tests.
+     * @return The percentage.
+     */
+    public static int percent(long positive, long tested) {
+        if (tested <= 0) {
+            return 0;
+        }
+        if (positive >= 0 && positive <= Long.MAX_VALUE / 100) {
+            return (int) (positive * 100 / tested);
+        }
+        return (int) (positive * 100.0 / tested);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTested() {
+        return tested;
+    }
+
+    public long getPositive() {
+        return positive;
+    }
+
+    public int getPercent() {
+        return percent;
+    }
+
+    public String getTestedText() {
+        return testedText;
+    }
+
+    public String getPositiveText() {
+        return positiveText;
+    }
+
+    /**
+     * isHigh method tells whether the positive percentage is above HIGH_PERCENT.
+     *
+     * @return true if the percentage is shown as high.
+     */
+    public boolean isHigh() {
+        return percent > HIGH_PERCENT;
+    }
+}
@@ -0,0 +1,63 @@
+package com.osler.analysers.data;
+
+import java.util.Arrays;
+
+/**
+ * ExpiryFilter passes rows on to another RowHandler, except rows measured after the calibration
+ * of their site had expired. Each site is looked up in the CalibrationIndex once, the first time
+ * it is seen, so the check per row is an array lookup.
+ *
+ * <p>Like the stores it feeds, a filter has a single writer.</p>
+ */
+public class ExpiryFilter implements CsvParser.RowHandler {
+    private final CalibrationIndex calibrationIndex;
+    private final NameTable sites;
+    private final CsvParser.RowHandler downstream;
+
+    /**
+     * The calibration expiry of every site resolved so far, by site id.
+     */
+    private long[] siteExpiry = new long[64];
+    private int resolvedSites;
+    private long expiredRows;
+
+    /**
+     * Creates a filter in front of the given handler.
+     *
+     * @param calibrationIndex The calibration expiry of each site.
+     * @param sites            The NameTable the rows' site ids refer to.
+     * @param downstream       The handler receiving the rows that are still valid.
+     */
+    public ExpiryFilter(CalibrationIndex calibrationIndex, NameTable sites, CsvParser.RowHandler downstream) {
+        this.calibrationIndex = calibrationIndex;
+        this.sites = sites;
+        this.downstream = downstream;
+    }
+
+    @Override
+    public void onRow(int countryId, int siteId, int tested, int positive, long startDate, long endDate) {
+        while (resolvedSites <= siteId) {
+            if (resolvedSites == siteExpiry.length) {
+                siteExpiry = Arrays.copyOf(siteExpiry, resolvedSites * 2);
+            }
+            siteExpiry[resolvedSites] = calibrationIndex.getExpiry(sites.getName(resolvedSites));
+            resolvedSites++;
+        }
+
+        // Skip measurements taken after the site's calibration expired
+        if (CalibrationIndex.isExpired(siteExpiry[siteId], endDate)) {
+            expiredRows++;
+            return;
+        }
+        downstream.onRow(countryId, siteId, tested, positive, startDate, endDate);
+    }
+
+    /**
+     * Returns the number of rows dropped so far.
+     *
+     * @return The number of rows from sites whose calibration had expired.
+     */
+    public long getExpiredRows() {
+        return expiredRows;
+    }
+}
@@ -0,0 +1,134 @@
+package com.osler.analysers.data;
+
+/**
+ * Granularity is the level at which totals are ranked and reported.
+ */
+public enum Granularity {
+    /**
+     * One entry per country.
+     */
+    COUNTRY(0, 0),
+
+    /**
+     * One entry per site. Site names are only unique within their country.
+     */
+    SITE(0, 0),
+
+    /**
+     * One entry per UTC day, for the rows starting in that day.
+     */
+    DAY(24 * 60 * 60, 0),
+
+    /**
+     * One entry per week of seven UTC days, for the rows starting in that week. Weeks start on
+     * Mondays.
+     */
+    WEEK(7 * 24 * 60 * 60, 4 * 24 * 60 * 60),
+
+    /**
+     * One entry per UTC calendar month, for the rows starting in that month. Months vary in
+     * length, so they have no fixed bucket length.
+     */
+    MONTH(0, 0);
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final long bucketSeconds;
+
+    /**
+     * The start of the first bucket after the epoch. 1970-01-05 was the first Monday.
+     */
+    private final long bucketOffset;
+
+    Granularity(long bucketSeconds, long bucketOffset) {
+        this.bucketSeconds = bucketSeconds;
+        this.bucketOffset = bucketOffset;
+    }
+
+    /**
+     * isTimeBucket method tells whether the entries are time buckets, which are totalled from
+     * the rows rather than from an AggregateSnapshot.
+     *
+     * @return true for DAY, WEEK and MONTH.
+     */
+    public boolean isTimeBucket() {
+        return bucketSeconds > 0 || this == MONTH;
+    }
+
+    /**
+     * Returns the fixed length of a time bucket.
+     *
+     * @return The bucket length in seconds, or 0 for countries, sites and months.
+     */
+    public long getBucketSeconds() {
+        return bucketSeconds;
+    }
+
+    /**
+     * getBucket method returns the number of the time bucket holding a date, counted from the
+     * first bucket after the epoch.
+     *
+     * @param epochSeconds The date in epoch seconds.
+     * @return The bucket number, negative before the first bucket.
+     */
+    public long getBucket(long epochSeconds) {
+        if (this == MONTH) {
+            long[] date = civilFromDays(Math.floorDiv(epochSeconds, SECONDS_PER_DAY));
+            return (date[0] - 1970) * 12 + date[1] - 1;
+        }
+        return Math.floorDiv(epochSeconds - bucketOffset, bucketSeconds);
+    }
+
+    /**
+     * getBucketStart method returns the first second of a time bucket.
+     *
+     * @param bucket The bucket number.
+     * @return The start of the bucket in epoch seconds.
+     */
+    public long getBucketStart(long bucket) {
+        if (this == MONTH) {
+            return daysFromCivil(1970 + Math.floorDiv(bucket, 12), Math.floorMod(bucket, 12) + 1) * SECONDS_PER_DAY;
+        }
+        return bucket * bucketSeconds + bucketOffset;
+    }
+
+    /**
+     * getBucketEnd method returns the last second of a time bucket.
+     *
+     * @param bucket The bucket number.
+     * @return The end of the bucket in epoch seconds, inclusive.
+     */
+    public long getBucketEnd(long bucket) {
+        return getBucketStart(bucket + 1) - 1;
+    }
+
+    /**
+     * civilFromDays method converts days since the epoch to the {year, month} of the proleptic
+     * Gregorian calendar, without java.time, which needs API level 26. The years are counted in
+     * eras of 400 years, which all have the same number of days, starting on March 1st so the leap
+     * day is the last day of the year.
+     */
+    private static long[] civilFromDays(long days) {
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        return new long[]{yearOfEra + era * 400 + (month <= 2 ? 1 : 0), month};
+    }
+
+    /**
+     * daysFromCivil method converts the first day of a month to days since the epoch, the inverse
+     * of civilFromDays.
+     */
+    private static long daysFromCivil(long year, long month) {
+        long shiftedYear = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(shiftedYear, 400);
+        long yearOfEra = shiftedYear - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,126 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * JsonReportFormat writes a report as one JSON object, with one entry per line:
+ *
+ * <pre>
+ * {"granularity":"country","entries":[
+ * {"country":"Kenya","tested":1615,"positive":401,"percent":24.83}
+ * ],"count":1}
+ * </pre>
+ *
+ * <p>Site entries also have a "site" member, and time bucket entries have "start" and "end"
+ * members holding the first and last UTC day of the bucket as yyyy-MM-dd instead of names.</p>
+ */
+public class JsonReportFormat implements ReportFormat {
+    private static final byte[] GRANULARITY = ReportOutput.ascii("{\"granularity\":\"");
+    private static final byte[] ENTRIES = ReportOutput.ascii("\",\"entries\":[");
+    private static final byte[] COUNTRY = ReportOutput.ascii("{\"country\":");
+    private static final byte[] SITE = ReportOutput.ascii(",\"site\":");
+    private static final byte[] START = ReportOutput.ascii("{\"start\":\"");
+    private static final byte[] END = ReportOutput.ascii("\",\"end\":\"");
+    private static final byte[] TESTED = ReportOutput.ascii(",\"tested\":");
+    private static final byte[] POSITIVE = ReportOutput.ascii(",\"positive\":");
+    private static final byte[] PERCENT = ReportOutput.ascii(",\"percent\":");
+    private static final byte[] COUNT = ReportOutput.ascii("],\"count\":");
+    private static final byte[] HEX = ReportOutput.ascii("0123456789abcdef");
+
+    @Override
+    public String getExtension() {
+        return "json";
+    }
+
+    @Override
+    public void begin(ReportOutput out, Granularity granularity) throws IOException {
+        out.putBytes(GRANULARITY);
+        out.putString(granularity.name().toLowerCase(Locale.ROOT));
+        out.putBytes(ENTRIES);
+    }
+
+    @Override
+    public void writeCountry(ReportOutput out, String country, long tested, long positive) throws IOException {
+        separate(out);
+        out.putBytes(COUNTRY);
+        putJsonString(out, country);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void writeSite(ReportOutput out, String country, String site, long tested, long positive)
+            throws IOException {
+        separate(out);
+        out.putBytes(COUNTRY);
+        putJsonString(out, country);
+        out.putBytes(SITE);
+        putJsonString(out, site);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void writeBucket(ReportOutput out, long start, long end, long tested, long positive) throws IOException {
+        separate(out);
+        out.putBytes(START);
+        out.putDate(start);
+        out.putBytes(END);
+        out.putDate(end);
+        out.putByte('"');
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void end(ReportOutput out, int entryCount) throws IOException {
+        out.putByte('\n');
+        out.putBytes(COUNT);
+        out.putLong(entryCount);
+        out.putByte('}');
+        out.putByte('\n');
+    }
+
+    private static void separate(ReportOutput out) throws IOException {
+        if (out.getEntryCount() > 0) {
+            out.putByte(',');
+        }
+        out.putByte('\n');
+    }
+
+    private static void writeTotals(ReportOutput out, long tested, long positive) throws IOException {
+        out.putBytes(TESTED);
+        out.putLong(tested);
+        out.putBytes(POSITIVE);
+        out.putLong(positive);
+        out.putBytes(PERCENT);
+        out.putPercent(ReportWriter.percentHundredths(positive, tested));
+        out.putByte('}');
+    }
+
+    /**
+     * putJsonString method writes a name as a JSON string, escaping quotes, backslashes and
+     * control characters.
+     */
+    private static void putJsonString(ReportOutput out, String value) throws IOException {
+        out.putByte('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                out.putString(value, start, i);
+                out.putByte('\\');
+                if (c == '"' || c == '\\') {
+                    out.putByte(c);
+                } else {
+                    out.putByte('u');
+                    out.putByte('0');
+                    out.putByte('0');
+                    out.putByte(HEX[c >> 4]);
+                    out.putByte(HEX[c & 0xF]);
+                }
+                start = i + 1;
+            }
+        }
+        out.putString(value, start, value.length());
+        out.putByte('"');
+    }
+}
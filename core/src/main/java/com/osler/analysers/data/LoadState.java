@@ -0,0 +1,209 @@
+package com.osler.analysers.data;
+
+import com.osler.analysers.CountryData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LoadState is an immutable view of the data loaded so far. The DataLoader publishes a new
+ * LoadState every time a batch of country aggregates is ready, a final one once the whole
+ * CSV has been read (or the load has failed), and another one after every appended batch.
+ */
+public class LoadState {
+    /**
+     * The country names in the order they were first seen in the CSV.
+     */
+    private final List<String> countryList;
+
+    /**
+     * A mapping of country names to a copy of their Analyser data at the time of publishing.
+     */
+    private final Map<String, CountryData> countryDataMap;
+
+    /**
+     * The per-site, per-country and global totals at the time of publishing.
+     */
+    private final AggregateSnapshot aggregates;
+
+    /**
+     * The number of bytes of the CSV consumed so far.
+     */
+    private final long bytesRead;
+
+    /**
+     * The total size of the CSV in bytes, or -1 if it is not known.
+     */
+    private final long totalBytes;
+
+    /**
+     * The number of lines in the CSV and expiry file that could not be parsed.
+     */
+    private final int malformedRows;
+
+    /**
+     * Messages describing the first malformed rows, with their line numbers.
+     */
+    private final List<String> diagnostics;
+
+    /**
+     * The number of rows skipped because their site's calibration had expired.
+     */
+    private final long expiredRows;
+
+    /**
+     * Whether the whole CSV has been read.
+     */
+    private final boolean complete;
+
+    /**
+     * The rows the totals were built from, once nothing writes to them any more, e.g. those of an
+     * AnalysisPipeline; null otherwise. A DataLoader keeps writing to its rows, so it never
+     * publishes them.
+     */
+    private final SiteDataStore store;
+
+    /**
+     * The error that stopped the load, or null if there was none.
+     */
+    private final Exception error;
+
+    /**
+     * The totals estimated from a sample of a large CSV, or null once the exact totals are complete.
+     */
+    private final SampleEstimate estimate;
+
+    LoadState(List<String> countryList, Map<String, CountryData> countryDataMap, AggregateSnapshot aggregates,
+              long bytesRead,
+              long totalBytes, int malformedRows, List<String> diagnostics, long expiredRows, boolean complete,
+              SiteDataStore store, Exception error) {
+        this(countryList, countryDataMap, aggregates, bytesRead, totalBytes, malformedRows, diagnostics, expiredRows,
+                complete, store, error, null);
+    }
+
+    private LoadState(List<String> countryList, Map<String, CountryData> countryDataMap, AggregateSnapshot aggregates,
+                      long bytesRead, long totalBytes, int malformedRows, List<String> diagnostics, long expiredRows,
+                      boolean complete, SiteDataStore store, Exception error, SampleEstimate estimate) {
+        this.countryList = Collections.unmodifiableList(countryList);
+        this.countryDataMap = Collections.unmodifiableMap(countryDataMap);
+        this.aggregates = aggregates;
+        this.bytesRead = bytesRead;
+        this.totalBytes = totalBytes;
+        this.malformedRows = malformedRows;
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+        this.expiredRows = expiredRows;
+        this.complete = complete;
+        this.store = store;
+        this.error = error;
+        this.estimate = estimate;
+    }
+
+    /**
+     * Creates a state from the given aggregates, listing the countries in the order of their ids.
+     * Countries with no rows are left out.
+     */
+    static LoadState of(AggregateSnapshot aggregates, long bytesRead, long totalBytes, int malformedRows,
+                        List<String> diagnostics, long expiredRows, boolean complete, SiteDataStore store) {
+        List<String> countryList = new ArrayList<>();
+        Map<String, CountryData> countryDataMap = new LinkedHashMap<>();
+        for (CountryData countryData : aggregates.getCountryDataList()) {
+            countryList.add(countryData.getCountry());
+            countryDataMap.put(countryData.getCountry(), countryData);
+        }
+        return new LoadState(countryList, countryDataMap, aggregates, bytesRead, totalBytes, malformedRows,
+                new ArrayList<>(diagnostics), expiredRows, complete, store, null);
+    }
+
+    /**
+     * withEstimate method returns a copy of this state carrying the totals estimated from a sample.
+     *
+     * @param estimate The estimate, or null.
+     * @return The new state.
+     */
+    LoadState withEstimate(SampleEstimate estimate) {
+        return new LoadState(countryList, countryDataMap, aggregates, bytesRead, totalBytes, malformedRows,
+                diagnostics, expiredRows, complete, store, error, estimate);
+    }
+
+    /**
+     * Creates the state shown before anything has been read.
+     *
+     * @return An empty, incomplete LoadState.
+     */
+    public static LoadState empty() {
+        return new LoadState(Collections.<String>emptyList(), Collections.<String, CountryData>emptyMap(),
+                AggregateSnapshot.empty(), 0, -1, 0, Collections.<String>emptyList(), 0, false, null, null);
+    }
+
+    public List<String> getCountryList() {
+        return countryList;
+    }
+
+    public Map<String, CountryData> getCountryDataMap() {
+        return countryDataMap;
+    }
+
+    public AggregateSnapshot getAggregates() {
+        return aggregates;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int getMalformedRows() {
+        return malformedRows;
+    }
+
+    public List<String> getDiagnostics() {
+        return diagnostics;
+    }
+
+    public long getExpiredRows() {
+        return expiredRows;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public SiteDataStore getStore() {
+        return store;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Returns the totals estimated from a sample while a large CSV is parsed, to show until the
+     * exact totals are complete.
+     *
+     * @return The estimate, or null if the CSV was not sampled or the load is complete.
+     */
+    public SampleEstimate getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * Returns the load progress as a percentage of the CSV size.
+     *
+     * @return The progress between 0 and 100, or -1 if the total size is unknown.
+     */
+    public int getProgressPercent() {
+        if (complete) {
+            return 100;
+        }
+        if (totalBytes <= 0) {
+            return -1;
+        }
+        return (int) Math.min(100, (bytesRead * 100) / totalBytes);
+    }
+}
@@ -0,0 +1,203 @@
+package com.osler.analysers.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * MappedCsvFile splits a CSV file into chunks that start at the beginning of a line, so the
+ * chunks can be parsed on separate threads with CsvParser.parseChunk. Each chunk is read through
+ * a memory mapping of its own part of the file, which avoids copying the file through the page
+ * cache into a stream buffer and lets the chunks be read without sharing a file position.
+ *
+ * <p>Chunks are cut at the first line break after an even split, so a quoted field holding a
+ * line break may be cut in two. The Analysers CSV does not contain such fields; files that do
+ * must be read with CsvParser.parse instead.</p>
+ */
+public class MappedCsvFile {
+    /**
+     * The smallest chunk worth handing to a thread of its own.
+     */
+    static final long MIN_CHUNK_BYTES = 1 << 20;
+
+    /**
+     * The largest chunk, since a single mapping is limited to 2 GB.
+     */
+    private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+    /**
+     * The longest first line that is read as a possible header.
+     */
+    private static final int MAX_FIRST_LINE = 64 * 1024;
+
+    private final File file;
+    private final byte[] firstLine;
+    private final long[] boundaries;
+
+    private MappedCsvFile(File file, byte[] firstLine, long[] boundaries) {
+        this.file = file;
+        this.firstLine = firstLine;
+        this.boundaries = boundaries;
+    }
+
+    /**
+     * split method divides the file into about the given number of chunks of similar size. Small
+     * files get fewer chunks, down to a single one, so no thread gets less than MIN_CHUNK_BYTES.
+     *
+     * @param file       The CSV file.
+     * @param chunkCount The number of chunks wanted, e.g. a few per available thread.
+     * @return The split file.
+     * @throws IOException If the file cannot be read.
+     */
+    public static MappedCsvFile split(File file, int chunkCount) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+
+            // Step 1: Work out the chunk count from the file size
+            long chunks = Math.min(Math.max(chunkCount, 1), Math.max(1, size / MIN_CHUNK_BYTES));
+            chunks = Math.max(chunks, (size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+
+            // Step 2: Move each even split forward to the start of the next line
+            long[] boundaries = new long[(int) chunks + 1];
+            int count = 1;
+            for (int i = 1; i < chunks; i++) {
+                long boundary = nextLineStart(channel, Math.max(size * i / chunks, boundaries[count - 1]), size);
+                if (boundary > boundaries[count - 1] && boundary < size) {
+                    boundaries[count++] = boundary;
+                }
+            }
+            boundaries[count++] = size;
+
+            byte[] firstLine = readFirstLine(channel, size);
+            return new MappedCsvFile(file, firstLine, Arrays.copyOf(boundaries, count));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * nextLineStart method returns the offset just after the first line break at or after from,
+     * or the file size if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return size;
+    }
+
+    private static byte[] readFirstLine(FileChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, MAX_FIRST_LINE));
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // Keep reading until the buffer is full or the file ends
+        }
+        int length = 0;
+        while (length < buffer.position() && buffer.get(length) != '\n') {
+            length++;
+        }
+        return Arrays.copyOf(buffer.array(), length);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the first line of the file, without its line break.
+     *
+     * @return The bytes of the first line, which may be a header.
+     */
+    public byte[] getFirstLine() {
+        return firstLine;
+    }
+
+    /**
+     * Returns the number of chunks the file was split into.
+     *
+     * @return The chunk count, at least 1.
+     */
+    public int getChunkCount() {
+        return boundaries.length - 1;
+    }
+
+    public long getChunkStart(int chunk) {
+        return boundaries[chunk];
+    }
+
+    public long getChunkEnd(int chunk) {
+        return boundaries[chunk + 1];
+    }
+
+    /**
+     * open method maps a chunk into memory and returns a stream over it. The mapping is released
+     * by the garbage collector once the stream is no longer referenced.
+     *
+     * @param chunk The index of the chunk.
+     * @return A new InputStream over the chunk's bytes.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public InputStream open(int chunk) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    getChunkStart(chunk), getChunkEnd(chunk) - getChunkStart(chunk));
+            return new ByteBufferInputStream(buffer);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * ByteBufferInputStream reads the remaining bytes of a ByteBuffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.osler.analysers.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics records how long each stage of loading, aggregating, rendering and reporting takes,
+ * and counts the rows and bytes going through them, so a slow start on a real device can be
+ * narrowed down to a stage without attaching a profiler. Stages are timed in a LatencyHistogram
+ * each and can also be shown as sections in a system trace through a Tracer. Everything is
+ * lock-free except for the list of recent errors, and stages are only timed per load, query or
+ * render, never per row, so the metrics are always on.
+ *
+ * <pre>
+ * long start = Metrics.get().begin(Metrics.Stage.PARSE);
+ * try {
+ *     ...
+ * } finally {
+ *     Metrics.get().end(Metrics.Stage.PARSE, start);
+ * }
+ * </pre>
+ */
+public class Metrics {
+    /**
+     * The number of recent errors kept for the dump.
+     */
+    private static final int MAX_ERRORS = 20;
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    /**
+     * Stage is a timed part of the work. Stages may be nested, e.g. PARSE inside LOAD.
+     */
+    public enum Stage {
+        /**
+         * Reading the bundled data, from the snapshot or by parsing it.
+         */
+        LOAD,
+
+        /**
+         * Checksumming the inputs and restoring the parsed data from the snapshot cache, if it
+         * holds the same inputs.
+         */
+        SNAPSHOT_RESTORE,
+
+        /**
+         * Reading the calibration expiry file.
+         */
+        EXPIRY,
+
+        /**
+         * Estimating the totals of a large CSV from a sample of its rows.
+         */
+        SAMPLE,
+
+        /**
+         * Parsing the rows and applying those still calibrated to the totals.
+         */
+        PARSE,
+
+        /**
+         * Summing the totals of rows that were not applied as they were parsed, e.g. restored ones.
+         */
+        AGGREGATE,
+
+        /**
+         * Bringing the totals up to date with the incoming directory.
+         */
+        DIRECTORY_REFRESH,
+
+        /**
+         * Applying a batch of new rows.
+         */
+        APPEND,
+
+        /**
+         * Pulling new rows from the sync server.
+         */
+        SYNC,
+
+        /**
+         * Storing rows and their rollups in a RollupStore.
+         */
+        PERSIST,
+
+        /**
+         * Totalling the rows of a time window.
+         */
+        WINDOW_QUERY,
+
+        /**
+         * Bucketing the rows into the trend series of every country and site.
+         */
+        TREND_BUILD,
+
+        /**
+         * Running the alert rules over the rows added since the last check.
+         */
+        ALERT_CHECK,
+
+        /**
+         * Building the search index of the names.
+         */
+        INDEX_BUILD,
+
+        /**
+         * Building the display models of the totals.
+         */
+        DISPLAY_BUILD,
+
+        /**
+         * Showing new totals, names or a selection on the screen.
+         */
+        RENDER,
+
+        /**
+         * Writing a management report.
+         */
+        REPORT_WRITE;
+
+        /**
+         * The name of the stage's trace section.
+         */
+        private final String sectionName = "Analysers." + name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Counter is a running total of the work done.
+     */
+    public enum Counter {
+        /**
+         * Rows read without error, whether or not their site's calibration had expired.
+         */
+        ROWS_PARSED,
+
+        /**
+         * Rows left out because their site's calibration had expired.
+         */
+        ROWS_EXPIRED,
+
+        /**
+         * Rows that could not be parsed.
+         */
+        ROWS_MALFORMED,
+
+        /**
+         * Bytes of data files read.
+         */
+        BYTES_READ,
+
+        /**
+         * Bytes received from the sync server, as sent, i.e. compressed.
+         */
+        SYNC_BYTES,
+
+        /**
+         * Alerts raised by the alert rules.
+         */
+        ALERTS_RAISED,
+
+        /**
+         * Management reports written.
+         */
+        REPORTS_WRITTEN,
+
+        /**
+         * Bytes of management reports written.
+         */
+        REPORT_BYTES,
+
+        /**
+         * Errors recorded with recordError.
+         */
+        ERRORS
+    }
+
+    /**
+     * Tracer marks the stages in a system trace, e.g. with android.os.Trace. Sections are begun and
+     * ended on the same thread, innermost first.
+     */
+    public interface Tracer {
+        void beginSection(String name);
+
+        void endSection();
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final ArrayDeque<String> errors = new ArrayDeque<>();
+    private volatile Tracer tracer;
+
+    Metrics() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Returns the metrics of this process.
+     *
+     * @return The shared Metrics.
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * setTracer method sets the Tracer the stages are marked with from now on.
+     *
+     * @param tracer The Tracer, or null to only time the stages.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * begin method starts timing a stage. Every call must be followed by a call to end on the
+     * same thread, in a finally block.
+     *
+     * @param stage The stage.
+     * @return The start time to pass to end.
+     */
+    public long begin(Stage stage) {
+        Tracer current = tracer;
+        if (current != null) {
+            current.beginSection(stage.sectionName);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * end method records the duration of a stage started with begin.
+     *
+     * @param stage The stage.
+     * @param start The start time returned by begin.
+     */
+    public void end(Stage stage, long start) {
+        histograms[stage.ordinal()].record(System.nanoTime() - start);
+        Tracer current = tracer;
+        if (current != null) {
+            current.endSection();
+        }
+    }
+
+    /**
+     * add method adds to a counter.
+     *
+     * @param counter The counter.
+     * @param delta   The amount to add.
+     */
+    public void add(Counter counter, long delta) {
+        counters.addAndGet(counter.ordinal(), delta);
+    }
+
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * recordError method counts an error and keeps its message with the most recent ones, so it
+     * shows in the dump along with the timings.
+     *
+     * @param where What was being done, e.g. "Loading data".
+     * @param error The error.
+     */
+    public void recordError(String where, Throwable error) {
+        add(Counter.ERRORS, 1);
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ROOT);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String message = timeFormat.format(new Date()) + " " + where + ": " + error;
+        synchronized (errors) {
+            if (errors.size() == MAX_ERRORS) {
+                errors.removeFirst();
+            }
+            errors.addLast(message);
+        }
+    }
+
+    /**
+     * Returns the most recent errors, oldest first.
+     *
+     * @return The messages of the last recorded errors.
+     */
+    public List<String> getErrors() {
+        synchronized (errors) {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    /**
+     * reset method clears the timings, counters and errors, e.g. before profiling one action.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        synchronized (errors) {
+            errors.clear();
+        }
+    }
+
+    /**
+     * describe method formats the timings of the stages that have run, the counters and the
+     * recent errors as plain text, with durations in milliseconds.
+     *
+     * @return The text, one stage, counter or error per line.
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, "%-18s %7s %10s %9s %9s %9s %9s%n",
+                "stage", "count", "total ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            text.append(String.format(Locale.ROOT, "%-18s %7d %10.1f %9.1f %9.1f %9.1f %9.1f%n",
+                    stage.name().toLowerCase(Locale.ROOT), histogram.getCount(), millis(histogram.getTotalNanos()),
+                    millis(histogram.getPercentileNanos(0.5)), millis(histogram.getPercentileNanos(0.9)),
+                    millis(histogram.getPercentileNanos(0.99)), millis(histogram.getMaxNanos())));
+        }
+        text.append(String.format(Locale.ROOT, "%n"));
+        for (Counter counter : Counter.values()) {
+            text.append(String.format(Locale.ROOT, "%-18s %d%n", counter.name().toLowerCase(Locale.ROOT),
+                    getCount(counter)));
+        }
+        List<String> recentErrors = getErrors();
+        if (!recentErrors.isEmpty()) {
+            text.append(String.format(Locale.ROOT, "%nrecent errors%n"));
+            for (String error : recentErrors) {
+                text.append(error).append(String.format(Locale.ROOT, "%n"));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * writeTo method dumps the metrics to a file, replacing it, e.g. to pull it from a device.
+     *
+     * @param file The file to write describe's text to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeTo(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            writer.write(describe());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
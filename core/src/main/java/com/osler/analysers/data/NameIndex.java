@@ -0,0 +1,337 @@
+package com.osler.analysers.data;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * NameIndex is a prefix index over the countries and sites of an AggregateSnapshot, for
+ * type-ahead search. Every word of a name is a key, normalized to lower case without accents, so
+ * "tro" finds Tromsø and "west" finds "Kisumu West". The keys are kept in one sorted array and a
+ * search is a binary search for the range of keys starting with the query.
+ *
+ * <p>The entries are numbered in display order: the countries by name, then the sites by name.
+ * The label shown for each entry is built once, when the index is built. A search writes the
+ * matching entries in display order into a caller-owned array, so it does not allocate per entry.
+ * Typing one more character only searches the range of the previous query. An index is meant to
+ * be searched from one thread.</p>
+ */
+public class NameIndex {
+    /**
+     * Searches with more candidate keys than this mark the matches and scan all entries in order,
+     * instead of sorting the matches.
+     */
+    private static final int SORT_LIMIT = 256;
+
+    private final String[] labels;
+    private final String[] names;
+    private final boolean[] sites;
+    private final int[] ids;
+
+    /**
+     * The normalized keys in sorted order, and the entry each key belongs to.
+     */
+    private final String[] keys;
+    private final int[] keyEntries;
+
+    /**
+     * The search in which each entry was last matched, so an entry with several matching words
+     * is only returned once.
+     */
+    private final int[] marks;
+    private int searchCount;
+
+    /**
+     * The normalized query of the previous search and its range of keys.
+     */
+    private String lastQuery = "";
+    private int lastFrom;
+    private int lastTo;
+
+    /**
+     * Builds the index of the countries and sites that have at least one row in the snapshot.
+     * Site labels name their country, since site names are only unique within their country.
+     *
+     * @param snapshot The snapshot holding the names.
+     */
+    public NameIndex(AggregateSnapshot snapshot) {
+        String[] countryKeys = new String[snapshot.getCountryCount()];
+        for (int countryId = 0; countryId < countryKeys.length; countryId++) {
+            countryKeys[countryId] = normalize(snapshot.getCountryName(countryId));
+        }
+        final String[] sortNames = new String[snapshot.getCountryCount() + snapshot.getSiteCount()];
+        final String[] sortKeys = new String[sortNames.length];
+        int[] order = new int[sortNames.length];
+        int countryCount = 0;
+        for (int countryId = 0; countryId < snapshot.getCountryCount(); countryId++) {
+            if (snapshot.getCountryRowCount(countryId) > 0) {
+                sortNames[countryCount] = countryKeys[countryId];
+                sortKeys[countryCount] = countryKeys[countryId];
+                order[countryCount++] = countryId;
+            }
+        }
+        int siteCount = 0;
+        for (int siteId = 0; siteId < snapshot.getSiteCount(); siteId++) {
+            if (snapshot.getSiteRowCount(siteId) > 0) {
+                int entry = countryCount + siteCount++;
+                sortKeys[entry] = normalize(snapshot.getSiteName(siteId));
+                sortNames[entry] = sortKeys[entry] + " " + countryKeys[snapshot.getSiteCountry(siteId)];
+                order[entry] = siteId;
+            }
+        }
+        int size = countryCount + siteCount;
+
+        // Step 1: Put the countries, then the sites, in name order
+        Comparator<Integer> byName = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return sortNames[a].compareTo(sortNames[b]);
+            }
+        };
+        Integer[] byEntry = new Integer[size];
+        for (int entry = 0; entry < size; entry++) {
+            byEntry[entry] = entry;
+        }
+        Arrays.sort(byEntry, 0, countryCount, byName);
+        Arrays.sort(byEntry, countryCount, size, byName);
+
+        labels = new String[size];
+        names = new String[size];
+        sites = new boolean[size];
+        ids = new int[size];
+        marks = new int[size];
+        String[] entryKeys = new String[size];
+        int keyCount = 0;
+        for (int entry = 0; entry < size; entry++) {
+            int from = byEntry[entry];
+            boolean site = from >= countryCount;
+            int id = order[from];
+            sites[entry] = site;
+            ids[entry] = id;
+            names[entry] = site ? snapshot.getSiteName(id) : snapshot.getCountryName(id);
+            labels[entry] = site ? names[entry] + ", " + snapshot.getCountryName(snapshot.getSiteCountry(id))
+                    : names[entry];
+            entryKeys[entry] = sortKeys[from];
+            keyCount += countWords(entryKeys[entry]);
+        }
+
+        // Step 2: Add a key for every word of every name, and sort the keys
+        final String[] unsortedKeys = new String[keyCount];
+        int[] unsortedEntries = new int[keyCount];
+        int key = 0;
+        for (int entry = 0; entry < size; entry++) {
+            String name = entryKeys[entry];
+            for (int start = 0; start < name.length(); start++) {
+                if (isWordStart(name, start)) {
+                    unsortedKeys[key] = name.substring(start);
+                    unsortedEntries[key++] = entry;
+                }
+            }
+        }
+        Integer[] keyOrder = new Integer[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keyOrder[i] = i;
+        }
+        Arrays.sort(keyOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return unsortedKeys[a].compareTo(unsortedKeys[b]);
+            }
+        });
+        keys = new String[keyCount];
+        keyEntries = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = unsortedKeys[keyOrder[i]];
+            keyEntries[i] = unsortedEntries[keyOrder[i]];
+        }
+        lastTo = keyCount;
+    }
+
+    /**
+     * normalize method folds a name or query for matching: accents are removed, letters are put
+     * in lower case and runs of other characters become a single space.
+     *
+     * @param text The text to normalize.
+     * @return The normalized text, without leading or trailing spaces.
+     */
+    public static String normalize(CharSequence text) {
+        // Accents only need to be taken apart from their letters outside ASCII
+        CharSequence decomposed = isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                normalized.append(Character.toLowerCase(c));
+            } else if (normalized.length() > 0 && normalized.charAt(normalized.length() - 1) != ' ') {
+                normalized.append(' ');
+            }
+        }
+        int length = normalized.length();
+        if (length > 0 && normalized.charAt(length - 1) == ' ') {
+            normalized.setLength(length - 1);
+        }
+        return normalized.toString();
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * getLabel method returns the text shown for an entry: the country name, or the site name
+     * followed by its country.
+     *
+     * @param entry The entry, in display order.
+     * @return The label of the entry.
+     */
+    public String getLabel(int entry) {
+        return labels[entry];
+    }
+
+    public String getName(int entry) {
+        return names[entry];
+    }
+
+    public boolean isSite(int entry) {
+        return sites[entry];
+    }
+
+    /**
+     * getId method returns the snapshot id of an entry: a site id for sites and a country id for
+     * countries.
+     *
+     * @param entry The entry, in display order.
+     * @return The country or site id.
+     */
+    public int getId(int entry) {
+        return ids[entry];
+    }
+
+    /**
+     * find method returns the entry of a country or site.
+     *
+     * @param site Whether id is a site id rather than a country id.
+     * @param id   The country or site id.
+     * @return The entry, or -1 if the country or site is not in the index.
+     */
+    public int find(boolean site, int id) {
+        for (int entry = 0; entry < labels.length; entry++) {
+            if (sites[entry] == site && ids[entry] == id) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * search method finds the entries with a word starting with the query, or every entry if the
+     * query is blank. The query is normalized the same way as the names, so a query of several
+     * words must match consecutive words of a name.
+     *
+     * @param query   The text typed so far.
+     * @param results The array the matching entries are written to, in display order. It must
+     *                hold at least size() entries.
+     * @return The number of matching entries.
+     */
+    public int search(CharSequence query, int[] results) {
+        String prefix = normalize(query);
+        if (prefix.isEmpty()) {
+            for (int entry = 0; entry < labels.length; entry++) {
+                results[entry] = entry;
+            }
+            return labels.length;
+        }
+
+        // Step 1: A longer query matches a subrange of the previous query's keys
+        int from = 0;
+        int to = keys.length;
+        if (prefix.startsWith(lastQuery)) {
+            from = lastFrom;
+            to = lastTo;
+        }
+        from = lowerBound(prefix, from, to);
+        to = upperBound(prefix, from, to);
+        lastQuery = prefix;
+        lastFrom = from;
+        lastTo = to;
+
+        // Step 2: Return each matching entry once, in display order
+        int generation = ++searchCount;
+        int count = 0;
+        for (int key = from; key < to; key++) {
+            int entry = keyEntries[key];
+            if (marks[entry] != generation) {
+                marks[entry] = generation;
+                results[count++] = entry;
+            }
+        }
+        if (to - from <= SORT_LIMIT) {
+            Arrays.sort(results, 0, count);
+        } else {
+            count = 0;
+            for (int entry = 0; entry < labels.length; entry++) {
+                if (marks[entry] == generation) {
+                    results[count++] = entry;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * lowerBound method returns the first key in [from, to) that is not less than prefix.
+     */
+    private int lowerBound(String prefix, int from, int to) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (keys[mid].compareTo(prefix) < 0) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * upperBound method returns the first key in [from, to) that does not start with prefix. The
+     * keys from the lower bound on that start with prefix are contiguous.
+     */
+    private int upperBound(String prefix, int from, int to) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (keys[mid].startsWith(prefix)) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    private static boolean isAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWordStart(String name, int index) {
+        return index == 0 || name.charAt(index - 1) == ' ';
+    }
+
+    private static int countWords(String name) {
+        int words = 0;
+        for (int i = 0; i < name.length(); i++) {
+            if (isWordStart(name, i)) {
+                words++;
+            }
+        }
+        return words;
+    }
+}
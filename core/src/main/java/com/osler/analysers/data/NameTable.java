@@ -0,0 +1,196 @@
+package com.osler.analysers.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * NameTable interns names read as raw bytes and hands out dense integer ids for them. A name is
+ * only decoded into a String the first time it is seen, so repeated country and site names in
+ * the CSV cost a hash lookup instead of a new String per row.
+ *
+ * <p>Every name is interned within a scope. Sites use their country id as the scope, so two sites
+ * with the same name in different countries (e.g. Hyderabad) get different ids. Names that are not
+ * scoped use {@link #NO_SCOPE}.</p>
+ */
+public class NameTable {
+    /**
+     * The scope used for names that do not belong to a parent entity.
+     */
+    public static final int NO_SCOPE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Open addressing hash slots holding id + 1, or 0 for an empty slot.
+     */
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    /**
+     * The UTF-8 bytes of every interned name, back to back.
+     */
+    private byte[] pool = new byte[INITIAL_CAPACITY * 16];
+    private int poolSize;
+
+    /**
+     * For each id, the offset and length of its bytes in the pool, its hash and its scope.
+     */
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int[] scopes = new int[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * intern method returns the id of the name held in buf[off, off + len), adding it to the table
+     * if it has not been seen before in the given scope.
+     *
+     * @param scope The scope of the name, or NO_SCOPE.
+     * @param buf   The buffer holding the UTF-8 bytes of the name.
+     * @param off   The offset of the first byte of the name.
+     * @param len   The number of bytes in the name.
+     * @return The id of the name.
+     */
+    public int intern(int scope, byte[] buf, int off, int len) {
+        int hash = hash(scope, buf, off, len);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && scopes[id] == scope && equalBytes(id, buf, off, len)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return add(slot, hash, scope, buf, off, len);
+    }
+
+    /**
+     * intern method returns the id of the given name, adding it to the table if needed.
+     *
+     * @param scope The scope of the name, or NO_SCOPE.
+     * @param name  The name to intern.
+     * @return The id of the name.
+     */
+    public int intern(int scope, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return intern(scope, bytes, 0, bytes.length);
+    }
+
+    /**
+     * find method looks up the id of a name without adding it.
+     *
+     * @param scope The scope of the name, or NO_SCOPE.
+     * @param name  The name to look up.
+     * @return The id of the name, or -1 if it is not in the table.
+     */
+    public int find(int scope, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(scope, bytes, 0, bytes.length);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && scopes[id] == scope && equalBytes(id, bytes, 0, bytes.length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the name for an id.
+     *
+     * @param id The id returned by intern.
+     * @return The decoded name.
+     */
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * Returns the scope a name was interned in.
+     *
+     * @param id The id returned by intern.
+     * @return The scope of the name, or NO_SCOPE.
+     */
+    public int getScope(int id) {
+        return scopes[id];
+    }
+
+    /**
+     * Returns the number of distinct names in the table. Ids run from 0 to size() - 1.
+     *
+     * @return The number of names.
+     */
+    public int size() {
+        return size;
+    }
+
+    private int add(int slot, int hash, int scope, byte[] buf, int off, int len) {
+        int id = size;
+        if (id == offsets.length) {
+            int capacity = offsets.length * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            scopes = Arrays.copyOf(scopes, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+        if (poolSize + len > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + len));
+        }
+        System.arraycopy(buf, off, pool, poolSize, len);
+        offsets[id] = poolSize;
+        lengths[id] = len;
+        hashes[id] = hash;
+        scopes[id] = scope;
+        names[id] = new String(buf, off, len, StandardCharsets.UTF_8);
+        poolSize += len;
+        size++;
+
+        slots[slot] = id + 1;
+        // Keep the table at most half full
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        int[] newSlots = new int[slots.length * 2];
+        int mask = newSlots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = id + 1;
+        }
+        slots = newSlots;
+    }
+
+    private boolean equalBytes(int id, byte[] buf, int off, int len) {
+        if (lengths[id] != len) {
+            return false;
+        }
+        int start = offsets[id];
+        for (int i = 0; i < len; i++) {
+            if (pool[start + i] != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(int scope, byte[] buf, int off, int len) {
+        // FNV-1a over the bytes, seeded with the scope
+        int h = 0x811c9dc5 ^ scope;
+        for (int i = off; i < off + len; i++) {
+            h ^= buf[i];
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,249 @@
+package com.osler.analysers.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * ParallelAggregator computes exact per-site, per-country and global totals over a whole
+ * SiteDataStore with a fork/join reduction. Rows are first partitioned by country (a parallel
+ * counting sort of row indices), then disjoint ranges of countries are summed on separate
+ * workers. Since every site belongs to exactly one country, workers never write to the same
+ * total, and the only merge needed is adding up the global totals as the tasks join. All sums
+ * are 64-bit, so totals far beyond Integer.MAX_VALUE stay exact.
+ */
+public class ParallelAggregator {
+    /**
+     * Below this many rows a task does its work directly instead of splitting further.
+     */
+    private static final int MIN_ROWS_PER_TASK = 1 << 14;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a ParallelAggregator running on the given pool.
+     *
+     * @param pool The pool to run the reduction on, e.g. ForkJoinPool.commonPool().
+     */
+    public ParallelAggregator(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * reduce method sums every row of the store.
+     *
+     * @param store The store to aggregate. It must not be written to during the reduction.
+     * @return The totals as an AggregateSnapshot with version 0.
+     */
+    public AggregateSnapshot reduce(SiteDataStore store) {
+        Reduction reduction = new Reduction(store, pool.getParallelism());
+        return pool.invoke(reduction);
+    }
+
+    /**
+     * Reduction is the root task: it partitions the rows by country, sums the partitions in
+     * parallel and assembles the snapshot.
+     */
+    private static class Reduction extends RecursiveTask<AggregateSnapshot> {
+        private static final long serialVersionUID = 1L;
+
+        private final SiteDataStore store;
+        private final int[] countryIds;
+        private final int[] siteIds;
+        private final int[] tested;
+        private final int[] positive;
+        private final int rowCount;
+        private final int countryCount;
+        private final int parallelism;
+
+        /**
+         * The row indices grouped by country; rows of country k are at countryStart[k] to
+         * countryStart[k + 1].
+         */
+        private int[] rowsByCountry;
+        private int[] countryStart;
+
+        private long[] countryTested;
+        private long[] countryPositive;
+        private int[] countryRows;
+        private long[] siteTested;
+        private long[] sitePositive;
+        private int[] siteRows;
+
+        Reduction(SiteDataStore store, int parallelism) {
+            this.store = store;
+            this.parallelism = parallelism;
+            this.countryIds = store.countryIdColumn();
+            this.siteIds = store.siteIdColumn();
+            this.tested = store.testedColumn();
+            this.positive = store.positiveColumn();
+            this.rowCount = store.size();
+            this.countryCount = store.getCountries().size();
+        }
+
+        @Override
+        protected AggregateSnapshot compute() {
+            int siteCount = store.getSites().size();
+            countryTested = new long[countryCount];
+            countryPositive = new long[countryCount];
+            countryRows = new int[countryCount];
+            siteTested = new long[siteCount];
+            sitePositive = new long[siteCount];
+            siteRows = new int[siteCount];
+
+            partition();
+            long[] global = new CountryRangeTask(0, countryCount).invoke();
+
+            NameTable countries = store.getCountries();
+            String[] countryNames = new String[countryCount];
+            for (int id = 0; id < countryCount; id++) {
+                countryNames[id] = countries.getName(id);
+            }
+            NameTable sites = store.getSites();
+            String[] siteNames = new String[siteCount];
+            int[] siteCountries = new int[siteCount];
+            for (int id = 0; id < siteCount; id++) {
+                siteNames[id] = sites.getName(id);
+                siteCountries[id] = sites.getScope(id);
+            }
+            return new AggregateSnapshot(0, rowCount, countryNames, countryTested, countryPositive, countryRows,
+                    siteNames, siteCountries, siteTested, sitePositive, siteRows, global[0], global[1]);
+        }
+
+        /**
+         * partition method groups the row indices by country with a parallel counting sort. Each
+         * chunk of rows counts its countries, the counts are turned into per-chunk offsets, and
+         * each chunk then scatters its rows. Rows keep their store order within a country.
+         */
+        private void partition() {
+            // The root task may run on the calling thread, so getPool() cannot be relied on here
+            int chunkCount = (int) Math.max(1, Math.min((long) parallelism * 4,
+                    rowCount / MIN_ROWS_PER_TASK));
+            final int chunkSize = (rowCount + chunkCount - 1) / Math.max(chunkCount, 1);
+            final int[][] counts = new int[chunkCount][countryCount];
+
+            List<ForkJoinTask<?>> countTasks = new ArrayList<>(chunkCount);
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                final int from = chunk * chunkSize;
+                final int to = Math.min(rowCount, from + chunkSize);
+                final int[] chunkCounts = counts[chunk];
+                countTasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        for (int row = from; row < to; row++) {
+                            chunkCounts[countryIds[row]]++;
+                        }
+                    }
+                });
+            }
+            invokeAll(countTasks);
+
+            // Turn the counts into the start offset of each chunk's rows for each country
+            countryStart = new int[countryCount + 1];
+            int offset = 0;
+            for (int country = 0; country < countryCount; country++) {
+                countryStart[country] = offset;
+                for (int chunk = 0; chunk < chunkCount; chunk++) {
+                    int count = counts[chunk][country];
+                    counts[chunk][country] = offset;
+                    offset += count;
+                }
+            }
+            countryStart[countryCount] = offset;
+
+            rowsByCountry = new int[rowCount];
+            List<ForkJoinTask<?>> scatterTasks = new ArrayList<>(chunkCount);
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                final int from = chunk * chunkSize;
+                final int to = Math.min(rowCount, from + chunkSize);
+                final int[] next = counts[chunk];
+                scatterTasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        for (int row = from; row < to; row++) {
+                            rowsByCountry[next[countryIds[row]]++] = row;
+                        }
+                    }
+                });
+            }
+            invokeAll(scatterTasks);
+        }
+
+        /**
+         * CountryRangeTask sums the rows of countries [fromCountry, toCountry), splitting the range
+         * in two halves of roughly equal row counts while it is large enough. It returns the
+         * {tested, positive} total of its range, which is merged as the tasks join.
+         */
+        private class CountryRangeTask extends RecursiveTask<long[]> {
+            private static final long serialVersionUID = 1L;
+
+            private final int fromCountry;
+            private final int toCountry;
+
+            CountryRangeTask(int fromCountry, int toCountry) {
+                this.fromCountry = fromCountry;
+                this.toCountry = toCountry;
+            }
+
+            @Override
+            protected long[] compute() {
+                int rows = countryStart[toCountry] - countryStart[fromCountry];
+                if (rows <= MIN_ROWS_PER_TASK || toCountry - fromCountry == 1) {
+                    return sumCountries();
+                }
+                int split = splitPoint(countryStart[fromCountry] + rows / 2);
+                CountryRangeTask left = new CountryRangeTask(fromCountry, split);
+                CountryRangeTask right = new CountryRangeTask(split, toCountry);
+                left.fork();
+                long[] rightTotals = right.compute();
+                long[] leftTotals = left.join();
+                return new long[]{leftTotals[0] + rightTotals[0], leftTotals[1] + rightTotals[1]};
+            }
+
+            /**
+             * splitPoint method finds the country at which the range's rows are split in half,
+             * keeping at least one country on each side.
+             */
+            private int splitPoint(int middleRow) {
+                int low = fromCountry + 1;
+                int high = toCountry - 1;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (countryStart[mid] < middleRow) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                return low;
+            }
+
+            private long[] sumCountries() {
+                long rangeTested = 0;
+                long rangePositive = 0;
+                for (int country = fromCountry; country < toCountry; country++) {
+                    long sumTested = 0;
+                    long sumPositive = 0;
+                    for (int i = countryStart[country]; i < countryStart[country + 1]; i++) {
+                        int row = rowsByCountry[i];
+                        int site = siteIds[row];
+                        sumTested += tested[row];
+                        sumPositive += positive[row];
+                        siteTested[site] += tested[row];
+                        sitePositive[site] += positive[row];
+                        siteRows[site]++;
+                    }
+                    countryTested[country] = sumTested;
+                    countryPositive[country] = sumPositive;
+                    countryRows[country] = countryStart[country + 1] - countryStart[country];
+                    rangeTested += sumTested;
+                    rangePositive += sumPositive;
+                }
+                return new long[]{rangeTested, rangePositive};
+            }
+        }
+    }
+}
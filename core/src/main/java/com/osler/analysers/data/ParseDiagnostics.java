@@ -0,0 +1,107 @@
+package com.osler.analysers.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ParseDiagnostics collects the problems found while parsing input files. Every malformed line is
+ * counted, but only the first few messages are kept so a badly broken file cannot use up memory.
+ */
+public class ParseDiagnostics {
+    /**
+     * The maximum number of messages kept.
+     */
+    private static final int MAX_MESSAGES = 100;
+
+    /**
+     * The source, line number and reason of each kept message. They are only formatted when the
+     * messages are read, so line numbers can still be shifted when diagnostics are combined.
+     */
+    private final List<String> sources = new ArrayList<>();
+    private final List<Long> lineNumbers = new ArrayList<>();
+    private final List<String> reasons = new ArrayList<>();
+    private int malformedCount;
+
+    /**
+     * report method records a malformed line.
+     *
+     * @param source     The name of the file or resource the line came from.
+     * @param lineNumber The 1-based line number of the line.
+     * @param reason     A short description of the problem.
+     */
+    public void report(String source, long lineNumber, String reason) {
+        malformedCount++;
+        if (sources.size() < MAX_MESSAGES) {
+            sources.add(source);
+            lineNumbers.add(lineNumber);
+            reasons.add(reason);
+        }
+    }
+
+    /**
+     * restore method records malformed lines reported before, e.g. by a parse whose results were
+     * saved, from their count and their messages, which are kept as they are.
+     *
+     * @param malformedCount The number of malformed lines.
+     * @param messages       The messages kept for the first of them.
+     */
+    void restore(int malformedCount, List<String> messages) {
+        this.malformedCount += malformedCount;
+        for (int i = 0; i < messages.size() && sources.size() < MAX_MESSAGES; i++) {
+            // A null source marks a message that is already formatted
+            sources.add(null);
+            lineNumbers.add(0L);
+            reasons.add(messages.get(i));
+        }
+    }
+
+    /**
+     * addAll method adds the lines reported to another ParseDiagnostics after the ones reported
+     * here, e.g. to combine the results of inputs parsed in parallel.
+     *
+     * @param other The diagnostics to add.
+     */
+    public void addAll(ParseDiagnostics other) {
+        addAll(other, 0);
+    }
+
+    /**
+     * addAll method adds the lines reported to another ParseDiagnostics after the ones reported
+     * here, shifting their line numbers, e.g. for a chunk of a file parsed on its own.
+     *
+     * @param other      The diagnostics to add.
+     * @param lineOffset The number of lines that came before the other diagnostics' line 1.
+     */
+    public void addAll(ParseDiagnostics other, long lineOffset) {
+        malformedCount += other.malformedCount;
+        for (int i = 0; i < other.sources.size() && sources.size() < MAX_MESSAGES; i++) {
+            sources.add(other.sources.get(i));
+            lineNumbers.add(other.lineNumbers.get(i) + lineOffset);
+            reasons.add(other.reasons.get(i));
+        }
+    }
+
+    /**
+     * Returns the number of malformed lines reported.
+     *
+     * @return The malformed line count.
+     */
+    public int getMalformedCount() {
+        return malformedCount;
+    }
+
+    /**
+     * Returns the messages kept for the first malformed lines.
+     *
+     * @return An unmodifiable list of messages in the form "source:line: reason".
+     */
+    public List<String> getMessages() {
+        List<String> messages = new ArrayList<>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            messages.add(sources.get(i) == null ? reasons.get(i)
+                    : sources.get(i) + ":" + lineNumbers.get(i) + ": " + reasons.get(i));
+        }
+        return Collections.unmodifiableList(messages);
+    }
+}
@@ -0,0 +1,167 @@
+package com.osler.analysers.data;
+
+/**
+ * Ranking orders the countries or sites of an AggregateSnapshot by positivity, highest first.
+ * The positivity of every entity is computed once up front, so comparisons are a plain array
+ * lookup instead of two divisions. Asking for the top k entries keeps a bounded heap of k ids,
+ * which costs O(n log k); a full ranking is the same heap with room for every entity. Entities
+ * with equal positivity keep their id order, i.e. the order they were first seen in the data.
+ * Entities without rows are not ranked.
+ */
+public class Ranking {
+    private final Granularity granularity;
+
+    /**
+     * The positivity of each entity, by id.
+     */
+    private final double[] keys;
+
+    /**
+     * The ids of the entities with at least one row, in id order.
+     */
+    private final int[] candidates;
+
+    private Ranking(Granularity granularity, double[] keys, int[] candidates) {
+        this.granularity = granularity;
+        this.keys = keys;
+        this.candidates = candidates;
+    }
+
+    /**
+     * of method computes the positivity of every country or site of the snapshot.
+     *
+     * @param aggregates  The totals to rank.
+     * @param granularity Whether to rank countries or sites.
+     * @return A Ranking over the snapshot's entities.
+     */
+    public static Ranking of(AggregateSnapshot aggregates, Granularity granularity) {
+        if (granularity.isTimeBucket()) {
+            throw new IllegalArgumentException("Time buckets are not ranked: " + granularity);
+        }
+        boolean sites = granularity == Granularity.SITE;
+        int count = sites ? aggregates.getSiteCount() : aggregates.getCountryCount();
+        double[] keys = new double[count];
+        int[] candidates = new int[count];
+        int candidateCount = 0;
+        for (int id = 0; id < count; id++) {
+            long tested = sites ? aggregates.getSiteTested(id) : aggregates.getCountryTested(id);
+            long positive = sites ? aggregates.getSitePositive(id) : aggregates.getCountryPositive(id);
+            int rows = sites ? aggregates.getSiteRowCount(id) : aggregates.getCountryRowCount(id);
+            keys[id] = tested == 0 ? 0 : (double) positive / tested;
+            if (rows > 0) {
+                candidates[candidateCount++] = id;
+            }
+        }
+        int[] ranked = new int[candidateCount];
+        System.arraycopy(candidates, 0, ranked, 0, candidateCount);
+        return new Ranking(granularity, keys, ranked);
+    }
+
+    public Granularity getGranularity() {
+        return granularity;
+    }
+
+    /**
+     * Returns the number of entities that can be ranked.
+     *
+     * @return The number of countries or sites with at least one row.
+     */
+    public int size() {
+        return candidates.length;
+    }
+
+    /**
+     * getPositivity method returns the precomputed positive / tested ratio of an entity.
+     *
+     * @param id The country or site id.
+     * @return The ratio, 0 if nothing was tested.
+     */
+    public double getPositivity(int id) {
+        return keys[id];
+    }
+
+    /**
+     * top method returns the k entities with the highest positivity.
+     *
+     * @param k The number of entities wanted. Zero or less, or more than size(), ranks them all.
+     * @return The ids of the top entities, highest positivity first.
+     */
+    public int[] top(int k) {
+        if (k <= 0 || k > candidates.length) {
+            k = candidates.length;
+        }
+
+        // Step 1: Keep the best k ids in a heap whose root is the worst of them
+        int[] heap = new int[k];
+        int size = 0;
+        for (int id : candidates) {
+            if (size < k) {
+                heap[size] = id;
+                siftUp(heap, size++);
+            } else if (k > 0 && ranksBefore(id, heap[0])) {
+                heap[0] = id;
+                siftDown(heap, size);
+            }
+        }
+
+        // Step 2: Take the worst off the heap repeatedly, filling the result from the back
+        int[] result = new int[size];
+        while (size > 0) {
+            result[size - 1] = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size);
+        }
+        return result;
+    }
+
+    /**
+     * sorted method ranks every entity.
+     *
+     * @return The ids of all entities with rows, highest positivity first.
+     */
+    public int[] sorted() {
+        return top(0);
+    }
+
+    /**
+     * ranksBefore method tells whether entity a ranks above entity b.
+     */
+    private boolean ranksBefore(int a, int b) {
+        int byKey = Double.compare(keys[a], keys[b]);
+        return byKey != 0 ? byKey > 0 : a < b;
+    }
+
+    private void siftUp(int[] heap, int index) {
+        int id = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!ranksBefore(heap[parent], id)) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = id;
+    }
+
+    private void siftDown(int[] heap, int size) {
+        if (size == 0) {
+            return;
+        }
+        int id = heap[0];
+        int index = 0;
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && ranksBefore(heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!ranksBefore(id, heap[child])) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = id;
+    }
+}
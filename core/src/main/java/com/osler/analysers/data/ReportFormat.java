@@ -0,0 +1,75 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+
+/**
+ * ReportFormat writes the entries of a report to a ReportOutput as ReportWriter streams them, one
+ * call per entry, so a report of any size is written in one pass without building it in memory.
+ * Implementations are stateless and encode straight into the output, without intermediate
+ * strings. ReportFormats holds the formats that come with the app.
+ *
+ * <p>The entries of one report all have the granularity passed to begin: countries and sites in
+ * order of positive percentage from highest to lowest, time buckets in date order.</p>
+ */
+public interface ReportFormat {
+
+    /**
+     * Returns the usual file name extension of the format, without the dot.
+     *
+     * @return The extension, e.g. "csv".
+     */
+    String getExtension();
+
+    /**
+     * Called once before the first entry.
+     *
+     * @param out         The output to write to.
+     * @param granularity The granularity of the entries that follow.
+     * @throws IOException If the output cannot be written.
+     */
+    void begin(ReportOutput out, Granularity granularity) throws IOException;
+
+    /**
+     * Called for each country, when the granularity is COUNTRY.
+     *
+     * @param out      The output to write to.
+     * @param country  The country name.
+     * @param tested   The number of tests.
+     * @param positive The number of positive tests.
+     * @throws IOException If the output cannot be written.
+     */
+    void writeCountry(ReportOutput out, String country, long tested, long positive) throws IOException;
+
+    /**
+     * Called for each site, when the granularity is SITE.
+     *
+     * @param out      The output to write to.
+     * @param country  The name of the site's country.
+     * @param site     The site name.
+     * @param tested   The number of tests.
+     * @param positive The number of positive tests.
+     * @throws IOException If the output cannot be written.
+     */
+    void writeSite(ReportOutput out, String country, String site, long tested, long positive) throws IOException;
+
+    /**
+     * Called for each time bucket holding rows, when the granularity is DAY, WEEK or MONTH.
+     *
+     * @param out      The output to write to.
+     * @param start    The first second of the bucket, in epoch seconds.
+     * @param end      The last second of the bucket, in epoch seconds.
+     * @param tested   The number of tests in rows starting in the bucket.
+     * @param positive The number of positive tests in rows starting in the bucket.
+     * @throws IOException If the output cannot be written.
+     */
+    void writeBucket(ReportOutput out, long start, long end, long tested, long positive) throws IOException;
+
+    /**
+     * Called once after the last entry.
+     *
+     * @param out        The output to write to.
+     * @param entryCount The number of entries written.
+     * @throws IOException If the output cannot be written.
+     */
+    void end(ReportOutput out, int entryCount) throws IOException;
+}
@@ -0,0 +1,44 @@
+package com.osler.analysers.data;
+
+import java.util.Locale;
+
+/**
+ * ReportFormats holds the report formats that come with the app, and looks them up by name.
+ */
+public final class ReportFormats {
+    /**
+     * The human-readable report, mgmt_report.txt.
+     */
+    public static final ReportFormat TEXT = new TextReportFormat();
+
+    public static final ReportFormat CSV = new CsvReportFormat();
+
+    public static final ReportFormat JSON = new JsonReportFormat();
+
+    public static final ReportFormat BINARY = new BinaryReportFormat();
+
+    private ReportFormats() {
+    }
+
+    /**
+     * forName method returns the format with the given name or extension.
+     *
+     * @param name One of "text", "csv", "json" or "binary", or the format's extension.
+     * @return The format.
+     * @throws IllegalArgumentException If there is no format with that name.
+     */
+    public static ReportFormat forName(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        for (ReportFormat format : new ReportFormat[]{TEXT, CSV, JSON, BINARY}) {
+            if (key.equals(format.getExtension())) {
+                return format;
+            }
+        }
+        if (key.equals("text")) {
+            return TEXT;
+        } else if (key.equals("binary")) {
+            return BINARY;
+        }
+        throw new IllegalArgumentException("Unknown report format: " + name);
+    }
+}
@@ -0,0 +1,304 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ReportOutput is the buffer a ReportFormat writes a report into. Names, numbers, percentages
+ * and dates are encoded by hand into a reusable byte array that is written to the underlying
+ * stream whenever it fills up, so writing an entry allocates nothing and the report is never held
+ * in memory as a whole. Numbers are always written with ASCII digits and a '.' decimal separator,
+ * whatever the device locale.
+ */
+public class ReportOutput {
+    /**
+     * The size of the buffer entries are formatted into before they are written to the stream.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The largest number of bytes a single formatted character or number can take.
+     */
+    private static final int MAX_TOKEN_BYTES = 20;
+
+    /**
+     * The length of a date written as yyyy-MM-dd.
+     */
+    private static final int DATE_LENGTH = 10;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] digits = new byte[MAX_TOKEN_BYTES];
+    private int position;
+    private int entryCount;
+
+    ReportOutput(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * putByte method writes a single byte, e.g. an ASCII separator.
+     *
+     * @param value The byte.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putByte(int value) throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * putBytes method writes constant bytes, e.g. a label encoded once with ascii.
+     *
+     * @param bytes The bytes.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putBytes(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - position) {
+            flush();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * putLong method writes a number in decimal without creating a String.
+     *
+     * @param value The number.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            putBytes(ascii(Long.toString(value)));
+            return;
+        }
+        ensure(MAX_TOKEN_BYTES);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        System.arraycopy(digits, start, buffer, position, digits.length - start);
+        position += digits.length - start;
+    }
+
+    /**
+     * putPercent method writes a percentage with two decimals, e.g. "24.83" for 2483.
+     *
+     * @param hundredths The percentage in hundredths of a percent, see ReportWriter.percentHundredths.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putPercent(long hundredths) throws IOException {
+        putLong(hundredths / 100);
+        ensure(3);
+        long fraction = Math.abs(hundredths % 100);
+        buffer[position++] = '.';
+        buffer[position++] = (byte) ('0' + fraction / 10);
+        buffer[position++] = (byte) ('0' + fraction % 10);
+    }
+
+    /**
+     * putDate method writes the UTC day of a date as yyyy-MM-dd, for years 0 to 9999.
+     *
+     * @param epochSeconds The date in epoch seconds.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putDate(long epochSeconds) throws IOException {
+        ensure(DATE_LENGTH);
+        dateBytes(epochSeconds, buffer, position);
+        position += DATE_LENGTH;
+    }
+
+    /**
+     * formatDate method formats the UTC day of a date as yyyy-MM-dd, like putDate.
+     *
+     * @param epochSeconds The date in epoch seconds.
+     * @return The formatted day.
+     */
+    public static String formatDate(long epochSeconds) {
+        byte[] bytes = new byte[DATE_LENGTH];
+        dateBytes(epochSeconds, bytes, 0);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * putVarLong method writes a non-negative number as an unsigned LEB128 varint: seven bits per
+     * byte, lowest first, with the high bit set on every byte but the last.
+     *
+     * @param value The number, at least 0.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putVarLong(long value) throws IOException {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * putString method encodes a name as UTF-8 directly into the buffer.
+     *
+     * @param value The name.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putString(String value) throws IOException {
+        putString(value, 0, value.length());
+    }
+
+    /**
+     * putString method encodes part of a name as UTF-8 directly into the buffer. Unpaired
+     * surrogates are written as '?', like String.getBytes does.
+     *
+     * @param value The name.
+     * @param start The index of the first char to write.
+     * @param end   The index after the last char to write.
+     * @throws IOException If the stream cannot be written.
+     */
+    public void putString(String value, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            ensure(4);
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * utf8Length method returns the number of bytes putString writes for a name, so it can be
+     * length-prefixed without encoding it twice.
+     *
+     * @param value The name.
+     * @return The length of the name in UTF-8.
+     */
+    public static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * ascii method encodes a constant label once, for putBytes.
+     *
+     * @param value The ASCII text.
+     * @return The bytes of the text.
+     */
+    public static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of entries written so far, e.g. to separate entries from the previous
+     * one.
+     *
+     * @return The number of entries the ReportFormat has written.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * entryWritten method counts an entry once the ReportFormat has written it.
+     */
+    void entryWritten() {
+        entryCount++;
+    }
+
+    OutputStream getStream() {
+        return out;
+    }
+
+    /**
+     * flush method writes the buffered bytes to the stream.
+     */
+    void flush() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    /**
+     * dateBytes method writes the UTC day of a date as yyyy-MM-dd into bytes[offset, offset + 10).
+     */
+    private static void dateBytes(long epochSeconds, byte[] bytes, int offset) {
+        // Civil date from days since the epoch, in 400-year eras starting on March 1st
+        long days = Math.floorDiv(epochSeconds, 24 * 60 * 60) + 719468;
+        long era = Math.floorDiv(days, 146097);
+        long dayOfEra = days - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        putDigits(year, bytes, offset, 4);
+        bytes[offset + 4] = '-';
+        putDigits(month, bytes, offset + 5, 2);
+        bytes[offset + 7] = '-';
+        putDigits(day, bytes, offset + 8, 2);
+    }
+
+    /**
+     * putDigits method writes a number zero-padded to the given width.
+     */
+    private static void putDigits(long value, byte[] bytes, int offset, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            bytes[offset + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * ensure method flushes the buffer if fewer than the given number of bytes are left in it.
+     */
+    private void ensure(int bytes) throws IOException {
+        if (buffer.length - position < bytes) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.osler.analysers.data;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * ReportSink writes the management report of a pipeline run to a file with a ReportWriter.
+ */
+public class ReportSink implements ResultSink {
+    private final File file;
+    private final Granularity granularity;
+    private final int limit;
+    private final ReportFormat format;
+    private final boolean gzip;
+    private ReportSummary summary;
+
+    /**
+     * Creates a sink writing one line per country, like the report written by the app.
+     *
+     * @param file The file to write the report to.
+     */
+    public ReportSink(File file) {
+        this(file, Granularity.COUNTRY, 0);
+    }
+
+    /**
+     * Creates a sink writing the top entries at the given granularity.
+     *
+     * @param file        The file to write the report to.
+     * @param granularity Whether to rank countries or sites.
+     * @param limit       The maximum number of entries, or 0 for all of them.
+     */
+    public ReportSink(File file, Granularity granularity, int limit) {
+        this(file, granularity, limit, ReportFormats.TEXT, false);
+    }
+
+    /**
+     * Creates a sink writing the report in the given format.
+     *
+     * @param file        The file to write the report to.
+     * @param granularity Whether to report countries, sites or time buckets.
+     * @param limit       The maximum number of countries or sites, or 0 for all of them. Every
+     *                    time bucket is reported.
+     * @param format      The format of the report.
+     * @param gzip        Whether to compress the report with gzip.
+     */
+    public ReportSink(File file, Granularity granularity, int limit, ReportFormat format, boolean gzip) {
+        this.file = file;
+        this.granularity = granularity;
+        this.limit = limit;
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public void accept(LoadState result) throws IOException {
+        write(result.getAggregates(), result.getStore());
+    }
+
+    /**
+     * write method writes the report for the given totals, or for the given rows when reporting
+     * time buckets.
+     *
+     * @param aggregates The totals to report on.
+     * @param store      The rows to report on. Only used for time buckets.
+     * @throws IOException If the report cannot be written.
+     */
+    public void write(AggregateSnapshot aggregates, SiteDataStore store) throws IOException {
+        ReportWriter writer = new ReportWriter(file, format, gzip);
+        if (granularity.isTimeBucket()) {
+            if (store == null) {
+                throw new IllegalStateException("A report of " + granularity + " buckets needs the rows");
+            }
+            summary = writer.writeBuckets(store, granularity);
+        } else {
+            summary = writer.write(aggregates, granularity, limit);
+        }
+    }
+
+    /**
+     * Returns the summary of the last report written.
+     *
+     * @return The ReportSummary, or null if no report has been written yet.
+     */
+    public ReportSummary getSummary() {
+        return summary;
+    }
+}
@@ -0,0 +1,85 @@
+package com.osler.analysers.data;
+
+import java.io.File;
+
+/**
+ * ReportSummary is an immutable description of a management report written by the ReportWriter:
+ * where it went, how big it is and which entry ranks highest. It is small enough to show in a
+ * notification, unlike the report itself.
+ */
+public class ReportSummary {
+    /**
+     * The report file, or the file that could not be written if the report failed.
+     */
+    private final File file;
+
+    /**
+     * The number of lines written.
+     */
+    private final int lineCount;
+
+    /**
+     * The size of the report in bytes.
+     */
+    private final long byteCount;
+
+    /**
+     * The name on the first line of the report, or null if the report is empty.
+     */
+    private final String topName;
+
+    /**
+     * The positive percentage on the first line of the report, in hundredths of a percent.
+     */
+    private final long topPercentHundredths;
+
+    /**
+     * The exception that stopped the report from being written, or null if it was written.
+     */
+    private final Exception error;
+
+    ReportSummary(File file, int lineCount, long byteCount, String topName, long topPercentHundredths,
+                  Exception error) {
+        this.file = file;
+        this.lineCount = lineCount;
+        this.byteCount = byteCount;
+        this.topName = topName;
+        this.topPercentHundredths = topPercentHundredths;
+        this.error = error;
+    }
+
+    /**
+     * Creates the summary of a report that could not be written.
+     *
+     * @param file  The report file.
+     * @param error The exception that stopped the report.
+     * @return A ReportSummary holding the error.
+     */
+    public static ReportSummary failed(File file, Exception error) {
+        return new ReportSummary(file, 0, 0, null, 0, error);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public String getTopName() {
+        return topName;
+    }
+
+    public long getTopPercentHundredths() {
+        return topPercentHundredths;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+}
@@ -0,0 +1,362 @@
+package com.osler.analysers.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ReportWriter writes the management report straight from an AggregateSnapshot to a file, in
+ * one pass. The entries are streamed through a ReportFormat into a ReportOutput that is flushed
+ * to the file whenever its buffer fills up, so the report is never held in memory as a whole and
+ * writing an entry allocates nothing. By default the report has the format it has always had:
+ *
+ * <pre>Kenya, Tested = 1615, Positive = 24.83% (401/1615)</pre>
+ *
+ * <p>The sites an AlertEngine picked out can be reported the same way, see writeAlerts.</p>
+ *
+ * <p>The report can also be written as CSV, JSON or binary, see ReportFormats, and compressed
+ * with gzip. The report is written to a temporary file that is renamed into place once complete,
+ * so readers only ever see the previous report or the new one in full.</p>
+ */
+public class ReportWriter {
+    /**
+     * The largest number of time buckets a report can have, e.g. over 2800 years of days.
+     */
+    private static final long MAX_BUCKETS = 1 << 20;
+
+    private final File file;
+    private final ReportFormat format;
+    private final boolean gzip;
+
+    /**
+     * Creates a ReportWriter for the given report file.
+     *
+     * @param file The file the report is written to, e.g. mgmt_report.txt.
+     */
+    public ReportWriter(File file) {
+        this(file, ReportFormats.TEXT, false);
+    }
+
+    /**
+     * Creates a ReportWriter writing the given format.
+     *
+     * @param file   The file the report is written to.
+     * @param format The format of the report.
+     * @param gzip   Whether to compress the report with gzip.
+     */
+    public ReportWriter(File file, ReportFormat format, boolean gzip) {
+        this.file = file;
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    /**
+     * write method writes one line per country, ordered by positive percentage from highest to
+     * lowest. Countries with no rows are left out.
+     *
+     * @param aggregates The totals to report on.
+     * @return A summary of the written report.
+     * @throws IOException If the report cannot be written. The previous report is left in place.
+     */
+    public ReportSummary write(AggregateSnapshot aggregates) throws IOException {
+        return write(aggregates, Granularity.COUNTRY, 0);
+    }
+
+    /**
+     * write method writes one entry per country or site, ordered by positive percentage from
+     * highest to lowest, optionally only for the entries with the highest percentage. Sites are
+     * named "Country / Site" in the text format, since site names are only unique within a
+     * country.
+     *
+     * @param aggregates  The totals to report on.
+     * @param granularity Whether to report countries or sites. Time buckets need the rows, see
+     *                    writeBuckets.
+     * @param limit       The number of entries to report, or 0 for all of them.
+     * @return A summary of the written report.
+     * @throws IOException If the report cannot be written. The previous report is left in place.
+     */
+    public ReportSummary write(AggregateSnapshot aggregates, Granularity granularity, int limit)
+            throws IOException {
+        long start = Metrics.get().begin(Metrics.Stage.REPORT_WRITE);
+        try {
+            return written(writeRanking(aggregates, granularity, limit));
+        } finally {
+            Metrics.get().end(Metrics.Stage.REPORT_WRITE, start);
+        }
+    }
+
+    private ReportSummary writeRanking(AggregateSnapshot aggregates, Granularity granularity, int limit)
+            throws IOException {
+        // Step 1: Rank the entries, only sorting as many as will be written
+        int[] order = Ranking.of(aggregates, granularity).top(limit);
+        boolean sites = granularity == Granularity.SITE;
+
+        // Step 2: Stream the entries to a temporary file and move it into place
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        boolean written = false;
+        try {
+            ReportOutput out = open(fileOut);
+            format.begin(out, granularity);
+            for (int id : order) {
+                if (sites) {
+                    format.writeSite(out, aggregates.getCountryName(aggregates.getSiteCountry(id)),
+                            aggregates.getSiteName(id), aggregates.getSiteTested(id), aggregates.getSitePositive(id));
+                } else {
+                    format.writeCountry(out, aggregates.getCountryName(id), aggregates.getCountryTested(id),
+                            aggregates.getCountryPositive(id));
+                }
+                out.entryWritten();
+            }
+            format.end(out, order.length);
+            close(out, fileOut);
+            written = true;
+        } finally {
+            finish(fileOut, tempFile, written);
+        }
+        long byteCount = moveIntoPlace(tempFile);
+
+        if (order.length == 0) {
+            return new ReportSummary(file, 0, byteCount, null, 0, null);
+        }
+        int top = order[0];
+        String topName = sites ? aggregates.getCountryName(aggregates.getSiteCountry(top)) + " / "
+                + aggregates.getSiteName(top) : aggregates.getCountryName(top);
+        long topPercent = sites ? percentHundredths(aggregates.getSitePositive(top), aggregates.getSiteTested(top))
+                : percentHundredths(aggregates.getCountryPositive(top), aggregates.getCountryTested(top));
+        return new ReportSummary(file, order.length, byteCount, topName, topPercent, null);
+    }
+
+    /**
+     * writeBuckets method writes one entry per day, week or month, in date order, totalling the rows
+     * that start in it. Buckets without rows are left out. The summary names the bucket with the
+     * highest positive percentage by the day it starts on.
+     *
+     * @param store       The rows to report on.
+     * @param granularity DAY, WEEK or MONTH.
+     * @return A summary of the written report.
+     * @throws IOException If the report cannot be written, or the rows span too many buckets. The
+     *                     previous report is left in place.
+     */
+    public ReportSummary writeBuckets(SiteDataStore store, Granularity granularity) throws IOException {
+        if (!granularity.isTimeBucket()) {
+            throw new IllegalArgumentException("Not a time bucket: " + granularity);
+        }
+        long start = Metrics.get().begin(Metrics.Stage.REPORT_WRITE);
+        try {
+            return written(writeTimeBuckets(store, granularity));
+        } finally {
+            Metrics.get().end(Metrics.Stage.REPORT_WRITE, start);
+        }
+    }
+
+    private ReportSummary writeTimeBuckets(SiteDataStore store, Granularity granularity) throws IOException {
+
+        // Step 1: Total the rows per bucket, in one array covering the buckets in the data
+        int rows = store.size();
+        long firstBucket = Long.MAX_VALUE;
+        long lastBucket = Long.MIN_VALUE;
+        for (int row = 0; row < rows; row++) {
+            long bucket = granularity.getBucket(store.getStartDate(row));
+            firstBucket = Math.min(firstBucket, bucket);
+            lastBucket = Math.max(lastBucket, bucket);
+        }
+        int bucketCount = 0;
+        if (rows > 0) {
+            if (lastBucket - firstBucket >= MAX_BUCKETS) {
+                throw new IOException("The rows span more than " + MAX_BUCKETS + " buckets of " + granularity);
+            }
+            bucketCount = (int) (lastBucket - firstBucket + 1);
+        }
+        long[] tested = new long[bucketCount];
+        long[] positive = new long[bucketCount];
+        int[] bucketRows = new int[bucketCount];
+        for (int row = 0; row < rows; row++) {
+            int index = (int) (granularity.getBucket(store.getStartDate(row)) - firstBucket);
+            tested[index] += store.getTested(row);
+            positive[index] += store.getPositive(row);
+            bucketRows[index]++;
+        }
+
+        // Step 2: Stream the buckets with rows to a temporary file and move it into place
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        boolean written = false;
+        int entryCount = 0;
+        int top = -1;
+        try {
+            ReportOutput out = open(fileOut);
+            format.begin(out, granularity);
+            for (int index = 0; index < bucketCount; index++) {
+                if (bucketRows[index] == 0) {
+                    continue;
+                }
+                format.writeBucket(out, granularity.getBucketStart(firstBucket + index),
+                        granularity.getBucketEnd(firstBucket + index), tested[index], positive[index]);
+                out.entryWritten();
+                entryCount++;
+                if (top < 0 || percentHundredths(positive[index], tested[index])
+                        > percentHundredths(positive[top], tested[top])) {
+                    top = index;
+                }
+            }
+            format.end(out, entryCount);
+            close(out, fileOut);
+            written = true;
+        } finally {
+            finish(fileOut, tempFile, written);
+        }
+        long byteCount = moveIntoPlace(tempFile);
+
+        if (top < 0) {
+            return new ReportSummary(file, 0, byteCount, null, 0, null);
+        }
+        String topName = ReportOutput.formatDate(granularity.getBucketStart(firstBucket + top));
+        return new ReportSummary(file, entryCount, byteCount, topName,
+                percentHundredths(positive[top], tested[top]), null);
+    }
+
+    /**
+     * writeAlerts method writes one site entry per site with alerts, holding the tests of its latest
+     * alert row, ordered by the positive percentage of that row from highest to lowest. The rules
+     * and scores of the alerts are not part of the report, see Alert.toString.
+     *
+     * @param alerts The alerts, oldest first, e.g. AlertEngine.getRecentAlerts.
+     * @return A summary of the written report.
+     * @throws IOException If the report cannot be written. The previous report is left in place.
+     */
+    public ReportSummary writeAlerts(List<Alert> alerts) throws IOException {
+        long start = Metrics.get().begin(Metrics.Stage.REPORT_WRITE);
+        try {
+            return written(writeAlertSites(alerts));
+        } finally {
+            Metrics.get().end(Metrics.Stage.REPORT_WRITE, start);
+        }
+    }
+
+    private ReportSummary writeAlertSites(List<Alert> alerts) throws IOException {
+        // Step 1: Keep the latest alert of each site, ranked by the percentage of its row
+        Map<String, Alert> latest = new LinkedHashMap<>();
+        for (Alert alert : alerts) {
+            String key = alert.getCountry() + '\n' + alert.getSite();
+            latest.remove(key);
+            latest.put(key, alert);
+        }
+        List<Alert> sites = new ArrayList<>(latest.values());
+        Collections.sort(sites, new Comparator<Alert>() {
+            @Override
+            public int compare(Alert a, Alert b) {
+                return Long.compare(percentHundredths(b.getPositive(), b.getTested()),
+                        percentHundredths(a.getPositive(), a.getTested()));
+            }
+        });
+
+        // Step 2: Stream the sites to a temporary file and move it into place
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        boolean written = false;
+        try {
+            ReportOutput out = open(fileOut);
+            format.begin(out, Granularity.SITE);
+            for (Alert alert : sites) {
+                format.writeSite(out, alert.getCountry(), alert.getSite(), alert.getTested(), alert.getPositive());
+                out.entryWritten();
+            }
+            format.end(out, sites.size());
+            close(out, fileOut);
+            written = true;
+        } finally {
+            finish(fileOut, tempFile, written);
+        }
+        long byteCount = moveIntoPlace(tempFile);
+
+        if (sites.isEmpty()) {
+            return new ReportSummary(file, 0, byteCount, null, 0, null);
+        }
+        Alert top = sites.get(0);
+        return new ReportSummary(file, sites.size(), byteCount, top.getCountry() + " / " + top.getSite(),
+                percentHundredths(top.getPositive(), top.getTested()), null);
+    }
+
+    /**
+     * written method counts a report that was written in the Metrics.
+     */
+    private static ReportSummary written(ReportSummary summary) {
+        Metrics.get().add(Metrics.Counter.REPORTS_WRITTEN, 1);
+        Metrics.get().add(Metrics.Counter.REPORT_BYTES, summary.getByteCount());
+        return summary;
+    }
+
+    /**
+     * percentHundredths method computes positive / tested as a percentage with two decimals,
+     * rounded half up, e.g. 2483 for 24.83%. Zero tested counts as 0%.
+     *
+     * @param positive The number of positive tests.
+     * @param tested   The number of tests.
+     * @return The percentage in hundredths of a percent.
+     */
+    public static long percentHundredths(long positive, long tested) {
+        if (tested <= 0) {
+            return 0;
+        }
+        if (positive >= 0 && positive <= Long.MAX_VALUE / 20000 && tested <= Long.MAX_VALUE / 4) {
+            // Exact integer rounding: floor(positive * 10000 / tested + 1/2)
+            return (positive * 20000 + tested) / (2 * tested);
+        }
+        return Math.round(positive * 10000.0 / tested);
+    }
+
+    /**
+     * open method starts the report on the temporary file, compressing it if asked to.
+     */
+    private ReportOutput open(FileOutputStream fileOut) throws IOException {
+        return new ReportOutput(gzip ? new GZIPOutputStream(fileOut, 64 * 1024) : fileOut);
+    }
+
+    /**
+     * close method writes the rest of the report and syncs the temporary file to storage.
+     */
+    private static void close(ReportOutput out, FileOutputStream fileOut) throws IOException {
+        out.flush();
+        OutputStream stream = out.getStream();
+        if (stream instanceof GZIPOutputStream) {
+            ((GZIPOutputStream) stream).finish();
+        }
+        fileOut.getFD().sync();
+    }
+
+    /**
+     * finish method closes the temporary file, and deletes it if the report was not written.
+     */
+    private static void finish(FileOutputStream fileOut, File tempFile, boolean written) throws IOException {
+        try {
+            fileOut.close();
+        } finally {
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * moveIntoPlace method replaces the report with the temporary file.
+     *
+     * @return The size of the report in bytes.
+     */
+    private long moveIntoPlace(File tempFile) throws IOException {
+        long byteCount = tempFile.length();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not move report into place: " + file);
+        }
+        return byteCount;
+    }
+}
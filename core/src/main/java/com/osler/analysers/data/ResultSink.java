@@ -0,0 +1,19 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+
+/**
+ * ResultSink receives the final LoadState of an AnalysisPipeline run, e.g. to write a report or
+ * print a summary. Sinks are called in the order they were added, on the thread running the
+ * pipeline.
+ */
+public interface ResultSink {
+
+    /**
+     * Called once with the complete result of the run.
+     *
+     * @param result The complete LoadState.
+     * @throws IOException If the result cannot be written.
+     */
+    void accept(LoadState result) throws IOException;
+}
@@ -0,0 +1,158 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * RollupStore persists the rows applied to the totals, by the source they came from, together
+ * with rollups of their totals per country, per site and per site and day, which are kept up to
+ * date as rows are stored and removed. Reading the totals back from the rollups costs time
+ * proportional to the number of countries and sites, however many rows are stored, so a loader
+ * starts from them instead of holding the rows in memory. Windows, trends and alerts over the
+ * stored rows are read from the rollups and from the rows indexed by country, site and end date.
+ * The app keeps them in SQLite.
+ *
+ * <p>Rows are given increasing ids as they are stored, so a reader can leave out the rows stored
+ * after it took {@link #getLastRowId()}, e.g. those it also holds in memory. Only rows that passed
+ * the expiry check are stored. A store has a single writer.</p>
+ */
+public interface RollupStore {
+    /**
+     * TotalsHandler receives the rolled up totals.
+     */
+    interface TotalsHandler {
+        void onCountryTotals(String country, long tested, long positive, int rows);
+
+        void onSiteTotals(String country, String site, long tested, long positive, int rows);
+    }
+
+    /**
+     * DayTotalsHandler receives the rolled up totals of a site on one day.
+     */
+    interface DayTotalsHandler {
+        void onDayTotals(String country, String site, long day, long tested, long positive);
+    }
+
+    /**
+     * getChecksum method returns the checksum a source's rows were stored with.
+     *
+     * @param source The name of the source.
+     * @return The checksum, or -1 if the source has no rows stored.
+     * @throws IOException If the store cannot be read.
+     */
+    long getChecksum(String source) throws IOException;
+
+    /**
+     * replaceSource method stores the rows of a source in place of those stored for it before, all
+     * at once, with the counters of the load they came from.
+     *
+     * @param source        The name of the source.
+     * @param checksum      The checksum of the source's inputs, to tell later whether they changed.
+     * @param rows          The rows of the source.
+     * @param malformedRows The number of malformed lines found while loading the source.
+     * @param expiredRows   The number of rows skipped for expired calibration.
+     * @param diagnostics   The diagnostic messages reported while loading the source.
+     * @throws IOException If the rows cannot be stored. The previous rows are then kept.
+     */
+    void replaceSource(String source, long checksum, SiteDataStore rows, int malformedRows, long expiredRows,
+                       List<String> diagnostics) throws IOException;
+
+    /**
+     * readCounters method reads back the counters a source's rows were stored with, without the
+     * rows.
+     *
+     * @param source The name of the source.
+     * @return The counters, with an empty store, or null if the source has no rows stored.
+     * @throws IOException If the store cannot be read.
+     */
+    SnapshotCache.Snapshot readCounters(String source) throws IOException;
+
+    /**
+     * readSource method reads the rows of a source back, in the order they were stored, with the
+     * counters they were stored with. It reads every row of the source, so it is only meant for
+     * small sources, e.g. appended rows that must be checked again.
+     *
+     * @param source The name of the source.
+     * @return The rows and counters, or null if the source has no rows stored.
+     * @throws IOException If the store cannot be read.
+     */
+    SnapshotCache.Snapshot readSource(String source) throws IOException;
+
+    /**
+     * appendRows method adds rows to those stored for a source.
+     *
+     * @param source  The name of the source.
+     * @param rows    The store holding the new rows.
+     * @param fromRow The first new row of the store; the rows from it to the end are added.
+     * @throws IOException If the rows cannot be stored. None of them are then stored.
+     */
+    void appendRows(String source, SiteDataStore rows, int fromRow) throws IOException;
+
+    /**
+     * removeSource method removes the rows of a source and takes them out of the rollups.
+     *
+     * @param source The name of the source.
+     * @throws IOException If the rows cannot be removed.
+     */
+    void removeSource(String source) throws IOException;
+
+    /**
+     * readTotals method passes the totals of every country, then of every site, to a handler.
+     * Countries and sites whose rows were all removed are passed with no rows.
+     *
+     * @param handler The TotalsHandler receiving the totals.
+     * @throws IOException If the store cannot be read.
+     */
+    void readTotals(TotalsHandler handler) throws IOException;
+
+    /**
+     * getLastRowId method returns the id of the last row stored. Rows stored later get greater ids.
+     *
+     * @return The id, or 0 if no rows were ever stored.
+     * @throws IOException If the store cannot be read.
+     */
+    long getLastRowId() throws IOException;
+
+    /**
+     * readDateRange method returns the earliest and the latest StartDate or EndDate of the rows
+     * stored.
+     *
+     * @return {earliest, latest} in epoch seconds, or null if no rows are stored.
+     * @throws IOException If the store cannot be read.
+     */
+    long[] readDateRange() throws IOException;
+
+    /**
+     * readWindow method passes the totals of the stored rows overlapping [from, to], i.e. with
+     * EndDate >= from and StartDate <= to, of every site with such rows to the handler's
+     * onSiteTotals. The rows are looked up by site and end date, not scanned.
+     *
+     * @param from      The start of the window in epoch seconds, inclusive.
+     * @param to        The end of the window in epoch seconds, inclusive.
+     * @param lastRowId The id of the last row to include.
+     * @param handler   The TotalsHandler receiving the totals.
+     * @throws IOException If the store cannot be read.
+     */
+    void readWindow(long from, long to, long lastRowId, TotalsHandler handler) throws IOException;
+
+    /**
+     * readDayTotals method passes the totals of every site on every day rows of it start on,
+     * from the rollups.
+     *
+     * @param lastRowId The id of the last row to include.
+     * @param handler   The DayTotalsHandler receiving the totals, by day in UTC.
+     * @throws IOException If the store cannot be read.
+     */
+    void readDayTotals(long lastRowId, DayTotalsHandler handler) throws IOException;
+
+    /**
+     * readLatestRows method appends the stored rows ending last of every site to a store, those of
+     * each site in end date order.
+     *
+     * @param rowsPerSite The largest number of rows to read per site.
+     * @param lastRowId   The id of the last row to include.
+     * @param rows        The store to append them to.
+     * @throws IOException If the store cannot be read.
+     */
+    void readLatestRows(int rowsPerSite, long lastRowId, SiteDataStore rows) throws IOException;
+}
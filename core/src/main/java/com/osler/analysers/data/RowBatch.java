@@ -0,0 +1,89 @@
+package com.osler.analysers.data;
+
+import java.util.Arrays;
+
+/**
+ * RowBatch is a batch of new Analysers rows, e.g. uploaded by analysers after the initial load.
+ * Rows are held by name in parallel arrays and are interned when the batch is applied.
+ */
+public class RowBatch {
+    private String[] countries;
+    private String[] sites;
+    private int[] tested;
+    private int[] positive;
+    private long[] startDates;
+    private long[] endDates;
+    private int size;
+
+    /**
+     * Creates an empty batch.
+     */
+    public RowBatch() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty batch with room for the given number of rows.
+     *
+     * @param capacity The expected number of rows.
+     */
+    public RowBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        countries = new String[capacity];
+        sites = new String[capacity];
+        tested = new int[capacity];
+        positive = new int[capacity];
+        startDates = new long[capacity];
+        endDates = new long[capacity];
+    }
+
+    /**
+     * add method appends a row to the batch.
+     */
+    public void add(String country, String site, int tested, int positive, long startDate, long endDate) {
+        if (size == countries.length) {
+            int capacity = size * 2;
+            countries = Arrays.copyOf(countries, capacity);
+            sites = Arrays.copyOf(sites, capacity);
+            this.tested = Arrays.copyOf(this.tested, capacity);
+            this.positive = Arrays.copyOf(this.positive, capacity);
+            startDates = Arrays.copyOf(startDates, capacity);
+            endDates = Arrays.copyOf(endDates, capacity);
+        }
+        countries[size] = country;
+        sites[size] = site;
+        this.tested[size] = tested;
+        this.positive[size] = positive;
+        startDates[size] = startDate;
+        endDates[size] = endDate;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getCountry(int row) {
+        return countries[row];
+    }
+
+    public String getSite(int row) {
+        return sites[row];
+    }
+
+    public int getTested(int row) {
+        return tested[row];
+    }
+
+    public int getPositive(int row) {
+        return positive[row];
+    }
+
+    public long getStartDate(int row) {
+        return startDates[row];
+    }
+
+    public long getEndDate(int row) {
+        return endDates[row];
+    }
+}
@@ -0,0 +1,471 @@
+package com.osler.analysers.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SampleEstimate holds the provisional totals estimated from a sample of the rows, see
+ * StratifiedSampler: the positive rate of every country seen in the sample and over all
+ * countries, each with a 95% confidence interval, the number of rows the whole data is
+ * expected to have and the spread of the positive rate between the sampled sites. It is
+ * immutable, and replaced by the exact totals once the whole data has been read.
+ *
+ * <p>While the data is read in full, the estimate is refined with the exact totals of the rows
+ * read so far, see refine: only the rest of the data is estimated, from the sampled windows in
+ * it, so the intervals narrow as the read goes on.</p>
+ */
+public class SampleEstimate {
+    /**
+     * The z-score of a two-sided 95% confidence interval.
+     */
+    public static final double Z_95 = 1.959964;
+
+    private final Sample sample;
+    private final String[] countryNames;
+    private final Proportion[] countries;
+    private final Proportion global;
+    private final long sampledBytes;
+    private final double sampledFraction;
+    private final long estimatedRows;
+
+    /**
+     * Sample holds the sums of each sampled window, per country, in the order of the windows in
+     * the data, so an estimate can be made from the windows after any position.
+     */
+    static final class Sample {
+        private final String[] countryNames;
+        private final long headerBytes;
+        private final long totalBytes;
+        private final long[] windowStarts;
+        private final long[] windowLengths;
+        private final int[] entryWindows;
+        private final int[] entryCountries;
+        private final long[] entryRows;
+        private final long[] entryTested;
+        private final long[] entryPositive;
+        private final double[] sitePercents;
+        private final long expiredRows;
+
+        /**
+         * Creates a sample.
+         *
+         * @param countryNames   The names of the sampled countries, by the ids of the entries.
+         * @param headerBytes    The size of the first line, which no window starts before.
+         * @param totalBytes     The size of the data in bytes.
+         * @param windowStarts   The position of each window, in increasing order.
+         * @param windowLengths  The number of bytes parsed from each window.
+         * @param entryWindows   The window of each entry, in increasing order.
+         * @param entryCountries The country of each entry.
+         * @param entryRows      The rows of the country in the window of each entry.
+         * @param entryTested    The tests of the country in the window of each entry.
+         * @param entryPositive  The positive tests of the country in the window of each entry.
+         * @param sitePercents   The positive rates of the sampled sites, sorted.
+         * @param expiredRows    The sampled rows left out by the expiry check.
+         */
+        Sample(String[] countryNames, long headerBytes, long totalBytes, long[] windowStarts, long[] windowLengths,
+               int[] entryWindows, int[] entryCountries, long[] entryRows, long[] entryTested, long[] entryPositive,
+               double[] sitePercents, long expiredRows) {
+            this.countryNames = countryNames;
+            this.headerBytes = headerBytes;
+            this.totalBytes = totalBytes;
+            this.windowStarts = windowStarts;
+            this.windowLengths = windowLengths;
+            this.entryWindows = entryWindows;
+            this.entryCountries = entryCountries;
+            this.entryRows = entryRows;
+            this.entryTested = entryTested;
+            this.entryPositive = entryPositive;
+            this.sitePercents = sitePercents;
+            this.expiredRows = expiredRows;
+        }
+    }
+
+    /**
+     * Proportion is the estimated positive rate of a country, or of all countries, from the
+     * sampled rows. The rate is the ratio of the sampled positive tests to the sampled tests.
+     *
+     * <p>Its confidence interval is the Wilson score interval, over the effective number of tests
+     * rather than the number sampled: tests are sampled in windows of neighbouring rows, so when
+     * the rates of the windows vary more than single tests would, the sample counts as fewer
+     * independent tests. The interval also narrows as the sample covers more of the data.</p>
+     */
+    public static class Proportion {
+        private final long rows;
+        private final long tested;
+        private final long positive;
+        private final double rate;
+        private final double effectiveTests;
+
+        /**
+         * Estimates a proportion from the exact totals of the rows read so far and the sums over
+         * the sampled windows of the rest of the data. The sampled tests are scaled up to the
+         * rest, and only they are uncertain: the effective tests of their rate grow with the
+         * square of the share of the tests that are exact.
+         *
+         * @param exactRows       The number of rows read in full.
+         * @param exactTested     The tests of the rows read in full.
+         * @param exactPositive   The positive tests of the rows read in full.
+         * @param rows            The number of sampled rows.
+         * @param windows         The number of windows sampled, including those without rows of
+         *                        the proportion.
+         * @param tested          The sum of the tests.
+         * @param positive        The sum of the positive tests.
+         * @param testedSquares   The sum of the squares of the tests of each window.
+         * @param positiveSquares The sum of the squares of the positive tests of each window.
+         * @param products        The sum of the tests times the positive tests of each window.
+         * @param sampledFraction The fraction of the rest of the data that was sampled, from 0 to 1.
+         */
+        Proportion(long exactRows, long exactTested, long exactPositive, long rows, int windows, long tested,
+                   long positive, double testedSquares, double positiveSquares, double products,
+                   double sampledFraction) {
+            this.rows = exactRows + rows;
+            this.tested = exactTested + tested;
+            this.positive = exactPositive + positive;
+            double scale = sampledFraction > 0 ? 1 / sampledFraction : 0;
+            double allTested = exactTested + tested * scale;
+            this.rate = allTested == 0 ? 0 : (exactPositive + positive * scale) / allTested;
+            double effective = effectiveTests(windows, tested, positive, testedSquares, positiveSquares, products,
+                    sampledFraction);
+            if (tested > 0) {
+                double weight = tested * scale / allTested;
+                effective /= weight * weight;
+            } else if (exactTested > 0) {
+                // Nothing of the proportion was sampled in the rest, which is as uncertain as the unsampled part
+                effective = sampledFraction >= 1 ? Double.POSITIVE_INFINITY : exactTested / (1 - sampledFraction);
+            }
+            this.effectiveTests = effective;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getTested() {
+            return tested;
+        }
+
+        public long getPositive() {
+            return positive;
+        }
+
+        /**
+         * Returns the number of independent tests the estimate is worth: at most the number of
+         * tests read, scaled up by the fraction of the data left unsampled.
+         *
+         * @return The effective number of tests, infinite once the sample covers all the data.
+         */
+        public double getEffectiveTests() {
+            return effectiveTests;
+        }
+
+        /**
+         * Returns the estimated positive rate.
+         *
+         * @return The percentage, 0 if no tests were sampled.
+         */
+        public double getPercent() {
+            return rate * 100;
+        }
+
+        /**
+         * Returns the lower bound of the 95% confidence interval of the positive rate.
+         *
+         * @return The percentage.
+         */
+        public double getLowerPercent() {
+            return wilsonBound(-Z_95);
+        }
+
+        /**
+         * Returns the upper bound of the 95% confidence interval of the positive rate.
+         *
+         * @return The percentage.
+         */
+        public double getUpperPercent() {
+            return wilsonBound(Z_95);
+        }
+
+        private double wilsonBound(double z) {
+            if (tested == 0) {
+                return z < 0 ? 0 : 100;
+            }
+            if (Double.isInfinite(effectiveTests)) {
+                return rate * 100;
+            }
+            return wilson(rate, effectiveTests, z) * 100;
+        }
+    }
+
+    /**
+     * Creates the estimate of a sample, on top of the exact totals of the data up to a position.
+     * Only the windows from that position on are used.
+     *
+     * @param sample    The sampled windows.
+     * @param exact     The exact totals of the rows before the position.
+     * @param readBytes The position, the number of bytes read in full.
+     */
+    SampleEstimate(Sample sample, AggregateSnapshot exact, long readBytes) {
+        this.sample = sample;
+
+        // Step 1: Take the windows not yet read in full, as a sample of the rest of the data
+        long position = Math.max(readBytes, sample.headerBytes);
+        int firstWindow = 0;
+        while (firstWindow < sample.windowStarts.length && sample.windowStarts[firstWindow] < position) {
+            firstWindow++;
+        }
+        long sampled = 0;
+        for (int window = firstWindow; window < sample.windowStarts.length; window++) {
+            sampled += sample.windowLengths[window];
+        }
+        long restBytes = sample.totalBytes - position;
+        double restFraction = restBytes <= 0 ? 1 : Math.min(1, (double) sampled / restBytes);
+        int windows = sample.windowStarts.length - firstWindow;
+
+        // Step 2: Sum up the windows per country, and their squares per country and over all countries
+        int sampledCountries = sample.countryNames.length;
+        long[] rows = new long[sampledCountries];
+        long[] tested = new long[sampledCountries];
+        long[] positive = new long[sampledCountries];
+        double[] testedSquares = new double[sampledCountries];
+        double[] positiveSquares = new double[sampledCountries];
+        double[] products = new double[sampledCountries];
+        long allRows = 0;
+        long allTested = 0;
+        long allPositive = 0;
+        double allTestedSquares = 0;
+        double allPositiveSquares = 0;
+        double allProducts = 0;
+        double windowTested = 0;
+        double windowPositive = 0;
+        int entries = sample.entryWindows.length;
+        for (int entry = 0; entry < entries; entry++) {
+            if (sample.entryWindows[entry] < firstWindow) {
+                continue;
+            }
+            int id = sample.entryCountries[entry];
+            double t = sample.entryTested[entry];
+            double p = sample.entryPositive[entry];
+            rows[id] += sample.entryRows[entry];
+            tested[id] += sample.entryTested[entry];
+            positive[id] += sample.entryPositive[entry];
+            testedSquares[id] += t * t;
+            positiveSquares[id] += p * p;
+            products[id] += t * p;
+            allRows += sample.entryRows[entry];
+            allTested += sample.entryTested[entry];
+            allPositive += sample.entryPositive[entry];
+            windowTested += t;
+            windowPositive += p;
+            if (entry + 1 == entries || sample.entryWindows[entry + 1] != sample.entryWindows[entry]) {
+                allTestedSquares += windowTested * windowTested;
+                allPositiveSquares += windowPositive * windowPositive;
+                allProducts += windowTested * windowPositive;
+                windowTested = 0;
+                windowPositive = 0;
+            }
+        }
+
+        // Step 3: Estimate every country read in full or sampled, the former first
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> sampledIds = new HashMap<>();
+        for (int id = 0; id < exact.getCountryCount(); id++) {
+            if (exact.getCountryRowCount(id) > 0) {
+                names.add(exact.getCountryName(id));
+            }
+        }
+        for (int id = 0; id < sampledCountries; id++) {
+            String name = sample.countryNames[id];
+            sampledIds.put(name, id);
+            int exactId = exact.findCountry(name);
+            if (exactId < 0 || exact.getCountryRowCount(exactId) == 0) {
+                names.add(name);
+            }
+        }
+        countryNames = names.toArray(new String[0]);
+        countries = new Proportion[countryNames.length];
+        for (int i = 0; i < countryNames.length; i++) {
+            int exactId = exact.findCountry(countryNames[i]);
+            Integer id = sampledIds.get(countryNames[i]);
+            long exactRows = exactId < 0 ? 0 : exact.getCountryRowCount(exactId);
+            long exactTested = exactId < 0 ? 0 : exact.getCountryTested(exactId);
+            long exactPositive = exactId < 0 ? 0 : exact.getCountryPositive(exactId);
+            countries[i] = id == null
+                    ? new Proportion(exactRows, exactTested, exactPositive, 0, windows, 0, 0, 0, 0, 0, restFraction)
+                    : new Proportion(exactRows, exactTested, exactPositive, rows[id], windows, tested[id],
+                    positive[id], testedSquares[id], positiveSquares[id], products[id], restFraction);
+        }
+        global = new Proportion(exact.getRowCount(), exact.getGlobalTested(), exact.getGlobalPositive(), allRows,
+                windows, allTested, allPositive, allTestedSquares, allPositiveSquares, allProducts, restFraction);
+
+        // Step 4: Extrapolate the rows of the rest of the data, and how much of the data is known
+        sampledBytes = sampled;
+        long dataBytes = sample.totalBytes - sample.headerBytes;
+        long knownBytes = position - sample.headerBytes + sampled;
+        sampledFraction = dataBytes <= 0 ? 1 : Math.min(1, (double) knownBytes / dataBytes);
+        estimatedRows = exact.getRowCount() + (restFraction == 0 ? 0 : Math.round(allRows / restFraction));
+    }
+
+    /**
+     * refine method returns the estimate of the same sample on top of the exact totals of the
+     * rows read so far, e.g. by the full parse of the data. Only the windows past the rows read
+     * are still used, so the estimate becomes exact as the read reaches the end.
+     *
+     * @param exact     The exact totals of the rows read.
+     * @param readBytes The number of bytes of the data the rows were read from.
+     * @return The refined estimate.
+     */
+    SampleEstimate refine(AggregateSnapshot exact, long readBytes) {
+        return new SampleEstimate(sample, exact, readBytes);
+    }
+
+    public int getCountryCount() {
+        return countries.length;
+    }
+
+    public String getCountryName(int index) {
+        return countryNames[index];
+    }
+
+    /**
+     * Returns the estimate of a sampled country. Countries are numbered in the order they were
+     * first sampled, independently of the ids of the exact totals.
+     *
+     * @param index The number of the country, from 0 to getCountryCount() - 1.
+     * @return The estimate of the country's positive rate.
+     */
+    public Proportion getCountry(int index) {
+        return countries[index];
+    }
+
+    /**
+     * findCountry method returns the estimate of a country by name.
+     *
+     * @param name The country name.
+     * @return The estimate, or null if the country was not sampled.
+     */
+    public Proportion findCountry(String name) {
+        for (int i = 0; i < countryNames.length; i++) {
+            if (countryNames[i].equals(name)) {
+                return countries[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the estimate over all sampled rows.
+     *
+     * @return The estimate of the overall positive rate.
+     */
+    public Proportion getGlobal() {
+        return global;
+    }
+
+    public long getSampledBytes() {
+        return sampledBytes;
+    }
+
+    public long getTotalBytes() {
+        return sample.totalBytes;
+    }
+
+    /**
+     * Returns the fraction of the rows' bytes that was sampled or read in full.
+     *
+     * @return The fraction, 1 if the whole data was read.
+     */
+    public double getSampledFraction() {
+        return sampledFraction;
+    }
+
+    /**
+     * Returns the number of sampled rows left out because their site's calibration had expired.
+     *
+     * @return The number of expired rows in the sample.
+     */
+    public long getExpiredRows() {
+        return sample.expiredRows;
+    }
+
+    /**
+     * Returns the number of valid rows in the whole data: those read in full, and those of the
+     * rest extrapolated from the rows per byte of its sampled windows.
+     *
+     * @return The estimated number of rows.
+     */
+    public long getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    /**
+     * Returns the number of distinct sites with tests in the sample.
+     *
+     * @return The number of sampled sites.
+     */
+    public int getSampledSiteCount() {
+        return sample.sitePercents.length;
+    }
+
+    /**
+     * getSitePercentile method returns a percentile of the positive rates of the sampled sites,
+     * e.g. 0.5 for the median site, by the nearest rank.
+     *
+     * @param fraction The fraction of sites at or below the returned rate, from 0 to 1.
+     * @return The positive rate in percent, or 0 if no site was sampled.
+     */
+    public double getSitePercentile(double fraction) {
+        double[] sitePercents = sample.sitePercents;
+        if (sitePercents.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(fraction * sitePercents.length);
+        return sitePercents[Math.max(0, Math.min(sitePercents.length - 1, rank - 1))];
+    }
+
+    /**
+     * wilson method computes a bound of the Wilson score interval of a proportion.
+     *
+     * @param rate   The observed proportion, from 0 to 1.
+     * @param trials The number of independent trials it was observed over, more than 0.
+     * @param z      The z-score of the bound: negative for the lower bound, positive for the
+     *               upper one.
+     * @return The bound, from 0 to 1.
+     */
+    public static double wilson(double rate, double trials, double z) {
+        double z2 = z * z;
+        double denominator = 1 + z2 / trials;
+        double centre = rate + z2 / (2 * trials);
+        double spread = z * Math.sqrt(rate * (1 - rate) / trials + z2 / (4 * trials * trials));
+        return Math.max(0, Math.min(1, (centre + spread) / denominator));
+    }
+
+    /**
+     * effectiveTests method computes how many independent tests a sample of windows is worth,
+     * from the variance of the ratio estimate between windows. Windows without tests of the
+     * proportion count too, as the number of its tests in a window varies as well. With fewer
+     * than two windows, or when every window has the same rate, the variance cannot be told apart
+     * from that of single tests, so the sampled tests count in full. The result is then scaled up
+     * by the finite population correction, since the windows not sampled are all that is left
+     * uncertain.
+     */
+    static double effectiveTests(int windows, long tested, long positive, double testedSquares,
+                                 double positiveSquares, double products, double sampledFraction) {
+        if (sampledFraction >= 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double effective = tested;
+        double rate = tested == 0 ? 0 : (double) positive / tested;
+        if (windows >= 2 && rate > 0 && rate < 1) {
+            // The squared residuals of the windows from the rate, sum((p - rate * t)^2), without keeping them
+            double residuals = positiveSquares - 2 * rate * products + rate * rate * testedSquares;
+            double meanTested = (double) tested / windows;
+            double variance = Math.max(0, residuals) / (windows - 1) / (windows * meanTested * meanTested);
+            if (variance > 0) {
+                effective = Math.min(tested, rate * (1 - rate) / variance);
+            }
+        }
+        return effective / (1 - sampledFraction);
+    }
+}
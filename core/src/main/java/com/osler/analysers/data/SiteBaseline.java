@@ -0,0 +1,102 @@
+package com.osler.analysers.data;
+
+import java.util.Arrays;
+
+/**
+ * SiteBaseline keeps the exponentially weighted mean and variance of the positive percentage of
+ * every site, updated in constant time per row:
+ *
+ * <pre>
+ * diff = x - mean
+ * mean = mean + alpha * diff
+ * variance = (1 - alpha) * (variance + alpha * diff * diff)
+ * </pre>
+ *
+ * <p>Recent rows weigh the most, so the baseline follows a slow drift of a site's rate while a
+ * sudden spike still stands out. The arrays grow with the site ids, like those of AggregateEngine.</p>
+ */
+class SiteBaseline {
+    /**
+     * The smallest standard deviation a row is scored against, in percentage points, so a site
+     * whose rate has never moved does not turn the smallest change into an alert.
+     */
+    static final double MIN_DEVIATION = 1;
+
+    private final double alpha;
+    private double[] means = new double[64];
+    private double[] variances = new double[64];
+    private int[] counts = new int[64];
+
+    /**
+     * Creates a baseline with the given weight of the newest row.
+     *
+     * @param alpha The weight, between 0 and 1. Higher values forget older rows faster.
+     */
+    SiteBaseline(double alpha) {
+        if (!(alpha > 0 && alpha < 1)) {
+            throw new IllegalArgumentException("alpha must be between 0 and 1: " + alpha);
+        }
+        this.alpha = alpha;
+    }
+
+    /**
+     * Returns the number of rows of the site added so far.
+     */
+    int getCount(int siteId) {
+        return siteId < counts.length ? counts[siteId] : 0;
+    }
+
+    /**
+     * Returns the weighted mean percentage of the site, or NaN if it has no rows yet.
+     */
+    double getMean(int siteId) {
+        return getCount(siteId) > 0 ? means[siteId] : Double.NaN;
+    }
+
+    /**
+     * score method returns how many standard deviations a row is above the site's mean. The
+     * deviation is at least the binomial standard error of a row with that many tests at the mean
+     * rate, so a row with few tests needs a bigger jump to score as high.
+     *
+     * @param siteId  The site id. The site must have rows.
+     * @param percent The positive percentage of the row.
+     * @param tested  The number of tests of the row.
+     * @return The z-score of the row.
+     */
+    double score(int siteId, double percent, int tested) {
+        double mean = means[siteId];
+        double binomial = Math.sqrt(mean * (100 - mean) / tested);
+        double deviation = Math.max(MIN_DEVIATION, Math.max(binomial, Math.sqrt(variances[siteId])));
+        return (percent - mean) / deviation;
+    }
+
+    /**
+     * add method adds a row to the site's mean and variance. The first row of a site is its mean.
+     */
+    void add(int siteId, double percent) {
+        ensureCapacity(siteId);
+        if (counts[siteId]++ == 0) {
+            means[siteId] = percent;
+            return;
+        }
+        double diff = percent - means[siteId];
+        double increment = alpha * diff;
+        means[siteId] += increment;
+        variances[siteId] = (1 - alpha) * (variances[siteId] + diff * increment);
+    }
+
+    void reset() {
+        Arrays.fill(means, 0);
+        Arrays.fill(variances, 0);
+        Arrays.fill(counts, 0);
+    }
+
+    private void ensureCapacity(int siteId) {
+        if (siteId >= counts.length) {
+            int capacity = Math.max(counts.length * 2, siteId + 1);
+            means = Arrays.copyOf(means, capacity);
+            variances = Arrays.copyOf(variances, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.osler.analysers.data;
+
+import com.osler.analysers.CountryData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SiteDataStore keeps every Analysers row in columnar form: one primitive array per column, with
+ * countries and sites dictionary-encoded through NameTables. A row costs 32 bytes however long
+ * its names are, and per-site or per-time-window totals are tight scans over the arrays with no
+ * map lookup per row. CountryData totals are derived from the store rather than kept alongside it.
+ *
+ * <p>The store is filled by a single writer; readers must not use it while rows are appended.</p>
+ */
+public class SiteDataStore implements CsvParser.RowHandler {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final NameTable countries;
+    private final NameTable sites;
+
+    private int[] countryIds = new int[INITIAL_CAPACITY];
+    private int[] siteIds = new int[INITIAL_CAPACITY];
+    private int[] tested = new int[INITIAL_CAPACITY];
+    private int[] positive = new int[INITIAL_CAPACITY];
+    private long[] startDates = new long[INITIAL_CAPACITY];
+    private long[] endDates = new long[INITIAL_CAPACITY];
+    private int size;
+    private long removedRows;
+
+    /**
+     * Creates an empty store with its own country and site dictionaries.
+     */
+    public SiteDataStore() {
+        this(new NameTable(), new NameTable());
+    }
+
+    /**
+     * Creates an empty store that shares the given dictionaries, e.g. with a CsvParser.
+     *
+     * @param countries The NameTable for country names.
+     * @param sites     The NameTable for site names, scoped by country id.
+     */
+    public SiteDataStore(NameTable countries, NameTable sites) {
+        this.countries = countries;
+        this.sites = sites;
+    }
+
+    /**
+     * Creates a store over existing columns, e.g. read back from a snapshot. The arrays are used
+     * as they are and must hold at least size entries.
+     */
+    SiteDataStore(NameTable countries, NameTable sites, int[] countryIds, int[] siteIds, int[] tested,
+                  int[] positive, long[] startDates, long[] endDates, int size) {
+        this.countries = countries;
+        this.sites = sites;
+        this.countryIds = countryIds;
+        this.siteIds = siteIds;
+        this.tested = tested;
+        this.positive = positive;
+        this.startDates = startDates;
+        this.endDates = endDates;
+        this.size = size;
+    }
+
+    /**
+     * Appends a row whose names have already been interned in this store's dictionaries.
+     */
+    @Override
+    public void onRow(int countryId, int siteId, int tested, int positive, long startDate, long endDate) {
+        if (size == countryIds.length) {
+            grow(size + 1);
+        }
+        this.countryIds[size] = countryId;
+        this.siteIds[size] = siteId;
+        this.tested[size] = tested;
+        this.positive[size] = positive;
+        this.startDates[size] = startDate;
+        this.endDates[size] = endDate;
+        size++;
+    }
+
+    /**
+     * append method adds a row by name, interning the country and site.
+     *
+     * @return The index of the new row.
+     */
+    public int append(String country, String site, int tested, int positive, long startDate, long endDate) {
+        int countryId = countries.intern(NameTable.NO_SCOPE, country);
+        int siteId = sites.intern(countryId, site);
+        onRow(countryId, siteId, tested, positive, startDate, endDate);
+        return size - 1;
+    }
+
+    /**
+     * addAll method appends every row of another store after the rows of this one. Unless both
+     * stores share their dictionaries, the other store's names are interned into this store's
+     * dictionaries, so each distinct name is looked up once rather than once per row.
+     *
+     * @param other The store to copy the rows from. It is not modified.
+     */
+    public void addAll(SiteDataStore other) {
+        addAll(other, 0, other.size);
+    }
+
+    /**
+     * addAll method appends the rows fromRow to toRow of another store after the rows of this one,
+     * like {@link #addAll(SiteDataStore)}.
+     *
+     * @param other   The store to copy the rows from. It is not modified.
+     * @param fromRow The first row to copy.
+     * @param toRow   The row after the last row to copy.
+     */
+    public void addAll(SiteDataStore other, int fromRow, int toRow) {
+        if (fromRow < 0 || fromRow > toRow || toRow > other.size) {
+            throw new IndexOutOfBoundsException("Cannot copy rows " + fromRow + " to " + toRow + " of "
+                    + other.size);
+        }
+        int count = toRow - fromRow;
+        if (other.countries == countries && other.sites == sites) {
+            // The ids already refer to this store's dictionaries, copy the columns as they are
+            if (countryIds.length < size + count) {
+                grow(size + count);
+            }
+            System.arraycopy(other.countryIds, fromRow, countryIds, size, count);
+            System.arraycopy(other.siteIds, fromRow, siteIds, size, count);
+            System.arraycopy(other.tested, fromRow, tested, size, count);
+            System.arraycopy(other.positive, fromRow, positive, size, count);
+            System.arraycopy(other.startDates, fromRow, startDates, size, count);
+            System.arraycopy(other.endDates, fromRow, endDates, size, count);
+            size += count;
+            return;
+        }
+
+        // Step 1: Map the other store's ids to ids in this store's dictionaries
+        NameTable otherCountries = other.getCountries();
+        NameTable otherSites = other.getSites();
+        int[] countryIdMap = new int[otherCountries.size()];
+        for (int id = 0; id < countryIdMap.length; id++) {
+            countryIdMap[id] = countries.intern(NameTable.NO_SCOPE, otherCountries.getName(id));
+        }
+        int[] siteIdMap = new int[otherSites.size()];
+        for (int id = 0; id < siteIdMap.length; id++) {
+            siteIdMap[id] = sites.intern(countryIdMap[otherSites.getScope(id)], otherSites.getName(id));
+        }
+
+        // Step 2: Copy the rows with their ids remapped
+        for (int row = fromRow; row < toRow; row++) {
+            onRow(countryIdMap[other.countryIds[row]], siteIdMap[other.siteIds[row]], other.tested[row],
+                    other.positive[row], other.startDates[row], other.endDates[row]);
+        }
+    }
+
+    /**
+     * head method returns a store over the first rows of this one, sharing its columns and
+     * dictionaries, e.g. to save the rows of a source that others were appended to since. Rows
+     * appended to this store later are not part of it. The view must not be written to.
+     *
+     * @param rowCount The number of rows.
+     * @return The view.
+     */
+    SiteDataStore head(int rowCount) {
+        if (rowCount < 0 || rowCount > size) {
+            throw new IndexOutOfBoundsException("Cannot take " + rowCount + " of " + size + " rows");
+        }
+        return new SiteDataStore(countries, sites, countryIds, siteIds, tested, positive, startDates, endDates,
+                rowCount);
+    }
+
+    /**
+     * removeRows method removes the rows fromRow to toRow, moving the rows after them down. It
+     * costs one copy of the rows after toRow, and leaves the dictionaries as they are. Views taken
+     * with head are no longer valid afterwards.
+     *
+     * @param fromRow The first row to remove.
+     * @param toRow   The row after the last row to remove.
+     */
+    public void removeRows(int fromRow, int toRow) {
+        if (fromRow < 0 || fromRow > toRow || toRow > size) {
+            throw new IndexOutOfBoundsException("Cannot remove rows " + fromRow + " to " + toRow + " of " + size);
+        }
+        int moved = size - toRow;
+        System.arraycopy(countryIds, toRow, countryIds, fromRow, moved);
+        System.arraycopy(siteIds, toRow, siteIds, fromRow, moved);
+        System.arraycopy(tested, toRow, tested, fromRow, moved);
+        System.arraycopy(positive, toRow, positive, fromRow, moved);
+        System.arraycopy(startDates, toRow, startDates, fromRow, moved);
+        System.arraycopy(endDates, toRow, endDates, fromRow, moved);
+        size -= toRow - fromRow;
+        removedRows += toRow - fromRow;
+    }
+
+    /**
+     * Returns the number of rows removed from the store so far, so readers that index its rows
+     * as they are appended can tell when they have to index them again.
+     *
+     * @return The removed row count.
+     */
+    public long getRemovedRows() {
+        return removedRows;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(Math.max(minCapacity, INITIAL_CAPACITY), countryIds.length + (countryIds.length >> 1));
+        countryIds = Arrays.copyOf(countryIds, capacity);
+        siteIds = Arrays.copyOf(siteIds, capacity);
+        tested = Arrays.copyOf(tested, capacity);
+        positive = Arrays.copyOf(positive, capacity);
+        startDates = Arrays.copyOf(startDates, capacity);
+        endDates = Arrays.copyOf(endDates, capacity);
+    }
+
+    /**
+     * trimToSize method releases the spare capacity once loading is complete.
+     */
+    public void trimToSize() {
+        countryIds = Arrays.copyOf(countryIds, size);
+        siteIds = Arrays.copyOf(siteIds, size);
+        tested = Arrays.copyOf(tested, size);
+        positive = Arrays.copyOf(positive, size);
+        startDates = Arrays.copyOf(startDates, size);
+        endDates = Arrays.copyOf(endDates, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Direct access to the columns, for code that reads or writes them in bulk. Only the first
+     * size() entries are valid.
+     */
+
+    int[] countryIdColumn() {
+        return countryIds;
+    }
+
+    int[] siteIdColumn() {
+        return siteIds;
+    }
+
+    int[] testedColumn() {
+        return tested;
+    }
+
+    int[] positiveColumn() {
+        return positive;
+    }
+
+    long[] startDateColumn() {
+        return startDates;
+    }
+
+    long[] endDateColumn() {
+        return endDates;
+    }
+
+    public NameTable getCountries() {
+        return countries;
+    }
+
+    public NameTable getSites() {
+        return sites;
+    }
+
+    public int getCountryId(int row) {
+        return countryIds[row];
+    }
+
+    public int getSiteId(int row) {
+        return siteIds[row];
+    }
+
+    public int getTested(int row) {
+        return tested[row];
+    }
+
+    public int getPositive(int row) {
+        return positive[row];
+    }
+
+    public long getStartDate(int row) {
+        return startDates[row];
+    }
+
+    public long getEndDate(int row) {
+        return endDates[row];
+    }
+
+    /**
+     * sumByCountry method adds up tested and positive cases per country for the rows whose
+     * measurement window overlaps [from, to].
+     *
+     * @param from         The start of the time window in epoch seconds, inclusive.
+     * @param to           The end of the time window in epoch seconds, inclusive.
+     * @param testedOut    Receives the tested totals, indexed by country id. Must hold every country.
+     * @param positiveOut  Receives the positive totals, indexed by country id.
+     * @param rowCountOut  Receives the number of rows counted, indexed by country id.
+     */
+    public void sumByCountry(long from, long to, long[] testedOut, long[] positiveOut, int[] rowCountOut) {
+        for (int row = 0; row < size; row++) {
+            if (endDates[row] >= from && startDates[row] <= to) {
+                int countryId = countryIds[row];
+                testedOut[countryId] += tested[row];
+                positiveOut[countryId] += positive[row];
+                rowCountOut[countryId]++;
+            }
+        }
+    }
+
+    /**
+     * sumBySite method adds up tested and positive cases per site for the rows whose measurement
+     * window overlaps [from, to].
+     *
+     * @param from        The start of the time window in epoch seconds, inclusive.
+     * @param to          The end of the time window in epoch seconds, inclusive.
+     * @param testedOut   Receives the tested totals, indexed by site id. Must hold every site.
+     * @param positiveOut Receives the positive totals, indexed by site id.
+     */
+    public void sumBySite(long from, long to, long[] testedOut, long[] positiveOut) {
+        for (int row = 0; row < size; row++) {
+            if (endDates[row] >= from && startDates[row] <= to) {
+                int siteId = siteIds[row];
+                testedOut[siteId] += tested[row];
+                positiveOut[siteId] += positive[row];
+            }
+        }
+    }
+
+    /**
+     * getCountryDataList method derives the CountryData totals from the stored rows.
+     *
+     * @return One CountryData per country that has at least one row, in country id order.
+     */
+    public List<CountryData> getCountryDataList() {
+        int countryCount = countries.size();
+        long[] countryTested = new long[countryCount];
+        long[] countryPositive = new long[countryCount];
+        int[] rowCounts = new int[countryCount];
+        sumByCountry(Long.MIN_VALUE, Long.MAX_VALUE, countryTested, countryPositive, rowCounts);
+
+        List<CountryData> countryDataList = new ArrayList<>();
+        for (int countryId = 0; countryId < countryCount; countryId++) {
+            if (rowCounts[countryId] == 0) {
+                continue;
+            }
+            CountryData countryData = new CountryData();
+            countryData.setCountry(countries.getName(countryId));
+            countryData.setTested(countryTested[countryId]);
+            countryData.setPositive(countryPositive[countryId]);
+            countryDataList.add(countryData);
+        }
+        return countryDataList;
+    }
+}
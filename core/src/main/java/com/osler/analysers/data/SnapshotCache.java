@@ -0,0 +1,301 @@
+package com.osler.analysers.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * SnapshotCache persists a loaded SiteDataStore as a compact binary file, so later starts can map
+ * the file instead of parsing the CSV again. A snapshot is keyed by the app version code and a
+ * checksum of the input files; if either differs, or the file is truncated or corrupt, load
+ * returns null and the caller falls back to parsing.
+ *
+ * <p>Layout (big-endian): magic, format version, version code, input checksum, row count,
+ * malformed line count, expired row count, country names, site names with their country id,
+ * diagnostic messages, the six row columns, and the magic again as a trailer. Snapshots are
+ * written to a temporary file and renamed into place, so a crash never leaves a half-written
+ * snapshot behind.</p>
+ */
+public class SnapshotCache {
+    private static final int MAGIC = 0x414e534e; // "ANSN"
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+
+    /**
+     * Creates a SnapshotCache backed by the given file.
+     *
+     * @param file The snapshot file, e.g. in the app's files directory.
+     */
+    public SnapshotCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Snapshot is a SiteDataStore read back from disk, together with the load counters saved
+     * with it. A RollupStore reads its sources back as Snapshots too.
+     */
+    public static class Snapshot {
+        private final SiteDataStore store;
+        private final int malformedRows;
+        private final long expiredRows;
+        private final List<String> diagnostics;
+
+        /**
+         * Creates a Snapshot of rows read back.
+         *
+         * @param store         The rows.
+         * @param malformedRows The number of malformed lines found while loading them.
+         * @param expiredRows   The number of rows skipped for expired calibration.
+         * @param diagnostics   The diagnostic messages reported while loading them.
+         */
+        public Snapshot(SiteDataStore store, int malformedRows, long expiredRows, List<String> diagnostics) {
+            this.store = store;
+            this.malformedRows = malformedRows;
+            this.expiredRows = expiredRows;
+            this.diagnostics = diagnostics;
+        }
+
+        public SiteDataStore getStore() {
+            return store;
+        }
+
+        public int getMalformedRows() {
+            return malformedRows;
+        }
+
+        public long getExpiredRows() {
+            return expiredRows;
+        }
+
+        public List<String> getDiagnostics() {
+            return diagnostics;
+        }
+    }
+
+    /**
+     * checksum method computes the CRC32 of the given sources, in order. It reads every byte but
+     * does no parsing, so it costs a small fraction of a full load.
+     *
+     * @param sources The input sources the snapshot is derived from.
+     * @return The combined checksum.
+     * @throws IOException If a source cannot be read.
+     */
+    public static long checksum(StreamSource... sources) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        for (StreamSource source : sources) {
+            InputStream in = source.open();
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * load method maps the snapshot file and reads it back if it matches the given key.
+     *
+     * @param versionCode The current app version code.
+     * @param checksum    The checksum of the current input files.
+     * @return The snapshot, or null if there is none, it is stale or it is corrupt.
+     */
+    public Snapshot load(long versionCode, long checksum) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < 24 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                        || buffer.getLong() != versionCode || buffer.getLong() != checksum) {
+                    return null;
+                }
+                return read(buffer);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            // A corrupt snapshot is discarded and rebuilt from the CSV
+            file.delete();
+            return null;
+        }
+    }
+
+    private static Snapshot read(ByteBuffer buffer) throws IOException {
+        int rowCount = buffer.getInt();
+        if (rowCount < 0 || rowCount > buffer.remaining() / 32) {
+            throw new IOException("Snapshot row count does not match its size");
+        }
+        int malformedRows = buffer.getInt();
+        long expiredRows = buffer.getLong();
+
+        byte[] scratch = new byte[256];
+        NameTable countries = new NameTable();
+        int countryCount = buffer.getInt();
+        for (int i = 0; i < countryCount; i++) {
+            int length = buffer.getInt();
+            scratch = readBytes(buffer, scratch, length);
+            countries.intern(NameTable.NO_SCOPE, scratch, 0, length);
+        }
+        NameTable sites = new NameTable();
+        int siteCount = buffer.getInt();
+        for (int i = 0; i < siteCount; i++) {
+            int countryId = buffer.getInt();
+            int length = buffer.getInt();
+            scratch = readBytes(buffer, scratch, length);
+            sites.intern(countryId, scratch, 0, length);
+        }
+        int messageCount = buffer.getInt();
+        List<String> diagnostics = new ArrayList<>(messageCount);
+        for (int i = 0; i < messageCount; i++) {
+            int length = buffer.getInt();
+            scratch = readBytes(buffer, scratch, length);
+            diagnostics.add(new String(scratch, 0, length, StandardCharsets.UTF_8));
+        }
+
+        int[] countryIds = readInts(buffer, rowCount);
+        int[] siteIds = readInts(buffer, rowCount);
+        int[] tested = readInts(buffer, rowCount);
+        int[] positive = readInts(buffer, rowCount);
+        long[] startDates = readLongs(buffer, rowCount);
+        long[] endDates = readLongs(buffer, rowCount);
+        if (buffer.getInt() != MAGIC || countries.size() != countryCount || sites.size() != siteCount) {
+            throw new IOException("Snapshot trailer or dictionaries do not match");
+        }
+        for (int row = 0; row < rowCount; row++) {
+            if (countryIds[row] < 0 || countryIds[row] >= countryCount || siteIds[row] < 0 || siteIds[row] >= siteCount) {
+                throw new IOException("Snapshot row " + row + " refers to an unknown name");
+            }
+        }
+
+        SiteDataStore store = new SiteDataStore(countries, sites, countryIds, siteIds, tested, positive,
+                startDates, endDates, rowCount);
+        return new Snapshot(store, malformedRows, expiredRows, diagnostics);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, byte[] scratch, int length) {
+        byte[] target = length > scratch.length ? new byte[length] : scratch;
+        buffer.get(target, 0, length);
+        return target;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    private static long[] readLongs(ByteBuffer buffer, int count) {
+        long[] values = new long[count];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + count * 8);
+        return values;
+    }
+
+    /**
+     * save method writes a snapshot of the store, replacing any previous one.
+     *
+     * @param store         The loaded store.
+     * @param malformedRows The number of malformed lines found while loading.
+     * @param expiredRows   The number of rows skipped for expired calibration.
+     * @param diagnostics   The diagnostic messages reported while loading.
+     * @param versionCode   The current app version code.
+     * @param checksum      The checksum of the input files the store was loaded from.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public void save(SiteDataStore store, int malformedRows, long expiredRows, List<String> diagnostics,
+                     long versionCode, long checksum) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(versionCode);
+            out.writeLong(checksum);
+            out.writeInt(store.size());
+            out.writeInt(malformedRows);
+            out.writeLong(expiredRows);
+
+            NameTable countries = store.getCountries();
+            out.writeInt(countries.size());
+            for (int i = 0; i < countries.size(); i++) {
+                writeString(out, countries.getName(i));
+            }
+            NameTable sites = store.getSites();
+            out.writeInt(sites.size());
+            for (int i = 0; i < sites.size(); i++) {
+                out.writeInt(sites.getScope(i));
+                writeString(out, sites.getName(i));
+            }
+            out.writeInt(diagnostics.size());
+            for (String message : diagnostics) {
+                writeString(out, message);
+            }
+
+            int size = store.size();
+            writeInts(out, store.countryIdColumn(), size);
+            writeInts(out, store.siteIdColumn(), size);
+            writeInts(out, store.testedColumn(), size);
+            writeInts(out, store.positiveColumn(), size);
+            writeLongs(out, store.startDateColumn(), size);
+            writeLongs(out, store.endDateColumn(), size);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not move snapshot into place: " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    /**
+     * delete method removes the snapshot, forcing the next load to parse the CSV.
+     */
+    public void delete() {
+        file.delete();
+    }
+}
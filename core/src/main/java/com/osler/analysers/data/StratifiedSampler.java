@@ -0,0 +1,324 @@
+package com.osler.analysers.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * StratifiedSampler estimates the totals of a large CSV from a sample of its rows, in a few
+ * milliseconds rather than the time of a full parse. The file is divided into strata of equal
+ * size and a window of whole lines is read at a random position in each, skipping the bytes in
+ * between, so rows from every part of the file are sampled even though the rows are ordered by
+ * country. Sampled rows go through the same expiry check as the full parse.
+ *
+ * <p>The rows of a window are neighbours, often of the same site, so it is the windows rather
+ * than the rows that are the sampled units the confidence intervals are computed from. The
+ * positions are drawn from a seed of the file size, so the same file always gives the same
+ * estimate. The sums of each window are kept, so the estimate can be refined with the exact
+ * totals of the rows read in full so far, see SampleEstimate.refine.</p>
+ *
+ * <p>The distinct sites and the spread of the site rates are counted exactly: the sample is
+ * bounded by strata times the window size, so its sites fit in memory, and the full parse
+ * interns every site anyway.</p>
+ *
+ * <p>Skipping is only cheap on sources that can seek, such as files and uncompressed resources;
+ * other sources are read through. Files in the binary row format cannot be entered in the
+ * middle and are not sampled.</p>
+ */
+public class StratifiedSampler {
+    /**
+     * The default number of strata. Many small windows spread the sample over more of the file
+     * than a few large ones.
+     */
+    public static final int DEFAULT_STRATA = 256;
+
+    /**
+     * The default number of bytes read from each stratum.
+     */
+    public static final int DEFAULT_WINDOW_BYTES = 4 * 1024;
+
+    /**
+     * The longest first line looked for a header in.
+     */
+    private static final int MAX_FIRST_LINE = 64 * 1024;
+
+    private final CalibrationIndex calibrationIndex;
+    private final int strata;
+    private final int windowBytes;
+
+    /**
+     * Creates a sampler reading DEFAULT_WINDOW_BYTES from each of DEFAULT_STRATA strata.
+     *
+     * @param calibrationIndex The calibration expiry of each site.
+     */
+    public StratifiedSampler(CalibrationIndex calibrationIndex) {
+        this(calibrationIndex, DEFAULT_STRATA, DEFAULT_WINDOW_BYTES);
+    }
+
+    /**
+     * Creates a sampler.
+     *
+     * @param calibrationIndex The calibration expiry of each site.
+     * @param strata           The number of parts the file is divided into.
+     * @param windowBytes      The number of bytes read from each part.
+     */
+    public StratifiedSampler(CalibrationIndex calibrationIndex, int strata, int windowBytes) {
+        this.calibrationIndex = calibrationIndex;
+        this.strata = strata;
+        this.windowBytes = windowBytes;
+    }
+
+    /**
+     * sample method reads the sample and estimates the totals from it. A file not much larger
+     * than the sample would be is read whole, and its estimate is exact.
+     *
+     * @param source     The CSV.
+     * @param totalBytes The size of the CSV in bytes.
+     * @return The estimate, or null if the source is in the binary row format.
+     * @throws IOException If the source cannot be read, or the header lacks a required column.
+     */
+    public SampleEstimate sample(StreamSource source, long totalBytes) throws IOException {
+        Accumulator accumulator = new Accumulator();
+        NameTable countries = new NameTable();
+        NameTable sites = new NameTable();
+        ExpiryFilter expiryFilter = new ExpiryFilter(calibrationIndex, sites, accumulator);
+        CsvParser parser = new CsvParser(countries, sites, new ParseDiagnostics());
+        Random random = new Random(totalBytes);
+        byte[] window = new byte[windowBytes];
+        long headerBytes;
+
+        InputStream in = source.open();
+        try {
+            // Step 1: Read the header line, which every window is parsed against
+            byte[] firstLine = readFirstLine(in);
+            if (BinaryRowFormat.startsWithMagic(firstLine)) {
+                return null;
+            }
+            headerBytes = firstLine.length;
+            long dataBytes = totalBytes - headerBytes;
+            boolean whole = dataBytes <= 2L * strata * windowBytes;
+            if (whole) {
+                // The windows would cover much of the file, read all of it instead, the first line
+                // too in case it is a row rather than a header
+                DataLoader.CountingInputStream rest = new DataLoader.CountingInputStream(in);
+                parser.parse(new SequenceInputStream(new ByteArrayInputStream(firstLine), rest), "sample",
+                        expiryFilter);
+                long sampledBytes = rest.getCount();
+                accumulator.endWindow(headerBytes, sampledBytes);
+                totalBytes = headerBytes + sampledBytes;
+            }
+
+            // Step 2: Read a window of whole lines from a random position in each stratum
+            long position = headerBytes;
+            boolean atLineStart = true;
+            for (int stratum = 0; stratum < strata && !whole; stratum++) {
+                long stratumStart = headerBytes + dataBytes * stratum / strata;
+                long stratumBytes = headerBytes + dataBytes * (stratum + 1) / strata - stratumStart;
+                long target = stratumStart + (long) (random.nextDouble() * Math.max(0, stratumBytes - windowBytes));
+                if (target < position) {
+                    // The previous window ran into this stratum through a very long line
+                    continue;
+                }
+                if (target > position) {
+                    // Skip to just before the target and on to the next line start, which is the
+                    // target itself if the byte before it ends a line
+                    position += skip(in, target - position - 1);
+                    position += skipLine(in);
+                } else if (!atLineStart) {
+                    position += skipLine(in);
+                }
+                long windowStart = position;
+                int length = readFully(in, window);
+                position += length;
+                int end = length;
+                if (length == window.length) {
+                    // Leave out the line cut off at the end of the window
+                    while (end > 0 && window[end - 1] != '\n') {
+                        end--;
+                    }
+                }
+                atLineStart = end == length;
+                parser.parseChunk(firstLine, new ByteArrayInputStream(window, 0, end), "sample", expiryFilter);
+                accumulator.endWindow(windowStart, end);
+                if (length < window.length) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        // Step 3: Estimate the proportions, scaling their confidence by how much was sampled
+        return accumulator.estimate(countries, headerBytes, totalBytes, expiryFilter.getExpiredRows());
+    }
+
+    private static byte[] readFirstLine(InputStream in) throws IOException {
+        byte[] line = new byte[256];
+        int length = 0;
+        int b;
+        while (length < MAX_FIRST_LINE && (b = in.read()) >= 0) {
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = (byte) b;
+            if (b == '\n') {
+                break;
+            }
+        }
+        return Arrays.copyOf(line, length);
+    }
+
+    private static long skip(InputStream in, long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long n = in.skip(count - skipped);
+            if (n <= 0) {
+                // skip may stop early without being at the end, read a byte to tell
+                if (in.read() < 0) {
+                    break;
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    private static long skipLine(InputStream in) throws IOException {
+        long skipped = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            skipped++;
+            if (b == '\n') {
+                break;
+            }
+        }
+        return skipped;
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int n = in.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    /**
+     * Accumulator sums the sampled rows of each window per country, and of the whole sample per
+     * site. The sums of a window are kept as one entry per country of the window when it ends,
+     * which is all the estimate and its confidence intervals need.
+     */
+    private static class Accumulator implements CsvParser.RowHandler {
+        private long[] siteTested = new long[64];
+        private long[] sitePositive = new long[64];
+        private long[] windowStarts = new long[64];
+        private long[] windowLengths = new long[64];
+        private int windows;
+        private int[] entryWindows = new int[64];
+        private int[] entryCountries = new int[64];
+        private long[] entryRows = new long[64];
+        private long[] entryTested = new long[64];
+        private long[] entryPositive = new long[64];
+        private int entries;
+
+        /**
+         * The sums of the current window, and the countries it has rows of.
+         */
+        private long[] windowRows = new long[16];
+        private long[] windowTested = new long[16];
+        private long[] windowPositive = new long[16];
+        private int[] windowCountries = new int[16];
+        private int windowCountryCount;
+
+        @Override
+        public void onRow(int countryId, int siteId, int rowTested, int rowPositive, long startDate, long endDate) {
+            if (countryId >= windowRows.length) {
+                int capacity = Math.max(countryId + 1, windowRows.length * 2);
+                windowRows = Arrays.copyOf(windowRows, capacity);
+                windowTested = Arrays.copyOf(windowTested, capacity);
+                windowPositive = Arrays.copyOf(windowPositive, capacity);
+                windowCountries = Arrays.copyOf(windowCountries, capacity);
+            }
+            if (siteId >= siteTested.length) {
+                int capacity = Math.max(siteId + 1, siteTested.length * 2);
+                siteTested = Arrays.copyOf(siteTested, capacity);
+                sitePositive = Arrays.copyOf(sitePositive, capacity);
+            }
+            if (windowRows[countryId]++ == 0) {
+                windowCountries[windowCountryCount++] = countryId;
+            }
+            windowTested[countryId] += rowTested;
+            windowPositive[countryId] += rowPositive;
+            siteTested[siteId] += rowTested;
+            sitePositive[siteId] += rowPositive;
+        }
+
+        /**
+         * endWindow method keeps the sums of the window just parsed, one entry per country.
+         *
+         * @param start  The position of the window in the data.
+         * @param length The number of bytes parsed from it.
+         */
+        void endWindow(long start, long length) {
+            if (windows == windowStarts.length) {
+                windowStarts = Arrays.copyOf(windowStarts, windows * 2);
+                windowLengths = Arrays.copyOf(windowLengths, windows * 2);
+            }
+            windowStarts[windows] = start;
+            windowLengths[windows] = length;
+            for (int i = 0; i < windowCountryCount; i++) {
+                int id = windowCountries[i];
+                if (entries == entryWindows.length) {
+                    int capacity = entries * 2;
+                    entryWindows = Arrays.copyOf(entryWindows, capacity);
+                    entryCountries = Arrays.copyOf(entryCountries, capacity);
+                    entryRows = Arrays.copyOf(entryRows, capacity);
+                    entryTested = Arrays.copyOf(entryTested, capacity);
+                    entryPositive = Arrays.copyOf(entryPositive, capacity);
+                }
+                entryWindows[entries] = windows;
+                entryCountries[entries] = id;
+                entryRows[entries] = windowRows[id];
+                entryTested[entries] = windowTested[id];
+                entryPositive[entries] = windowPositive[id];
+                entries++;
+                windowRows[id] = 0;
+                windowTested[id] = 0;
+                windowPositive[id] = 0;
+            }
+            windowCountryCount = 0;
+            windows++;
+        }
+
+        SampleEstimate estimate(NameTable countries, long headerBytes, long totalBytes, long expiredRows) {
+            // Countries whose every sampled row had expired are estimated too, with no tests
+            String[] names = new String[countries.size()];
+            for (int id = 0; id < names.length; id++) {
+                names[id] = countries.getName(id);
+            }
+            double[] sitePercents = new double[siteTested.length];
+            int siteCount = 0;
+            for (int id = 0; id < siteTested.length; id++) {
+                if (siteTested[id] > 0) {
+                    sitePercents[siteCount++] = sitePositive[id] * 100.0 / siteTested[id];
+                }
+            }
+            sitePercents = Arrays.copyOf(sitePercents, siteCount);
+            Arrays.sort(sitePercents);
+            SampleEstimate.Sample sample = new SampleEstimate.Sample(names, headerBytes, totalBytes,
+                    Arrays.copyOf(windowStarts, windows), Arrays.copyOf(windowLengths, windows),
+                    Arrays.copyOf(entryWindows, entries), Arrays.copyOf(entryCountries, entries),
+                    Arrays.copyOf(entryRows, entries), Arrays.copyOf(entryTested, entries),
+                    Arrays.copyOf(entryPositive, entries), sitePercents, expiredRows);
+            return new SampleEstimate(sample, AggregateSnapshot.empty(), 0);
+        }
+    }
+}
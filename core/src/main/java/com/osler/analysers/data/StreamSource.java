@@ -0,0 +1,19 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * StreamSource supplies a fresh InputStream each time it is opened. It lets the loading code
+ * read raw resources, files or any other byte source without knowing where the bytes come from.
+ */
+public interface StreamSource {
+
+    /**
+     * Opens a new stream over the source. The caller is responsible for closing it.
+     *
+     * @return A new InputStream positioned at the start of the source.
+     * @throws IOException If the source cannot be opened.
+     */
+    InputStream open() throws IOException;
+}
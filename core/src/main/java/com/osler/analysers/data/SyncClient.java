@@ -0,0 +1,301 @@
+package com.osler.analysers.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * SyncClient pulls new analyser rows from a sync server over HTTP, so data reaches the app without
+ * a new APK. Each pull only asks for the rows added since a cursor, and each page of new rows is
+ * saved in the BinaryRowFormat as a file of the incoming directory of a DirectoryIngest, whose
+ * next refresh parses that file alone. The cursor and the ETag of the last response are kept in a
+ * small state file, so rows already saved are not downloaded again, also after a restart.
+ *
+ * <p>Protocol: the client sends GET endpoint?since=CURSOR, starting from cursor 0, with</p>
+ * <pre>
+ * Accept: application/vnd.analysers.rows, text/csv;q=0.5
+ * Accept-Encoding: gzip
+ * If-None-Match: the ETag of the last page of the previous sync, if it had one
+ * </pre>
+ * <p>The server answers 304 Not Modified if nothing was added since the ETag, or 200 with the rows
+ * added after the cursor, in the binary row format or as a CSV, gzip-compressed or not, and</p>
+ * <pre>
+ * X-Analysers-Cursor: the cursor to ask from next, e.g. the time of the last row added
+ * X-Analysers-More: true if rows were held back to keep the response small
+ * </pre>
+ * <p>Pages held back are pulled right away. A server that sends no cursor is asked for all of its
+ * rows every time, and each answer replaces the previous one instead of adding to it.</p>
+ *
+ * <p>A SyncClient must only be used from one thread at a time, see SyncScheduler.</p>
+ */
+public class SyncClient {
+    /**
+     * The media type of a page of rows in the BinaryRowFormat.
+     */
+    public static final String ROWS_TYPE = "application/vnd.analysers.rows";
+
+    /**
+     * The response header giving the cursor of the next pull.
+     */
+    public static final String CURSOR_HEADER = "X-Analysers-Cursor";
+
+    /**
+     * The response header telling that more pages are waiting.
+     */
+    public static final String MORE_HEADER = "X-Analysers-More";
+
+    /**
+     * The most pages pulled in one sync, so a server that keeps saying there is more cannot keep
+     * the client busy for ever.
+     */
+    private static final int MAX_PAGES = 100;
+
+    private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int READ_TIMEOUT_MS = 60 * 1000;
+
+    /**
+     * The name prefix of the files the pages are saved to.
+     */
+    private static final String FILE_PREFIX = "sync-";
+
+    private final URL endpoint;
+    private final File directory;
+    private final File stateFile;
+
+    /*
+     * The sync state, read from the state file on the first sync.
+     */
+    private boolean stateRead;
+    private long cursor;
+    private String etag;
+
+    /**
+     * Result is what one sync brought in.
+     */
+    public static class Result {
+        private final int pages;
+        private final long rows;
+        private final long bytes;
+        private final long cursor;
+
+        Result(int pages, long rows, long bytes, long cursor) {
+            this.pages = pages;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.cursor = cursor;
+        }
+
+        /**
+         * Returns the number of pages received, some of which may have had no rows.
+         *
+         * @return The number of pages, 0 if the server had nothing new.
+         */
+        public int getPages() {
+            return pages;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * Returns the number of bytes received, as sent by the server.
+         *
+         * @return The bytes received, compressed if the server compressed them.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getCursor() {
+            return cursor;
+        }
+    }
+
+    /**
+     * Creates a client for the given sync server.
+     *
+     * @param endpoint  The URL the rows are pulled from. It may have a query of its own.
+     * @param directory The directory the pages are saved to, read by a DirectoryIngest.
+     * @param stateFile The file the cursor and ETag are kept in, outside of the directory.
+     */
+    public SyncClient(URL endpoint, File directory, File stateFile) {
+        this.endpoint = endpoint;
+        this.directory = directory;
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * sync method pulls the rows added since the last sync and saves them to the directory, one
+     * file per page. The state is saved after each page, so a failed sync resumes after the last
+     * page saved.
+     *
+     * @return What the sync brought in.
+     * @throws IOException If the server cannot be reached, answers with an error or sends a
+     *                     corrupt page, or a page cannot be saved.
+     */
+    public Result sync() throws IOException {
+        long start = Metrics.get().begin(Metrics.Stage.SYNC);
+        try {
+            if (!stateRead) {
+                readState();
+                stateRead = true;
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            int pages = 0;
+            long rows = 0;
+            long bytes = 0;
+            boolean more = true;
+            while (more && pages < MAX_PAGES) {
+                long since = cursor;
+                HttpURLConnection connection = open(since);
+                try {
+                    int status = connection.getResponseCode();
+                    if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        break;
+                    }
+                    if (status != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("Sync server answered " + status + " "
+                                + connection.getResponseMessage());
+                    }
+                    boolean gzip = "gzip".equalsIgnoreCase(connection.getContentEncoding());
+                    DataLoader.CountingInputStream body =
+                            new DataLoader.CountingInputStream(connection.getInputStream());
+                    try {
+                        rows += savePage(body, gzip, since);
+                    } finally {
+                        body.close();
+                        bytes += body.getCount();
+                        Metrics.get().add(Metrics.Counter.SYNC_BYTES, body.getCount());
+                    }
+                    pages++;
+                    String nextCursor = connection.getHeaderField(CURSOR_HEADER);
+                    cursor = nextCursor != null ? parseCursor(nextCursor) : since;
+                    // Without a new cursor, asking again would only return the same page
+                    more = "true".equalsIgnoreCase(connection.getHeaderField(MORE_HEADER)) && cursor != since;
+                    // The ETag is of all the server's rows, so it only holds once the last page is saved
+                    etag = more ? null : connection.getHeaderField("ETag");
+                } finally {
+                    connection.disconnect();
+                }
+                saveState();
+            }
+            return new Result(pages, rows, bytes, cursor);
+        } finally {
+            Metrics.get().end(Metrics.Stage.SYNC, start);
+        }
+    }
+
+    private HttpURLConnection open(long since) throws IOException {
+        URL url = new URL(endpoint.toString() + (endpoint.getQuery() == null ? '?' : '&') + "since=" + since);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Accept", ROWS_TYPE + ", text/csv;q=0.5");
+        // Asking for gzip explicitly also turns off the transparent decompression of some platforms
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        return connection;
+    }
+
+    /**
+     * savePage method decodes a page of rows and writes them in the BinaryRowFormat to a
+     * temporary file, which is renamed into the directory once complete, so the DirectoryIngest
+     * never reads a partial page. A page without rows leaves no file.
+     */
+    private long savePage(InputStream body, boolean gzip, long since) throws IOException {
+        InputStream in = new BufferedInputStream(gzip ? new GZIPInputStream(body) : body, 64 * 1024);
+        File file = new File(directory, FILE_PREFIX + since + ".anrb");
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        NameTable countries = new NameTable();
+        NameTable sites = new NameTable();
+        long rows = 0;
+        boolean written = false;
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            OutputStream out = new BufferedOutputStream(fileOut, 64 * 1024);
+            BinaryRowFormat.Writer writer = new BinaryRowFormat.Writer(out, countries, sites);
+            // Malformed CSV rows are left out, as they are from every other file
+            BinaryRowFormat.parse(in, file.getName(), countries, sites, new ParseDiagnostics(), writer);
+            writer.close();
+            rows = writer.getRowCount();
+            fileOut.getFD().sync();
+            written = true;
+        } finally {
+            fileOut.close();
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+        if (rows == 0 && !file.exists()) {
+            tempFile.delete();
+            return 0;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not move page into place: " + file);
+        }
+        return rows;
+    }
+
+    private static long parseCursor(String value) throws IOException {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid sync cursor: " + value);
+        }
+    }
+
+    private void readState() throws IOException {
+        if (!stateFile.exists()) {
+            return;
+        }
+        Properties state = new Properties();
+        InputStream in = new FileInputStream(stateFile);
+        try {
+            state.load(in);
+        } finally {
+            in.close();
+        }
+        cursor = parseCursor(state.getProperty("cursor", "0"));
+        etag = state.getProperty("etag");
+    }
+
+    /**
+     * saveState method writes the cursor and ETag to a temporary file and renames it into place,
+     * so a crash leaves either the old state or the new one.
+     */
+    private void saveState() throws IOException {
+        Properties state = new Properties();
+        state.setProperty("cursor", Long.toString(cursor));
+        if (etag != null) {
+            state.setProperty("etag", etag);
+        }
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            state.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(stateFile)) {
+            tempFile.delete();
+            throw new IOException("Could not move sync state into place: " + stateFile);
+        }
+    }
+}
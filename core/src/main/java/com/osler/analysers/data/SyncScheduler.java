@@ -0,0 +1,155 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SyncScheduler runs a SyncClient in the background: right away when started, then at a fixed
+ * interval after each successful sync. A failed sync is retried after an exponential backoff,
+ * from INITIAL_BACKOFF_MS doubling up to MAX_BACKOFF_MS, with random jitter so that many devices
+ * losing the server at once do not all come back at the same moment. Failures are recorded in the
+ * Metrics.
+ */
+public class SyncScheduler {
+    /**
+     * The delay before retrying after the first failure.
+     */
+    static final long INITIAL_BACKOFF_MS = 30 * 1000;
+
+    /**
+     * The longest delay between two retries.
+     */
+    static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+    /**
+     * Listener is told about the outcome of each sync, on the executor's thread.
+     */
+    public interface Listener {
+        /**
+         * Called after a successful sync, also when there was nothing new.
+         *
+         * @param result What the sync brought in.
+         */
+        void onSynced(SyncClient.Result result);
+
+        /**
+         * Called after a failed sync.
+         *
+         * @param error        Why the sync failed.
+         * @param retryDelayMs The time until the next try, in milliseconds.
+         */
+        void onSyncFailed(Exception error, long retryDelayMs);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final SyncClient client;
+    private final long intervalMs;
+    private final Listener listener;
+    private final Random random = new Random();
+
+    /*
+     * Guarded by this.
+     */
+    private ScheduledFuture<?> next;
+    private boolean stopped;
+    private boolean syncRequested;
+
+    /**
+     * The number of failures in a row. Only used by the sync task.
+     */
+    private int failures;
+
+    private final Runnable syncTask = new Runnable() {
+        @Override
+        public void run() {
+            long delay;
+            try {
+                SyncClient.Result result = client.sync();
+                failures = 0;
+                delay = intervalMs;
+                listener.onSynced(result);
+            } catch (IOException | RuntimeException e) {
+                failures++;
+                delay = backoffMs(failures, random.nextDouble());
+                Metrics.get().recordError("Syncing", e);
+                listener.onSyncFailed(e, delay);
+            }
+            synchronized (SyncScheduler.this) {
+                if (syncRequested) {
+                    // syncNow was called while this sync was running
+                    syncRequested = false;
+                    delay = 0;
+                }
+                schedule(delay);
+            }
+        }
+    };
+
+    /**
+     * Creates a scheduler. Nothing runs until start is called.
+     *
+     * @param executor   The executor to sync on. It should not be the UI thread.
+     * @param client     The client to sync with.
+     * @param intervalMs The time between two successful syncs, in milliseconds.
+     * @param listener   The Listener to tell about each sync.
+     */
+    public SyncScheduler(ScheduledExecutorService executor, SyncClient client, long intervalMs, Listener listener) {
+        this.executor = executor;
+        this.client = client;
+        this.intervalMs = intervalMs;
+        this.listener = listener;
+    }
+
+    /**
+     * start method syncs right away, and keeps syncing until stop is called.
+     */
+    public void start() {
+        syncNow();
+    }
+
+    /**
+     * syncNow method syncs right away instead of waiting for the next sync or retry.
+     */
+    public synchronized void syncNow() {
+        if (next == null || next.cancel(false)) {
+            schedule(0);
+        } else {
+            // The sync is running, it schedules the next one when it is done
+            syncRequested = true;
+        }
+    }
+
+    /**
+     * stop method cancels the next sync. A sync already running is finished, but not followed by
+     * another.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (next != null) {
+            next.cancel(false);
+        }
+    }
+
+    private synchronized void schedule(long delayMs) {
+        if (!stopped && !executor.isShutdown()) {
+            next = executor.schedule(syncTask, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * backoffMs method computes the delay before the next try after a number of failures in a row.
+     *
+     * @param failures The number of failures in a row, at least 1.
+     * @param jitter   A random number from 0 to 1, which takes up to half off the delay.
+     * @return The delay in milliseconds.
+     */
+    static long backoffMs(int failures, double jitter) {
+        // Past 20 failures the shift could overflow, and the cap has long been reached
+        long delay = failures > 20 ? MAX_BACKOFF_MS
+                : Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << (failures - 1));
+        return delay - (long) (delay * jitter / 2);
+    }
+}
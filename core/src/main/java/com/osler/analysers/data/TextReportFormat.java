@@ -0,0 +1,68 @@
+package com.osler.analysers.data;
+
+import java.io.IOException;
+
+/**
+ * TextReportFormat writes the human-readable management report the app has always written, one
+ * line per entry:
+ *
+ * <pre>Kenya, Tested = 1615, Positive = 24.83% (401/1615)</pre>
+ *
+ * <p>Sites are named "Country / Site" and time buckets by the UTC day they start on.</p>
+ */
+public class TextReportFormat implements ReportFormat {
+    private static final byte[] SITE_SEPARATOR = ReportOutput.ascii(" / ");
+    private static final byte[] TESTED = ReportOutput.ascii(", Tested = ");
+    private static final byte[] POSITIVE = ReportOutput.ascii(", Positive = ");
+    private static final byte[] PERCENT_OPEN = ReportOutput.ascii("% (");
+
+    @Override
+    public String getExtension() {
+        return "txt";
+    }
+
+    @Override
+    public void begin(ReportOutput out, Granularity granularity) {
+    }
+
+    @Override
+    public void writeCountry(ReportOutput out, String country, long tested, long positive) throws IOException {
+        out.putString(country);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void writeSite(ReportOutput out, String country, String site, long tested, long positive)
+            throws IOException {
+        out.putString(country);
+        out.putBytes(SITE_SEPARATOR);
+        out.putString(site);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void writeBucket(ReportOutput out, long start, long end, long tested, long positive) throws IOException {
+        out.putDate(start);
+        writeTotals(out, tested, positive);
+    }
+
+    @Override
+    public void end(ReportOutput out, int entryCount) {
+    }
+
+    /**
+     * writeTotals method writes the rest of a line after the name.
+     */
+    private static void writeTotals(ReportOutput out, long tested, long positive) throws IOException {
+        out.putBytes(TESTED);
+        out.putLong(tested);
+        out.putBytes(POSITIVE);
+        out.putPercent(ReportWriter.percentHundredths(positive, tested));
+        out.putBytes(PERCENT_OPEN);
+        out.putLong(positive);
+        out.putByte('/');
+        out.putLong(tested);
+        out.putByte(')');
+        out.putByte('\n');
+    }
+}
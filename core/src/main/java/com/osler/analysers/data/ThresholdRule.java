@@ -0,0 +1,53 @@
+package com.osler.analysers.data;
+
+/**
+ * ThresholdRule raises an alert for every row whose positive percentage is above a fixed
+ * threshold, e.g. EntityDisplay.HIGH_PERCENT. Rows with few tests are left out, since a handful
+ * of tests says little about the rate of a site. The rule has no running state.
+ */
+public class ThresholdRule implements AlertRule {
+    private final double percent;
+    private final int minTested;
+
+    /**
+     * Creates a rule with the given threshold.
+     *
+     * @param percent   The positive percentage a row must be above to be an alert.
+     * @param minTested The number of tests a row needs to be considered.
+     */
+    public ThresholdRule(double percent, int minTested) {
+        this.percent = percent;
+        this.minTested = minTested;
+    }
+
+    @Override
+    public String getName() {
+        return "threshold";
+    }
+
+    /**
+     * getBaseline method returns NaN, the rule does not expect any percentage of a site.
+     */
+    @Override
+    public double getBaseline(int siteId) {
+        return Double.NaN;
+    }
+
+    /**
+     * evaluate method checks the row against the threshold.
+     *
+     * @return The percentage of the row if it is above the threshold, or NaN.
+     */
+    @Override
+    public double evaluate(int siteId, int tested, int positive) {
+        if (tested < minTested) {
+            return Double.NaN;
+        }
+        double rowPercent = positive * 100.0 / tested;
+        return rowPercent > percent ? rowPercent : Double.NaN;
+    }
+
+    @Override
+    public void reset() {
+    }
+}
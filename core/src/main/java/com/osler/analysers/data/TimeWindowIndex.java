@@ -0,0 +1,511 @@
+package com.osler.analysers.data;
+
+/**
+ * TimeWindowIndex answers "how many tests, and how many positive, did site Y (or country X) have
+ * between t1 and t2" in O(log n), without scanning the rows. A row counts for a window when its
+ * measurement overlaps it, i.e. EndDate >= t1 and StartDate <= t2, the same rule as
+ * {@link SiteDataStore#sumBySite(long, long, long[], long[])}.
+ *
+ * <p>For every site the index keeps its rows' StartDates and EndDates, each sorted, with prefix
+ * sums of tested and positive in that order. Since a row cannot both start after t2 and end
+ * before t1, the overlapping rows are all rows, minus those starting after t2 (a suffix of the
+ * StartDate order), minus those ending before t1 (a prefix of the EndDate order): two binary
+ * searches per site. The rows of each country are sorted and summed the same way, so a country
+ * costs two binary searches too, whatever its number of sites. The few rows whose StartDate is
+ * after their EndDate would break that rule, so they are kept aside and checked one by one.
+ * {@link #query(long, long)} returns the totals of every site, so it costs O(sites log n).</p>
+ *
+ * <p>A window whose start is after its end is empty. The index is immutable and covers the rows
+ * the store held when it was built. Once rows are appended to the store,
+ * {@link #extend(SiteDataStore)} indexes only those on top of the index of the earlier rows, and
+ * queries add up both; the rows are indexed again as a whole once the appended ones outgrow
+ * MAX_APPENDED_SHARE of them.</p>
+ */
+public class TimeWindowIndex {
+    /**
+     * The largest share of the rows of the base index that may be indexed on top of it before
+     * extend indexes every row again, e.g. 4 for a quarter.
+     */
+    private static final int MAX_APPENDED_SHARE = 4;
+
+    /**
+     * Totals is the result of a single window query.
+     */
+    public static class Totals {
+        private final long tested;
+        private final long positive;
+        private final int rowCount;
+
+        Totals(long tested, long positive, int rowCount) {
+            this.tested = tested;
+            this.positive = positive;
+            this.rowCount = rowCount;
+        }
+
+        public long getTested() {
+            return tested;
+        }
+
+        public long getPositive() {
+            return positive;
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+    }
+
+    private final String[] countryNames;
+    private final String[] siteNames;
+    private final int[] siteCountries;
+    private final int rowCount;
+    private final long minDate;
+    private final long maxDate;
+
+    /**
+     * The sites of each country: sitesByCountry[countryStart[c]] to sitesByCountry[countryStart[c + 1]].
+     */
+    private final int[] countryStart;
+    private final int[] sitesByCountry;
+
+    /**
+     * The rows of each site, and of each country, sorted by StartDate and by EndDate.
+     */
+    private final SortedRows siteRows;
+    private final SortedRows countryRows;
+
+    /**
+     * The rows with StartDate after EndDate, grouped by site the same way.
+     */
+    private final int[] invertedStart;
+    private final long[] invertedStartDates;
+    private final long[] invertedEndDates;
+    private final int[] invertedTested;
+    private final int[] invertedPositive;
+
+    /**
+     * The index of the rows before fromRow, whose sites are queried too, or null if this index
+     * covers every row.
+     */
+    private final TimeWindowIndex base;
+    private final int fromRow;
+
+    private TimeWindowIndex(SiteDataStore store, TimeWindowIndex base) {
+        this.base = base;
+        fromRow = base != null ? base.rowCount : 0;
+        NameTable countries = store.getCountries();
+        NameTable sites = store.getSites();
+        int countryCount = countries.size();
+        int siteCount = sites.size();
+        int size = store.size();
+        int[] siteIds = store.siteIdColumn();
+        int[] tested = store.testedColumn();
+        int[] positive = store.positiveColumn();
+        long[] startDates = store.startDateColumn();
+        long[] endDates = store.endDateColumn();
+
+        countryNames = new String[countryCount];
+        for (int id = 0; id < countryCount; id++) {
+            countryNames[id] = countries.getName(id);
+        }
+        siteNames = new String[siteCount];
+        siteCountries = new int[siteCount];
+        for (int id = 0; id < siteCount; id++) {
+            siteNames[id] = sites.getName(id);
+            siteCountries[id] = sites.getScope(id);
+        }
+        rowCount = size;
+
+        // Step 1: Group the sites by country
+        countryStart = new int[countryCount + 1];
+        for (int site = 0; site < siteCount; site++) {
+            countryStart[siteCountries[site] + 1]++;
+        }
+        for (int country = 0; country < countryCount; country++) {
+            countryStart[country + 1] += countryStart[country];
+        }
+        sitesByCountry = new int[siteCount];
+        int[] next = new int[countryCount];
+        for (int site = 0; site < siteCount; site++) {
+            int country = siteCountries[site];
+            sitesByCountry[countryStart[country] + next[country]++] = site;
+        }
+
+        // Step 2: Count the rows of each site, keeping inverted rows apart
+        int[] siteStart = new int[siteCount + 1];
+        invertedStart = new int[siteCount + 1];
+        long min = base != null && base.rowCount > 0 ? base.minDate : Long.MAX_VALUE;
+        long max = base != null && base.rowCount > 0 ? base.maxDate : Long.MIN_VALUE;
+        for (int row = fromRow; row < size; row++) {
+            if (startDates[row] <= endDates[row]) {
+                siteStart[siteIds[row] + 1]++;
+            } else {
+                invertedStart[siteIds[row] + 1]++;
+            }
+            min = Math.min(min, Math.min(startDates[row], endDates[row]));
+            max = Math.max(max, Math.max(startDates[row], endDates[row]));
+        }
+        minDate = size == 0 ? 0 : min;
+        maxDate = size == 0 ? 0 : max;
+        for (int site = 0; site < siteCount; site++) {
+            siteStart[site + 1] += siteStart[site];
+            invertedStart[site + 1] += invertedStart[site];
+        }
+
+        // Step 3: Place the row ids by site, in store order
+        int indexed = siteStart[siteCount];
+        int[] byStart = new int[indexed];
+        int inverted = invertedStart[siteCount];
+        invertedStartDates = new long[inverted];
+        invertedEndDates = new long[inverted];
+        invertedTested = new int[inverted];
+        invertedPositive = new int[inverted];
+        int[] nextRow = new int[siteCount];
+        int[] nextInverted = new int[siteCount];
+        for (int row = fromRow; row < size; row++) {
+            int site = siteIds[row];
+            if (startDates[row] <= endDates[row]) {
+                byStart[siteStart[site] + nextRow[site]++] = row;
+            } else {
+                int at = invertedStart[site] + nextInverted[site]++;
+                invertedStartDates[at] = startDates[row];
+                invertedEndDates[at] = endDates[row];
+                invertedTested[at] = tested[row];
+                invertedPositive[at] = positive[row];
+            }
+        }
+
+        // Step 4: Place the row ids by country, one site after the other
+        int[] countryRowStart = new int[countryCount + 1];
+        for (int site = 0; site < siteCount; site++) {
+            countryRowStart[siteCountries[site] + 1] += siteStart[site + 1] - siteStart[site];
+        }
+        for (int country = 0; country < countryCount; country++) {
+            countryRowStart[country + 1] += countryRowStart[country];
+        }
+        int[] byCountry = new int[indexed];
+        int placed = 0;
+        for (int i = 0; i < siteCount; i++) {
+            int site = sitesByCountry[i];
+            System.arraycopy(byStart, siteStart[site], byCountry, placed, siteStart[site + 1] - siteStart[site]);
+            placed += siteStart[site + 1] - siteStart[site];
+        }
+
+        // Step 5: Sort the rows of each site and of each country, and sum them up
+        siteRows = new SortedRows(siteStart, byStart, startDates, endDates, tested, positive);
+        countryRows = new SortedRows(countryRowStart, byCountry, startDates, endDates, tested, positive);
+    }
+
+    /**
+     * build method indexes every row the store currently holds. It costs O(n log n) and should
+     * run on a background thread; the store must not be written to meanwhile.
+     *
+     * @param store The store to index.
+     * @return The new index.
+     */
+    public static TimeWindowIndex build(SiteDataStore store) {
+        return new TimeWindowIndex(store, null);
+    }
+
+    /**
+     * extend method indexes the rows appended to the store since this index was built. It costs
+     * O(k log k) for the k rows appended since the rows were last indexed as a whole, until they
+     * outgrow MAX_APPENDED_SHARE of those rows and every row is indexed again.
+     *
+     * @param store The store this index was built from, with rows only appended since.
+     * @return The new index, or this one if no rows were appended.
+     */
+    public TimeWindowIndex extend(SiteDataStore store) {
+        if (store.size() < rowCount) {
+            throw new IllegalArgumentException("The store holds " + store.size() + " of the " + rowCount
+                    + " rows indexed");
+        }
+        if (store.size() == rowCount) {
+            return this;
+        }
+        TimeWindowIndex whole = base != null ? base : this;
+        if (store.size() - whole.rowCount > whole.rowCount / MAX_APPENDED_SHARE) {
+            return build(store);
+        }
+        return new TimeWindowIndex(store, whole);
+    }
+
+    /**
+     * Returns the number of rows indexed.
+     *
+     * @return The store size when the index was built.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the earliest date of any row, in epoch seconds, or 0 if there are no rows.
+     *
+     * @return The minimum StartDate or EndDate.
+     */
+    public long getMinDate() {
+        return minDate;
+    }
+
+    /**
+     * Returns the latest date of any row, in epoch seconds, or 0 if there are no rows.
+     *
+     * @return The maximum StartDate or EndDate.
+     */
+    public long getMaxDate() {
+        return maxDate;
+    }
+
+    /**
+     * querySite method sums the rows of one site that overlap [from, to].
+     *
+     * @param siteId The site id.
+     * @param from   The start of the window in epoch seconds, inclusive.
+     * @param to     The end of the window in epoch seconds, inclusive.
+     * @return The site's totals in the window.
+     */
+    public Totals querySite(int siteId, long from, long to) {
+        long[] totals = new long[3];
+        addSite(siteId, from, to, totals);
+        return new Totals(totals[0], totals[1], (int) totals[2]);
+    }
+
+    /**
+     * queryCountry method sums the rows of one country that overlap [from, to], with two binary
+     * searches however many sites the country has.
+     *
+     * @param countryId The country id.
+     * @param from      The start of the window in epoch seconds, inclusive.
+     * @param to        The end of the window in epoch seconds, inclusive.
+     * @return The country's totals in the window.
+     */
+    public Totals queryCountry(int countryId, long from, long to) {
+        long[] totals = new long[3];
+        addCountry(countryId, from, to, totals);
+        return new Totals(totals[0], totals[1], (int) totals[2]);
+    }
+
+    /**
+     * query method computes the totals of every site and country for the window [from, to].
+     * It costs two binary searches per site, O(sites log n), and the countries are summed from
+     * their sites.
+     *
+     * @param from The start of the window in epoch seconds, inclusive.
+     * @param to   The end of the window in epoch seconds, inclusive.
+     * @return The window's totals as an AggregateSnapshot, with the row count of the index as version.
+     */
+    public AggregateSnapshot query(long from, long to) {
+        int countryCount = countryNames.length;
+        int siteCount = siteNames.length;
+        long[] countryTested = new long[countryCount];
+        long[] countryPositive = new long[countryCount];
+        int[] countryRows = new int[countryCount];
+        long[] siteTested = new long[siteCount];
+        long[] sitePositive = new long[siteCount];
+        int[] siteRows = new int[siteCount];
+        long globalTested = 0;
+        long globalPositive = 0;
+        int windowRows = 0;
+
+        long[] totals = new long[3];
+        for (int site = 0; site < siteCount; site++) {
+            totals[0] = 0;
+            totals[1] = 0;
+            totals[2] = 0;
+            addSite(site, from, to, totals);
+            siteTested[site] = totals[0];
+            sitePositive[site] = totals[1];
+            siteRows[site] = (int) totals[2];
+            int country = siteCountries[site];
+            countryTested[country] += totals[0];
+            countryPositive[country] += totals[1];
+            countryRows[country] += (int) totals[2];
+            globalTested += totals[0];
+            globalPositive += totals[1];
+            windowRows += (int) totals[2];
+        }
+        return new AggregateSnapshot(rowCount, windowRows, countryNames, countryTested, countryPositive, countryRows,
+                siteNames, siteCountries, siteTested, sitePositive, siteRows, globalTested, globalPositive);
+    }
+
+    /**
+     * addSite method adds the {tested, positive, rows} of one site in the window to totals.
+     */
+    private void addSite(int site, long from, long to, long[] totals) {
+        if (base != null && site < base.siteNames.length) {
+            base.addSite(site, from, to, totals);
+        }
+        siteRows.add(site, from, to, totals);
+        addInverted(site, from, to, totals);
+    }
+
+    /**
+     * addCountry method adds the {tested, positive, rows} of one country in the window to totals.
+     */
+    private void addCountry(int country, long from, long to, long[] totals) {
+        if (base != null && country < base.countryNames.length) {
+            base.addCountry(country, from, to, totals);
+        }
+        countryRows.add(country, from, to, totals);
+        for (int i = countryStart[country]; i < countryStart[country + 1]; i++) {
+            addInverted(sitesByCountry[i], from, to, totals);
+        }
+    }
+
+    /**
+     * addInverted method adds the inverted rows of one site that overlap the window to totals.
+     */
+    private void addInverted(int site, long from, long to, long[] totals) {
+        for (int i = invertedStart[site]; i < invertedStart[site + 1]; i++) {
+            if (invertedEndDates[i] >= from && invertedStartDates[i] <= to) {
+                totals[0] += invertedTested[i];
+                totals[1] += invertedPositive[i];
+                totals[2]++;
+            }
+        }
+    }
+
+    /**
+     * SortedRows holds groups of rows, e.g. the rows of each site, sorted by StartDate and by
+     * EndDate with prefix sums of tested and positive in both orders. The rows of group g are at
+     * groupStart[g] to groupStart[g + 1]; the prefix arrays have one more entry: prefix[i] is the
+     * sum of the first i entries.
+     */
+    private static class SortedRows {
+        private final int[] groupStart;
+        private final long[] startKeys;
+        private final long[] startTestedPrefix;
+        private final long[] startPositivePrefix;
+        private final long[] endKeys;
+        private final long[] endTestedPrefix;
+        private final long[] endPositivePrefix;
+
+        /**
+         * Sorts and sums the rows of each group. byStart holds the row ids of each group, in any
+         * order, and is sorted in place.
+         */
+        SortedRows(int[] groupStart, int[] byStart, long[] startDates, long[] endDates, int[] tested,
+                   int[] positive) {
+            this.groupStart = groupStart;
+            int size = byStart.length;
+            int[] byEnd = byStart.clone();
+            int[] scratch = new int[size];
+            for (int group = 0; group + 1 < groupStart.length; group++) {
+                sortRows(byStart, groupStart[group], groupStart[group + 1], startDates, scratch);
+                sortRows(byEnd, groupStart[group], groupStart[group + 1], endDates, scratch);
+            }
+            startKeys = new long[size];
+            startTestedPrefix = new long[size + 1];
+            startPositivePrefix = new long[size + 1];
+            endKeys = new long[size];
+            endTestedPrefix = new long[size + 1];
+            endPositivePrefix = new long[size + 1];
+            for (int i = 0; i < size; i++) {
+                int row = byStart[i];
+                startKeys[i] = startDates[row];
+                startTestedPrefix[i + 1] = startTestedPrefix[i] + tested[row];
+                startPositivePrefix[i + 1] = startPositivePrefix[i] + positive[row];
+                row = byEnd[i];
+                endKeys[i] = endDates[row];
+                endTestedPrefix[i + 1] = endTestedPrefix[i] + tested[row];
+                endPositivePrefix[i + 1] = endPositivePrefix[i] + positive[row];
+            }
+        }
+
+        /**
+         * add method adds the {tested, positive, rows} of the rows of one group that overlap
+         * [from, to] to totals, with two binary searches.
+         */
+        void add(int group, long from, long to, long[] totals) {
+            int low = groupStart[group];
+            int high = groupStart[group + 1];
+            if (from > to || low == high) {
+                return;
+            }
+            // Rows starting after the window are the tail of the StartDate order...
+            int startedAfter = firstGreater(startKeys, low, high, to);
+            // ...and rows ending before it the head of the EndDate order
+            int endedBefore = firstAtLeast(endKeys, low, high, from);
+            totals[0] += (startTestedPrefix[startedAfter] - startTestedPrefix[low])
+                    - (endTestedPrefix[endedBefore] - endTestedPrefix[low]);
+            totals[1] += (startPositivePrefix[startedAfter] - startPositivePrefix[low])
+                    - (endPositivePrefix[endedBefore] - endPositivePrefix[low]);
+            totals[2] += (startedAfter - low) - (endedBefore - low);
+        }
+    }
+
+    /**
+     * firstGreater method finds the first index in keys[from, to) whose key is greater than
+     * value, or to if there is none. The range must be sorted.
+     */
+    private static int firstGreater(long[] keys, int from, int to, long value) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * firstAtLeast method finds the first index in keys[from, to) whose key is at least value,
+     * or to if there is none. The range must be sorted.
+     */
+    private static int firstAtLeast(long[] keys, int from, int to, long value) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * sortRows method sorts rows[from, to) by keys[row] with a stable merge sort, so no boxed
+     * comparator is needed. scratch must be at least as long as rows.
+     */
+    static void sortRows(int[] rows, int from, int to, long[] keys, int[] scratch) {
+        if (to - from < 2) {
+            return;
+        }
+        if (to - from <= 16) {
+            for (int i = from + 1; i < to; i++) {
+                int row = rows[i];
+                int j = i - 1;
+                while (j >= from && keys[rows[j]] > keys[row]) {
+                    rows[j + 1] = rows[j];
+                    j--;
+                }
+                rows[j + 1] = row;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sortRows(rows, from, mid, keys, scratch);
+        sortRows(rows, mid, to, keys, scratch);
+        if (keys[rows[mid - 1]] <= keys[rows[mid]]) {
+            return;
+        }
+        System.arraycopy(rows, from, scratch, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && keys[scratch[left]] <= keys[scratch[right]])) {
+                rows[i] = scratch[left++];
+            } else {
+                rows[i] = scratch[right++];
+            }
+        }
+    }
+}
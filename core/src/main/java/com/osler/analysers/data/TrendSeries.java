@@ -0,0 +1,459 @@
+package com.osler.analysers.data;
+
+import java.util.Arrays;
+
+/**
+ * TrendSeries holds the positive rate over time of every country, every site and all rows
+ * together, in daily, weekly and monthly buckets of the rows starting in them, the same buckets as
+ * {@link ReportWriter#writeBuckets(SiteDataStore, Granularity)}. A chart reads a series straight
+ * from its arrays, downsampled to the points it can draw, without going back to the rows.
+ *
+ * <p>The series of a granularity are kept in one set of primitive arrays per countries, sites and
+ * all rows, the series of each country or site one after the other in bucket order, with only the
+ * buckets holding rows. The daily series are bucketed from the rows, which are sorted by site,
+ * country and day; the weekly and monthly series are merged from the daily ones.</p>
+ *
+ * <p>The series are indexed by the ids of the store's NameTables, which are those of its
+ * AggregateSnapshots. A TrendSeries is immutable and covers the rows the store held when it was
+ * built. Once rows are appended to the store, {@link #extend(SiteDataStore)} buckets only those
+ * and merges them into a copy of the daily series. Series of rows that are not held in memory are
+ * built from their daily totals with {@link #ofDays(SiteDataStore)}.</p>
+ */
+public class TrendSeries {
+    /**
+     * The granularities the series are kept in, finest first.
+     */
+    private static final Granularity[] GRANULARITIES = {Granularity.DAY, Granularity.WEEK, Granularity.MONTH};
+
+    /**
+     * A sparkline is downsampled from the finest series with at most this many buckets per point,
+     * so the downsampling has enough buckets to choose from without reading years of days.
+     */
+    static final int OVERSAMPLING = 4;
+
+    /**
+     * Series is a view of the buckets of one country, site or all rows. Only buckets holding rows
+     * are included.
+     */
+    public static class Series {
+        private final Granularity granularity;
+        private final long[] buckets;
+        private final long[] tested;
+        private final long[] positive;
+        private final int from;
+        private final int size;
+
+        Series(Granularity granularity, long[] buckets, long[] tested, long[] positive, int from, int size) {
+            this.granularity = granularity;
+            this.buckets = buckets;
+            this.tested = tested;
+            this.positive = positive;
+            this.from = from;
+            this.size = size;
+        }
+
+        public Granularity getGranularity() {
+            return granularity;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the first second of a bucket.
+         *
+         * @param index The index of the bucket in the series.
+         * @return The start of the bucket in epoch seconds.
+         */
+        public long getStart(int index) {
+            return granularity.getBucketStart(buckets[from + index]);
+        }
+
+        /**
+         * Returns the last second of a bucket.
+         *
+         * @param index The index of the bucket in the series.
+         * @return The end of the bucket in epoch seconds, inclusive.
+         */
+        public long getEnd(int index) {
+            return granularity.getBucketEnd(buckets[from + index]);
+        }
+
+        public long getTested(int index) {
+            return tested[from + index];
+        }
+
+        public long getPositive(int index) {
+            return positive[from + index];
+        }
+
+        /**
+         * Returns the positive percentage of a bucket. Zero tested counts as 0%.
+         *
+         * @param index The index of the bucket in the series.
+         * @return The percentage, with decimals.
+         */
+        public double getPercent(int index) {
+            long bucketTested = tested[from + index];
+            return bucketTested <= 0 ? 0 : positive[from + index] * 100.0 / bucketTested;
+        }
+
+        /**
+         * downsample method picks at most maxPoints buckets that keep the shape of the series, with
+         * Largest-Triangle-Three-Buckets: the first and last buckets are kept, the others are split
+         * into maxPoints - 2 ranges, and from each range the bucket forming the largest triangle
+         * with the bucket kept before it and the average of the next range is kept. It costs one
+         * pass over the series.
+         *
+         * @param maxPoints The largest number of buckets to keep, at least 3.
+         * @return The downsampled series, or this series if it has no more than maxPoints buckets.
+         */
+        public Series downsample(int maxPoints) {
+            if (maxPoints < 3) {
+                throw new IllegalArgumentException("Cannot downsample to fewer than 3 points: " + maxPoints);
+            }
+            if (size <= maxPoints) {
+                return this;
+            }
+            long[] keptBuckets = new long[maxPoints];
+            long[] keptTested = new long[maxPoints];
+            long[] keptPositive = new long[maxPoints];
+            double every = (double) (size - 2) / (maxPoints - 2);
+            int kept = 0;
+            keep(kept, keptBuckets, keptTested, keptPositive, 0);
+            for (int range = 0; range < maxPoints - 2; range++) {
+                // Step 1: Average the range after this one, or the last bucket for the last range
+                int nextFrom = (int) ((range + 1) * every) + 1;
+                int nextTo = Math.min((int) ((range + 2) * every) + 1, size);
+                double nextX = 0;
+                double nextY = 0;
+                for (int index = nextFrom; index < nextTo; index++) {
+                    nextX += buckets[from + index];
+                    nextY += getPercent(index);
+                }
+                nextX /= nextTo - nextFrom;
+                nextY /= nextTo - nextFrom;
+
+                // Step 2: Keep the bucket of this range forming the largest triangle
+                double keptX = buckets[from + kept];
+                double keptY = getPercent(kept);
+                double largestArea = -1;
+                int rangeTo = (int) ((range + 1) * every) + 1;
+                for (int index = (int) (range * every) + 1; index < rangeTo; index++) {
+                    double area = Math.abs((keptX - nextX) * (getPercent(index) - keptY)
+                            - (keptX - buckets[from + index]) * (nextY - keptY));
+                    if (area > largestArea) {
+                        largestArea = area;
+                        kept = index;
+                    }
+                }
+                keep(range + 1, keptBuckets, keptTested, keptPositive, kept);
+            }
+            keep(maxPoints - 1, keptBuckets, keptTested, keptPositive, size - 1);
+            return new Series(granularity, keptBuckets, keptTested, keptPositive, 0, maxPoints);
+        }
+
+        private void keep(int at, long[] keptBuckets, long[] keptTested, long[] keptPositive, int index) {
+            keptBuckets[at] = buckets[from + index];
+            keptTested[at] = tested[from + index];
+            keptPositive[at] = positive[from + index];
+        }
+    }
+
+    /**
+     * Table holds the series of a group of countries, of sites or of all rows in one granularity:
+     * those of member m are entries start[m] to start[m + 1] of the other arrays.
+     */
+    private static class Table {
+        final Granularity granularity;
+        final int[] start;
+        final long[] buckets;
+        final long[] tested;
+        final long[] positive;
+
+        Table(Granularity granularity, int[] start, long[] buckets, long[] tested, long[] positive) {
+            this.granularity = granularity;
+            this.start = start;
+            this.buckets = buckets;
+            this.tested = tested;
+            this.positive = positive;
+        }
+
+        Series get(int member) {
+            if (member < 0 || member >= start.length - 1) {
+                return new Series(granularity, buckets, tested, positive, 0, 0);
+            }
+            return new Series(granularity, buckets, tested, positive, start[member],
+                    start[member + 1] - start[member]);
+        }
+    }
+
+    private final int rowCount;
+
+    /*
+     * The tables by granularity, in the order of GRANULARITIES.
+     */
+    private final Table[] countries = new Table[GRANULARITIES.length];
+    private final Table[] sites = new Table[GRANULARITIES.length];
+    private final Table[] global = new Table[GRANULARITIES.length];
+
+    private TrendSeries(SiteDataStore store, TrendSeries previous, int rowCount) {
+        int size = store.size();
+        int fromRow = previous != null ? previous.rowCount : 0;
+        this.rowCount = rowCount;
+        long[] startDates = store.startDateColumn();
+        long[] days = new long[size - fromRow];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = Granularity.DAY.getBucket(startDates[fromRow + i]);
+        }
+        int[] order = new int[days.length];
+        int[] scratch = new int[days.length];
+
+        // Step 1: Bucket the rows by day, per site, per country and all together
+        sites[0] = bucketRows(store, store.siteIdColumn(), store.getSites().size(), fromRow, days, order, scratch);
+        countries[0] = bucketRows(store, store.countryIdColumn(), store.getCountries().size(), fromRow, days, order,
+                scratch);
+        global[0] = bucketRows(store, null, 1, fromRow, days, order, scratch);
+        if (previous != null) {
+            sites[0] = merge(previous.sites[0], sites[0]);
+            countries[0] = merge(previous.countries[0], countries[0]);
+            global[0] = merge(previous.global[0], global[0]);
+        }
+
+        // Step 2: Merge the days into weeks and months
+        for (int level = 1; level < GRANULARITIES.length; level++) {
+            sites[level] = rebucket(sites[0], GRANULARITIES[level]);
+            countries[level] = rebucket(countries[0], GRANULARITIES[level]);
+            global[level] = rebucket(global[0], GRANULARITIES[level]);
+        }
+    }
+
+    /**
+     * build method buckets every row the store currently holds. It costs O(n log n) and should run
+     * on a background thread; the store must not be written to meanwhile.
+     *
+     * @param store The store to bucket.
+     * @return The new series.
+     */
+    public static TrendSeries build(SiteDataStore store) {
+        return new TrendSeries(store, null, store.size());
+    }
+
+    /**
+     * ofDays method builds the series of rows kept elsewhere from their daily totals, given as one
+     * row per site and day starting on that day, e.g. read from the rollups of a RollupStore. The
+     * series cover none of the rows of the store whose NameTables the totals share, so
+     * {@link #extend(SiteDataStore)} adds every row of it. It costs O(d log d) for d days.
+     *
+     * @param days The daily totals.
+     * @return The new series.
+     */
+    public static TrendSeries ofDays(SiteDataStore days) {
+        return new TrendSeries(days, null, 0);
+    }
+
+    /**
+     * extend method buckets the rows appended to the store since these series were built, and
+     * merges them into new series. It costs O(k log k) for k new rows plus one pass over the daily
+     * buckets, rather than a build over every row.
+     *
+     * @param store The store these series were built from, with rows only appended since.
+     * @return The new series, or these if no rows were appended.
+     */
+    public TrendSeries extend(SiteDataStore store) {
+        if (store.size() < rowCount) {
+            throw new IllegalArgumentException("The store holds " + store.size() + " of the " + rowCount
+                    + " rows bucketed");
+        }
+        return store.size() == rowCount ? this : new TrendSeries(store, this, store.size());
+    }
+
+    /**
+     * Returns the number of rows bucketed.
+     *
+     * @return The store size when the series were built.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * getGlobal method returns the series of all rows together.
+     *
+     * @param granularity DAY, WEEK or MONTH.
+     * @return The series.
+     */
+    public Series getGlobal(Granularity granularity) {
+        return global[level(granularity)].get(0);
+    }
+
+    /**
+     * getCountry method returns the series of a country.
+     *
+     * @param countryId   The country id.
+     * @param granularity DAY, WEEK or MONTH.
+     * @return The series, empty if the country has no rows.
+     */
+    public Series getCountry(int countryId, Granularity granularity) {
+        return countries[level(granularity)].get(countryId);
+    }
+
+    /**
+     * getSite method returns the series of a site.
+     *
+     * @param siteId      The site id.
+     * @param granularity DAY, WEEK or MONTH.
+     * @return The series, empty if the site has no rows.
+     */
+    public Series getSite(int siteId, Granularity granularity) {
+        return sites[level(granularity)].get(siteId);
+    }
+
+    /**
+     * getSparkline method returns the series of a country, a site or all rows in the finest
+     * granularity with at most OVERSAMPLING buckets per point, downsampled to maxPoints. Its cost
+     * depends on maxPoints, not on the number of rows or days.
+     *
+     * @param site      true for a site, false for a country.
+     * @param id        The site or country id, or -1 for all rows.
+     * @param maxPoints The largest number of points to draw, at least 3.
+     * @return The downsampled series.
+     */
+    public Series getSparkline(boolean site, int id, int maxPoints) {
+        Table[] tables = id < 0 ? global : site ? sites : countries;
+        int member = Math.max(id, 0);
+        int level = 0;
+        while (level < GRANULARITIES.length - 1 && tables[level].get(member).size() > OVERSAMPLING * maxPoints) {
+            level++;
+        }
+        return tables[level].get(member).downsample(maxPoints);
+    }
+
+    private static int level(Granularity granularity) {
+        for (int level = 0; level < GRANULARITIES.length; level++) {
+            if (GRANULARITIES[level] == granularity) {
+                return level;
+            }
+        }
+        throw new IllegalArgumentException("No trend series by " + granularity);
+    }
+
+    /**
+     * bucketRows method groups the rows from fromRow on by member with a counting sort, sorts the
+     * rows of each member by day and totals the rows of each day.
+     *
+     * @param members     The member of each row, or null if all rows belong to member 0.
+     * @param memberCount The number of members.
+     * @param fromRow     The first row to bucket; days[i] is the day of row fromRow + i.
+     */
+    private static Table bucketRows(SiteDataStore store, int[] members, int memberCount, int fromRow, long[] days,
+                                    int[] order, int[] scratch) {
+        int size = days.length;
+        int[] tested = store.testedColumn();
+        int[] positive = store.positiveColumn();
+
+        int[] rowStart = new int[memberCount + 1];
+        for (int i = 0; i < size; i++) {
+            rowStart[(members == null ? 0 : members[fromRow + i]) + 1]++;
+        }
+        for (int member = 0; member < memberCount; member++) {
+            rowStart[member + 1] += rowStart[member];
+        }
+        int[] next = Arrays.copyOf(rowStart, memberCount);
+        for (int i = 0; i < size; i++) {
+            order[next[members == null ? 0 : members[fromRow + i]]++] = i;
+        }
+
+        int[] start = new int[memberCount + 1];
+        long[] buckets = new long[size];
+        long[] bucketTested = new long[size];
+        long[] bucketPositive = new long[size];
+        int count = 0;
+        for (int member = 0; member < memberCount; member++) {
+            TimeWindowIndex.sortRows(order, rowStart[member], rowStart[member + 1], days, scratch);
+            start[member] = count;
+            for (int i = rowStart[member]; i < rowStart[member + 1]; i++) {
+                int row = order[i];
+                if (count == start[member] || buckets[count - 1] != days[row]) {
+                    buckets[count++] = days[row];
+                }
+                bucketTested[count - 1] += tested[fromRow + row];
+                bucketPositive[count - 1] += positive[fromRow + row];
+            }
+        }
+        start[memberCount] = count;
+        return new Table(Granularity.DAY, start, Arrays.copyOf(buckets, count), Arrays.copyOf(bucketTested, count),
+                Arrays.copyOf(bucketPositive, count));
+    }
+
+    /**
+     * merge method adds the daily series of the appended rows to those of the earlier rows. The
+     * members of the appended rows may include new ones, after those of the earlier rows.
+     */
+    private static Table merge(Table earlier, Table appended) {
+        int memberCount = appended.start.length - 1;
+        int earlierCount = earlier.start.length - 1;
+        int size = earlier.buckets.length + appended.buckets.length;
+        int[] start = new int[memberCount + 1];
+        long[] buckets = new long[size];
+        long[] tested = new long[size];
+        long[] positive = new long[size];
+        int count = 0;
+        for (int member = 0; member < memberCount; member++) {
+            start[member] = count;
+            int i = member < earlierCount ? earlier.start[member] : 0;
+            int iEnd = member < earlierCount ? earlier.start[member + 1] : 0;
+            int j = appended.start[member];
+            int jEnd = appended.start[member + 1];
+            while (i < iEnd || j < jEnd) {
+                // Both series are in bucket order, a bucket in both is summed
+                long bucket = j >= jEnd || (i < iEnd && earlier.buckets[i] <= appended.buckets[j])
+                        ? earlier.buckets[i] : appended.buckets[j];
+                buckets[count] = bucket;
+                if (i < iEnd && earlier.buckets[i] == bucket) {
+                    tested[count] += earlier.tested[i];
+                    positive[count] += earlier.positive[i];
+                    i++;
+                }
+                if (j < jEnd && appended.buckets[j] == bucket) {
+                    tested[count] += appended.tested[j];
+                    positive[count] += appended.positive[j];
+                    j++;
+                }
+                count++;
+            }
+        }
+        start[memberCount] = count;
+        return new Table(Granularity.DAY, start, Arrays.copyOf(buckets, count), Arrays.copyOf(tested, count),
+                Arrays.copyOf(positive, count));
+    }
+
+    /**
+     * rebucket method merges the daily series of a table into a coarser granularity. Days in the
+     * same week or month are next to each other, so it costs one pass.
+     */
+    private static Table rebucket(Table daily, Granularity granularity) {
+        int memberCount = daily.start.length - 1;
+        int size = daily.buckets.length;
+        int[] start = new int[memberCount + 1];
+        long[] buckets = new long[size];
+        long[] tested = new long[size];
+        long[] positive = new long[size];
+        int count = 0;
+        for (int member = 0; member < memberCount; member++) {
+            start[member] = count;
+            for (int i = daily.start[member]; i < daily.start[member + 1]; i++) {
+                long bucket = granularity.getBucket(Granularity.DAY.getBucketStart(daily.buckets[i]));
+                if (count == start[member] || buckets[count - 1] != bucket) {
+                    buckets[count++] = bucket;
+                }
+                tested[count - 1] += daily.tested[i];
+                positive[count - 1] += daily.positive[i];
+            }
+        }
+        start[memberCount] = count;
+        return new Table(granularity, start, Arrays.copyOf(buckets, count), Arrays.copyOf(tested, count),
+                Arrays.copyOf(positive, count));
+    }
+}
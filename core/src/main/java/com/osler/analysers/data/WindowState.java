@@ -0,0 +1,61 @@
+package com.osler.analysers.data;
+
+/**
+ * WindowState is the immutable result of a time window query: the totals of every site and
+ * country for the measurements overlapping [from, to], and the range of dates in the data, so a
+ * date control can be bounded by it.
+ */
+public class WindowState {
+    /**
+     * The start of the window in epoch seconds, inclusive.
+     */
+    private final long from;
+
+    /**
+     * The end of the window in epoch seconds, inclusive.
+     */
+    private final long to;
+
+    /**
+     * The earliest date in the data, in epoch seconds.
+     */
+    private final long minDate;
+
+    /**
+     * The latest date in the data, in epoch seconds.
+     */
+    private final long maxDate;
+
+    /**
+     * The totals of the rows overlapping the window.
+     */
+    private final AggregateSnapshot aggregates;
+
+    WindowState(long from, long to, long minDate, long maxDate, AggregateSnapshot aggregates) {
+        this.from = from;
+        this.to = to;
+        this.minDate = minDate;
+        this.maxDate = maxDate;
+        this.aggregates = aggregates;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public long getMinDate() {
+        return minDate;
+    }
+
+    public long getMaxDate() {
+        return maxDate;
+    }
+
+    public AggregateSnapshot getAggregates() {
+        return aggregates;
+    }
+}
@@ -0,0 +1,60 @@
+package com.osler.analysers.data;
+
+/**
+ * ZScoreRule raises an alert for a row whose positive percentage is far above the recent rows of
+ * its site: more standard deviations above the site's exponentially weighted mean than the
+ * threshold, see SiteBaseline. Only rises are alerts. A site needs a few rows before its baseline
+ * means anything, and rows with few tests are left out, like in ThresholdRule.
+ */
+public class ZScoreRule implements AlertRule {
+    private final SiteBaseline baseline;
+    private final double threshold;
+    private final int warmupRows;
+    private final int minTested;
+
+    /**
+     * Creates a rule with the given baseline weight and threshold.
+     *
+     * @param alpha      The weight of the newest row in the baseline, between 0 and 1.
+     * @param threshold  The number of standard deviations a row must be above the mean.
+     * @param warmupRows The number of rows of a site before its rows can be alerts.
+     * @param minTested  The number of tests a row needs to be considered.
+     */
+    public ZScoreRule(double alpha, double threshold, int warmupRows, int minTested) {
+        this.baseline = new SiteBaseline(alpha);
+        this.threshold = threshold;
+        this.warmupRows = warmupRows;
+        this.minTested = minTested;
+    }
+
+    @Override
+    public String getName() {
+        return "z-score";
+    }
+
+    @Override
+    public double getBaseline(int siteId) {
+        return baseline.getMean(siteId);
+    }
+
+    /**
+     * evaluate method scores the row against the site's baseline, then adds it to the baseline.
+     *
+     * @return The z-score of the row if it is at least the threshold, or NaN.
+     */
+    @Override
+    public double evaluate(int siteId, int tested, int positive) {
+        if (tested < minTested) {
+            return Double.NaN;
+        }
+        double percent = positive * 100.0 / tested;
+        double score = baseline.getCount(siteId) >= warmupRows ? baseline.score(siteId, percent, tested) : Double.NaN;
+        baseline.add(siteId, percent);
+        return score >= threshold ? score : Double.NaN;
+    }
+
+    @Override
+    public void reset() {
+        baseline.reset();
+    }
+}
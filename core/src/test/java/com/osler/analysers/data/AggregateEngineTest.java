@@ -0,0 +1,132 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for AggregateEngine.
+ */
+public class AggregateEngineTest {
+
+    @Test
+    public void testTakesInExistingRows() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        store.append("Mali", "Sikasso", 40, 4, 10, 20);
+
+        AggregateSnapshot snapshot = new AggregateEngine(store).snapshot();
+
+        assertEquals(140, snapshot.getGlobalTested());
+        assertEquals(29, snapshot.getGlobalPositive());
+        assertEquals(100, snapshot.getCountryTested(snapshot.findCountry("Kenya")));
+    }
+
+    @Test
+    public void testAppliesBatchesAsDeltas() {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        engine.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        AggregateSnapshot before = engine.snapshot();
+
+        RowBatch batch = new RowBatch();
+        batch.add("Kenya", "Kisumu", 10, 5, 30, 40);
+        batch.add("Kenya", "Nairobi", 20, 2, 30, 40);
+        batch.add("Mali", "Sikasso", 40, 4, 30, 40);
+        engine.apply(batch);
+        AggregateSnapshot after = engine.snapshot();
+
+        // The earlier snapshot is unaffected by the new rows
+        assertEquals(100, before.getGlobalTested());
+        assertEquals(1, before.getCountryCount());
+
+        int kenya = after.findCountry("Kenya");
+        assertEquals(170, after.getGlobalTested());
+        assertEquals(130, after.getCountryTested(kenya));
+        assertEquals(32, after.getCountryPositive(kenya));
+        assertEquals(3, after.getCountryRowCount(kenya));
+        assertEquals(110, after.getSiteTested(0));
+        assertEquals(kenya, after.getSiteCountry(1));
+        assertEquals(4, after.getRowCount());
+        assertTrue(after.getVersion() > before.getVersion());
+    }
+
+    @Test
+    public void testTakesOutRowsAsNegativeDeltas() {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        engine.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        engine.append("Kenya", "Nairobi", 20, 2, 10, 20);
+        engine.append("Mali", "Sikasso", 40, 4, 10, 20);
+        SiteDataStore store = engine.getStore();
+
+        engine.removeRows(1, 2);
+        AggregateSnapshot snapshot = engine.snapshot();
+
+        // The rows are taken out of the store in place, the rows after them move up
+        assertSame(store, engine.getStore());
+        assertEquals(2, store.size());
+        assertEquals(40, store.getTested(1));
+        assertEquals(1, store.getRemovedRows());
+
+        int kenya = snapshot.findCountry("Kenya");
+        assertEquals(140, snapshot.getGlobalTested());
+        assertEquals(29, snapshot.getGlobalPositive());
+        assertEquals(100, snapshot.getCountryTested(kenya));
+        assertEquals(1, snapshot.getCountryRowCount(kenya));
+        assertEquals(2, snapshot.getRowCount());
+    }
+
+    @Test
+    public void testStartsFromRollups() throws IOException {
+        MemoryRollupStore rollups = new MemoryRollupStore();
+        SiteDataStore rows = new SiteDataStore();
+        rows.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        rows.append("Kenya", "Kisumu", 50, 5, 10, 20);
+        rollups.replaceSource("data.csv", 1, rows, 0, 0, new ArrayList<String>());
+        rows = new SiteDataStore();
+        rows.append("Norway", "Oslo", 10, 1, 10, 20);
+        rollups.replaceSource("appended", 0, rows, 0, 0, new ArrayList<String>());
+        // Removed rows leave empty totals behind, which are left out
+        rollups.removeSource("appended");
+
+        SiteDataStore store = new SiteDataStore();
+        AggregateEngine engine = new AggregateEngine(store, rollups);
+        engine.append("Kenya", "Nairobi", 10, 1, 30, 40);
+        AggregateSnapshot snapshot = engine.snapshot();
+
+        assertEquals(1, store.size());
+        assertEquals(2, engine.getStoredRows());
+        assertEquals(160, snapshot.getGlobalTested());
+        assertEquals(31, snapshot.getGlobalPositive());
+        assertEquals(1, snapshot.getCountryCount());
+        assertEquals(3, snapshot.getCountryRowCount(snapshot.findCountry("Kenya")));
+        assertEquals(150, snapshot.getSiteTested(0));
+        assertEquals(3, snapshot.getRowCount());
+    }
+
+    @Test
+    public void testReleasesRowsKeepingTheirTotals() {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        engine.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        engine.append("Mali", "Sikasso", 40, 4, 10, 20);
+
+        engine.releaseRows();
+        engine.append("Mali", "Sikasso", 10, 1, 30, 40);
+        AggregateSnapshot snapshot = engine.snapshot();
+
+        assertEquals(1, engine.getStore().size());
+        assertEquals(10, engine.getStore().getTested(0));
+        assertEquals(150, snapshot.getGlobalTested());
+        assertEquals(3, snapshot.getRowCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsRollupsOnTopOfRows() throws IOException {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 100, 25, 10, 20);
+
+        new AggregateEngine(store, new MemoryRollupStore());
+    }
+}
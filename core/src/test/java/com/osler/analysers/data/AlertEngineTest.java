@@ -0,0 +1,156 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for AlertEngine and its rules.
+ */
+public class AlertEngineTest {
+    private static final long DAY = 24 * 60 * 60;
+
+    /**
+     * appendDays method adds one row of 100 tests per day to a site, with the given positives.
+     */
+    private static void appendDays(SiteDataStore store, String site, int firstDay, int... positives) {
+        for (int i = 0; i < positives.length; i++) {
+            long date = (firstDay + i) * DAY;
+            store.append("Kenya", site, 100, positives[i], date, date);
+        }
+    }
+
+    @Test
+    public void testSpikeIsAlertedOnce() {
+        SiteDataStore store = new SiteDataStore();
+        appendDays(store, "Kisumu", 0, 10, 12, 9, 11, 10, 13, 8, 10, 11, 9, 10, 12);
+        appendDays(store, "Nairobi", 0, 30, 30, 30);
+        AlertEngine engine = new AlertEngine(new ZScoreRule(0.1, 3, 10, 20));
+        assertTrue(engine.evaluate(store).isEmpty());
+
+        // Only the new row is evaluated, and it is far above the site's baseline of about 10%
+        appendDays(store, "Kisumu", 12, 40);
+        List<Alert> alerts = engine.evaluate(store);
+        assertEquals(1, alerts.size());
+        Alert alert = alerts.get(0);
+        assertEquals("z-score", alert.getRule());
+        assertEquals("Kisumu", alert.getSite());
+        assertEquals(40, alert.getPercent(), 1e-9);
+        assertEquals(10.5, alert.getBaseline(), 1);
+        assertTrue(alert.getScore() >= 3);
+        assertEquals(13 + 3, engine.getRowCount());
+
+        // A rebuilt store with the same rows raises no alerts again, a newer spike does
+        SiteDataStore rebuilt = new SiteDataStore();
+        rebuilt.addAll(store);
+        appendDays(rebuilt, "Kisumu", 13, 10, 45);
+        alerts = engine.evaluate(rebuilt);
+        assertEquals(1, alerts.size());
+        assertEquals(14 * DAY, alerts.get(0).getEndDate());
+        assertEquals(2, engine.getRecentAlerts().size());
+    }
+
+    @Test
+    public void testRowsAreEvaluatedInEndDateOrder() {
+        // The spike is stored before the rows it stands out from
+        SiteDataStore store = new SiteDataStore();
+        appendDays(store, "Kisumu", 12, 40);
+        appendDays(store, "Nairobi", 0, 30, 30, 30);
+        appendDays(store, "Kisumu", 0, 10, 12, 9, 11, 10, 13, 8, 10, 11, 9, 10, 12);
+        AlertEngine engine = new AlertEngine(new ZScoreRule(0.1, 3, 10, 20));
+        List<Alert> alerts = engine.evaluate(store);
+        assertEquals(1, alerts.size());
+        assertEquals(12 * DAY, alerts.get(0).getEndDate());
+
+        // A row ending before the rows of its site evaluated before is late, and skipped
+        appendDays(store, "Kisumu", 5, 90);
+        assertTrue(engine.evaluate(store).isEmpty());
+    }
+
+    @Test
+    public void testRowsOfTheLatestDayAreEvaluatedOnce() {
+        SiteDataStore store = new SiteDataStore();
+        appendDays(store, "Kisumu", 0, 10, 12, 9, 11, 10, 13, 8, 10, 11, 9, 10, 12);
+        AlertEngine engine = new AlertEngine(new ZScoreRule(0.1, 3, 10, 20));
+        assertTrue(engine.evaluate(store).isEmpty());
+
+        // A later batch with a row of the same day as the latest one is evaluated
+        appendDays(store, "Kisumu", 11, 40);
+        assertEquals(1, engine.evaluate(store).size());
+
+        // Scanned again, the rows of that day are not, a new one of the same day is
+        SiteDataStore rebuilt = new SiteDataStore();
+        rebuilt.addAll(store);
+        assertTrue(engine.evaluate(rebuilt).isEmpty());
+        appendDays(rebuilt, "Kisumu", 11, 45);
+        List<Alert> alerts = engine.evaluate(rebuilt);
+        assertEquals(1, alerts.size());
+        assertEquals(45, alerts.get(0).getPercent(), 1e-9);
+    }
+
+    @Test
+    public void testRebuildKeepsRuleState() {
+        SiteDataStore store = new SiteDataStore();
+        appendDays(store, "Kisumu", 0, 10, 12, 9, 11, 10, 13, 8, 10, 11, 9, 10, 12);
+        AlertEngine engine = new AlertEngine(new ZScoreRule(0.1, 3, 10, 20));
+        assertTrue(engine.evaluate(store).isEmpty());
+
+        // The rebuilt store lost the earlier rows, the baseline of the site is kept by name
+        SiteDataStore rebuilt = new SiteDataStore();
+        appendDays(rebuilt, "Nairobi", 0, 30);
+        appendDays(rebuilt, "Kisumu", 12, 40);
+        List<Alert> alerts = engine.evaluate(rebuilt);
+        assertEquals(1, alerts.size());
+        assertEquals("Kisumu", alerts.get(0).getSite());
+        assertEquals(1, alerts.get(0).getSiteId());
+        assertEquals(10.5, alerts.get(0).getBaseline(), 1);
+
+        // Once reset, the rows are evaluated as if the engine were new
+        engine.reset();
+        assertTrue(engine.evaluate(rebuilt).isEmpty());
+    }
+
+    @Test
+    public void testThresholdAndCusum() {
+        SiteDataStore store = new SiteDataStore();
+        // Too few tests to be an alert
+        store.append("Mali", "Bamako", 10, 9, 0, 0);
+        store.append("Mali", "Bamako", 100, 60, DAY, DAY);
+        assertEquals(1, new AlertEngine(new ThresholdRule(50, 20)).evaluate(store).size());
+
+        // A rise of six points that lasts is picked up by the CUSUM, not by the z-score
+        SiteDataStore drift = new SiteDataStore();
+        appendDays(drift, "Kisumu", 0, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10);
+        appendDays(drift, "Kisumu", 10, 16, 16, 16, 16, 16, 16);
+        AlertEngine engine = new AlertEngine(new ZScoreRule(0.1, 3, 10, 20), new CusumRule(0.1, 0.5, 5, 10, 20));
+        List<Alert> alerts = engine.evaluate(drift);
+        assertEquals(1, alerts.size());
+        assertEquals("cusum", alerts.get(0).getRule());
+    }
+
+    @Test
+    public void testAlertReport() throws IOException {
+        SiteDataStore store = new SiteDataStore();
+        appendDays(store, "Kisumu", 0, 60, 70);
+        appendDays(store, "Nairobi", 0, 80);
+        AlertEngine engine = new AlertEngine(new ThresholdRule(50, 20));
+        engine.evaluate(store);
+
+        File file = File.createTempFile("alerts", ".txt");
+        try {
+            ReportSummary summary = new ReportWriter(file).writeAlerts(engine.getRecentAlerts());
+            assertEquals(2, summary.getLineCount());
+            assertEquals("Kenya / Nairobi, Tested = 100, Positive = 80.00% (80/100)\n"
+                            + "Kenya / Kisumu, Tested = 100, Positive = 70.00% (70/100)\n",
+                    new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } finally {
+            file.delete();
+        }
+    }
+}
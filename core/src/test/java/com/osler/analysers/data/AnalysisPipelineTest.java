@@ -0,0 +1,159 @@
+package com.osler.analysers.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for AnalysisPipeline.
+ */
+public class AnalysisPipelineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StreamSource source(final String text) {
+        return new StreamSource() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    @Test
+    public void testMergesInputsInOrderAndSkipsExpiredRows() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            AnalysisPipeline pipeline = new AnalysisPipeline(executor, ForkJoinPool.commonPool());
+            pipeline.addInput("a.csv", source("Country,Site,Tested,Positive,StartDate,EndDate\n"
+                    + "Kenya,Kisumu,100,25,1597839084,1609983164\n"
+                    + "Mali,Bamako,10,1,1597839084,1609983164\n"));
+            pipeline.addInput("b.csv", source("Country,Site,Tested,Positive,StartDate,EndDate\n"
+                    + "Niger,Niamey,40,4,1597839084,1609983164\n"
+                    + "Kenya,Kisumu,50,5,1597839084,1609983164\n"
+                    + "Kenya,Nairobi,not a number,5,1597839084,1609983164\n"
+                    + "Kenya,Mombasa,30,3,1597839084,1609983164\n"));
+            // Mombasa expired before the end of its measurement
+            pipeline.setExpirySource(source("Mombasa\t 2020-07-17T15:33:20.000Z\n"));
+            final List<LoadState> received = new ArrayList<>();
+            pipeline.addSink(new ResultSink() {
+                @Override
+                public void accept(LoadState result) {
+                    received.add(result);
+                }
+            });
+
+            LoadState result = pipeline.run();
+
+            assertEquals(1, received.size());
+            assertSame(result, received.get(0));
+            assertTrue(result.isComplete());
+            assertEquals(4, result.getStore().size());
+            assertEquals(1, result.getMalformedRows());
+            assertTrue(result.getDiagnostics().get(0).startsWith("b.csv:4:"));
+            assertEquals(1, result.getExpiredRows());
+
+            // Countries keep the order of the inputs, not the order the tasks finished in
+            assertEquals("Kenya", result.getCountryList().get(0));
+            assertEquals("Mali", result.getCountryList().get(1));
+            assertEquals("Niger", result.getCountryList().get(2));
+            assertEquals(150, result.getCountryDataMap().get("Kenya").getTested());
+            assertEquals(30, result.getCountryDataMap().get("Kenya").getPositive());
+            assertEquals(200, result.getAggregates().getGlobalTested());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParsesLargeFileInChunksLikeOneStream() throws IOException {
+        // Large enough to be split into several chunks, with malformed lines in later chunks
+        File file = folder.newFile("data.csv");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+            writer.write("Site,Country,Tested,Positive,StartDate,EndDate\n");
+            Random random = new Random(11);
+            for (int row = 0; row < 150000; row++) {
+                if (row % 40000 == 39999) {
+                    writer.write("Kisumu,Kenya,many,1,1597839084,1609983164\n");
+                    continue;
+                }
+                int tested = random.nextInt(1000);
+                writer.write("Site " + random.nextInt(30) + ",Country " + random.nextInt(20) + "," + tested + ","
+                        + random.nextInt(tested + 1) + ",1597839084," + (1609983164 + row) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        assertTrue(MappedCsvFile.split(file, 8).getChunkCount() > 1);
+
+        SiteDataStore expected = new SiteDataStore();
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        InputStream in = new FileInputStream(file);
+        try {
+            new CsvParser(expected.getCountries(), expected.getSites(), diagnostics).parse(in, "data.csv", expected);
+        } finally {
+            in.close();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            AnalysisPipeline pipeline = new AnalysisPipeline(executor, pool);
+            pipeline.addInput(file);
+            LoadState result = pipeline.run();
+
+            SiteDataStore actual = result.getStore();
+            assertEquals(expected.size(), actual.size());
+            for (int row = 0; row < expected.size(); row++) {
+                assertEquals(expected.getCountryId(row), actual.getCountryId(row));
+                assertEquals(expected.getSiteId(row), actual.getSiteId(row));
+                assertEquals(expected.getTested(row), actual.getTested(row));
+                assertEquals(expected.getPositive(row), actual.getPositive(row));
+                assertEquals(expected.getEndDate(row), actual.getEndDate(row));
+            }
+            assertEquals(3, result.getMalformedRows());
+            assertEquals(diagnostics.getMessages(), result.getDiagnostics());
+            assertEquals(file.length(), result.getBytesRead());
+        } finally {
+            executor.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailsWhenAnInputCannotBeRead() throws IOException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AnalysisPipeline pipeline = new AnalysisPipeline(executor, ForkJoinPool.commonPool());
+            pipeline.addInput("missing.csv", new StreamSource() {
+                @Override
+                public InputStream open() throws IOException {
+                    throw new IOException("missing.csv not found");
+                }
+            });
+            pipeline.run();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
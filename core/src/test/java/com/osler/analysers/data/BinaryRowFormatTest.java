@@ -0,0 +1,91 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for BinaryRowFormat.
+ */
+public class BinaryRowFormatTest {
+    private static final String CSV = "Country,Site,Tested,Positive,StartDate,EndDate\n"
+            + "Kenya,Kisumu,100,25,1597839084,1609983164\n"
+            + "India,Hyderabad,2147483647,0,1597839085,1597839085\n"
+            + "Pakistan,Hyderabad,7,7,1609983164,1597839084\n"
+            + "Kenya,\"Kisumu, West\",1,1,0,0\n"
+            + "Norway,Tromsø,50,5,1652009265,1652009266\n"
+            + "Kenya,Kisumu,x,1,1,1\n";
+
+    private static byte[] convert(String csv, ParseDiagnostics diagnostics) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryRowFormat.convert(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), "data.csv", out,
+                diagnostics);
+        return out.toByteArray();
+    }
+
+    private static SiteDataStore parse(byte[] data) throws IOException {
+        SiteDataStore store = new SiteDataStore();
+        BinaryRowFormat.parse(new ByteArrayInputStream(data), "data", store.getCountries(), store.getSites(),
+                new ParseDiagnostics(), store);
+        return store;
+    }
+
+    @Test
+    public void testRoundTripMatchesCsv() throws IOException {
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        byte[] binary = convert(CSV, diagnostics);
+        assertEquals(1, diagnostics.getMalformedCount());
+
+        SiteDataStore expected = parse(CSV.getBytes(StandardCharsets.UTF_8));
+        SiteDataStore actual = parse(binary);
+
+        assertEquals(5, actual.size());
+        for (int row = 0; row < expected.size(); row++) {
+            assertEquals(expected.getCountries().getName(expected.getCountryId(row)),
+                    actual.getCountries().getName(actual.getCountryId(row)));
+            assertEquals(expected.getSites().getName(expected.getSiteId(row)),
+                    actual.getSites().getName(actual.getSiteId(row)));
+            assertEquals(expected.getTested(row), actual.getTested(row));
+            assertEquals(expected.getPositive(row), actual.getPositive(row));
+            assertEquals(expected.getStartDate(row), actual.getStartDate(row));
+            assertEquals(expected.getEndDate(row), actual.getEndDate(row));
+        }
+        // Same-named sites in different countries keep their own ids
+        assertNotEquals(actual.getSiteId(1), actual.getSiteId(2));
+        assertTrue(binary.length < CSV.length());
+    }
+
+    @Test
+    public void testManyBlocksRoundTrip() throws IOException {
+        StringBuilder csv = new StringBuilder("Country,Site,Tested,Positive,StartDate,EndDate\n");
+        for (int row = 0; row < 50000; row++) {
+            csv.append("Country ").append(row % 7).append(",Site ").append(row % 301).append(',')
+                    .append(row).append(',').append(row / 2).append(',').append(1591848718L + row * 13L % 9973)
+                    .append(',').append(1591848718L + row).append('\n');
+        }
+        SiteDataStore actual = parse(convert(csv.toString(), new ParseDiagnostics()));
+
+        assertEquals(50000, actual.size());
+        assertEquals(49999, actual.getTested(49999));
+        assertEquals(1591848718L + 49999L * 13 % 9973, actual.getStartDate(49999));
+        assertEquals(1591848718L + 49999, actual.getEndDate(49999));
+    }
+
+    @Test
+    public void testRejectsTruncatedFile() throws IOException {
+        byte[] binary = convert(CSV, new ParseDiagnostics());
+        byte[] truncated = Arrays.copyOf(binary, binary.length - 2);
+        try {
+            parse(truncated);
+            fail("A truncated file must not load");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("data:"));
+        }
+    }
+}
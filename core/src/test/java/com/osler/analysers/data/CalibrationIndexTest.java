@@ -0,0 +1,67 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Unit tests for CalibrationIndex.
+ */
+public class CalibrationIndexTest {
+
+    private static CalibrationIndex parse(String text, ParseDiagnostics diagnostics) throws IOException {
+        return CalibrationIndex.parse(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)),
+                "expiry.txt", diagnostics);
+    }
+
+    @Test
+    public void testParsesIsoInstants() {
+        assertEquals(1633449600000L, CalibrationIndex.parseIsoInstant("2021-10-05T16:00:00.000Z"));
+        assertEquals(1624976681000L, CalibrationIndex.parseIsoInstant("2021-06-29T14:24:41Z"));
+        assertEquals(1633449600000L, CalibrationIndex.parseIsoInstant("2021-10-05T18:00:00+02:00"));
+        assertEquals(951782400000L, CalibrationIndex.parseIsoInstant("2000-02-29T00:00:00.000Z"));
+        assertEquals(CalibrationIndex.NO_EXPIRY, CalibrationIndex.parseIsoInstant("2021-02-29T00:00:00Z"));
+        assertEquals(CalibrationIndex.NO_EXPIRY, CalibrationIndex.parseIsoInstant("??"));
+    }
+
+    @Test
+    public void testMatchesSiteNamesCaseInsensitively() throws IOException {
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        CalibrationIndex index = parse("LONDON\t 2020-05-27T13:20:00.000Z\r\n"
+                + " Marseille\t 2021-07-30T17:20:00.000Z\r\n"
+                + "RoME\t2021-07-01T13:20:00.000Z \r\n", diagnostics);
+
+        assertEquals(3, index.size());
+        assertEquals(0, diagnostics.getMalformedCount());
+        assertEquals(1590585600000L, index.getExpiry("London"));
+        assertEquals(index.getExpiry("marseille"), index.getExpiry(" MARSEILLE "));
+        assertEquals(CalibrationIndex.NO_EXPIRY, index.getExpiry("Paris"));
+    }
+
+    @Test
+    public void testReportsInvalidLinesAndKeepsLatestDuplicate() throws IOException {
+        ParseDiagnostics diagnostics = new ParseDiagnostics();
+        CalibrationIndex index = parse("Mumbai\t 2021-03-20T18:40:00.000Z\n"
+                + "Bangalore\t ??\n"
+                + "Hyderabad\t0\n"
+                + "Mumbai\t 2021-07-13T04:51:18.000Z\n", diagnostics);
+
+        assertEquals(2, diagnostics.getMalformedCount());
+        assertEquals("expiry.txt:2: invalid ISO-8601 expiry date", diagnostics.getMessages().get(0));
+        assertEquals(1626151878000L, index.getExpiry("Mumbai"));
+        assertEquals(CalibrationIndex.NO_EXPIRY, index.getExpiry("Bangalore"));
+    }
+
+    @Test
+    public void testMeasurementExpiresWhenItEndsAfterTheCalibration() {
+        long expiry = 1633449600000L;
+
+        assertFalse(CalibrationIndex.isExpired(expiry, 1633449600L));
+        assertTrue(CalibrationIndex.isExpired(expiry, 1633449601L));
+        assertFalse(CalibrationIndex.isExpired(CalibrationIndex.NO_EXPIRY, Long.MAX_VALUE));
+    }
+}
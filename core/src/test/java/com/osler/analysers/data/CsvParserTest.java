@@ -0,0 +1,102 @@
+package com.osler.analysers.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for CsvParser.
+ */
+public class CsvParserTest {
+
+    private NameTable countries;
+    private NameTable sites;
+    private ParseDiagnostics diagnostics;
+    private List<long[]> rows;
+
+    @Before
+    public void setUp() {
+        countries = new NameTable();
+        sites = new NameTable();
+        diagnostics = new ParseDiagnostics();
+        rows = new ArrayList<>();
+    }
+
+    private long parse(String csv) throws IOException {
+        CsvParser parser = new CsvParser(countries, sites, diagnostics);
+        return parser.parse(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), "test.csv",
+                new CsvParser.RowHandler() {
+                    @Override
+                    public void onRow(int countryId, int siteId, int tested, int positive, long startDate, long endDate) {
+                        rows.add(new long[]{countryId, siteId, tested, positive, startDate, endDate});
+                    }
+                });
+    }
+
+    @Test
+    public void testParsesRowsWithHeaderAndCrlf() throws IOException {
+        long count = parse("Country,Site,Tested,Positive,StartDate,EndDate\r\n"
+                + "Kenya,Kisumu,100,25,1597839084,1609983164\r\n"
+                + "Kenya, Nairobi ,50,5,1597839085,1609983165\r\n");
+
+        assertEquals(2, count);
+        assertEquals(0, diagnostics.getMalformedCount());
+        assertArrayEquals(new long[]{0, 0, 100, 25, 1597839084L, 1609983164L}, rows.get(0));
+        assertArrayEquals(new long[]{0, 1, 50, 5, 1597839085L, 1609983165L}, rows.get(1));
+        assertEquals("Kenya", countries.getName(0));
+        assertEquals("Nairobi", sites.getName(1));
+    }
+
+    @Test
+    public void testMapsColumnsByHeaderName() throws IOException {
+        parse("Site,Country,Positive,Tested,EndDate,StartDate\n"
+                + "Kisumu,Kenya,25,100,20,10\n");
+
+        assertArrayEquals(new long[]{0, 0, 100, 25, 10, 20}, rows.get(0));
+        assertEquals("Kisumu", sites.getName(0));
+    }
+
+    @Test
+    public void testHandlesQuotedFields() throws IOException {
+        parse("\"Korea, South\",\"Seoul \"\"Central\"\"\",10,1,1,2\n");
+
+        assertEquals(1, rows.size());
+        assertEquals("Korea, South", countries.getName(0));
+        assertEquals("Seoul \"Central\"", sites.getName(0));
+    }
+
+    @Test
+    public void testSameSiteNameInDifferentCountriesGetsDifferentIds() throws IOException {
+        parse("India,Hyderabad,1,0,1,2\nPakistan,Hyderabad,1,0,1,2\nIndia,Hyderabad,1,0,1,2\n");
+
+        assertEquals(2, sites.size());
+        assertEquals(rows.get(0)[1], rows.get(2)[1]);
+        assertNotEquals(rows.get(0)[1], rows.get(1)[1]);
+    }
+
+    @Test
+    public void testReportsMalformedRowsWithLineNumbers() throws IOException {
+        long count = parse("Country,Site,Tested,Positive,StartDate,EndDate\n"
+                + "Kenya,Kisumu,abc,25,1,2\n"
+                + "\n"
+                + "Kenya,Kisumu,100\n"
+                + "Kenya,Kisumu,100,25,1,2");
+
+        assertEquals(1, count);
+        assertEquals(2, diagnostics.getMalformedCount());
+        assertEquals("test.csv:2: invalid Tested value", diagnostics.getMessages().get(0));
+        assertEquals("test.csv:4: expected 6 fields, found 3", diagnostics.getMessages().get(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsHeaderWithMissingColumn() throws IOException {
+        parse("Country,Site,Tested,Positive,StartDate\nKenya,Kisumu,1,0,1\n");
+    }
+}
@@ -0,0 +1,374 @@
+package com.osler.analysers.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DataLoader, run on the calling thread.
+ */
+public class DataLoaderTest {
+    private static final String HEADER = "Country,Site,Tested,Positive,StartDate,EndDate\n";
+    private static final String DATA = HEADER + "Kenya,Kisumu,100,25,10,20\nKenya,Nairobi,50,5,10,20\n"
+            + "Mali,Bamako,oops,1,10,20\nMali,Bamako,40,4,30,40\n";
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StreamSource source(final String text) {
+        return new StreamSource() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    /**
+     * Listener keeping every state published.
+     */
+    private static class States implements DataLoader.Listener {
+        final List<LoadState> states = new ArrayList<>();
+
+        @Override
+        public void onStateChanged(LoadState state) {
+            states.add(state);
+        }
+
+        LoadState last() {
+            return states.get(states.size() - 1);
+        }
+    }
+
+    /**
+     * Listener keeping the last state published.
+     */
+    private static class LastState implements DataLoader.Listener {
+        LoadState state;
+
+        @Override
+        public void onStateChanged(LoadState state) {
+            this.state = state;
+        }
+
+        LoadState get() {
+            assertNull(state.getError());
+            assertTrue(state.isComplete());
+            return state;
+        }
+    }
+
+    /**
+     * load method loads the data and returns the last state published.
+     */
+    private static LoadState load(DataLoader loader, String data) {
+        return load(loader, data, "");
+    }
+
+    private static LoadState load(DataLoader loader, String data, String expiry) {
+        LastState last = new LastState();
+        loader.load(source(data), source(expiry), last);
+        return last.get();
+    }
+
+    @Test
+    public void testPublishesProgressThenFinalState() {
+        States states = new States();
+        new DataLoader(DIRECT).load(source(DATA), source(""), states);
+
+        // Kenya is published once Mali starts, before the end of the file
+        assertEquals(2, states.states.size());
+        LoadState partial = states.states.get(0);
+        assertFalse(partial.isComplete());
+        assertEquals(1, partial.getCountryList().size());
+        assertTrue(partial.getProgressPercent() >= 0 && partial.getProgressPercent() <= 100);
+
+        LoadState last = states.last();
+        assertNull(last.getError());
+        assertTrue(last.isComplete());
+        assertEquals(100, last.getProgressPercent());
+        assertEquals(DATA.length(), last.getBytesRead());
+        assertEquals(1, last.getMalformedRows());
+        assertEquals(150, last.getCountryDataMap().get("Kenya").getTested());
+        assertEquals(4, last.getCountryDataMap().get("Mali").getPositive());
+    }
+
+    @Test
+    public void testPublishesErrorWhenDataCannotBeRead() {
+        States states = new States();
+        new DataLoader(DIRECT).load(new StreamSource() {
+            @Override
+            public InputStream open() throws IOException {
+                throw new IOException("missing");
+            }
+        }, source(""), states);
+        assertEquals(1, states.states.size());
+        assertTrue(states.last().isComplete());
+        assertEquals("missing", states.last().getError().getMessage());
+    }
+
+    @Test
+    public void testCancelledLoadPublishesNothing() {
+        final List<Runnable> tasks = new ArrayList<>();
+        Executor deferred = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        States states = new States();
+
+        // Cancelled before it runs
+        new DataLoader(deferred).load(source(DATA), source(""), states).cancel(true);
+        tasks.get(0).run();
+        assertTrue(states.states.isEmpty());
+
+        // Cancelled once the first bytes are read
+        final Future<?>[] load = new Future<?>[1];
+        StreamSource cancelling = new StreamSource() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FilterInputStream(source(DATA).open()) {
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        load[0].cancel(true);
+                        return super.read(b, off, len);
+                    }
+                };
+            }
+        };
+        load[0] = new DataLoader(deferred).load(cancelling, source(""), states);
+        tasks.get(1).run();
+        Thread.interrupted();
+        assertTrue(load[0].isCancelled());
+        assertTrue(states.states.isEmpty());
+    }
+
+    @Test
+    public void testRestoresFromRollupsWithoutReadingRows() {
+        File snapshotFile = new File(folder.getRoot(), "dataset.snapshot");
+        MemoryRollupStore rollups = new MemoryRollupStore();
+        LoadState parsed = load(new DataLoader(DIRECT, new SnapshotCache(snapshotFile), 1, rollups), DATA);
+        assertEquals(3, rollups.rowCount(DatasetPersistence.DATA_SOURCE));
+        // No snapshot is taken of the stored rows, and no rows are handed out with the totals
+        assertNull(parsed.getStore());
+        assertEquals(3, parsed.getAggregates().getRowCount());
+        assertFalse(snapshotFile.exists());
+
+        LoadState restored = load(new DataLoader(DIRECT, new SnapshotCache(snapshotFile), 2, rollups), DATA);
+        assertEquals(1, rollups.sourceReads);
+        assertEquals(190, restored.getAggregates().getGlobalTested());
+        assertEquals(parsed.getAggregates().getGlobalPositive(), restored.getAggregates().getGlobalPositive());
+        assertEquals(3, restored.getAggregates().getRowCount());
+        assertEquals(1, restored.getMalformedRows());
+        assertEquals(parsed.getDiagnostics(), restored.getDiagnostics());
+    }
+
+    @Test
+    public void testReplaysAppendedRows() {
+        MemoryRollupStore rollups = new MemoryRollupStore();
+        DataLoader loader = new DataLoader(DIRECT, null, 1, rollups);
+        load(loader, DATA);
+        RowBatch batch = new RowBatch();
+        batch.add("Kenya", "Kisumu", 10, 9, 1609900000L, 1609983164L);
+        batch.add("Niger", "Niamey", 20, 2, 50, 60);
+        LastState last = new LastState();
+        new DataUpdates(loader).append(batch, last);
+        assertEquals(220, last.get().getAggregates().getGlobalTested());
+        assertEquals(5, last.get().getAggregates().getRowCount());
+        assertEquals(2, rollups.rowCount(DatasetPersistence.APPENDED_SOURCE));
+
+        // The appended rows are part of the rollups of the same inputs, and stored only once
+        LoadState restored = load(new DataLoader(DIRECT, null, 1, rollups), DATA);
+        assertEquals(220, restored.getAggregates().getGlobalTested());
+        assertEquals(5, restored.getAggregates().getRowCount());
+        assertEquals(2, rollups.rowCount(DatasetPersistence.APPENDED_SOURCE));
+
+        // A new expiry file checks them again: Kisumu's appended row is measured after its expiry
+        LoadState rechecked = load(new DataLoader(DIRECT, null, 1, rollups), DATA,
+                "Kisumu\t 2020-07-17T15:33:20.000Z\n");
+        assertEquals(210, rechecked.getAggregates().getGlobalTested());
+        assertEquals(1, rechecked.getExpiredRows());
+        assertEquals(1, rollups.rowCount(DatasetPersistence.APPENDED_SOURCE));
+        assertEquals(210, load(new DataLoader(DIRECT, null, 1, rollups), DATA,
+                "Kisumu\t 2020-07-17T15:33:20.000Z\n").getAggregates().getGlobalTested());
+    }
+
+    @Test
+    public void testDerivesFromStoredRowsLikeFromRowsInMemory() {
+        MemoryRollupStore rollups = new MemoryRollupStore();
+        load(new DataLoader(DIRECT, null, 1, rollups), DATA);
+        DataLoader stored = new DataLoader(DIRECT, null, 1, rollups);
+        DataLoader held = new DataLoader(DIRECT);
+        load(stored, DATA);
+        load(held, DATA);
+        DataQueries storedQueries = new DataQueries(stored);
+        DataQueries heldQueries = new DataQueries(held);
+        RowBatch batch = new RowBatch();
+        batch.add("Mali", "Bamako", 10, 1, 35, 45);
+        batch.add("Niger", "Niamey", 20, 2, 50, 60);
+        new DataUpdates(stored).append(batch, new LastState());
+        new DataUpdates(held).append(batch, new LastState());
+
+        final List<WindowState> windows = new ArrayList<>();
+        DataQueries.WindowListener windowListener = new DataQueries.WindowListener() {
+            @Override
+            public void onWindowQueried(WindowState state) {
+                windows.add(state);
+            }
+        };
+        storedQueries.queryWindow(36, 55, windowListener);
+        heldQueries.queryWindow(36, 55, windowListener);
+        assertEquals(70, windows.get(0).getAggregates().getGlobalTested());
+        assertEquals(70, windows.get(1).getAggregates().getGlobalTested());
+        assertEquals(windows.get(1).getMinDate(), windows.get(0).getMinDate());
+        assertEquals(windows.get(1).getMaxDate(), windows.get(0).getMaxDate());
+
+        final List<TrendSeries> trends = new ArrayList<>();
+        DataQueries.TrendListener trendListener = new DataQueries.TrendListener() {
+            @Override
+            public void onTrendsBuilt(TrendSeries series) {
+                trends.add(series);
+            }
+        };
+        storedQueries.buildTrends(trendListener);
+        heldQueries.buildTrends(trendListener);
+        TrendSeries.Series fromRollups = trends.get(0).getGlobal(Granularity.DAY);
+        TrendSeries.Series fromRows = trends.get(1).getGlobal(Granularity.DAY);
+        assertEquals(fromRows.size(), fromRollups.size());
+        for (int i = 0; i < fromRows.size(); i++) {
+            assertEquals(fromRows.getTested(i), fromRollups.getTested(i));
+        }
+
+        // The rules start from the stored rows, then run over those added since
+        final List<List<Alert>> alerts = new ArrayList<>();
+        DataQueries.AlertListener alertListener = new DataQueries.AlertListener() {
+            @Override
+            public void onAlertsChecked(List<Alert> newAlerts, AlertEngine engine) {
+                alerts.add(newAlerts);
+            }
+        };
+        AlertEngine storedAlerts = new AlertEngine(new ThresholdRule(10, 1));
+        AlertEngine heldAlerts = new AlertEngine(new ThresholdRule(10, 1));
+        storedQueries.checkAlerts(storedAlerts, alertListener);
+        heldQueries.checkAlerts(heldAlerts, alertListener);
+        assertEquals(alerts.get(1).size(), alerts.get(0).size());
+        assertEquals(heldAlerts.getRecentAlerts().size(), storedAlerts.getRecentAlerts().size());
+    }
+
+    private static void write(File file, String csv) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(csv.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testAppliesDirectoryAfterLoad() throws IOException {
+        File directory = folder.newFolder("incoming");
+        write(new File(directory, "page-1.csv"), HEADER + "Kenya,Kisumu,10,1,50,60\nNiger,Niamey,x,1,50,60\n");
+        DataLoader loader = new DataLoader(DIRECT);
+        load(loader, DATA);
+        DataUpdates updates = new DataUpdates(loader);
+        DirectoryIngest ingest = new DirectoryIngest(directory);
+        LastState last = new LastState();
+        updates.loadDirectory(ingest, last);
+        assertEquals(200, last.get().getAggregates().getGlobalTested());
+        assertEquals(2, last.get().getMalformedRows());
+        assertEquals(2, last.get().getDiagnostics().size());
+        assertEquals(4, last.get().getAggregates().getRowCount());
+
+        // A new file only adds its rows, and rows can still be appended
+        write(new File(directory, "page-2.csv"), HEADER + "Niger,Niamey,20,2,70,80\n");
+        updates.loadDirectory(ingest, last);
+        assertEquals(5, last.get().getAggregates().getRowCount());
+        RowBatch batch = new RowBatch();
+        batch.add("Mali", "Bamako", 5, 5, 90, 95);
+        updates.append(batch, last);
+        assertEquals(225, last.get().getAggregates().getGlobalTested());
+
+        // A deleted file is taken out of the rows in place, the appended row is kept
+        assertTrue(new File(directory, "page-1.csv").delete());
+        updates.loadDirectory(ingest, last);
+        LoadState state = last.get();
+        assertNull(state.getStore());
+        assertEquals(215, state.getAggregates().getGlobalTested());
+        assertEquals(5, state.getAggregates().getRowCount());
+        assertEquals(1, state.getMalformedRows());
+        updates.append(batch, last);
+        assertEquals(220, last.get().getAggregates().getGlobalTested());
+    }
+
+    @Test
+    public void testWindowIsQueriedAgainOnlyOnceRowsChange() {
+        DataLoader loader = new DataLoader(DIRECT);
+        load(loader, DATA);
+        DataQueries queries = new DataQueries(loader);
+        final List<WindowState> windows = new ArrayList<>();
+        DataQueries.WindowListener listener = new DataQueries.WindowListener() {
+            @Override
+            public void onWindowQueried(WindowState state) {
+                windows.add(state);
+            }
+        };
+        queries.queryWindow(15, 35, listener);
+        queries.queryWindow(15, 35, listener);
+        assertSame(windows.get(0), windows.get(1));
+        assertEquals(190, windows.get(0).getAggregates().getGlobalTested());
+
+        RowBatch batch = new RowBatch();
+        batch.add("Mali", "Bamako", 5, 5, 30, 35);
+        new DataUpdates(loader).append(batch, new LastState());
+        queries.queryWindow(15, 35, listener);
+        queries.queryWindow(36, 40, listener);
+        assertEquals(195, windows.get(2).getAggregates().getGlobalTested());
+        assertEquals(40, windows.get(3).getAggregates().getGlobalTested());
+    }
+
+    @Test
+    public void testDateRangeIsKnownWithoutQueryingAWindow() {
+        DataLoader loader = new DataLoader(DIRECT);
+        load(loader, DATA);
+        DataQueries queries = new DataQueries(loader);
+        final List<long[]> ranges = new ArrayList<>();
+        DataQueries.DateRangeListener listener = new DataQueries.DateRangeListener() {
+            @Override
+            public void onDateRange(long minDate, long maxDate) {
+                ranges.add(new long[]{minDate, maxDate});
+            }
+        };
+        queries.queryDateRange(listener);
+        assertArrayEquals(new long[]{10, 40}, ranges.get(0));
+
+        // Only the appended rows are read, the earlier range is kept
+        RowBatch batch = new RowBatch();
+        batch.add("Mali", "Bamako", 5, 5, 50, 45);
+        new DataUpdates(loader).append(batch, new LastState());
+        queries.queryDateRange(listener);
+        assertArrayEquals(new long[]{10, 50}, ranges.get(1));
+    }
+}
@@ -0,0 +1,81 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DataView and DataViewHolder.
+ */
+public class DataViewTest {
+
+    @Test
+    public void testTotalsAndDisplayModelsChangeTogether() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        store.append("Mali", "Bamako", 40, 4, 30, 40);
+        DataView all = DataView.empty().withTotals(new DisplayModel(new AggregateEngine(store).snapshot(),
+                "%1$d", "%1$d%%"));
+
+        // A window without Mali's rows still lists Mali, with zero totals
+        DataView window = all.withTotals(new DisplayModel(TimeWindowIndex.build(store).query(0, 20), "%1$d", "%1$d%%"));
+
+        assertEquals(140, all.getAggregates().getGlobalTested());
+        assertEquals(40, all.getCountryDataMap().get("Mali").getTested());
+        assertEquals("10%", all.getDisplayModel().findCountry("Mali").getPositiveText());
+        assertEquals(100, window.getAggregates().getGlobalTested());
+        assertEquals(0, window.getCountryDataMap().get("Mali").getTested());
+        assertEquals("0%", window.getDisplayModel().findCountry("Mali").getPositiveText());
+        assertEquals(2, window.getVersion());
+        assertNull(window.getTrends());
+    }
+
+    @Test
+    public void testLoadedTotalsStayWithTheWindowShown() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        store.append("Mali", "Bamako", 40, 4, 30, 40);
+        AggregateSnapshot loaded = new AggregateEngine(store).snapshot();
+        DataView view = DataView.empty().withLoaded(loaded)
+                .withTotals(new DisplayModel(TimeWindowIndex.build(store).query(0, 20), "%1$d", "%1$d%%"))
+                .withTrends(TrendSeries.build(store));
+
+        assertEquals(100, view.getAggregates().getGlobalTested());
+        assertSame(loaded, view.getLoadedAggregates());
+        assertEquals(0, DataView.empty().getLoadedAggregates().getRowCount());
+    }
+
+    @Test
+    public void testConcurrentPublishesAreNotLost() throws InterruptedException {
+        final DataViewHolder holder = new DataViewHolder();
+        final TrendSeries trends = TrendSeries.build(new SiteDataStore());
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int update = 0; update < 1000; update++) {
+                        holder.publish(new DataViewHolder.Update() {
+                            @Override
+                            public DataView apply(DataView current) {
+                                return current.withTrends(trends);
+                            }
+                        });
+                    }
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(4000, holder.get().getVersion());
+        assertSame(trends, holder.get().getTrends());
+    }
+}
@@ -0,0 +1,153 @@
+package com.osler.analysers.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DirectoryIngest.
+ */
+public class DirectoryIngestTest {
+    private static final String HEADER = "Country,Site,Tested,Positive,StartDate,EndDate\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File file, String csv, long lastModified) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(csv.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            out.close();
+        }
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    @Test
+    public void testOnlyReparsesChangedFiles() throws IOException {
+        File directory = folder.newFolder("incoming");
+        File monday = new File(directory, "lab-monday.csv");
+        File tuesday = new File(directory, "lab-tuesday.csv");
+        write(monday, HEADER + "Kenya,Kisumu,100,25,1597839084,1609983164\n", 1000000L);
+        write(tuesday, HEADER + "Kenya,Nairobi,50,5,1597839084,1609983164\nMali,Bamako,10,1,1,2\n", 1000000L);
+        new File(directory, "notes.txt").createNewFile();
+
+        DirectoryIngest ingest = new DirectoryIngest(directory);
+        ingest.addSource("data.csv", new StreamSource() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream((HEADER + "Niger,Niamey,40,4,1,2\n").getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        assertEquals(3, ingest.refresh());
+        assertEquals(2, ingest.getFileCount());
+        assertEquals(200, ingest.snapshot().getGlobalTested());
+        assertEquals(0, ingest.refresh());
+
+        // Touched without changing its content
+        assertTrue(monday.setLastModified(2000000L));
+        assertEquals(0, ingest.refresh());
+
+        // Replaced: the old rows are taken out before the new ones are added
+        write(tuesday, HEADER + "Kenya,Nairobi,70,7,1597839084,1609983164\n", 3000000L);
+        assertEquals(1, ingest.refresh());
+        AggregateSnapshot snapshot = ingest.snapshot();
+        assertEquals(210, snapshot.getGlobalTested());
+        assertEquals(36, snapshot.getGlobalPositive());
+        assertEquals(3, snapshot.getRowCount());
+
+        // Deleted: Mali no longer has rows and is left out of the state
+        assertTrue(monday.delete());
+        assertEquals(1, ingest.refresh());
+        LoadState state = ingest.getState();
+        assertEquals(110, state.getAggregates().getGlobalTested());
+        assertEquals(2, state.getCountryList().size());
+        assertEquals(70, state.getCountryDataMap().get("Kenya").getTested());
+        assertNull(state.getCountryDataMap().get("Mali"));
+
+        SiteDataStore store = ingest.getStore();
+        assertEquals(2, store.size());
+        assertEquals(40, store.getTested(0));
+        assertEquals(70, store.getTested(1));
+    }
+
+    private static StreamSource source(final String csv) {
+        return new StreamSource() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    @Test
+    public void testRestoresSavedManifest() throws IOException {
+        File directory = folder.newFolder("incoming");
+        File cache = new File(folder.getRoot(), "cache");
+        File monday = new File(directory, "lab-monday.csv");
+        File tuesday = new File(directory, "lab-tuesday.csv");
+        write(monday, HEADER + "Kenya,Kisumu,100,25,1597839084,1609983164\n", 1000000L);
+        write(tuesday, HEADER + "Kenya,Nairobi,50,5,1,2\nMali,Bamako,oops,1,1,2\n", 1000000L);
+        DirectoryIngest ingest = new DirectoryIngest(directory, cache, 1);
+        ingest.addSource("data.csv", source(HEADER + "Niger,Niamey,40,4,1,2\n"));
+        assertEquals(3, ingest.refresh());
+        LoadState parsed = ingest.getState();
+
+        // A new start parses nothing: files with the same size and time are not even read
+        write(monday, HEADER + "Kenya,Kisumu,900,25,1597839084,1609983164\n", 1000000L);
+        write(tuesday, HEADER + "Kenya,Nairobi,90,5,1,2\nMali,Bamako,oops,1,1,2\n", 1000000L);
+        DirectoryIngest restarted = new DirectoryIngest(directory, cache, 1);
+        restarted.addSource("data.csv", source(HEADER + "Niger,Niamey,40,4,1,2\n"));
+        assertEquals(3, restarted.refresh());
+        LoadState restored = restarted.getState();
+        assertEquals(190, restored.getAggregates().getGlobalTested());
+        assertEquals(parsed.getMalformedRows(), restored.getMalformedRows());
+        assertEquals(parsed.getDiagnostics(), restored.getDiagnostics());
+        assertEquals(3, restarted.getStore().size());
+
+        // Changes made while it was not running are picked up, and a changed source is parsed again
+        assertTrue(tuesday.delete());
+        write(monday, HEADER + "Kenya,Kisumu,70,7,1597839084,1609983164\n", 2000000L);
+        restarted = new DirectoryIngest(directory, cache, 1);
+        restarted.addSource("data.csv", source(HEADER + "Niger,Niamey,30,3,1,2\n"));
+        assertEquals(1 + 2 + 2, restarted.refresh());
+        assertEquals(100, restarted.snapshot().getGlobalTested());
+        assertEquals(1, restarted.getFileCount());
+        assertFalse(new File(cache, "file.lab-tuesday.csv.snapshot").exists());
+
+        // Another app version parses everything again
+        write(monday, HEADER + "Kenya,Kisumu,60,7,1597839084,1609983164\n", 2000000L);
+        restarted = new DirectoryIngest(directory, cache, 2);
+        restarted.addSource("data.csv", source(HEADER + "Niger,Niamey,30,3,1,2\n"));
+        restarted.refresh();
+        assertEquals(90, restarted.snapshot().getGlobalTested());
+    }
+
+    @Test
+    public void testReportsUnreadableFileAndRetriesOnceChanged() throws IOException {
+        File directory = folder.newFolder("incoming");
+        File broken = new File(directory, "broken.csv");
+        write(broken, "Country,Site\nKenya,Kisumu\n", 1000000L);
+
+        DirectoryIngest ingest = new DirectoryIngest(directory);
+        assertEquals(1, ingest.refresh());
+        LoadState state = ingest.getState();
+        assertEquals(1, state.getMalformedRows());
+        assertTrue(state.getDiagnostics().get(0).startsWith("broken.csv:0: could not be read"));
+
+        write(broken, HEADER + "Kenya,Kisumu,100,25,1597839084,1609983164\n", 2000000L);
+        assertEquals(1, ingest.refresh());
+        assertEquals(0, ingest.getState().getMalformedRows());
+        assertEquals(100, ingest.snapshot().getGlobalTested());
+    }
+}
@@ -0,0 +1,43 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DisplayModel and EntityDisplay.
+ */
+public class DisplayModelTest {
+    private static final String TESTED_FORMAT = "Tested: %1$d";
+    private static final String POSITIVE_FORMAT = "Positive: %1$d%% (%2$d/%3$d)";
+
+    @Test
+    public void testFormatsEachEntityOnce() {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        engine.append("Kenya", "Kisumu", 100, 29, 1, 2);
+        engine.append("Kenya", "Nairobi", 100, 72, 1, 2);
+        engine.append("Mali", "Bamako", 0, 0, 1, 2);
+        DisplayModel model = new DisplayModel(engine.snapshot(), TESTED_FORMAT, POSITIVE_FORMAT);
+
+        EntityDisplay kenya = model.findCountry("Kenya");
+        assertEquals("Tested: 200", kenya.getTestedText());
+        assertEquals("Positive: 50% (101/200)", kenya.getPositiveText());
+        assertEquals(50, kenya.getPercent());
+        assertFalse(kenya.isHigh());
+        assertSame(kenya, model.getCountry(0));
+
+        // 29 / 100 is 28.999... in floating point, but is shown as 29%
+        assertEquals(29, model.getSite(0).getPercent());
+        assertTrue(model.getSite(1).isHigh());
+        assertEquals("Positive: 0% (0/0)", model.findCountry("Mali").getPositiveText());
+        assertNull(model.findCountry("Norway"));
+        assertNull(model.getSite(3));
+    }
+
+    @Test
+    public void testPercent() {
+        assertEquals(0, EntityDisplay.percent(5, 0));
+        assertEquals(33, EntityDisplay.percent(1, 3));
+        assertEquals(100, EntityDisplay.percent(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2));
+    }
+}
@@ -0,0 +1,208 @@
+package com.osler.analysers.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MemoryRollupStore keeps the rows of each source in memory, with their row ids, and sums them up
+ * for the rollups and queries. Countries and sites whose rows were all removed are kept with
+ * empty totals, like in the app's database.
+ */
+class MemoryRollupStore implements RollupStore {
+    private final Map<String, SnapshotCache.Snapshot> sources = new HashMap<>();
+    private final Map<String, Long> checksums = new HashMap<>();
+    private final Map<String, List<Long>> rowIds = new HashMap<>();
+    private final Map<String, String> siteCountries = new LinkedHashMap<>();
+    private long lastRowId;
+    int sourceReads;
+
+    int rowCount(String source) {
+        return sources.containsKey(source) ? sources.get(source).getStore().size() : 0;
+    }
+
+    @Override
+    public long getChecksum(String source) {
+        return checksums.containsKey(source) ? checksums.get(source) : -1;
+    }
+
+    @Override
+    public void replaceSource(String source, long checksum, SiteDataStore rows, int malformedRows, long expiredRows,
+                              List<String> diagnostics) {
+        removeSource(source);
+        checksums.put(source, checksum);
+        sources.put(source, new SnapshotCache.Snapshot(new SiteDataStore(), malformedRows, expiredRows,
+                new ArrayList<>(diagnostics)));
+        rowIds.put(source, new ArrayList<Long>());
+        appendRows(source, rows, 0);
+    }
+
+    @Override
+    public void appendRows(String source, SiteDataStore rows, int fromRow) {
+        if (!sources.containsKey(source)) {
+            replaceSource(source, 0, new SiteDataStore(), 0, 0, new ArrayList<String>());
+        }
+        SiteDataStore stored = sources.get(source).getStore();
+        for (int row = fromRow; row < rows.size(); row++) {
+            String country = rows.getCountries().getName(rows.getCountryId(row));
+            String site = rows.getSites().getName(rows.getSiteId(row));
+            stored.append(country, site, rows.getTested(row), rows.getPositive(row), rows.getStartDate(row),
+                    rows.getEndDate(row));
+            rowIds.get(source).add(++lastRowId);
+            siteCountries.put(country + "\t" + site, country);
+        }
+    }
+
+    @Override
+    public void removeSource(String source) {
+        checksums.remove(source);
+        sources.remove(source);
+        rowIds.remove(source);
+    }
+
+    @Override
+    public SnapshotCache.Snapshot readCounters(String source) {
+        SnapshotCache.Snapshot stored = sources.get(source);
+        return stored == null ? null : new SnapshotCache.Snapshot(new SiteDataStore(), stored.getMalformedRows(),
+                stored.getExpiredRows(), new ArrayList<>(stored.getDiagnostics()));
+    }
+
+    @Override
+    public SnapshotCache.Snapshot readSource(String source) {
+        sourceReads++;
+        SnapshotCache.Snapshot stored = sources.get(source);
+        if (stored == null) {
+            return null;
+        }
+        SiteDataStore copy = new SiteDataStore();
+        copy.addAll(stored.getStore());
+        return new SnapshotCache.Snapshot(copy, stored.getMalformedRows(), stored.getExpiredRows(),
+                new ArrayList<>(stored.getDiagnostics()));
+    }
+
+    /**
+     * rows method copies the stored rows up to the given id into one store, in id order.
+     */
+    private SiteDataStore rows(long lastRowId) {
+        SiteDataStore all = new SiteDataStore();
+        for (Map.Entry<String, SnapshotCache.Snapshot> source : sources.entrySet()) {
+            SiteDataStore stored = source.getValue().getStore();
+            List<Long> ids = rowIds.get(source.getKey());
+            for (int row = 0; row < stored.size(); row++) {
+                if (ids.get(row) <= lastRowId) {
+                    all.addAll(stored, row, row + 1);
+                }
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public void readTotals(TotalsHandler handler) {
+        AggregateSnapshot totals = new AggregateEngine(rows(lastRowId)).snapshot();
+        Map<String, long[]> countries = new LinkedHashMap<>();
+        for (Map.Entry<String, String> site : siteCountries.entrySet()) {
+            countries.put(site.getValue(), new long[3]);
+        }
+        for (int id = 0; id < totals.getCountryCount(); id++) {
+            countries.put(totals.getCountryName(id), new long[]{totals.getCountryTested(id),
+                    totals.getCountryPositive(id), totals.getCountryRowCount(id)});
+        }
+        for (Map.Entry<String, long[]> country : countries.entrySet()) {
+            long[] total = country.getValue();
+            handler.onCountryTotals(country.getKey(), total[0], total[1], (int) total[2]);
+        }
+        for (Map.Entry<String, String> site : siteCountries.entrySet()) {
+            String name = site.getKey().substring(site.getValue().length() + 1);
+            int countryId = totals.findCountry(site.getValue());
+            int siteId = -1;
+            for (int id = 0; countryId >= 0 && id < totals.getSiteCount(); id++) {
+                if (totals.getSiteCountry(id) == countryId && totals.getSiteName(id).equals(name)) {
+                    siteId = id;
+                }
+            }
+            if (siteId < 0) {
+                handler.onSiteTotals(site.getValue(), name, 0, 0, 0);
+            } else {
+                handler.onSiteTotals(site.getValue(), name, totals.getSiteTested(siteId),
+                        totals.getSitePositive(siteId), totals.getSiteRowCount(siteId));
+            }
+        }
+    }
+
+    @Override
+    public long getLastRowId() {
+        return lastRowId;
+    }
+
+    @Override
+    public long[] readDateRange() {
+        SiteDataStore all = rows(lastRowId);
+        if (all.size() == 0) {
+            return null;
+        }
+        long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+        for (int row = 0; row < all.size(); row++) {
+            range[0] = Math.min(range[0], Math.min(all.getStartDate(row), all.getEndDate(row)));
+            range[1] = Math.max(range[1], Math.max(all.getStartDate(row), all.getEndDate(row)));
+        }
+        return range;
+    }
+
+    @Override
+    public void readWindow(long from, long to, long lastRowId, TotalsHandler handler) {
+        SiteDataStore all = rows(lastRowId);
+        long[] tested = new long[all.getSites().size()];
+        long[] positive = new long[tested.length];
+        int[] count = new int[tested.length];
+        for (int row = 0; row < all.size(); row++) {
+            if (all.getEndDate(row) >= from && all.getStartDate(row) <= to) {
+                tested[all.getSiteId(row)] += all.getTested(row);
+                positive[all.getSiteId(row)] += all.getPositive(row);
+                count[all.getSiteId(row)]++;
+            }
+        }
+        for (int site = 0; site < tested.length; site++) {
+            if (count[site] > 0) {
+                handler.onSiteTotals(all.getCountries().getName(all.getSites().getScope(site)),
+                        all.getSites().getName(site), tested[site], positive[site], count[site]);
+            }
+        }
+    }
+
+    @Override
+    public void readDayTotals(long lastRowId, DayTotalsHandler handler) {
+        SiteDataStore all = rows(lastRowId);
+        for (int row = 0; row < all.size(); row++) {
+            // Each row is passed as a day of its own, which sums up the same
+            handler.onDayTotals(all.getCountries().getName(all.getCountryId(row)),
+                    all.getSites().getName(all.getSiteId(row)), Granularity.DAY.getBucket(all.getStartDate(row)),
+                    all.getTested(row), all.getPositive(row));
+        }
+    }
+
+    @Override
+    public void readLatestRows(int rowsPerSite, long lastRowId, SiteDataStore rows) {
+        SiteDataStore all = rows(lastRowId);
+        for (int site = 0; site < all.getSites().size(); site++) {
+            List<Integer> siteRows = new ArrayList<>();
+            for (int row = 0; row < all.size(); row++) {
+                if (all.getSiteId(row) == site) {
+                    siteRows.add(row);
+                }
+            }
+            // Stable, so rows ending together stay in id order
+            for (int i = 1; i < siteRows.size(); i++) {
+                for (int j = i; j > 0 && all.getEndDate(siteRows.get(j - 1)) > all.getEndDate(siteRows.get(j)); j--) {
+                    siteRows.add(j - 1, siteRows.remove(j));
+                }
+            }
+            for (int row : siteRows.subList(Math.max(0, siteRows.size() - rowsPerSite), siteRows.size())) {
+                rows.append(all.getCountries().getName(all.getCountryId(row)), all.getSites().getName(site),
+                        all.getTested(row), all.getPositive(row), all.getStartDate(row), all.getEndDate(row));
+            }
+        }
+    }
+}
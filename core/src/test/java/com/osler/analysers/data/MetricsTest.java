@@ -0,0 +1,119 @@
+package com.osler.analysers.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Metrics and LatencyHistogram.
+ */
+public class MetricsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileNanos(0.5));
+        for (int i = 0; i < 90; i++) {
+            histogram.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1000000);
+        }
+        histogram.record(-5);
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(90 * 1000 + 10 * 1000000, histogram.getTotalNanos());
+        assertEquals(1000000, histogram.getMaxNanos());
+        // 1000 falls in the bucket [512, 1024)
+        assertEquals(1023, histogram.getPercentileNanos(0.5));
+        // Never above the longest duration
+        assertEquals(1000000, histogram.getPercentileNanos(0.99));
+        assertEquals(0, histogram.getPercentileNanos(0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void testTracesStagesAndDumpsCounters() throws IOException {
+        final List<String> sections = new ArrayList<>();
+        Metrics metrics = new Metrics();
+        metrics.setTracer(new Metrics.Tracer() {
+            @Override
+            public void beginSection(String name) {
+                sections.add(name);
+            }
+
+            @Override
+            public void endSection() {
+                sections.add("end");
+            }
+        });
+
+        long load = metrics.begin(Metrics.Stage.LOAD);
+        long parse = metrics.begin(Metrics.Stage.PARSE);
+        metrics.end(Metrics.Stage.PARSE, parse);
+        metrics.end(Metrics.Stage.LOAD, load);
+        metrics.add(Metrics.Counter.ROWS_PARSED, 382);
+        metrics.recordError("Loading data", new IOException("disk full"));
+
+        assertEquals(Arrays.asList("Analysers.load", "Analysers.parse", "end", "end"), sections);
+        assertEquals(1, metrics.getHistogram(Metrics.Stage.PARSE).getCount());
+        assertEquals(0, metrics.getHistogram(Metrics.Stage.RENDER).getCount());
+        assertEquals(1, metrics.getCount(Metrics.Counter.ERRORS));
+
+        File file = folder.newFile("metrics.txt");
+        metrics.writeTo(file);
+        String dump = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(dump.contains("\nparse "));
+        assertFalse(dump.contains("\nrender "));
+        assertTrue(dump.contains("rows_parsed        382"));
+        assertTrue(dump.contains("Loading data: java.io.IOException: disk full"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getCount(Metrics.Counter.ROWS_PARSED));
+        assertTrue(metrics.getErrors().isEmpty());
+    }
+
+    @Test
+    public void testCountsParsedRows() throws IOException {
+        File directory = folder.newFolder("incoming");
+        byte[] csv = ("Country,Site,Tested,Positive,StartDate,EndDate\n"
+                + "Kenya,Kisumu,100,25,1,2\nKenya,Kisumu,many,25,1,2\nMali,Bamako,10,1,1,2\n")
+                .getBytes(StandardCharsets.UTF_8);
+        OutputStream out = new FileOutputStream(new File(directory, "lab.csv"));
+        try {
+            out.write(csv);
+        } finally {
+            out.close();
+        }
+
+        // The metrics are shared, so only their increase is checked
+        Metrics metrics = Metrics.get();
+        long parsed = metrics.getCount(Metrics.Counter.ROWS_PARSED);
+        long malformed = metrics.getCount(Metrics.Counter.ROWS_MALFORMED);
+        long bytes = metrics.getCount(Metrics.Counter.BYTES_READ);
+        long parses = metrics.getHistogram(Metrics.Stage.PARSE).getCount();
+        new DirectoryIngest(directory).refresh();
+
+        assertEquals(2, metrics.getCount(Metrics.Counter.ROWS_PARSED) - parsed);
+        assertEquals(1, metrics.getCount(Metrics.Counter.ROWS_MALFORMED) - malformed);
+        assertEquals(csv.length, metrics.getCount(Metrics.Counter.BYTES_READ) - bytes);
+        assertEquals(1, metrics.getHistogram(Metrics.Stage.PARSE).getCount() - parses);
+    }
+}
@@ -0,0 +1,68 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for NameIndex.
+ */
+public class NameIndexTest {
+    private static AggregateSnapshot snapshot() {
+        String[] countries = {"Kenya", "Norway", "India", "Pakistan", "Mali"};
+        String[] sites = {"Kisumu", "Tromsø", "Hyderabad", "Hyderabad", "Kisumu West", "Nairobi"};
+        int[] siteCountries = {0, 1, 2, 3, 0, 0};
+        // Mali has no rows left and is not listed
+        int[] countryRows = {3, 1, 1, 1, 0};
+        int[] siteRows = {1, 1, 1, 1, 1, 1};
+        return new AggregateSnapshot(1, 6, countries, new long[5], new long[5], countryRows, sites, siteCountries,
+                new long[6], new long[6], siteRows, 0, 0);
+    }
+
+    private static String labels(NameIndex index, int[] results, int count) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            labels.append(i == 0 ? "" : "|").append(index.getLabel(results[i]));
+        }
+        return labels.toString();
+    }
+
+    @Test
+    public void testListsCountriesThenSitesByName() {
+        NameIndex index = new NameIndex(snapshot());
+        int[] results = new int[index.size()];
+
+        assertEquals(10, index.search("  ", results));
+        assertEquals("India|Kenya|Norway|Pakistan|Hyderabad, India|Hyderabad, Pakistan|Kisumu, Kenya"
+                + "|Kisumu West, Kenya|Nairobi, Kenya|Tromsø, Norway", labels(index, results, 10));
+        assertFalse(index.isSite(0));
+        assertEquals(2, index.getId(0));
+        assertTrue(index.isSite(5));
+        assertEquals(3, index.getId(5));
+        assertEquals(5, index.find(true, 3));
+        assertEquals(-1, index.find(false, 4));
+    }
+
+    @Test
+    public void testSearchesWordPrefixes() {
+        NameIndex index = new NameIndex(snapshot());
+        int[] results = new int[index.size()];
+
+        assertEquals("Kenya|Kisumu, Kenya|Kisumu West, Kenya", labels(index, results, index.search("K", results)));
+        assertEquals("Kisumu, Kenya|Kisumu West, Kenya", labels(index, results, index.search("Ki", results)));
+        assertEquals("Kisumu West, Kenya", labels(index, results, index.search("kisumu w", results)));
+        assertEquals("Kisumu West, Kenya", labels(index, results, index.search("WEST", results)));
+        assertEquals(0, index.search("westx", results));
+
+        // A shorter query after a longer one searches all the keys again
+        assertEquals("Hyderabad, India|Hyderabad, Pakistan", labels(index, results, index.search("hy", results)));
+        assertEquals("Tromsø, Norway", labels(index, results, index.search("TROMSØ", results)));
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("sao tome", NameIndex.normalize(" São-Tomé "));
+        assertEquals("cote d ivoire", NameIndex.normalize("Côte d'Ivoire"));
+        assertEquals("", NameIndex.normalize("--"));
+    }
+}
@@ -0,0 +1,72 @@
+package com.osler.analysers.data;
+
+import com.osler.analysers.CountryData;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ParallelAggregator.
+ */
+public class ParallelAggregatorTest {
+
+    @Test
+    public void testMatchesSequentialTotals() {
+        // Enough rows and countries for the reduction to split into several tasks
+        SiteDataStore store = new SiteDataStore();
+        Random random = new Random(7);
+        for (int row = 0; row < 200000; row++) {
+            int country = random.nextInt(25);
+            int tested = random.nextInt(1000);
+            store.append("Country " + country, "Site " + random.nextInt(8), tested, random.nextInt(tested + 1), 10, 20);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            AggregateSnapshot expected = new AggregateEngine(store).snapshot();
+            AggregateSnapshot actual = new ParallelAggregator(pool).reduce(store);
+
+            assertEquals(expected.getGlobalTested(), actual.getGlobalTested());
+            assertEquals(expected.getGlobalPositive(), actual.getGlobalPositive());
+            assertEquals(expected.getCountryCount(), actual.getCountryCount());
+            for (int id = 0; id < expected.getCountryCount(); id++) {
+                assertEquals(expected.getCountryTested(id), actual.getCountryTested(id));
+                assertEquals(expected.getCountryPositive(id), actual.getCountryPositive(id));
+                assertEquals(expected.getCountryRowCount(id), actual.getCountryRowCount(id));
+            }
+            for (int id = 0; id < expected.getSiteCount(); id++) {
+                assertEquals(expected.getSiteTested(id), actual.getSiteTested(id));
+                assertEquals(expected.getSiteRowCount(id), actual.getSiteRowCount(id));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testTotalsBeyondIntRange() {
+        SiteDataStore store = new SiteDataStore();
+        for (int row = 0; row < 3; row++) {
+            store.append("Kenya", "Kisumu", Integer.MAX_VALUE, Integer.MAX_VALUE - 1, 10, 20);
+        }
+
+        AggregateSnapshot snapshot = new ParallelAggregator(ForkJoinPool.commonPool()).reduce(store);
+        CountryData kenya = snapshot.getCountryData(0);
+
+        assertEquals(3L * Integer.MAX_VALUE, snapshot.getGlobalTested());
+        assertEquals(3L * Integer.MAX_VALUE, kenya.getTested());
+        assertEquals(3L * (Integer.MAX_VALUE - 1), kenya.getPositive());
+    }
+
+    @Test
+    public void testEmptyStore() {
+        AggregateSnapshot snapshot = new ParallelAggregator(ForkJoinPool.commonPool()).reduce(new SiteDataStore());
+
+        assertEquals(0, snapshot.getCountryCount());
+        assertEquals(0, snapshot.getGlobalTested());
+    }
+}
@@ -0,0 +1,75 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Ranking.
+ */
+public class RankingTest {
+
+    @Test
+    public void testTopKMatchesFullSort() {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        Random random = new Random(11);
+        for (int i = 0; i < 2000; i++) {
+            // Few distinct percentages, so there are plenty of ties
+            int tested = 10 * (1 + random.nextInt(5));
+            engine.append("Country " + random.nextInt(300), "Site " + random.nextInt(4), tested,
+                    random.nextInt(11) * tested / 10, 10, 20);
+        }
+        final AggregateSnapshot snapshot = engine.snapshot();
+
+        // Reference: a stable sort by descending ratio, in id order
+        List<Integer> expected = new ArrayList<>();
+        for (int id = 0; id < snapshot.getCountryCount(); id++) {
+            expected.add(id);
+        }
+        Collections.sort(expected, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer c1, Integer c2) {
+                return Double.compare((double) snapshot.getCountryPositive(c2) / snapshot.getCountryTested(c2),
+                        (double) snapshot.getCountryPositive(c1) / snapshot.getCountryTested(c1));
+            }
+        });
+
+        Ranking ranking = Ranking.of(snapshot, Granularity.COUNTRY);
+        int[] sorted = ranking.sorted();
+        assertEquals(expected.size(), sorted.length);
+        for (int i = 0; i < sorted.length; i++) {
+            assertEquals((int) expected.get(i), sorted[i]);
+        }
+        for (int k : new int[]{1, 2, 7, 50, 299}) {
+            int[] top = ranking.top(k);
+            assertEquals(k, top.length);
+            for (int i = 0; i < k; i++) {
+                assertEquals(sorted[i], top[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testRanksSitesAndSkipsEmptyEntities() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("India", "Hyderabad", 100, 10, 10, 20);
+        store.append("Pakistan", "Hyderabad", 100, 50, 10, 20);
+        store.append("India", "Mumbai", 100, 30, 10, 20);
+        // Interned but never applied, e.g. a row skipped for expired calibration
+        store.getSites().intern(0, "Bangalore");
+        AggregateSnapshot snapshot = new AggregateEngine(store).snapshot();
+
+        Ranking ranking = Ranking.of(snapshot, Granularity.SITE);
+
+        assertEquals(3, ranking.size());
+        assertArrayEquals(new int[]{1, 2, 0}, ranking.sorted());
+        assertArrayEquals(new int[]{1}, ranking.top(1));
+        assertEquals(0.5, ranking.getPositivity(1), 0);
+    }
+}
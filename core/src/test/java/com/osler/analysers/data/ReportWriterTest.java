@@ -0,0 +1,179 @@
+package com.osler.analysers.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ReportWriter.
+ */
+public class ReportWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWritesSortedLinesLikeStringFormat() throws IOException {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        engine.append("Kenya", "Kisumu", 1615, 401, 10, 20);
+        engine.append("Mali", "Sikasso", 3, 2, 10, 20);
+        engine.append("Tromsø", "Tromsø", 0, 0, 10, 20);
+        File file = folder.newFile("mgmt_report.txt");
+
+        ReportSummary summary = new ReportWriter(file).write(engine.snapshot());
+
+        String expected = "Mali, Tested = 3, Positive = 66.67% (2/3)\n"
+                + "Kenya, Tested = 1615, Positive = 24.83% (401/1615)\n"
+                + "Tromsø, Tested = 0, Positive = 0.00% (0/0)\n";
+        assertEquals(expected, read(file));
+        assertEquals(3, summary.getLineCount());
+        assertEquals(expected.getBytes(StandardCharsets.UTF_8).length, summary.getByteCount());
+        assertEquals("Mali", summary.getTopName());
+        assertEquals(6667, summary.getTopPercentHundredths());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testLargeReportSpansBufferFlushes() throws IOException {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            int tested = 1 + random.nextInt(100000);
+            engine.append("Country " + i, "Site", tested, random.nextInt(tested + 1), 10, 20);
+        }
+        AggregateSnapshot snapshot = engine.snapshot();
+        File file = folder.newFile("mgmt_report.txt");
+
+        new ReportWriter(file).write(snapshot);
+
+        String[] lines = read(file).split("\n");
+        assertEquals(5000, lines.length);
+        for (String line : lines) {
+            int countryId = snapshot.findCountry(line.substring(0, line.indexOf(',')));
+            long tested = snapshot.getCountryTested(countryId);
+            long positive = snapshot.getCountryPositive(countryId);
+            assertEquals(String.format(Locale.ROOT, "%s, Tested = %d, Positive = %.2f%% (%d/%d)",
+                    snapshot.getCountryName(countryId), tested, ReportWriter.percentHundredths(positive, tested) / 100.0,
+                    positive, tested), line);
+        }
+    }
+
+    @Test
+    public void testWritesTopSites() throws IOException {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        engine.append("India", "Hyderabad", 100, 10, 10, 20);
+        engine.append("Pakistan", "Hyderabad", 100, 50, 10, 20);
+        engine.append("India", "Mumbai", 100, 30, 10, 20);
+        File file = folder.newFile("mgmt_report.txt");
+
+        ReportSummary summary = new ReportWriter(file).write(engine.snapshot(), Granularity.SITE, 2);
+
+        assertEquals("Pakistan / Hyderabad, Tested = 100, Positive = 50.00% (50/100)\n"
+                + "India / Mumbai, Tested = 100, Positive = 30.00% (30/100)\n", read(file));
+        assertEquals("Pakistan / Hyderabad", summary.getTopName());
+        assertEquals(2, summary.getLineCount());
+    }
+
+    @Test
+    public void testPercentRoundsHalfUp() {
+        assertEquals(0, ReportWriter.percentHundredths(0, 0));
+        assertEquals(3333, ReportWriter.percentHundredths(1, 3));
+        assertEquals(1, ReportWriter.percentHundredths(1, 20000));
+        assertEquals(0, ReportWriter.percentHundredths(1, 20001));
+        assertEquals(10000, ReportWriter.percentHundredths(Long.MAX_VALUE / 2, Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void testWritesCsvAndJsonWithEscapedNames() throws IOException {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        engine.append("Côte d'Ivoire", "Abidjan, \"Plateau\"", 100, 25, 10, 20);
+        engine.append("Mali", "Back\\slash", 3, 2, 10, 20);
+        File csv = folder.newFile("report.csv");
+        File json = folder.newFile("report.json");
+
+        new ReportWriter(csv, ReportFormats.CSV, false).write(engine.snapshot(), Granularity.SITE, 0);
+        ReportSummary summary = new ReportWriter(json, ReportFormats.JSON, false).write(engine.snapshot());
+
+        assertEquals("Country,Site,Tested,Positive,PositivePercent\n"
+                + "Mali,Back\\slash,3,2,66.67\n"
+                + "Côte d'Ivoire,\"Abidjan, \"\"Plateau\"\"\",100,25,25.00\n", read(csv));
+        assertEquals("{\"granularity\":\"country\",\"entries\":[\n"
+                + "{\"country\":\"Mali\",\"tested\":3,\"positive\":2,\"percent\":66.67},\n"
+                + "{\"country\":\"Côte d'Ivoire\",\"tested\":100,\"positive\":25,\"percent\":25.00}\n"
+                + "],\"count\":2}\n", read(json));
+        assertEquals(2, summary.getLineCount());
+    }
+
+    @Test
+    public void testWritesWeeklyBucketsGzipped() throws IOException {
+        SiteDataStore store = new SiteDataStore();
+        // 2020-08-19 and 2020-08-23 are in the week of Monday 2020-08-17, 2020-08-24 is not
+        store.append("Kenya", "Kisumu", 100, 10, 1597839084, 1597839084);
+        store.append("Mali", "Bamako", 100, 30, 1598140800, 1598140800);
+        store.append("Kenya", "Kisumu", 50, 40, 1598227200, 1598227200);
+        File file = folder.newFile("report.txt.gz");
+
+        ReportSummary summary = new ReportWriter(file, ReportFormats.TEXT, true).writeBuckets(store, Granularity.WEEK);
+
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, n);
+            }
+            assertEquals("2020-08-17, Tested = 200, Positive = 20.00% (40/200)\n"
+                    + "2020-08-24, Tested = 50, Positive = 80.00% (40/50)\n", bytes.toString("UTF-8"));
+        } finally {
+            in.close();
+        }
+        assertEquals(2, summary.getLineCount());
+        assertEquals("2020-08-24", summary.getTopName());
+        assertEquals(file.length(), summary.getByteCount());
+    }
+
+    @Test
+    public void testBinaryReportEndsWithEntryCount() throws IOException {
+        AggregateEngine engine = new AggregateEngine(new SiteDataStore());
+        engine.append("Kenya", "Kisumu", 300, 1, 10, 20);
+        File file = folder.newFile("report.anrr");
+
+        new ReportWriter(file, ReportFormats.BINARY, false).write(engine.snapshot());
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals("ANRR", new String(bytes, 0, 4, StandardCharsets.US_ASCII));
+        // version, granularity, entry tag, "Kenya", 300 as a two-byte varint, 1, trailer, count
+        assertArrayEquals(new byte[]{1, 0, 1, 5, 'K', 'e', 'n', 'y', 'a', (byte) 0xAC, 0x02, 1, 0, 1},
+                Arrays.copyOfRange(bytes, 4, bytes.length));
+        assertSame(ReportFormats.BINARY, ReportFormats.forName("binary"));
+        assertSame(ReportFormats.CSV, ReportFormats.forName("CSV"));
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.osler.analysers.data;
+
+import com.osler.analysers.CountryData;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+/**
+ * Unit tests for SiteDataStore.
+ */
+public class SiteDataStoreTest {
+
+    @Test
+    public void testDerivesCountryTotals() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        store.append("Mali", "Sikasso", 40, 4, 10, 20);
+        store.append("Kenya", "Nairobi", 50, 5, 30, 40);
+
+        List<CountryData> countryDataList = store.getCountryDataList();
+
+        assertEquals(2, countryDataList.size());
+        assertEquals("Kenya", countryDataList.get(0).getCountry());
+        assertEquals(150, countryDataList.get(0).getTested());
+        assertEquals(30, countryDataList.get(0).getPositive());
+        assertEquals(40, countryDataList.get(1).getTested());
+    }
+
+    @Test
+    public void testSumsOnlyRowsOverlappingTheWindow() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        store.append("Kenya", "Kisumu", 50, 5, 30, 40);
+        store.append("Kenya", "Nairobi", 7, 1, 15, 35);
+
+        long[] tested = new long[store.getSites().size()];
+        long[] positive = new long[store.getSites().size()];
+        store.sumBySite(21, 29, tested, positive);
+
+        assertEquals(0, tested[0]);
+        assertEquals(7, tested[1]);
+        assertEquals(1, positive[1]);
+    }
+
+    @Test
+    public void testGrowsPastInitialCapacity() {
+        SiteDataStore store = new SiteDataStore();
+        for (int i = 0; i < 5000; i++) {
+            store.append("Kenya", "Site " + (i % 10), 1, 0, i, i + 1);
+        }
+        store.trimToSize();
+
+        assertEquals(5000, store.size());
+        assertEquals(10, store.getSites().size());
+        assertEquals(4999, store.getStartDate(4999));
+        assertEquals(5000, store.getCountryDataList().get(0).getTested());
+    }
+}
@@ -0,0 +1,72 @@
+package com.osler.analysers.data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Unit tests for SnapshotCache.
+ */
+public class SnapshotCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SiteDataStore sampleStore() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 100, 25, 10, 20);
+        store.append("India", "Hyderabad", 40, 4, 11, 21);
+        store.append("Pakistan", "Hyderabad", 50, 5, 12, 22);
+        return store;
+    }
+
+    @Test
+    public void testRoundTripsStoreAndCounters() throws IOException {
+        SnapshotCache cache = new SnapshotCache(new File(folder.getRoot(), "dataset.snapshot"));
+        cache.save(sampleStore(), 2, 8, Arrays.asList("expiry.txt:17: invalid"), 3, 42);
+
+        SnapshotCache.Snapshot snapshot = cache.load(3, 42);
+
+        assertNotNull(snapshot);
+        SiteDataStore store = snapshot.getStore();
+        assertEquals(3, store.size());
+        assertEquals(3, store.getSites().size());
+        assertEquals("Pakistan", store.getCountries().getName(store.getCountryId(2)));
+        assertEquals(store.getCountryId(2), store.getSites().getScope(store.getSiteId(2)));
+        assertEquals(50, store.getTested(2));
+        assertEquals(22, store.getEndDate(2));
+        assertEquals(2, snapshot.getMalformedRows());
+        assertEquals(8, snapshot.getExpiredRows());
+        assertEquals("expiry.txt:17: invalid", snapshot.getDiagnostics().get(0));
+    }
+
+    @Test
+    public void testRejectsStaleSnapshot() throws IOException {
+        SnapshotCache cache = new SnapshotCache(new File(folder.getRoot(), "dataset.snapshot"));
+        cache.save(sampleStore(), 0, 0, Collections.<String>emptyList(), 3, 42);
+
+        assertNull(cache.load(4, 42));
+        assertNull(cache.load(3, 43));
+    }
+
+    @Test
+    public void testRejectsTruncatedSnapshot() throws IOException {
+        File file = new File(folder.getRoot(), "dataset.snapshot");
+        SnapshotCache cache = new SnapshotCache(file);
+        cache.save(sampleStore(), 0, 0, Collections.<String>emptyList(), 3, 42);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        assertNull(cache.load(3, 42));
+        assertFalse(file.exists());
+    }
+}
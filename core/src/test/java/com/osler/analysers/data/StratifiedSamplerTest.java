@@ -0,0 +1,135 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for StratifiedSampler and SampleEstimate.
+ */
+public class StratifiedSamplerTest {
+    private static final String HEADER = "Country,Site,Tested,Positive,StartDate,EndDate\n";
+
+    private static StreamSource source(final byte[] bytes) {
+        return new StreamSource() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(bytes);
+            }
+        };
+    }
+
+    @Test
+    public void testWilsonInterval() {
+        assertEquals(0.4038, SampleEstimate.wilson(0.5, 100, -SampleEstimate.Z_95), 1e-4);
+        assertEquals(0.5962, SampleEstimate.wilson(0.5, 100, SampleEstimate.Z_95), 1e-4);
+        // Unlike the normal approximation, the interval of 0 of 10 is not empty
+        assertEquals(0, SampleEstimate.wilson(0, 10, -SampleEstimate.Z_95), 1e-9);
+        assertEquals(0.2775, SampleEstimate.wilson(0, 10, SampleEstimate.Z_95), 1e-4);
+    }
+
+    @Test
+    public void testSmallFileIsReadWhole() throws Exception {
+        byte[] csv = (HEADER + "Kenya,Kisumu,100,25,1,2\nKenya,Nairobi,100,35,1,2\nMali,Bamako,50,5,1,2\n")
+                .getBytes(StandardCharsets.UTF_8);
+        SampleEstimate estimate = new StratifiedSampler(new CalibrationIndex()).sample(source(csv), csv.length);
+
+        assertEquals(1, estimate.getSampledFraction(), 0);
+        assertEquals(3, estimate.getEstimatedRows());
+        SampleEstimate.Proportion kenya = estimate.findCountry("Kenya");
+        assertEquals(30, kenya.getPercent(), 1e-9);
+        // Nothing is left to estimate
+        assertEquals(30, kenya.getLowerPercent(), 1e-9);
+        assertEquals(30, kenya.getUpperPercent(), 1e-9);
+        assertEquals(3, estimate.getSampledSiteCount());
+        assertEquals(25, estimate.getSitePercentile(0.5), 1e-9);
+        assertNull(estimate.findCountry("Norway"));
+    }
+
+    @Test
+    public void testSmallFileWithoutHeaderKeepsItsFirstRow() throws Exception {
+        byte[] csv = "Kenya,Kisumu,100,25,1,2\nMali,Bamako,50,5,1,2\n".getBytes(StandardCharsets.UTF_8);
+        SampleEstimate estimate = new StratifiedSampler(new CalibrationIndex()).sample(source(csv), csv.length);
+
+        assertEquals(2, estimate.getEstimatedRows());
+        assertEquals(25, estimate.findCountry("Kenya").getPercent(), 1e-9);
+        assertEquals(20, estimate.getGlobal().getPercent(), 1e-9);
+    }
+
+    /**
+     * Appends rows ordered by country, as in data.csv: a low rate country, then a high rate one.
+     */
+    private static SiteDataStore appendCountryOrderedRows(StringBuilder csv, int rows) {
+        Random random = new Random(42);
+        SiteDataStore store = new SiteDataStore();
+        for (int row = 0; row < rows; row++) {
+            boolean low = row < rows / 2;
+            int rowTested = 50 + random.nextInt(100);
+            int rowPositive = (int) (rowTested * ((low ? 0.2 : 0.6) + random.nextGaussian() * 0.05));
+            csv.append(low ? "Kenya" : "Mali").append(",Site").append(row % 50).append(',').append(rowTested)
+                    .append(',').append(rowPositive).append(",1,2\n");
+            store.append(low ? "Kenya" : "Mali", "Site" + row % 50, rowTested, rowPositive, 1, 2);
+        }
+        return store;
+    }
+
+    @Test
+    public void testEstimatesLargeFileFromSample() throws Exception {
+        StringBuilder csv = new StringBuilder(HEADER);
+        AggregateSnapshot totals = new AggregateEngine(appendCountryOrderedRows(csv, 40000)).snapshot();
+        long positive = totals.getGlobalPositive();
+        long tested = totals.getGlobalTested();
+        byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+
+        SampleEstimate estimate = new StratifiedSampler(new CalibrationIndex(), 128, 1024).sample(source(bytes),
+                bytes.length);
+
+        assertTrue(estimate.getSampledFraction() < 0.15);
+        assertEquals(40000, estimate.getEstimatedRows(), 2000);
+        SampleEstimate.Proportion global = estimate.getGlobal();
+        double exact = positive * 100.0 / tested;
+        assertTrue(global.getLowerPercent() < exact && exact < global.getUpperPercent());
+        // Windows of rows vary more than single tests, so they count as fewer tests
+        assertTrue(global.getEffectiveTests() < global.getTested());
+        assertEquals(20, estimate.findCountry("Kenya").getPercent(), 1);
+        assertEquals(60, estimate.findCountry("Mali").getPercent(), 1);
+        assertEquals(100, estimate.getSampledSiteCount());
+    }
+
+    @Test
+    public void testRefinesWithTheRowsReadInFull() throws Exception {
+        StringBuilder csv = new StringBuilder(HEADER);
+        SiteDataStore store = appendCountryOrderedRows(csv, 40000);
+        byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+        SampleEstimate estimate = new StratifiedSampler(new CalibrationIndex(), 128, 1024).sample(source(bytes),
+                bytes.length);
+
+        // Once Kenya has been read in full, only Mali is still estimated
+        SiteDataStore kenya = new SiteDataStore();
+        kenya.addAll(store, 0, 20000);
+        AggregateSnapshot kenyaTotals = new AggregateEngine(kenya).snapshot();
+        SampleEstimate half = estimate.refine(kenyaTotals, csv.indexOf("Mali"));
+        assertEquals(kenyaTotals.getCountryPositive(0) * 100.0 / kenyaTotals.getCountryTested(0),
+                half.findCountry("Kenya").getPercent(), 1e-9);
+        assertEquals(60, half.findCountry("Mali").getPercent(), 1);
+        assertEquals(40000, half.getEstimatedRows(), 1000);
+        assertTrue(half.getSampledFraction() > 0.5);
+        SampleEstimate.Proportion global = estimate.getGlobal();
+        assertTrue(half.getGlobal().getUpperPercent() - half.getGlobal().getLowerPercent()
+                < global.getUpperPercent() - global.getLowerPercent());
+
+        // At the end of the data the estimate is exact
+        AggregateSnapshot totals = new AggregateEngine(store).snapshot();
+        SampleEstimate end = estimate.refine(totals, bytes.length);
+        double exact = totals.getGlobalPositive() * 100.0 / totals.getGlobalTested();
+        assertEquals(exact, end.getGlobal().getLowerPercent(), 1e-9);
+        assertEquals(exact, end.getGlobal().getUpperPercent(), 1e-9);
+        assertEquals(40000, end.getEstimatedRows());
+        assertEquals(1, end.getSampledFraction(), 0);
+    }
+}
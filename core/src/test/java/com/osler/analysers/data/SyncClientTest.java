@@ -0,0 +1,166 @@
+package com.osler.analysers.data;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SyncClient and SyncScheduler, against a local mock sync server.
+ */
+public class SyncClientTest {
+    private static final String HEADER = "Country,Site,Tested,Positive,StartDate,EndDate\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private URL endpoint;
+
+    /*
+     * The mock server's rows, the cursors it was asked from and the status it answers with.
+     */
+    private final List<String> rows = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Long> requests = Collections.synchronizedList(new ArrayList<Long>());
+    private volatile int failWith;
+
+    /**
+     * The mock server returns at most two rows per page in the binary row format, gzip-compressed,
+     * with the number of rows sent so far as the cursor and the number of rows as the ETag.
+     */
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/rows", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                long since = Long.parseLong(exchange.getRequestURI().getQuery().replaceAll(".*since=", ""));
+                requests.add(since);
+                String etag = "\"" + rows.size() + "\"";
+                if (failWith != 0) {
+                    exchange.sendResponseHeaders(failWith, -1);
+                } else if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    int end = (int) Math.min(rows.size(), since + 2);
+                    StringBuilder csv = new StringBuilder(HEADER);
+                    for (String row : rows.subList((int) since, end)) {
+                        csv.append(row).append('\n');
+                    }
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(body);
+                    BinaryRowFormat.convert(new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)),
+                            "rows", gzip, new ParseDiagnostics());
+                    gzip.close();
+                    exchange.getResponseHeaders().set("Content-Type", SyncClient.ROWS_TYPE);
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    exchange.getResponseHeaders().set(SyncClient.CURSOR_HEADER, Integer.toString(end));
+                    exchange.getResponseHeaders().set(SyncClient.MORE_HEADER, Boolean.toString(end < rows.size()));
+                    exchange.sendResponseHeaders(200, body.size());
+                    OutputStream out = exchange.getResponseBody();
+                    body.writeTo(out);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        endpoint = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/rows");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testPullsOnlyNewRows() throws IOException {
+        File directory = folder.newFolder("incoming");
+        File stateFile = new File(folder.getRoot(), "sync.properties");
+        rows.addAll(Arrays.asList("Kenya,Kisumu,100,25,1,2", "Kenya,Nairobi,50,5,1,2", "Mali,Bamako,10,1,1,2"));
+        DirectoryIngest ingest = new DirectoryIngest(directory);
+
+        // Two pages, the second one pulled right away
+        SyncClient client = new SyncClient(endpoint, directory, stateFile);
+        SyncClient.Result result = client.sync();
+        assertEquals(2, result.getPages());
+        assertEquals(3, result.getRows());
+        assertEquals(3, result.getCursor());
+        assertTrue(result.getBytes() > 0);
+        assertEquals(Arrays.asList(0L, 2L), requests);
+        assertEquals(2, ingest.refresh());
+        assertEquals(160, ingest.snapshot().getGlobalTested());
+
+        // Nothing new
+        result = client.sync();
+        assertEquals(0, result.getPages());
+        assertEquals(0, ingest.refresh());
+
+        // Only the new row is pulled and parsed
+        rows.add("Niger,Niamey,40,4,1,2");
+        result = client.sync();
+        assertEquals(1, result.getRows());
+        assertEquals(Long.valueOf(3), requests.get(requests.size() - 1));
+        assertEquals(1, ingest.refresh());
+        assertEquals(200, ingest.snapshot().getGlobalTested());
+
+        // A new client, e.g. after a restart, carries on from the saved cursor and ETag
+        result = new SyncClient(endpoint, directory, stateFile).sync();
+        assertEquals(0, result.getPages());
+        assertEquals(Long.valueOf(4), requests.get(requests.size() - 1));
+        assertEquals(3, directory.list().length);
+    }
+
+    @Test
+    public void testFailedSyncKeepsCursor() throws IOException {
+        File directory = folder.newFolder("incoming");
+        File stateFile = new File(folder.getRoot(), "sync.properties");
+        rows.add("Kenya,Kisumu,100,25,1,2");
+        SyncClient client = new SyncClient(endpoint, directory, stateFile);
+        client.sync();
+
+        rows.add("Kenya,Nairobi,50,5,1,2");
+        failWith = 503;
+        try {
+            client.sync();
+            fail("Expected the server error to be thrown");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("503"));
+        }
+        failWith = 0;
+        assertEquals(1, client.sync().getRows());
+        assertEquals(Arrays.asList(0L, 1L, 1L), requests);
+    }
+
+    @Test
+    public void testBackoffDoublesUpToTheLimit() {
+        assertEquals(SyncScheduler.INITIAL_BACKOFF_MS, SyncScheduler.backoffMs(1, 0));
+        assertEquals(2 * SyncScheduler.INITIAL_BACKOFF_MS, SyncScheduler.backoffMs(2, 0));
+        // Jitter takes up to half off
+        assertEquals(SyncScheduler.INITIAL_BACKOFF_MS / 2, SyncScheduler.backoffMs(1, 1));
+        assertEquals(SyncScheduler.MAX_BACKOFF_MS, SyncScheduler.backoffMs(8, 0));
+        assertEquals(SyncScheduler.MAX_BACKOFF_MS, SyncScheduler.backoffMs(1000, 0));
+    }
+}
@@ -0,0 +1,117 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TimeWindowIndex.
+ */
+public class TimeWindowIndexTest {
+
+    @Test
+    public void testMatchesScanOfTheRows() {
+        SiteDataStore store = new SiteDataStore();
+        Random random = new Random(5);
+        for (int row = 0; row < 3000; row++) {
+            long start = random.nextInt(1000);
+            // Every tenth row ends before it starts, like a row of the bundled data does
+            long end = row % 10 == 0 ? start - random.nextInt(50) : start + random.nextInt(200);
+            int tested = random.nextInt(100);
+            store.append("Country " + random.nextInt(6), "Site " + random.nextInt(5), tested,
+                    random.nextInt(tested + 1), start, end);
+        }
+        TimeWindowIndex index = TimeWindowIndex.build(store);
+        int countryCount = store.getCountries().size();
+        int siteCount = store.getSites().size();
+
+        for (int query = 0; query < 200; query++) {
+            long from = random.nextInt(1300) - 100;
+            long to = from + random.nextInt(400);
+            long[] siteTested = new long[siteCount];
+            long[] sitePositive = new long[siteCount];
+            store.sumBySite(from, to, siteTested, sitePositive);
+            long[] countryTested = new long[countryCount];
+            long[] countryPositive = new long[countryCount];
+            int[] countryRows = new int[countryCount];
+            store.sumByCountry(from, to, countryTested, countryPositive, countryRows);
+
+            AggregateSnapshot window = index.query(from, to);
+            for (int site = 0; site < siteCount; site++) {
+                assertEquals(siteTested[site], window.getSiteTested(site));
+                assertEquals(sitePositive[site], window.getSitePositive(site));
+                assertEquals(siteTested[site], index.querySite(site, from, to).getTested());
+            }
+            for (int country = 0; country < countryCount; country++) {
+                assertEquals(countryTested[country], window.getCountryTested(country));
+                assertEquals(countryPositive[country], window.getCountryPositive(country));
+                assertEquals(countryRows[country], window.getCountryRowCount(country));
+                assertEquals(countryPositive[country], index.queryCountry(country, from, to).getPositive());
+            }
+        }
+    }
+
+    @Test
+    public void testExtendMatchesBuild() {
+        SiteDataStore store = new SiteDataStore();
+        Random random = new Random(7);
+        appendRandomRows(store, random, 2000, 4);
+        TimeWindowIndex index = TimeWindowIndex.build(store);
+
+        // A few rows, some of new sites and countries, are indexed on their own; many are indexed again
+        for (int rowCount : new int[]{300, 100, 0, 1500}) {
+            appendRandomRows(store, random, rowCount, 6);
+            index = index.extend(store);
+            TimeWindowIndex built = TimeWindowIndex.build(store);
+            assertEquals(store.size(), index.getRowCount());
+            assertEquals(built.getMinDate(), index.getMinDate());
+            assertEquals(built.getMaxDate(), index.getMaxDate());
+            for (int query = 0; query < 50; query++) {
+                long from = random.nextInt(1300) - 100;
+                long to = from + random.nextInt(400);
+                AggregateSnapshot expected = built.query(from, to);
+                AggregateSnapshot window = index.query(from, to);
+                assertEquals(expected.getGlobalTested(), window.getGlobalTested());
+                assertEquals(expected.getGlobalPositive(), window.getGlobalPositive());
+                for (int site = 0; site < store.getSites().size(); site++) {
+                    assertEquals(expected.getSiteTested(site), window.getSiteTested(site));
+                    assertEquals(expected.getSiteRowCount(site), window.getSiteRowCount(site));
+                }
+                for (int country = 0; country < store.getCountries().size(); country++) {
+                    assertEquals(expected.getCountryPositive(country),
+                            index.queryCountry(country, from, to).getPositive());
+                }
+            }
+        }
+    }
+
+    private static void appendRandomRows(SiteDataStore store, Random random, int rowCount, int countries) {
+        for (int row = 0; row < rowCount; row++) {
+            long start = random.nextInt(1000);
+            long end = row % 10 == 0 ? start - random.nextInt(50) : start + random.nextInt(200);
+            int tested = random.nextInt(100);
+            store.append("Country " + random.nextInt(countries), "Site " + random.nextInt(5), tested,
+                    random.nextInt(tested + 1), start, end);
+        }
+    }
+
+    @Test
+    public void testUnboundedWindowCoversEveryRow() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 100, 25, 50, 60);
+        store.append("Kenya", "Nairobi", 40, 4, 10, 20);
+        store.append("Mali", "Sikasso", 7, 1, 90, 80);
+        TimeWindowIndex index = TimeWindowIndex.build(store);
+
+        AggregateSnapshot all = index.query(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        assertEquals(147, all.getGlobalTested());
+        assertEquals(3, all.getRowCount());
+        assertEquals(10, index.getMinDate());
+        assertEquals(90, index.getMaxDate());
+        assertEquals(100, index.queryCountry(0, 55, 55).getTested());
+        assertEquals(0, index.queryCountry(0, 21, 49).getRowCount());
+    }
+}
@@ -0,0 +1,133 @@
+package com.osler.analysers.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TrendSeries and the MONTH granularity.
+ */
+public class TrendSeriesTest {
+    private static final long DAY = 24 * 60 * 60;
+
+    /**
+     * 2023-01-30, a Monday.
+     */
+    private static final long MONDAY = 1675036800L;
+
+    @Test
+    public void testMonthBuckets() {
+        // 2024-02-29, a leap day
+        long bucket = Granularity.MONTH.getBucket(1709164800L);
+        assertEquals((2024 - 1970) * 12 + 1, bucket);
+        assertEquals(1706745600L, Granularity.MONTH.getBucketStart(bucket));
+        assertEquals(1709251199L, Granularity.MONTH.getBucketEnd(bucket));
+        assertEquals(-1, Granularity.MONTH.getBucket(-DAY));
+        assertEquals(-2678400L, Granularity.MONTH.getBucketStart(-1));
+        assertTrue(Granularity.MONTH.isTimeBucket());
+    }
+
+    @Test
+    public void testBucketsByDayWeekAndMonth() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 40, 4, MONDAY + 2 * DAY, MONDAY + 3 * DAY);
+        store.append("Kenya", "Kisumu", 100, 25, MONDAY + 3600, MONDAY + DAY);
+        store.append("Kenya", "Kisumu", 100, 35, MONDAY, MONDAY + DAY);
+        store.append("Kenya", "Nairobi", 50, 5, MONDAY + DAY, MONDAY + 2 * DAY);
+        store.append("Mali", "Bamako", 10, 1, MONDAY + 7 * DAY, MONDAY + 8 * DAY);
+
+        TrendSeries trends = TrendSeries.build(store);
+        assertEquals(5, trends.getRowCount());
+
+        TrendSeries.Series daily = trends.getCountry(0, Granularity.DAY);
+        assertEquals(3, daily.size());
+        assertEquals(MONDAY, daily.getStart(0));
+        assertEquals(MONDAY + DAY - 1, daily.getEnd(0));
+        assertEquals(200, daily.getTested(0));
+        assertEquals(30, daily.getPercent(0), 1e-9);
+        assertEquals(40, daily.getTested(2));
+
+        TrendSeries.Series weekly = trends.getCountry(0, Granularity.WEEK);
+        assertEquals(1, weekly.size());
+        assertEquals(MONDAY, weekly.getStart(0));
+        assertEquals(290, weekly.getTested(0));
+        assertEquals(69, weekly.getPositive(0));
+
+        // The week of January 30 is split between January and February
+        TrendSeries.Series monthly = trends.getCountry(0, Granularity.MONTH);
+        assertEquals(2, monthly.size());
+        assertEquals(1672531200L, monthly.getStart(0));
+        assertEquals(250, monthly.getTested(0));
+        assertEquals(40, monthly.getTested(1));
+
+        assertEquals(2, trends.getSite(0, Granularity.DAY).size());
+        assertEquals(2, trends.getGlobal(Granularity.WEEK).size());
+        assertEquals(0, trends.getCountry(99, Granularity.DAY).size());
+    }
+
+    @Test
+    public void testExtendMatchesBuild() {
+        SiteDataStore store = new SiteDataStore();
+        store.append("Kenya", "Kisumu", 40, 4, MONDAY + 2 * DAY, MONDAY + 3 * DAY);
+        store.append("Kenya", "Nairobi", 50, 5, MONDAY + DAY, MONDAY + 2 * DAY);
+        store.append("Mali", "Bamako", 10, 1, MONDAY + 40 * DAY, MONDAY + 41 * DAY);
+        TrendSeries trends = TrendSeries.build(store);
+        assertSame(trends, trends.extend(store));
+
+        // Rows on days already bucketed, before and after them, and of a new country
+        store.append("Kenya", "Kisumu", 60, 6, MONDAY + 2 * DAY, MONDAY + 3 * DAY);
+        store.append("Kenya", "Kisumu", 100, 20, MONDAY - 30 * DAY, MONDAY);
+        store.append("Mali", "Bamako", 20, 2, MONDAY + 90 * DAY, MONDAY + 91 * DAY);
+        store.append("Niger", "Niamey", 30, 3, MONDAY, MONDAY + DAY);
+        TrendSeries extended = trends.extend(store);
+        TrendSeries built = TrendSeries.build(store);
+        assertEquals(7, extended.getRowCount());
+        for (Granularity granularity : new Granularity[]{Granularity.DAY, Granularity.WEEK, Granularity.MONTH}) {
+            assertSameSeries(built.getGlobal(granularity), extended.getGlobal(granularity));
+            for (int id = 0; id < store.getCountries().size(); id++) {
+                assertSameSeries(built.getCountry(id, granularity), extended.getCountry(id, granularity));
+            }
+            for (int id = 0; id < store.getSites().size(); id++) {
+                assertSameSeries(built.getSite(id, granularity), extended.getSite(id, granularity));
+            }
+        }
+        assertEquals(2, extended.getSite(0, Granularity.DAY).size());
+        assertEquals(100, extended.getSite(0, Granularity.DAY).getTested(1));
+    }
+
+    private static void assertSameSeries(TrendSeries.Series expected, TrendSeries.Series actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getStart(i), actual.getStart(i));
+            assertEquals(expected.getTested(i), actual.getTested(i));
+            assertEquals(expected.getPositive(i), actual.getPositive(i));
+        }
+    }
+
+    @Test
+    public void testSparklineIsDownsampled() {
+        // Three years of days at 10%, with a single day at 90%
+        SiteDataStore store = new SiteDataStore();
+        for (int day = 0; day < 1000; day++) {
+            store.append("Kenya", "Kisumu", 100, day == 500 ? 90 : 10, MONDAY + day * DAY, MONDAY + day * DAY);
+        }
+        TrendSeries trends = TrendSeries.build(store);
+
+        TrendSeries.Series daily = trends.getCountry(0, Granularity.DAY).downsample(20);
+        assertEquals(20, daily.size());
+        assertEquals(MONDAY, daily.getStart(0));
+        assertEquals(MONDAY + 999 * DAY, daily.getStart(19));
+        boolean spikeKept = false;
+        for (int i = 0; i < daily.size(); i++) {
+            spikeKept |= daily.getPercent(i) == 90;
+        }
+        assertTrue(spikeKept);
+
+        // 1000 days are too many for 50 points, 143 weeks are not
+        TrendSeries.Series sparkline = trends.getSparkline(false, 0, 50);
+        assertEquals(Granularity.WEEK, sparkline.getGranularity());
+        assertEquals(50, sparkline.size());
+        assertSame(sparkline.getGranularity(), trends.getSparkline(false, -1, 50).getGranularity());
+        assertEquals(Granularity.DAY, trends.getSparkline(true, 0, 300).getGranularity());
+    }
+}